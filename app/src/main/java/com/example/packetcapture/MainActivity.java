@@ -1,5 +1,6 @@
 package com.example.packetcapture;
 
+import android.app.TimePickerDialog;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -19,14 +20,23 @@ import android.widget.Toast;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.example.packetcapture.capture.CaptureIndex;
+import com.example.packetcapture.capture.FlowSummary;
+import com.example.packetcapture.capture.FlowTracker;
+import com.example.packetcapture.capture.PcapngWriter;
+import com.example.packetcapture.export.CaptureExporter;
+import com.example.packetcapture.export.ExportFormat;
+import com.example.packetcapture.export.ExportSource;
+
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -49,11 +59,16 @@ public class MainActivity extends AppCompatActivity {
     private com.example.packetcapture.VpnService vpnService;
     private boolean isBound = false;
     private String selectedConfigPath = null;
+    // 正在进行的导出，没有时为null
+    private CaptureExporter exporter;
 
     private final ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
-            // 我们不使用Binder，因为VpnService不支持直接绑定
+            // 同一进程内绑定，直接取得服务实例并注册回调
+            vpnService = ((com.example.packetcapture.VpnService.LocalBinder) service).getService();
+            vpnService.setPacketCallback(packetCallback);
+            attachPageSource();
             isBound = true;
         }
 
@@ -64,6 +79,15 @@ public class MainActivity extends AppCompatActivity {
             updateUI(false);
         }
     };
+
+    // 服务在主线程上每帧最多通知一次，列表直接分页读取服务的记录，每次只按记录范围刷新
+    private final com.example.packetcapture.VpnService.PacketCallback packetCallback = count -> {
+        if (packetAdapter.getSource() == null && vpnService != null) {
+            attachPageSource();
+        }
+        packetAdapter.refresh();
+        packetCountTextView.setText(getString(R.string.packet_count, count));
+    };
     
     // 文件选择器结果处理
     private final ActivityResultLauncher<String> configFilePicker = registerForActivityResult(
@@ -121,19 +145,97 @@ public class MainActivity extends AppCompatActivity {
             selectConfigFile();
         });
 
+        // 长按计数跳转到指定时间的数据包
+        packetCountTextView.setOnLongClickListener(v -> {
+            showJumpToTimeDialog();
+            return true;
+        });
+
+        // 长按状态查看按连接聚合的流量统计
+        statusTextView.setOnLongClickListener(v -> {
+            showFlowsDialog();
+            return true;
+        });
+
         // 设置数据包点击事件
-        packetAdapter.setOnPacketClickListener(position -> {
+        packetAdapter.setOnPacketClickListener(packet -> {
             // 显示数据包详情，这里简单用Toast显示
-            PacketInfo packet = packetAdapter.getPacketList().get(position);
             Toast.makeText(this, 
                     "协议: " + packet.getProtocol() + "\n" +
                     "源: " + packet.getSourceAddressWithPort() + "\n" +
                     "目标: " + packet.getDestinationAddressWithPort() + "\n" +
+                    (packet.getHostname() != null ? "主机: " + packet.getHostname() + "\n" : "") +
                     "详情: " + packet.getDetails(),
                     Toast.LENGTH_LONG).show();
         });
     }
     
+    /**
+     * 列表分页显示服务中的记录：有pcapng记录时使用磁盘索引，包含两个方向的全部数据包，
+     * 否则使用环形存储；两者都还没有创建时先清空来源，收到下一批数据包时再取
+     */
+    private void attachPageSource() {
+        PcapngWriter writer = vpnService.getPcapngWriter();
+        CaptureIndex index = writer != null ? writer.getIndex() : null;
+        if (index != null) {
+            packetAdapter.setSource(PacketPageSource.of(index, vpnService.getHostnameTable()));
+        } else if (vpnService.getPacketStore() != null) {
+            packetAdapter.setSource(PacketPageSource.of(vpnService.getPacketStore(), vpnService.getHostnameTable()));
+        } else {
+            packetAdapter.setSource(null);
+        }
+    }
+
+    private void showJumpToTimeDialog() {
+        Calendar now = Calendar.getInstance();
+        new TimePickerDialog(this, (view, hourOfDay, minute) -> {
+            Calendar target = Calendar.getInstance();
+            target.set(Calendar.HOUR_OF_DAY, hourOfDay);
+            target.set(Calendar.MINUTE, minute);
+            target.set(Calendar.SECOND, 0);
+            target.set(Calendar.MILLISECOND, 0);
+            packetAdapter.findPosition(target.getTimeInMillis(), position -> {
+                if (position < 0) {
+                    Toast.makeText(this, "没有数据包", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                ((LinearLayoutManager) packetsRecyclerView.getLayoutManager()).scrollToPositionWithOffset(position, 0);
+            });
+        }, now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), true).show();
+    }
+
+    /**
+     * 显示服务按连接聚合的流量统计，最近出现的连接在前；快照在后台线程生成
+     */
+    private void showFlowsDialog() {
+        final FlowTracker tracker = vpnService != null ? vpnService.getFlowTracker() : null;
+        if (tracker == null) {
+            Toast.makeText(this, "尚未开始抓包", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new Thread(() -> {
+            List<FlowSummary> flows = tracker.snapshot();
+            final String[] items = new String[flows.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = flows.get(items.length - 1 - i).toString();
+            }
+            runOnUiThread(() -> {
+                if (isFinishing()) {
+                    return;
+                }
+                AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                        .setTitle("连接统计（" + items.length + "）")
+                        .setPositiveButton("关闭", null);
+                if (items.length == 0) {
+                    builder.setMessage("没有连接");
+                } else {
+                    builder.setItems(items, null);
+                }
+                builder.show();
+            });
+        }, "FlowSnapshot").start();
+    }
+
     private void selectConfigFile() {
         configFilePicker.launch("*/*");
     }
@@ -163,7 +265,7 @@ public class MainActivity extends AppCompatActivity {
                 File destFile = new File(getFilesDir(), "config.json");
                 
                 try (java.io.InputStream is = getContentResolver().openInputStream(uri);
-                     java.io.FileOutputStream fos = new FileOutputStream(destFile)) {
+                     java.io.FileOutputStream fos = new java.io.FileOutputStream(destFile)) {
                     
                     byte[] buffer = new byte[4096];
                     int bytesRead;
@@ -216,24 +318,9 @@ public class MainActivity extends AppCompatActivity {
         }
         
         startService(intent);
+        // 绑定成功后在onServiceConnected中注册回调
         bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
         
-        // 注册回调
-        com.example.packetcapture.VpnService.PacketCallback callback = new com.example.packetcapture.VpnService.PacketCallback() {
-            @Override
-            public void onPacketCaptured(PacketInfo packet) {
-                runOnUiThread(() -> packetAdapter.addPacket(packet));
-            }
-
-            @Override
-            public void onCountUpdated(int count) {
-                runOnUiThread(() -> packetCountTextView.setText(getString(R.string.packet_count, count)));
-            }
-        };
-        
-        // 全局静态方法设置回调
-        vpnService = null; // 通过服务绑定获取实例
-        
         isCapturing = true;
         updateUI(true);
     }
@@ -243,14 +330,22 @@ public class MainActivity extends AppCompatActivity {
         stopService(intent);
         
         if (isBound) {
-            unbindService(serviceConnection);
-            isBound = false;
+            unbindFromService();
         }
         
         isCapturing = false;
         updateUI(false);
     }
 
+    private void unbindFromService() {
+        if (vpnService != null) {
+            vpnService.setPacketCallback(null);
+            vpnService = null;
+        }
+        unbindService(serviceConnection);
+        isBound = false;
+    }
+
     private void updateUI(boolean isRunning) {
         if (isRunning) {
             statusTextView.setText(getString(R.string.capture_status, getString(R.string.status_running)));
@@ -264,51 +359,104 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void exportPacketsToFile() {
-        List<PacketInfo> packets = packetAdapter.getPacketList();
-        if (packets.isEmpty()) {
+        // 导出进行中时再次点击取消导出
+        if (exporter != null) {
+            exporter.cancel();
+            return;
+        }
+
+        ExportSource source = packetAdapter.newExportSource();
+        if (source == null) {
             Toast.makeText(this, "没有数据包可导出", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        try {
-            // 检查存储权限
-            if (checkSelfPermission(android.Manifest.permission.WRITE_EXTERNAL_STORAGE) 
-                    != PackageManager.PERMISSION_GRANTED) {
-                Toast.makeText(this, "需要存储权限才能导出文件", Toast.LENGTH_SHORT).show();
-                requestPermissions(new String[]{android.Manifest.permission.WRITE_EXTERNAL_STORAGE}, 2);
-                return;
-            }
+        // 检查存储权限
+        if (checkSelfPermission(android.Manifest.permission.WRITE_EXTERNAL_STORAGE) 
+                != PackageManager.PERMISSION_GRANTED) {
+            Toast.makeText(this, "需要存储权限才能导出文件", Toast.LENGTH_SHORT).show();
+            requestPermissions(new String[]{android.Manifest.permission.WRITE_EXTERNAL_STORAGE}, 2);
+            return;
+        }
+
+        chooseExportFormat(source);
+    }
 
-            // 创建导出文件
-            File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-            if (!downloadsDir.exists()) {
-                downloadsDir.mkdirs();
+    /**
+     * 选择导出格式；来源没有pcapng记录时不提供pcapng
+     */
+    private void chooseExportFormat(ExportSource source) {
+        List<ExportFormat> formats = new ArrayList<>();
+        for (ExportFormat format : ExportFormat.values()) {
+            if (format != ExportFormat.PCAPNG || source.hasPackets()) {
+                formats.add(format);
             }
+        }
+        String[] names = new String[formats.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = formats.get(i).getExtension().toUpperCase(Locale.US);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("导出格式")
+                .setItems(names, (dialog, which) -> startExport(source, formats.get(which)))
+                .show();
+    }
 
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
-            String fileName = "packet_capture_" + sdf.format(new Date()) + ".csv";
-            File outputFile = new File(downloadsDir, fileName);
+    private void startExport(ExportSource source, ExportFormat format) {
+        if (exporter != null) {
+            return;
+        }
+        // 创建导出文件
+        File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        if (!downloadsDir.exists()) {
+            downloadsDir.mkdirs();
+        }
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
+        String fileName = "packet_capture_" + sdf.format(new Date()) + "." + format.getExtension();
+        File outputFile = new File(downloadsDir, fileName);
 
-            FileWriter writer = new FileWriter(outputFile);
-            writer.append("协议,源地址,目标地址,时间戳,详情,大小(字节)\n");
+        // 在后台读取、格式化和写入
+        exporter = new CaptureExporter(source, format, outputFile);
+        exporter.setListener(new CaptureExporter.Listener() {
+            @Override
+            public void onProgress(long exported, long total) {
+                int percent = total > 0 ? (int) Math.min(100, exported * 100 / total) : 0;
+                runOnUiThread(() -> exportButton.setText("导出中 " + percent + "%"));
+            }
 
-            for (PacketInfo packet : packets) {
-                writer.append(packet.getProtocol()).append(",")
-                      .append(packet.getSourceAddressWithPort()).append(",")
-                      .append(packet.getDestinationAddressWithPort()).append(",")
-                      .append(packet.getFormattedTimestamp()).append(",")
-                      .append(packet.getDetails().replace(",", ";")).append(",")
-                      .append(String.valueOf(packet.getSize())).append("\n");
+            @Override
+            public void onFinished(File file, long exported) {
+                runOnUiThread(() -> {
+                    onExportEnded();
+                    Toast.makeText(MainActivity.this, "数据包已导出到: " + file.getAbsolutePath(),
+                            Toast.LENGTH_LONG).show();
+                });
             }
 
-            writer.flush();
-            writer.close();
+            @Override
+            public void onFailed(Exception e) {
+                runOnUiThread(() -> {
+                    onExportEnded();
+                    Toast.makeText(MainActivity.this, "导出失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                });
+            }
 
-            Toast.makeText(this, "数据包已导出到: " + outputFile.getAbsolutePath(), Toast.LENGTH_LONG).show();
-        } catch (IOException e) {
-            Log.e(TAG, "Error exporting packets", e);
-            Toast.makeText(this, "导出失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-        }
+            @Override
+            public void onCancelled() {
+                runOnUiThread(() -> {
+                    onExportEnded();
+                    Toast.makeText(MainActivity.this, "导出已取消", Toast.LENGTH_SHORT).show();
+                });
+            }
+        });
+        exporter.start();
+        exportButton.setText("导出中 0%");
+    }
+
+    private void onExportEnded() {
+        exporter = null;
+        exportButton.setText(R.string.export_logs);
     }
 
     @Override
@@ -323,10 +471,13 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onDestroy() {
+        if (exporter != null) {
+            exporter.cancel();
+        }
         if (isBound) {
-            unbindService(serviceConnection);
-            isBound = false;
+            unbindFromService();
         }
+        packetAdapter.release();
         super.onDestroy();
     }
 } 
\ No newline at end of file
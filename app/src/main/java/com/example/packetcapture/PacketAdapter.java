@@ -0,0 +1,380 @@
+package com.example.packetcapture;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.packetcapture.export.ExportSource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 数据包列表适配器
+ * 列表不持有数据包，只记录来源中显示范围的起点和行数；每一行按位置从PacketPageSource读取。
+ * 绑定到缓存中没有的行时先显示占位，由加载线程读取包含该行的固定窗口并格式化成字符串，
+ * 结果放入按最近使用淘汰的缓存后再刷新这些行；靠近窗口边缘时预加载相邻窗口。
+ * 界面内存只取决于缓存大小，与抓包总数无关。除加载线程外所有方法都在主线程上调用。
+ */
+public class PacketAdapter extends RecyclerView.Adapter<PacketAdapter.ViewHolder> {
+    // 每次加载的窗口行数
+    private static final int PAGE_SIZE = 128;
+    // 缓存的已格式化行数
+    private static final int CACHE_ROWS = PAGE_SIZE * 8;
+    // 距离窗口边缘不足这些行时预加载相邻窗口
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 4;
+    // 快速滚动时排队的窗口离当前位置超过这些行就不再加载
+    private static final int STALE_DISTANCE = PAGE_SIZE * 4;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "PacketPageLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 来源位置到已格式化行的缓存，按访问顺序淘汰
+    private final Map<Long, RowText> cache = new LinkedHashMap<Long, RowText>(CACHE_ROWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, RowText> eldest) {
+            return size() > CACHE_ROWS;
+        }
+    };
+    // 已提交加载的窗口序号
+    private final Set<Long> pendingPages = new HashSet<>();
+
+    private PacketPageSource source;
+    // 列表第一行对应的来源位置和列表行数
+    private long base;
+    private int count;
+    // 更换来源或清除时递增，用于丢弃过期的加载结果
+    private int generation;
+    // 最近绑定的来源位置，加载线程据此跳过过期的窗口
+    private volatile long lastBound;
+    private OnPacketClickListener onPacketClickListener;
+
+    /**
+     * 点击的数据包在加载线程上读取，结果在主线程上回调；记录已被覆盖时不回调
+     */
+    public interface OnPacketClickListener {
+        void onPacketClick(PacketInfo packet);
+    }
+
+    /**
+     * 跳转到时间的结果回调，在主线程上调用
+     */
+    public interface OnPositionFoundListener {
+        /**
+         * @param position 列表位置，列表为空时为-1
+         */
+        void onPositionFound(int position);
+    }
+
+    public void setOnPacketClickListener(OnPacketClickListener listener) {
+        this.onPacketClickListener = listener;
+    }
+
+    /**
+     * 更换数据来源，列表显示来源中当前的全部记录
+     */
+    public void setSource(PacketPageSource source) {
+        if (this.source != source) {
+            closeOnLoader(this.source);
+        }
+        this.source = source;
+        generation++;
+        cache.clear();
+        pendingPages.clear();
+        base = source != null ? source.getStart() : 0;
+        count = 0;
+        notifyDataSetChanged();
+        refresh();
+    }
+
+    public PacketPageSource getSource() {
+        return source;
+    }
+
+    /**
+     * 按来源当前的范围更新列表：被覆盖的行从头部移除，新记录追加到尾部
+     */
+    public void refresh() {
+        if (source == null) {
+            return;
+        }
+        long start = source.getStart();
+        long end = source.getEnd();
+        if (start > base) {
+            int removed = (int) Math.min(start - base, count);
+            base = start;
+            count -= removed;
+            if (removed > 0) {
+                notifyItemRangeRemoved(0, removed);
+            }
+        }
+        long added = Math.min(end - base, Integer.MAX_VALUE) - count;
+        if (added > 0) {
+            int first = count;
+            count += (int) added;
+            notifyItemRangeInserted(first, (int) added);
+        }
+    }
+
+    /**
+     * 清除列表，来源中之前的记录不再显示
+     */
+    public void clearPackets() {
+        if (source == null) {
+            return;
+        }
+        source.clear();
+        generation++;
+        cache.clear();
+        pendingPages.clear();
+        refresh();
+    }
+
+    /**
+     * 当前列表内容作为导出来源
+     * @return 列表为空时返回null
+     */
+    public ExportSource newExportSource() {
+        return source != null && count > 0 ? source.newExportSource() : null;
+    }
+
+    /**
+     * 在加载线程上查找第一条不早于timestamp的数据包
+     */
+    public void findPosition(final long timestamp, final OnPositionFoundListener listener) {
+        final PacketPageSource current = source;
+        if (current == null) {
+            listener.onPositionFound(-1);
+            return;
+        }
+        loader.execute(() -> {
+            long location;
+            synchronized (current) {
+                location = current.find(timestamp);
+            }
+            handler.post(() -> {
+                if (current != source || count == 0) {
+                    listener.onPositionFound(-1);
+                    return;
+                }
+                long position = Math.max(0, Math.min(location - base, count - 1));
+                listener.onPositionFound((int) position);
+            });
+        });
+    }
+
+    /**
+     * 停止加载线程，之后不能再使用
+     */
+    public void release() {
+        closeOnLoader(source);
+        source = null;
+        generation++;
+        // 不中断加载线程，中断会关闭正在读取的文件通道；已排队的窗口加载完后结果被丢弃
+        loader.shutdown();
+    }
+
+    /**
+     * 排在已提交的读取之后关闭来源
+     */
+    private void closeOnLoader(final PacketPageSource old) {
+        if (old == null || loader.isShutdown()) {
+            return;
+        }
+        loader.execute(() -> {
+            synchronized (old) {
+                old.close();
+            }
+        });
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_packet, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        long location = base + position;
+        lastBound = location;
+        RowText text = cache.get(location);
+        if (text != null) {
+            holder.bind(text);
+        } else {
+            holder.bindPlaceholder();
+            requestPage(location / PAGE_SIZE);
+        }
+        long offset = location % PAGE_SIZE;
+        if (offset < PREFETCH_DISTANCE) {
+            requestPage(location / PAGE_SIZE - 1);
+        } else if (offset >= PAGE_SIZE - PREFETCH_DISTANCE) {
+            requestPage(location / PAGE_SIZE + 1);
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return count;
+    }
+
+    /**
+     * 提交一个窗口的加载，已在加载中或已缓存的窗口不重复提交
+     */
+    private void requestPage(final long page) {
+        if (source == null || page < 0 || pendingPages.contains(page) || loader.isShutdown()) {
+            return;
+        }
+        final long from = Math.max(page * PAGE_SIZE, base);
+        final long to = Math.min((page + 1) * PAGE_SIZE, base + count);
+        if (from >= to || (cache.containsKey(from) && cache.containsKey(to - 1))) {
+            return;
+        }
+        pendingPages.add(page);
+        final PacketPageSource current = source;
+        final int requestGeneration = generation;
+        loader.execute(() -> {
+            List<RowText> rows = null;
+            if (Math.abs(from - lastBound) <= STALE_DISTANCE) {
+                rows = new ArrayList<>((int) (to - from));
+                synchronized (current) {
+                    for (long location = from; location < to; location++) {
+                        PacketInfo packet = current.read(location);
+                        rows.add(packet != null ? new RowText(packet) : RowText.OVERWRITTEN);
+                    }
+                }
+            }
+            final List<RowText> loaded = rows;
+            handler.post(() -> onPageLoaded(requestGeneration, page, from, loaded));
+        });
+    }
+
+    /**
+     * 在加载线程上读取被点击的数据包，不在主线程上读取磁盘
+     */
+    private void loadPacket(int position) {
+        if (source == null || position < 0 || position >= count || loader.isShutdown()) {
+            return;
+        }
+        final PacketPageSource current = source;
+        final long location = base + position;
+        final int requestGeneration = generation;
+        loader.execute(() -> {
+            final PacketInfo packet;
+            synchronized (current) {
+                packet = current.read(location);
+            }
+            handler.post(() -> {
+                if (packet != null && requestGeneration == generation && onPacketClickListener != null) {
+                    onPacketClickListener.onPacketClick(packet);
+                }
+            });
+        });
+    }
+
+    /**
+     * 主线程上接收加载结果
+     * @param rows 窗口已过期未加载时为null
+     */
+    private void onPageLoaded(int requestGeneration, long page, long from, List<RowText> rows) {
+        if (requestGeneration != generation) {
+            return;
+        }
+        pendingPages.remove(page);
+        if (rows == null) {
+            return;
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            cache.put(from + i, rows.get(i));
+        }
+        long start = Math.max(from, base);
+        long end = Math.min(from + rows.size(), base + count);
+        if (end > start) {
+            notifyItemRangeChanged((int) (start - base), (int) (end - start));
+        }
+    }
+
+    /**
+     * 一行已格式化的显示文本，在加载线程上生成
+     */
+    static final class RowText {
+        static final RowText OVERWRITTEN = new RowText("已被覆盖", "", "", "", "");
+
+        final String protocol;
+        final String source;
+        final String destination;
+        final String timestamp;
+        final String details;
+
+        RowText(PacketInfo packet) {
+            this(packet.getProtocol(),
+                    "源: " + packet.getSourceAddressWithPort(),
+                    "目标: " + packet.getDestinationAddressWithPort(),
+                    "时间: " + packet.getFormattedTimestamp() + " | 大小: " + packet.getSize() + " 字节",
+                    "详情: " + packet.getDetails());
+        }
+
+        RowText(String protocol, String source, String destination, String timestamp, String details) {
+            this.protocol = protocol;
+            this.source = source;
+            this.destination = destination;
+            this.timestamp = timestamp;
+            this.details = details;
+        }
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView protocolTextView;
+        final TextView sourceTextView;
+        final TextView destinationTextView;
+        final TextView timestampTextView;
+        final TextView detailsTextView;
+
+        ViewHolder(@NonNull View itemView) {
+            super(itemView);
+            protocolTextView = itemView.findViewById(R.id.protocolTextView);
+            sourceTextView = itemView.findViewById(R.id.sourceTextView);
+            destinationTextView = itemView.findViewById(R.id.destinationTextView);
+            timestampTextView = itemView.findViewById(R.id.timestampTextView);
+            detailsTextView = itemView.findViewById(R.id.detailsTextView);
+            itemView.setOnClickListener(v -> {
+                int position = getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && onPacketClickListener != null) {
+                    loadPacket(position);
+                }
+            });
+        }
+
+        void bind(RowText text) {
+            protocolTextView.setText(text.protocol);
+            sourceTextView.setText(text.source);
+            destinationTextView.setText(text.destination);
+            timestampTextView.setText(text.timestamp);
+            detailsTextView.setText(text.details);
+        }
+
+        void bindPlaceholder() {
+            protocolTextView.setText("加载中");
+            sourceTextView.setText("");
+            destinationTextView.setText("");
+            timestampTextView.setText("");
+            detailsTextView.setText("");
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.packetcapture;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 抓包线程到界面的刷新信号
+ * 数据包本身已经写入环形存储和pcapng索引，列表按位置分页读取，因此这里只传递捕获总数。
+ * 抓包线程每个数据包只写一个int，不分配对象也不向主线程逐个发送消息；
+ * 两次刷新之间最多向主线程投递一次任务，延迟一帧执行，所以主线程每帧最多刷新一次。
+ */
+final class PacketFeed {
+    // 约一帧的间隔，也是通知界面的最高频率
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable drainTask = this::drain;
+
+    private volatile VpnService.PacketCallback callback;
+    private volatile int count;
+
+    /**
+     * 设置在主线程上接收通知的回调，为null时停止通知
+     */
+    void setCallback(VpnService.PacketCallback callback) {
+        this.callback = callback;
+        if (callback != null) {
+            schedule();
+        }
+    }
+
+    /**
+     * 记录新的捕获总数，只能由抓包线程调用
+     * @param total 到目前为止捕获的数据包总数
+     */
+    void signal(int total) {
+        count = total;
+        schedule();
+    }
+
+    private void schedule() {
+        if (callback != null && !scheduled.get() && scheduled.compareAndSet(false, true)) {
+            handler.postDelayed(drainTask, FRAME_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * 在主线程上把这一帧内的最新总数交给回调
+     */
+    private void drain() {
+        // 先清除标记再读取总数，之后写入的总数会再投递一次
+        scheduled.set(false);
+        VpnService.PacketCallback target = callback;
+        if (target != null) {
+            target.onPacketsCaptured(count);
+        }
+    }
+}
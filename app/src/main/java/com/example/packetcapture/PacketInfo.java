@@ -0,0 +1,226 @@
+package com.example.packetcapture;
+
+import com.example.packetcapture.capture.HostnameTable;
+import com.example.packetcapture.capture.PacketDecoder;
+import com.example.packetcapture.capture.PacketStore;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * 单个数据包的摘要信息
+ * 字段以解码得到的基本类型保存，地址、详情、时间等字符串只在首次访问时生成并缓存，
+ * 因此在抓包线程上创建该对象的开销很小。
+ */
+public class PacketInfo {
+    private static final ThreadLocal<SimpleDateFormat> TIMESTAMP_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+        }
+    };
+
+    private final int ipVersion;
+    private final int protocol;
+    private final long sourceAddressHigh;
+    private final long sourceAddressLow;
+    private final long destinationAddressHigh;
+    private final long destinationAddressLow;
+    private final int sourcePort;
+    private final int destinationPort;
+    private final int flags;
+    private final int info;
+    private final long timestamp;
+    private final int size;
+    // 远端主机名；DNS查询为查询的域名。未知时为null
+    private final String hostname;
+
+    // 延迟生成的字符串
+    private String protocolName;
+    private String sourceAddressText;
+    private String destinationAddressText;
+    private String details;
+    private String formattedTimestamp;
+
+    public PacketInfo(int ipVersion, int protocol,
+                      long sourceAddressHigh, long sourceAddressLow,
+                      long destinationAddressHigh, long destinationAddressLow,
+                      int sourcePort, int destinationPort, int flags, int info,
+                      long timestamp, int size) {
+        this(ipVersion, protocol, sourceAddressHigh, sourceAddressLow, destinationAddressHigh, destinationAddressLow,
+                sourcePort, destinationPort, flags, info, timestamp, size, null);
+    }
+
+    public PacketInfo(int ipVersion, int protocol,
+                      long sourceAddressHigh, long sourceAddressLow,
+                      long destinationAddressHigh, long destinationAddressLow,
+                      int sourcePort, int destinationPort, int flags, int info,
+                      long timestamp, int size, String hostname) {
+        this.ipVersion = ipVersion;
+        this.protocol = protocol;
+        this.sourceAddressHigh = sourceAddressHigh;
+        this.sourceAddressLow = sourceAddressLow;
+        this.destinationAddressHigh = destinationAddressHigh;
+        this.destinationAddressLow = destinationAddressLow;
+        this.sourcePort = sourcePort;
+        this.destinationPort = destinationPort;
+        this.flags = flags;
+        this.info = info;
+        this.timestamp = timestamp;
+        this.size = size;
+        this.hostname = hostname;
+    }
+
+    /**
+     * 从环形存储中读取的一行创建数据包信息
+     * @param row 已填充的行对象
+     * @return 数据包信息
+     */
+    public static PacketInfo of(PacketStore.Row row) {
+        return of(row, null);
+    }
+
+    /**
+     * 从环形存储中读取的一行创建数据包信息，并按目标地址查询主机名
+     * @param hostnames DNS应答登记的主机名表，可为null
+     */
+    public static PacketInfo of(PacketStore.Row row, HostnameTable hostnames) {
+        return of(row, false, hostnames);
+    }
+
+    /**
+     * 从读取的一行创建数据包信息，并按远端地址查询主机名；DNS查询取行中记下的域名
+     * @param inbound 写回应用的数据包为true，此时远端是源地址
+     * @param hostnames DNS应答登记的主机名表，可为null
+     */
+    public static PacketInfo of(PacketStore.Row row, boolean inbound, HostnameTable hostnames) {
+        String hostname = null;
+        if (hostnames != null) {
+            if (row.getNameId() != 0) {
+                hostname = hostnames.getQueryName(row.getNameId());
+            }
+            if (hostname == null) {
+                hostname = inbound
+                        ? hostnames.lookup(row.getIpVersion(), row.getSourceAddressHigh(), row.getSourceAddressLow())
+                        : hostnames.lookup(row.getIpVersion(),
+                                row.getDestinationAddressHigh(), row.getDestinationAddressLow());
+            }
+        }
+        return withHostname(row, hostname);
+    }
+
+    /**
+     * 从读取的一行创建数据包信息
+     * @param hostname 远端主机名或DNS查询的域名，可为null
+     */
+    public static PacketInfo withHostname(PacketStore.Row row, String hostname) {
+        return new PacketInfo(
+                row.getIpVersion(),
+                row.getProtocol(),
+                row.getSourceAddressHigh(),
+                row.getSourceAddressLow(),
+                row.getDestinationAddressHigh(),
+                row.getDestinationAddressLow(),
+                row.getSourcePort(),
+                row.getDestinationPort(),
+                row.getFlags(),
+                row.getInfo(),
+                row.getTimestamp(),
+                row.getLength(),
+                hostname
+        );
+    }
+
+    public int getIpVersion() {
+        return ipVersion;
+    }
+
+    public int getProtocolNumber() {
+        return protocol;
+    }
+
+    public String getProtocol() {
+        if (protocolName == null) {
+            protocolName = PacketDecoder.formatProtocol(protocol);
+        }
+        return protocolName;
+    }
+
+    public String getSourceAddress() {
+        if (sourceAddressText == null) {
+            sourceAddressText = PacketDecoder.formatAddress(ipVersion, sourceAddressHigh, sourceAddressLow);
+        }
+        return sourceAddressText;
+    }
+
+    public String getDestinationAddress() {
+        if (destinationAddressText == null) {
+            destinationAddressText = PacketDecoder.formatAddress(ipVersion, destinationAddressHigh, destinationAddressLow);
+        }
+        return destinationAddressText;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public int getDestinationPort() {
+        return destinationPort;
+    }
+
+    public String getSourceAddressWithPort() {
+        return withPort(getSourceAddress(), sourcePort);
+    }
+
+    public String getDestinationAddressWithPort() {
+        return withPort(getDestinationAddress(), destinationPort);
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public String getDetails() {
+        if (details == null) {
+            details = PacketDecoder.formatDetails(protocol, flags, info);
+            if (hostname != null && (flags & PacketDecoder.FLAG_DNS) != 0) {
+                details = "查询: " + hostname + " | " + details;
+            }
+        }
+        return details;
+    }
+
+    /**
+     * 远端主机名，来自VPN内DNS应答登记的地址；DNS数据包为查询的域名
+     * @return 未知时返回null
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getFormattedTimestamp() {
+        if (formattedTimestamp == null) {
+            formattedTimestamp = TIMESTAMP_FORMAT.get().format(new Date(timestamp));
+        }
+        return formattedTimestamp;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    private String withPort(String address, int port) {
+        if (protocol != PacketDecoder.PROTOCOL_TCP && protocol != PacketDecoder.PROTOCOL_UDP) {
+            return address;
+        }
+        if (ipVersion == 6) {
+            return "[" + address + "]:" + port;
+        }
+        return address + ":" + port;
+    }
+}
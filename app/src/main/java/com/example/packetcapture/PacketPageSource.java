@@ -0,0 +1,245 @@
+package com.example.packetcapture;
+
+import com.example.packetcapture.capture.CaptureIndex;
+import com.example.packetcapture.capture.HostnameTable;
+import com.example.packetcapture.capture.PacketDecoder;
+import com.example.packetcapture.capture.PacketStore;
+import com.example.packetcapture.capture.PcapngWriter;
+import com.example.packetcapture.export.ExportSource;
+import com.example.packetcapture.tunnel.DnsMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 数据包列表分页显示的数据来源
+ * 位置是来源中的记录序号，[getStart(), getEnd())之间的记录可以按位置随机读取；
+ * 抓包期间两端都可能前移。read、find和close只在列表的加载线程上调用，其余方法在主线程上调用。
+ */
+public abstract class PacketPageSource {
+    private static final int DNS_PORT = 53;
+    // Enhanced Packet Block中捕获长度和数据包的偏移
+    private static final int EPB_CAPTURED_LENGTH = 20;
+    private static final int EPB_DATA_OFFSET = 28;
+
+    /**
+     * 第一条可读记录的位置
+     */
+    public abstract long getStart();
+
+    /**
+     * 最后一条记录之后的位置
+     */
+    public abstract long getEnd();
+
+    /**
+     * 读取指定位置的记录
+     * @return 记录已被覆盖或不存在时返回null
+     */
+    public abstract PacketInfo read(long position);
+
+    /**
+     * 第一条时间不早于timestamp的记录位置
+     * @param timestamp 时间（毫秒）
+     * @return 所有记录都早于timestamp时返回getEnd()
+     */
+    public abstract long find(long timestamp);
+
+    /**
+     * 之前的记录不再显示，也不再导出
+     */
+    public abstract void clear();
+
+    /**
+     * 当前可读的记录作为导出来源
+     */
+    public abstract ExportSource newExportSource();
+
+    /**
+     * 释放读取时打开的文件，之后不再读取
+     */
+    public void close() {
+    }
+
+    /**
+     * 服务的环形存储，只包含应用发出的数据包，写满后最旧的记录被覆盖
+     * @param hostnames 主机名表，可为null
+     */
+    public static PacketPageSource of(final PacketStore store, final HostnameTable hostnames) {
+        return new PacketPageSource() {
+            // 只在加载线程上使用
+            private final PacketStore.Row row = new PacketStore.Row();
+
+            @Override
+            public long getStart() {
+                return store.getOldestSequence();
+            }
+
+            @Override
+            public long getEnd() {
+                return store.getWriteSequence();
+            }
+
+            @Override
+            public PacketInfo read(long position) {
+                return store.read(position, row) ? PacketInfo.of(row, hostnames) : null;
+            }
+
+            @Override
+            public long find(long timestamp) {
+                return store.findSequence(timestamp);
+            }
+
+            @Override
+            public void clear() {
+                store.clear();
+            }
+
+            @Override
+            public ExportSource newExportSource() {
+                return ExportSource.of(store, hostnames);
+            }
+        };
+    }
+
+    /**
+     * pcapng记录的磁盘索引，包含两个方向的全部数据包，记录不会被覆盖
+     * @param hostnames 主机名表，可为null
+     */
+    public static PacketPageSource of(final CaptureIndex index, final HostnameTable hostnames) {
+        return new PacketPageSource() {
+            // 只在加载线程上使用
+            private final PacketStore.Row row = new PacketStore.Row();
+            private final PacketInfo[] result = new PacketInfo[1];
+            private final CaptureIndex.Visitor visitor = (record, inbound, segment, offset) -> {
+                String queryName = null;
+                if (!inbound && segment != 0 && (record.getFlags() & PacketDecoder.FLAG_DNS) != 0
+                        && record.getDestinationPort() == DNS_PORT) {
+                    queryName = readQueryName(segment, offset);
+                }
+                result[0] = queryName != null
+                        ? PacketInfo.withHostname(record, queryName)
+                        : PacketInfo.of(record, inbound, hostnames);
+                return true;
+            };
+            // 索引的行不记DNS查询的域名，从分段文件中读回查询报文解析
+            private final Map<Integer, FileChannel> channels = new HashMap<>();
+            private final PacketDecoder decoder = new PacketDecoder();
+            private final ByteBuffer head = ByteBuffer.allocate(EPB_DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+            private ByteBuffer data = ByteBuffer.allocate(512);
+            // 索引不能删除记录，清除只是把起点移到当前末尾
+            private volatile long start;
+
+            @Override
+            public long getStart() {
+                return start;
+            }
+
+            @Override
+            public long getEnd() {
+                return index.size();
+            }
+
+            @Override
+            public PacketInfo read(long position) {
+                if (position < start || !index.read(position, row, visitor)) {
+                    return null;
+                }
+                PacketInfo packet = result[0];
+                result[0] = null;
+                return packet;
+            }
+
+            @Override
+            public long find(long timestamp) {
+                return Math.max(start, index.findRecord(timestamp));
+            }
+
+            @Override
+            public void clear() {
+                start = index.size();
+            }
+
+            @Override
+            public ExportSource newExportSource() {
+                final long from = start;
+                if (from == 0) {
+                    return ExportSource.of(index, null, hostnames);
+                }
+                return ExportSource.of(index, new CaptureIndex.Query().setRecordRange(from, Long.MAX_VALUE),
+                        hostnames);
+            }
+
+            @Override
+            public void close() {
+                for (FileChannel channel : channels.values()) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // 只读文件，忽略
+                    }
+                }
+                channels.clear();
+            }
+
+            /**
+             * 读取Enhanced Packet Block中的数据包，解析DNS查询的域名
+             * @return 读取失败或报文不完整时返回null
+             */
+            private String readQueryName(int segment, int offset) {
+                FileChannel channel = channels.get(segment);
+                try {
+                    if (channel == null) {
+                        File file = index.getSegmentFile(segment);
+                        channel = new RandomAccessFile(file, "r").getChannel();
+                        channels.put(segment, channel);
+                    }
+                    long position = offset & 0xFFFFFFFFL;
+                    head.clear();
+                    readFully(channel, head, position);
+                    int capturedLength = head.getInt(EPB_CAPTURED_LENGTH);
+                    if (capturedLength <= 0 || capturedLength > PcapngWriter.MAX_SNAP_LENGTH) {
+                        return null;
+                    }
+                    if (data.capacity() < capturedLength) {
+                        data = ByteBuffer.allocate(capturedLength);
+                    }
+                    data.clear();
+                    data.limit(capturedLength);
+                    readFully(channel, data, position + EPB_DATA_OFFSET);
+                    if (!decoder.decode(data, capturedLength)) {
+                        return null;
+                    }
+                    int payloadOffset = decoder.getPayloadOffset();
+                    return DnsMessage.readQuestionName(data.array(), payloadOffset, capturedLength - payloadOffset);
+                } catch (IOException e) {
+                    // 下次读取时重新打开
+                    if (channel != null) {
+                        channels.remove(segment);
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                            // 只读文件，忽略
+                        }
+                    }
+                    return null;
+                }
+            }
+        };
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("pcapng记录不完整");
+            }
+        }
+    }
+}
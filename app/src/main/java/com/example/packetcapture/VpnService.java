@@ -5,26 +5,33 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Intent;
-import android.net.VpnService;
+import android.os.Binder;
 import android.os.Build;
+import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
+import com.example.packetcapture.capture.FlowTracker;
+import com.example.packetcapture.capture.HostnameTable;
+import com.example.packetcapture.capture.PacketDecoder;
+import com.example.packetcapture.capture.PacketStore;
+import com.example.packetcapture.capture.PcapngWriter;
+import com.example.packetcapture.config.ConfigFileWatcher;
 import com.example.packetcapture.config.RewriteConfig;
+import com.example.packetcapture.proxy.CertificateManager;
 import com.example.packetcapture.proxy.HttpProxyServer;
+import com.example.packetcapture.tunnel.DnsCache;
+import com.example.packetcapture.tunnel.DnsMessage;
+import com.example.packetcapture.tunnel.ForwardingEngine;
+import com.example.packetcapture.tunnel.RedirectTable;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.Selector;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -34,33 +41,87 @@ public class VpnService extends android.net.VpnService {
     private static final String CHANNEL_ID = "VPN_CHANNEL";
     private static final int NOTIFICATION_ID = 1;
     private static final int PROXY_PORT = 8888;
+    private static final String VPN_ADDRESS = "10.0.0.2";
+    private static final String VPN_ADDRESS_V6 = "fd00:1:fd00:1:fd00:1:fd00:1";
+    private static final String DEFAULT_DNS_SERVER = "8.8.8.8";
+    private static final int DNS_PORT = 53;
+    public static final String EXTRA_STORE_CAPACITY = "store_capacity";
+    public static final String EXTRA_TRANSPARENT_PROXY = "transparent_proxy";
+    public static final String EXTRA_PROXY_NON_BLOCKING = "proxy_non_blocking";
+    // 叶子证书的密钥类型，CertificateManager.KEY_TYPE_RSA（默认）或KEY_TYPE_EC
+    public static final String EXTRA_LEAF_KEY_TYPE = "leaf_key_type";
+    public static final String EXTRA_MAX_BUFFERED_BODY = "max_buffered_body";
+    public static final String EXTRA_DNS_SERVER = "dns_server";
+    public static final String EXTRA_DNS_CACHE = "dns_cache";
+    public static final String EXTRA_RECORD_PCAPNG = "record_pcapng";
+    public static final String EXTRA_SNAP_LENGTH = "snap_length";
+    public static final String EXTRA_SEGMENT_SIZE = "segment_size";
+    public static final String EXTRA_SEGMENT_SECONDS = "segment_seconds";
     
     private ParcelFileDescriptor vpnInterface;
     private ExecutorService executorService;
     private boolean isRunning = false;
-    private ConcurrentLinkedQueue<PacketInfo> capturedPackets;
-    private PacketCallback packetCallback;
+    private volatile PacketStore packetStore;
+    // 抓包线程到界面的批量投递通道
+    private final PacketFeed packetFeed = new PacketFeed();
+    private final IBinder binder = new LocalBinder();
     private AtomicInteger packetCount = new AtomicInteger(0);
     
     // 新增的HTTP代理服务器
     private HttpProxyServer proxyServer;
     private RewriteConfig rewriteConfig;
+    // 配置文件变化时在后台重新加载规则，无需重启服务
+    private ConfigFileWatcher configWatcher;
+    // VPN透明重定向到代理的连接的原始目标，为null时不重定向
+    private RedirectTable redirectTable;
+    // VPN内DNS应答登记的地址到主机名映射，抓包记录据此显示主机名
+    private final HostnameTable hostnameTable = new HostnameTable();
+    // 为null时DNS查询和普通UDP一样转发
+    private DnsCache dnsCache;
+    private String dnsServer = DEFAULT_DNS_SERVER;
+    // 按连接聚合的统计，两个方向的数据包都计入
+    private volatile FlowTracker flowTracker;
+    // 完整数据包的pcapng记录，为null时不记录
+    private volatile PcapngWriter pcapngWriter;
 
+    /**
+     * 界面接收抓包通知的回调，在主线程上每帧最多调用一次
+     */
     public interface PacketCallback {
-        void onPacketCaptured(PacketInfo packet);
-        void onCountUpdated(int count);
+        /**
+         * 有新的数据包写入存储，列表按来源的记录范围刷新
+         * @param count 到目前为止捕获的数据包总数
+         */
+        void onPacketsCaptured(int count);
+    }
+
+    /**
+     * 同一进程内绑定服务时返回的Binder
+     */
+    public class LocalBinder extends Binder {
+        public VpnService getService() {
+            return VpnService.this;
+        }
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
-        capturedPackets = new ConcurrentLinkedQueue<>();
         executorService = Executors.newFixedThreadPool(2);
         
         // 初始化配置
         rewriteConfig = new RewriteConfig();
     }
 
+    @Override
+    public IBinder onBind(Intent intent) {
+        // 系统以SERVICE_INTERFACE绑定时交给父类处理
+        if (intent != null && SERVICE_INTERFACE.equals(intent.getAction())) {
+            return super.onBind(intent);
+        }
+        return binder;
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (isRunning) {
@@ -74,10 +135,44 @@ public class VpnService extends android.net.VpnService {
             if (configFile.exists()) {
                 rewriteConfig.loadConfigFromFile(configFile);
                 Log.i(TAG, "已加载重写配置: " + configPath);
+                configWatcher = new ConfigFileWatcher(configFile, rewriteConfig);
+                configWatcher.start();
             } else {
                 Log.e(TAG, "配置文件不存在: " + configPath);
             }
         }
+        if (intent != null && intent.hasExtra(EXTRA_MAX_BUFFERED_BODY)) {
+            rewriteConfig.setMaxBufferedBodySize(intent.getIntExtra(EXTRA_MAX_BUFFERED_BODY,
+                    RewriteConfig.DEFAULT_MAX_BUFFERED_BODY_SIZE));
+        }
+        
+        // 创建固定容量的数据包存储
+        int storeCapacity = PacketStore.DEFAULT_CAPACITY;
+        if (intent != null) {
+            storeCapacity = intent.getIntExtra(EXTRA_STORE_CAPACITY, storeCapacity);
+        }
+        try {
+            packetStore = new PacketStore(storeCapacity);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "无效的存储容量: " + storeCapacity, e);
+            packetStore = new PacketStore();
+        }
+        
+        // VPN内的DNS缓存，与代理共享
+        hostnameTable.clear();
+        boolean cacheDns = intent == null || intent.getBooleanExtra(EXTRA_DNS_CACHE, true);
+        dnsCache = cacheDns ? new DnsCache(hostnameTable) : null;
+        if (intent != null && intent.getStringExtra(EXTRA_DNS_SERVER) != null) {
+            dnsServer = intent.getStringExtra(EXTRA_DNS_SERVER);
+        }
+        
+        // 按连接聚合的流量统计
+        flowTracker = new FlowTracker(hostnameTable);
+        
+        // 把完整数据包记录到pcapng文件
+        if (intent != null && intent.getBooleanExtra(EXTRA_RECORD_PCAPNG, false)) {
+            startRecording(intent);
+        }
         
         // 创建通知通道
         createNotificationChannel();
@@ -86,8 +181,20 @@ public class VpnService extends android.net.VpnService {
         startForeground(NOTIFICATION_ID, buildNotification());
         
         // 启动HTTP代理服务器
+        boolean transparentProxy = intent == null || intent.getBooleanExtra(EXTRA_TRANSPARENT_PROXY, true);
+        redirectTable = transparentProxy ? new RedirectTable() : null;
         proxyServer = new HttpProxyServer(PROXY_PORT, rewriteConfig);
+        proxyServer.setRedirectTable(redirectTable);
+        proxyServer.setNonBlocking(intent == null || intent.getBooleanExtra(EXTRA_PROXY_NON_BLOCKING, true));
+        proxyServer.setDnsCache(dnsCache);
         proxyServer.start();
+        // 首次运行要生成CA和叶子密钥，比较耗时，放在后台线程；完成之前HTTPS只做隧道转发
+        final HttpProxyServer server = proxyServer;
+        final String leafKeyType = intent != null
+                && CertificateManager.KEY_TYPE_EC.equals(intent.getStringExtra(EXTRA_LEAF_KEY_TYPE))
+                ? CertificateManager.KEY_TYPE_EC : CertificateManager.KEY_TYPE_RSA;
+        new Thread(() -> server.setCertificateManager(new CertificateManager(getApplicationContext(), leafKeyType)),
+                "CertificateInit").start();
         
         // 启动VPN服务
         startVpn();
@@ -95,6 +202,25 @@ public class VpnService extends android.net.VpnService {
         return START_STICKY;
     }
 
+    private void startRecording(Intent intent) {
+        File directory = getExternalFilesDir("captures");
+        if (directory == null) {
+            directory = new File(getFilesDir(), "captures");
+        }
+        try {
+            pcapngWriter = new PcapngWriter(directory,
+                    intent.getLongExtra(EXTRA_SEGMENT_SIZE, PcapngWriter.DEFAULT_SEGMENT_SIZE),
+                    intent.getIntExtra(EXTRA_SEGMENT_SECONDS,
+                            (int) (PcapngWriter.DEFAULT_SEGMENT_DURATION_MS / 1000)) * 1000L,
+                    intent.getIntExtra(EXTRA_SNAP_LENGTH, PcapngWriter.DEFAULT_SNAP_LENGTH));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "无效的记录参数，使用默认值", e);
+            pcapngWriter = new PcapngWriter(directory);
+        }
+        pcapngWriter.start();
+        Log.i(TAG, "数据包将记录到: " + directory);
+    }
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -136,14 +262,15 @@ public class VpnService extends android.net.VpnService {
         try {
             // 配置VPN
             Builder builder = new Builder()
-                    .addAddress("10.0.0.2", 32)
+                    .addAddress(VPN_ADDRESS, 32)
+                    .addAddress(VPN_ADDRESS_V6, 128)
                     .addRoute("0.0.0.0", 0)
+                    .addRoute("::", 0)
                     .setSession("Packet Capture VPN")
                     .setMtu(1500);
 
-            // 将所有流量重定向到代理服务器
-            builder.addRoute("0.0.0.0", 0);
-            builder.addDnsServer("8.8.8.8");
+            // 发往53端口的查询在VPN内应答，未命中时转发给这里设置的服务器
+            builder.addDnsServer(dnsServer);
             
             // 对所有应用拦截流量，但排除自己
             builder.addDisallowedApplication(getPackageName());
@@ -181,19 +308,49 @@ public class VpnService extends android.net.VpnService {
         if (proxyServer != null && proxyServer.isRunning()) {
             proxyServer.stop();
         }
+        if (configWatcher != null) {
+            configWatcher.stop();
+            configWatcher = null;
+        }
+        if (dnsCache != null) {
+            Log.i(TAG, "DNS缓存命中 " + dnsCache.getHitCount() + " 次, 未命中 " + dnsCache.getMissCount() + " 次");
+        }
+        // 刷写线程在后台写完剩余数据并关闭文件
+        if (pcapngWriter != null) {
+            pcapngWriter.close();
+            Log.i(TAG, "已记录 " + pcapngWriter.getRecordedCount() + " 个数据包, 丢弃 "
+                    + pcapngWriter.getDroppedCount() + " 个");
+            pcapngWriter = null;
+        }
         
         stopForeground(true);
         stopSelf();
     }
 
     public void setPacketCallback(PacketCallback callback) {
-        this.packetCallback = callback;
+        packetFeed.setCallback(callback);
     }
 
     public int getPacketCount() {
         return packetCount.get();
     }
 
+    public PacketStore getPacketStore() {
+        return packetStore;
+    }
+
+    public HostnameTable getHostnameTable() {
+        return hostnameTable;
+    }
+
+    public FlowTracker getFlowTracker() {
+        return flowTracker;
+    }
+
+    public PcapngWriter getPcapngWriter() {
+        return pcapngWriter;
+    }
+
     @Override
     public void onDestroy() {
         stopVpn();
@@ -204,15 +361,29 @@ public class VpnService extends android.net.VpnService {
     }
 
     private class VpnRunnable implements Runnable {
+        // 仅在本线程使用的解码器，每个数据包复用
+        private final PacketDecoder decoder = new PacketDecoder();
+
         @Override
         public void run() {
             FileInputStream vpnInput = null;
             FileOutputStream vpnOutput = null;
+            ForwardingEngine forwardingEngine = null;
 
             try {
                 vpnInput = new FileInputStream(vpnInterface.getFileDescriptor());
                 vpnOutput = new FileOutputStream(vpnInterface.getFileDescriptor());
 
+                // 转发引擎在线程池的另一个线程上运行，负责把流量真正送达远端并把回复写回TUN
+                forwardingEngine = new ForwardingEngine(VpnService.this, vpnOutput);
+                if (redirectTable != null) {
+                    forwardingEngine.setTransparentProxy(PROXY_PORT, redirectTable);
+                }
+                forwardingEngine.setDnsCache(dnsCache);
+                forwardingEngine.setFlowTracker(flowTracker);
+                forwardingEngine.setPcapngWriter(pcapngWriter);
+                executorService.submit(forwardingEngine);
+
                 ByteBuffer packet = ByteBuffer.allocate(32767);
                 
                 while (isRunning) {
@@ -225,13 +396,19 @@ public class VpnService extends android.net.VpnService {
                         // 设置缓冲区位置和限制
                         packet.limit(length);
                         
-                        // 处理数据包
+                        // 先交给转发引擎，再记录抓包信息
+                        if (!forwardingEngine.submit(packet, length)) {
+                            Log.w(TAG, "转发引擎积压，丢弃数据包");
+                        }
                         processPacket(packet, length);
                     }
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Error in VPN thread", e);
             } finally {
+                if (forwardingEngine != null) {
+                    forwardingEngine.stop();
+                }
                 try {
                     if (vpnInput != null) vpnInput.close();
                     if (vpnOutput != null) vpnOutput.close();
@@ -243,137 +420,40 @@ public class VpnService extends android.net.VpnService {
 
         private void processPacket(ByteBuffer packet, int length) {
             try {
-                // 读取IP头部信息
-                byte version = (byte) (packet.get(0) >> 4);
-                if (version == 4) {
-                    processIPv4Packet(packet, length);
-                } else if (version == 6) {
-                    processIPv6Packet(packet, length);
+                // 无法解码的数据包也完整记录
+                long timestamp = System.currentTimeMillis();
+                PcapngWriter writer = pcapngWriter;
+                if (writer != null) {
+                    writer.record(packet, length, timestamp, true);
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error processing packet", e);
-            }
-        }
-
-        private void processIPv4Packet(ByteBuffer packet, int length) {
-            try {
-                // 解析IPv4头部
-                byte protocol = packet.get(9);
-                byte[] sourceIP = new byte[4];
-                byte[] destIP = new byte[4];
-                
-                // 源IP地址在偏移量12的位置
-                packet.position(12);
-                packet.get(sourceIP, 0, 4);
-                
-                // 目标IP地址在偏移量16的位置
-                packet.get(destIP, 0, 4);
-                
-                // 获取IP头部长度
-                int headerLength = (packet.get(0) & 0x0F) * 4;
-                
-                // 解析传输层协议
-                String protocolName;
-                int sourcePort = 0;
-                int destPort = 0;
-                String details = "";
                 
-                if (protocol == 6) { // TCP
-                    protocolName = "TCP";
-                    // 解析TCP头部
-                    packet.position(headerLength);
-                    sourcePort = (packet.get() & 0xFF) << 8 | (packet.get() & 0xFF);
-                    destPort = (packet.get() & 0xFF) << 8 | (packet.get() & 0xFF);
-                    
-                    // 获取TCP标志
-                    packet.position(headerLength + 13);
-                    byte flags = packet.get();
-                    boolean isSyn = (flags & 0x02) != 0;
-                    boolean isAck = (flags & 0x10) != 0;
-                    boolean isFin = (flags & 0x01) != 0;
-                    boolean isRst = (flags & 0x04) != 0;
-                    
-                    details = "标志: " + (isSyn ? "SYN " : "") + (isAck ? "ACK " : "") + 
-                             (isFin ? "FIN " : "") + (isRst ? "RST " : "");
-                    
-                    // 检查是否是HTTP或HTTPS流量
-                    if (destPort == 80 || destPort == 443) {
-                        details += " | " + (destPort == 80 ? "HTTP" : "HTTPS");
-                    }
-                } else if (protocol == 17) { // UDP
-                    protocolName = "UDP";
-                    // 解析UDP头部
-                    packet.position(headerLength);
-                    sourcePort = (packet.get() & 0xFF) << 8 | (packet.get() & 0xFF);
-                    destPort = (packet.get() & 0xFF) << 8 | (packet.get() & 0xFF);
-                    
-                    int udpLength = (packet.get() & 0xFF) << 8 | (packet.get() & 0xFF);
-                    details = "UDP长度: " + udpLength + " 字节";
-                } else if (protocol == 1) { // ICMP
-                    protocolName = "ICMP";
-                    packet.position(headerLength);
-                    byte type = packet.get();
-                    byte code = packet.get();
-                    details = "类型: " + type + ", 代码: " + code;
-                } else {
-                    protocolName = "IP协议: " + protocol;
-                }
-                
-                // 创建数据包信息对象
-                PacketInfo packetInfo = new PacketInfo(
-                        protocolName,
-                        InetAddress.getByAddress(sourceIP).getHostAddress(),
-                        InetAddress.getByAddress(destIP).getHostAddress(),
-                        sourcePort,
-                        destPort,
-                        System.currentTimeMillis(),
-                        details,
-                        length
-                );
-                
-                // 更新计数器并通知回调
-                int count = packetCount.incrementAndGet();
-                if (packetCallback != null) {
-                    packetCallback.onPacketCaptured(packetInfo);
-                    packetCallback.onCountUpdated(count);
+                // 解码器直接读取基本类型字段，IPv4与IPv6都不产生中间对象
+                if (!decoder.decode(packet, length)) {
+                    return;
                 }
                 
-                // 保存到队列
-                capturedPackets.add(packetInfo);
+                // 保存到环形存储，写满后自动覆盖最旧的记录；DNS查询的域名登记到主机名表，行里只存编号
+                int nameId = queryNameId(packet, length);
+                packetStore.append(decoder, timestamp, nameId);
+                flowTracker.onPacket(decoder, packet, true, timestamp);
                 
-                // 限制队列大小，防止内存溢出
-                while (capturedPackets.size() > 1000) {
-                    capturedPackets.poll();
-                }
+                // 更新计数器，界面每帧最多收到一次通知，再从存储分页读取
+                packetFeed.signal(packetCount.incrementAndGet());
             } catch (Exception e) {
-                Log.e(TAG, "Error processing IPv4 packet", e);
+                Log.e(TAG, "Error processing packet", e);
             }
         }
 
-        private void processIPv6Packet(ByteBuffer packet, int length) {
-            // IPv6处理逻辑类似于IPv4，但这里简化处理
-            try {
-                PacketInfo packetInfo = new PacketInfo(
-                        "IPv6",
-                        "IPv6地址",
-                        "IPv6地址",
-                        0,
-                        0,
-                        System.currentTimeMillis(),
-                        "IPv6数据包",
-                        length
-                );
-                
-                int count = packetCount.incrementAndGet();
-                if (packetCallback != null) {
-                    packetCallback.onPacketCaptured(packetInfo);
-                    packetCallback.onCountUpdated(count);
-                }
-                
-                capturedPackets.add(packetInfo);
-            } catch (Exception e) {
-                Log.e(TAG, "Error processing IPv6 packet", e);
+        /**
+         * 登记DNS查询的域名，返回编号；其他数据包返回0
+         */
+        private int queryNameId(ByteBuffer packet, int length) {
+            if ((decoder.getFlags() & PacketDecoder.FLAG_DNS) == 0 || decoder.getDestinationPort() != DNS_PORT) {
+                return 0;
             }
+            int payloadOffset = decoder.getPayloadOffset();
+            return hostnameTable.putQueryName(DnsMessage.readQuestionName(packet.array(),
+                    packet.arrayOffset() + payloadOffset, length - payloadOffset));
         }
     }
 } 
\ No newline at end of file
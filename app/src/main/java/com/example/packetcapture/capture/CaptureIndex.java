@@ -0,0 +1,607 @@
+package com.example.packetcapture.capture;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * pcapng记录旁的磁盘索引
+ * 每个数据包对应记录文件中一条定长记录（时间、地址、端口、协议、长度、标志，以及在pcapng分段中的位置），
+ * 每BLOCK_RECORDS条记录组成一个块，块摘要文件为每个块保存时间范围、出现过的协议集合，
+ * 以及地址和端口的布隆过滤器，相当于稀疏的时间索引和地址、端口、协议上的二级索引。
+ * 查询先逐个检查块摘要，只有可能含有匹配记录的块才逐条读取，两个文件都通过内存映射访问，
+ * 数据不会整体读入堆内存。
+ *
+ * 写入由PcapngWriter的刷写线程完成；查询可以在任意线程上进行，只读取已发布的记录和块摘要。
+ * 关闭后文件截断到实际长度，之后可以用open重新打开只读查询。
+ */
+public final class CaptureIndex {
+    private static final String TAG = "CaptureIndex";
+
+    public static final String RECORDS_SUFFIX = ".records";
+    public static final String BLOCKS_SUFFIX = ".blocks";
+
+    // 每块的记录数
+    public static final int BLOCK_RECORDS = 4096;
+
+    // 记录布局，小端序
+    private static final int RECORD_SIZE = 72;
+    private static final int R_TIMESTAMP = 0;
+    private static final int R_SOURCE_HIGH = 8;
+    private static final int R_SOURCE_LOW = 16;
+    private static final int R_DESTINATION_HIGH = 24;
+    private static final int R_DESTINATION_LOW = 32;
+    private static final int R_PORTS = 40;
+    // inbound << 16 | ipVersion << 8 | protocol
+    private static final int R_PROTOCOL = 44;
+    private static final int R_LENGTH = 48;
+    private static final int R_FLAGS = 52;
+    private static final int R_INFO = 56;
+    // segment << 32 | 数据块在分段文件中的偏移
+    private static final int R_LOCATION = 64;
+    private static final int INBOUND = 1 << 16;
+
+    // 块摘要布局，小端序
+    private static final int BLOOM_LONGS = 32;
+    private static final int BLOOM_MASK = BLOOM_LONGS * 64 - 1;
+    private static final int S_MIN_TIME = 0;
+    private static final int S_MAX_TIME = 8;
+    private static final int S_FIRST_RECORD = 16;
+    private static final int S_COUNT = 24;
+    // 协议号0~255的位图
+    private static final int S_PROTOCOLS = 32;
+    private static final int S_ADDRESS_BLOOM = 64;
+    private static final int S_PORT_BLOOM = S_ADDRESS_BLOOM + BLOOM_LONGS * 8;
+    private static final int SUMMARY_SIZE = S_PORT_BLOOM + BLOOM_LONGS * 8;
+
+    // 文件按固定大小分段映射，写入时按需扩展
+    private static final long RECORD_CHUNK_SIZE = (long) RECORD_SIZE * BLOCK_RECORDS * 256;
+    private static final long SUMMARY_CHUNK_SIZE = (long) SUMMARY_SIZE * 4096;
+
+    private final File directory;
+    private final String name;
+    private final MappedFile records;
+    private final MappedFile summaries;
+
+    // 已发布的记录数和块摘要数，查询只读取这个范围内的数据
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong blockCount = new AtomicLong();
+
+    // 正在写入的块的摘要，只在写线程上使用
+    private long blockMinTime = Long.MAX_VALUE;
+    private long blockMaxTime = Long.MIN_VALUE;
+    private final long[] blockProtocols = new long[4];
+    private final long[] blockAddresses = new long[BLOOM_LONGS];
+    private final long[] blockPorts = new long[BLOOM_LONGS];
+    private boolean closed;
+
+    private CaptureIndex(File directory, String name, boolean writable) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.records = new MappedFile(new File(directory, name + RECORDS_SUFFIX), RECORD_CHUNK_SIZE, writable);
+        try {
+            this.summaries = new MappedFile(new File(directory, name + BLOCKS_SUFFIX), SUMMARY_CHUNK_SIZE, writable);
+        } catch (IOException e) {
+            records.close(0);
+            throw e;
+        }
+    }
+
+    /**
+     * 创建新的索引，同名的旧文件被覆盖
+     * @param directory 索引文件所在目录，与pcapng分段相同
+     * @param name 文件名前缀，与pcapng分段相同
+     */
+    public static CaptureIndex create(File directory, String name) throws IOException {
+        new File(directory, name + RECORDS_SUFFIX).delete();
+        new File(directory, name + BLOCKS_SUFFIX).delete();
+        return new CaptureIndex(directory, name, true);
+    }
+
+    /**
+     * 只读打开已关闭的索引
+     * @param recordsFile 以RECORDS_SUFFIX结尾的记录文件
+     */
+    public static CaptureIndex open(File recordsFile) throws IOException {
+        String fileName = recordsFile.getName();
+        if (!fileName.endsWith(RECORDS_SUFFIX)) {
+            throw new IOException("不是索引记录文件: " + recordsFile);
+        }
+        CaptureIndex index = new CaptureIndex(recordsFile.getParentFile(),
+                fileName.substring(0, fileName.length() - RECORDS_SUFFIX.length()), false);
+        index.recordCount.set(index.records.length() / RECORD_SIZE);
+        index.blockCount.set(index.summaries.length() / SUMMARY_SIZE);
+        index.closed = true;
+        return index;
+    }
+
+    /**
+     * 追加一条记录，只能由写线程调用
+     * @param decoder 已完成解码的解码器，解码失败时只有时间和长度有意义
+     * @param timestamp 捕获时间（毫秒）
+     * @param length 数据包原始长度
+     * @param inbound 写回应用的数据包为true
+     * @param segment pcapng分段序号，从1开始
+     * @param offset 数据块在分段文件中的偏移
+     */
+    void append(PacketDecoder decoder, long timestamp, int length, boolean inbound, int segment, int offset)
+            throws IOException {
+        long record = recordCount.get();
+        MappedByteBuffer chunk = records.chunk(record * RECORD_SIZE);
+        int base = (int) (record * RECORD_SIZE % RECORD_CHUNK_SIZE);
+        int ipVersion = decoder.getIpVersion();
+        int protocol = decoder.getProtocol();
+        chunk.putLong(base + R_TIMESTAMP, timestamp);
+        chunk.putLong(base + R_SOURCE_HIGH, decoder.getSourceAddressHigh());
+        chunk.putLong(base + R_SOURCE_LOW, decoder.getSourceAddressLow());
+        chunk.putLong(base + R_DESTINATION_HIGH, decoder.getDestinationAddressHigh());
+        chunk.putLong(base + R_DESTINATION_LOW, decoder.getDestinationAddressLow());
+        chunk.putInt(base + R_PORTS, decoder.getSourcePort() << 16 | (decoder.getDestinationPort() & 0xFFFF));
+        chunk.putInt(base + R_PROTOCOL, (inbound ? INBOUND : 0) | ipVersion << 8 | (protocol & 0xFF));
+        chunk.putInt(base + R_LENGTH, length);
+        chunk.putInt(base + R_FLAGS, decoder.getFlags());
+        chunk.putInt(base + R_INFO, decoder.getInfo());
+        chunk.putLong(base + R_LOCATION, (long) segment << 32 | (offset & 0xFFFFFFFFL));
+
+        blockMinTime = Math.min(blockMinTime, timestamp);
+        blockMaxTime = Math.max(blockMaxTime, timestamp);
+        blockProtocols[(protocol & 0xFF) >>> 6] |= 1L << protocol;
+        addToBloom(blockAddresses, addressHash(ipVersion,
+                decoder.getSourceAddressHigh(), decoder.getSourceAddressLow()));
+        addToBloom(blockAddresses, addressHash(ipVersion,
+                decoder.getDestinationAddressHigh(), decoder.getDestinationAddressLow()));
+        addToBloom(blockPorts, portHash(decoder.getSourcePort()));
+        addToBloom(blockPorts, portHash(decoder.getDestinationPort()));
+
+        recordCount.lazySet(record + 1);
+        if ((record + 1) % BLOCK_RECORDS == 0) {
+            writeSummary(record + 1);
+        }
+    }
+
+    /**
+     * 写出未满的最后一块的摘要，把文件截断到实际长度，只能由写线程调用
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long count = recordCount.get();
+        if (count % BLOCK_RECORDS != 0) {
+            try {
+                writeSummary(count);
+            } catch (IOException e) {
+                Log.e(TAG, "写入索引块摘要失败", e);
+            }
+        }
+        records.close(count * RECORD_SIZE);
+        summaries.close(blockCount.get() * SUMMARY_SIZE);
+        Log.i(TAG, "索引已完成: " + name + " (" + count + " 条记录, " + blockCount.get() + " 块)");
+    }
+
+    /**
+     * 查询符合条件的记录，按写入顺序回调
+     * @param query 查询条件
+     * @param visitor 每条匹配的记录回调一次，row在回调之间复用
+     * @return 匹配的记录数
+     */
+    public long query(Query query, Visitor visitor) {
+        PacketStore.Row row = new PacketStore.Row();
+        // 先读块数再读记录数，保证摘要覆盖的记录都已发布
+        long blocks = blockCount.get();
+        long total = recordCount.get();
+        long to = Math.min(total, query.toRecord);
+        long matched = 0;
+        // 每块固定BLOCK_RECORDS条记录，序号范围之前的块直接跳过
+        for (long block = query.fromRecord / BLOCK_RECORDS; block < blocks; block++) {
+            MappedByteBuffer chunk = summaries.existingChunk(block * SUMMARY_SIZE);
+            int base = (int) (block * SUMMARY_SIZE % SUMMARY_CHUNK_SIZE);
+            long first = chunk.getLong(base + S_FIRST_RECORD);
+            if (first >= to) {
+                return matched;
+            }
+            if (!blockMatches(chunk, base, query)) {
+                continue;
+            }
+            int count = chunk.getInt(base + S_COUNT);
+            long result = scan(Math.max(first, query.fromRecord), Math.min(first + count, to), query, visitor, row);
+            if (result < 0) {
+                return matched - result - 1;
+            }
+            matched += result;
+        }
+        // 正在写入的块还没有摘要，逐条检查
+        long result = scan(Math.max(Math.min(blocks * BLOCK_RECORDS, total), query.fromRecord), to,
+                query, visitor, row);
+        return result < 0 ? matched - result - 1 : matched + result;
+    }
+
+    /**
+     * 按序号读取一条记录，供分页显示随机访问
+     * @param record 记录序号，从0开始
+     * @param row 用于接收数据的行对象
+     * @param visitor 记录存在时回调一次
+     * @return 记录尚未写入时返回false
+     */
+    public boolean read(long record, PacketStore.Row row, Visitor visitor) {
+        if (record < 0 || record >= recordCount.get()) {
+            return false;
+        }
+        MappedByteBuffer chunk = records.existingChunk(record * RECORD_SIZE);
+        visit(chunk, (int) (record * RECORD_SIZE % RECORD_CHUNK_SIZE), record, row, visitor);
+        return true;
+    }
+
+    /**
+     * 查找第一条时间不早于timestamp的记录
+     * 先按块摘要的最大时间找到所在的块，再在块内逐条查找
+     * @param timestamp 时间（毫秒）
+     * @return 记录序号；所有记录都早于timestamp时返回size()
+     */
+    public long findRecord(long timestamp) {
+        long blocks = blockCount.get();
+        long total = recordCount.get();
+        long from = Math.min(blocks * BLOCK_RECORDS, total);
+        for (long block = 0; block < blocks; block++) {
+            MappedByteBuffer chunk = summaries.existingChunk(block * SUMMARY_SIZE);
+            int base = (int) (block * SUMMARY_SIZE % SUMMARY_CHUNK_SIZE);
+            if (chunk.getLong(base + S_MAX_TIME) >= timestamp) {
+                from = chunk.getLong(base + S_FIRST_RECORD);
+                break;
+            }
+        }
+        for (long record = from; record < total; record++) {
+            MappedByteBuffer chunk = records.existingChunk(record * RECORD_SIZE);
+            if (chunk.getLong((int) (record * RECORD_SIZE % RECORD_CHUNK_SIZE) + R_TIMESTAMP) >= timestamp) {
+                return record;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 已写入的记录数
+     */
+    public long size() {
+        return recordCount.get();
+    }
+
+    /**
+     * 已有摘要的块数
+     */
+    public long getBlockCount() {
+        return blockCount.get();
+    }
+
+    /**
+     * 记录所在的pcapng分段文件
+     * @param segment 回调中给出的分段序号
+     */
+    public File getSegmentFile(int segment) {
+        return new File(directory, String.format(Locale.US, "%s_%03d.pcapng", name, segment));
+    }
+
+    /**
+     * 逐条检查一段记录
+     * @return 匹配数；回调要求停止时返回-(匹配数 + 1)
+     */
+    private long scan(long from, long to, Query query, Visitor visitor, PacketStore.Row row) {
+        long matched = 0;
+        for (long record = from; record < to; record++) {
+            MappedByteBuffer chunk = records.existingChunk(record * RECORD_SIZE);
+            int base = (int) (record * RECORD_SIZE % RECORD_CHUNK_SIZE);
+            long timestamp = chunk.getLong(base + R_TIMESTAMP);
+            if (timestamp < query.fromTime || timestamp > query.toTime) {
+                continue;
+            }
+            int protocol = chunk.getInt(base + R_PROTOCOL);
+            if (query.protocol >= 0 && (protocol & 0xFF) != query.protocol) {
+                continue;
+            }
+            int ports = chunk.getInt(base + R_PORTS);
+            if ((query.hasAddress || query.port >= 0)
+                    && !query.endpointMatches(protocol >>> 8 & 0xFF, chunk.getLong(base + R_SOURCE_HIGH),
+                            chunk.getLong(base + R_SOURCE_LOW), ports >>> 16)
+                    && !query.endpointMatches(protocol >>> 8 & 0xFF, chunk.getLong(base + R_DESTINATION_HIGH),
+                            chunk.getLong(base + R_DESTINATION_LOW), ports & 0xFFFF)) {
+                continue;
+            }
+
+            matched++;
+            if (!visit(chunk, base, record, row, visitor)) {
+                return -matched - 1;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * 把一条记录读入row并交给visitor
+     * @return visitor的返回值
+     */
+    private static boolean visit(MappedByteBuffer chunk, int base, long record, PacketStore.Row row,
+                                 Visitor visitor) {
+        int protocol = chunk.getInt(base + R_PROTOCOL);
+        row.sequence = record;
+        row.timestamp = chunk.getLong(base + R_TIMESTAMP);
+        row.sourceAddressHigh = chunk.getLong(base + R_SOURCE_HIGH);
+        row.sourceAddressLow = chunk.getLong(base + R_SOURCE_LOW);
+        row.destinationAddressHigh = chunk.getLong(base + R_DESTINATION_HIGH);
+        row.destinationAddressLow = chunk.getLong(base + R_DESTINATION_LOW);
+        row.ports = chunk.getInt(base + R_PORTS);
+        row.protocol = protocol & 0xFFFF;
+        row.length = chunk.getInt(base + R_LENGTH);
+        row.flags = chunk.getInt(base + R_FLAGS);
+        row.info = chunk.getInt(base + R_INFO);
+        // 索引不保存域名编号，DNS查询的域名由读取方从pcapng记录中取得
+        row.name = 0;
+        long location = chunk.getLong(base + R_LOCATION);
+        return visitor.onRecord(row, (protocol & INBOUND) != 0, (int) (location >>> 32), (int) location);
+    }
+
+    private static boolean blockMatches(MappedByteBuffer chunk, int base, Query query) {
+        if (chunk.getLong(base + S_MAX_TIME) < query.fromTime || chunk.getLong(base + S_MIN_TIME) > query.toTime) {
+            return false;
+        }
+        if (query.protocol >= 0
+                && (chunk.getLong(base + S_PROTOCOLS + (query.protocol >>> 6) * 8) & 1L << query.protocol) == 0) {
+            return false;
+        }
+        if (query.hasAddress && !bloomContains(chunk, base + S_ADDRESS_BLOOM, query.addressHash)) {
+            return false;
+        }
+        return query.port < 0 || bloomContains(chunk, base + S_PORT_BLOOM, portHash(query.port));
+    }
+
+    private void writeSummary(long end) throws IOException {
+        long block = blockCount.get();
+        MappedByteBuffer chunk = summaries.chunk(block * SUMMARY_SIZE);
+        int base = (int) (block * SUMMARY_SIZE % SUMMARY_CHUNK_SIZE);
+        long first = block * BLOCK_RECORDS;
+        chunk.putLong(base + S_MIN_TIME, blockMinTime);
+        chunk.putLong(base + S_MAX_TIME, blockMaxTime);
+        chunk.putLong(base + S_FIRST_RECORD, first);
+        chunk.putInt(base + S_COUNT, (int) (end - first));
+        for (int i = 0; i < blockProtocols.length; i++) {
+            chunk.putLong(base + S_PROTOCOLS + i * 8, blockProtocols[i]);
+        }
+        for (int i = 0; i < BLOOM_LONGS; i++) {
+            chunk.putLong(base + S_ADDRESS_BLOOM + i * 8, blockAddresses[i]);
+            chunk.putLong(base + S_PORT_BLOOM + i * 8, blockPorts[i]);
+        }
+        blockCount.lazySet(block + 1);
+
+        blockMinTime = Long.MAX_VALUE;
+        blockMaxTime = Long.MIN_VALUE;
+        Arrays.fill(blockProtocols, 0);
+        Arrays.fill(blockAddresses, 0);
+        Arrays.fill(blockPorts, 0);
+    }
+
+    private static long addressHash(int ipVersion, long high, long low) {
+        return mix(high * 0x9E3779B97F4A7C15L ^ low ^ ipVersion);
+    }
+
+    private static long portHash(int port) {
+        return mix(port + 0x632BE59BD9B4E019L);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+
+    // 每个值在过滤器中置两位
+    private static void addToBloom(long[] bloom, long hash) {
+        int first = (int) hash & BLOOM_MASK;
+        int second = (int) (hash >>> 32) & BLOOM_MASK;
+        bloom[first >>> 6] |= 1L << first;
+        bloom[second >>> 6] |= 1L << second;
+    }
+
+    private static boolean bloomContains(MappedByteBuffer chunk, int offset, long hash) {
+        int first = (int) hash & BLOOM_MASK;
+        int second = (int) (hash >>> 32) & BLOOM_MASK;
+        return (chunk.getLong(offset + (first >>> 6) * 8) & 1L << first) != 0
+                && (chunk.getLong(offset + (second >>> 6) * 8) & 1L << second) != 0;
+    }
+
+    /**
+     * 查询回调
+     */
+    public interface Visitor {
+        /**
+         * @param row 匹配的记录，sequence为记录序号
+         * @param inbound 写回应用的数据包为true
+         * @param segment 数据包所在的pcapng分段序号
+         * @param offset 数据包的Enhanced Packet Block在分段文件中的偏移
+         * @return 返回false停止查询
+         */
+        boolean onRecord(PacketStore.Row row, boolean inbound, int segment, int offset);
+    }
+
+    /**
+     * 查询条件，未设置的条件不限制
+     * 同时设置地址和端口时，两者必须出现在数据包的同一端（源或目标）
+     */
+    public static final class Query {
+        long fromRecord;
+        long toRecord = Long.MAX_VALUE;
+        long fromTime = Long.MIN_VALUE;
+        long toTime = Long.MAX_VALUE;
+        boolean hasAddress;
+        int ipVersion;
+        long addressHigh;
+        long addressLow;
+        long addressHash;
+        int port = -1;
+        int protocol = -1;
+
+        /**
+         * @param fromRecord 起始记录序号（含）
+         * @param toRecord 结束记录序号（不含）
+         */
+        public Query setRecordRange(long fromRecord, long toRecord) {
+            this.fromRecord = Math.max(0, fromRecord);
+            this.toRecord = toRecord;
+            return this;
+        }
+
+        /**
+         * @param fromTime 起始时间（毫秒，含）
+         * @param toTime 结束时间（毫秒，含）
+         */
+        public Query setTimeRange(long fromTime, long toTime) {
+            this.fromTime = fromTime;
+            this.toTime = toTime;
+            return this;
+        }
+
+        public Query setAddress(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            long high = 0;
+            long low = 0;
+            if (bytes.length == 16) {
+                for (int i = 0; i < 8; i++) {
+                    high = high << 8 | (bytes[i] & 0xFF);
+                    low = low << 8 | (bytes[i + 8] & 0xFF);
+                }
+                return setAddress(6, high, low);
+            }
+            for (byte b : bytes) {
+                low = low << 8 | (b & 0xFF);
+            }
+            return setAddress(4, 0, low);
+        }
+
+        /**
+         * 按解码器的地址表示设置地址
+         */
+        public Query setAddress(int ipVersion, long high, long low) {
+            this.hasAddress = true;
+            this.ipVersion = ipVersion;
+            this.addressHigh = ipVersion == 6 ? high : 0;
+            this.addressLow = ipVersion == 6 ? low : low & 0xFFFFFFFFL;
+            this.addressHash = addressHash(ipVersion, addressHigh, addressLow);
+            return this;
+        }
+
+        public Query setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Query setProtocol(int protocol) {
+            this.protocol = protocol;
+            return this;
+        }
+
+        boolean endpointMatches(int recordIpVersion, long high, long low, int recordPort) {
+            if (hasAddress && (recordIpVersion != ipVersion || high != addressHigh || low != addressLow)) {
+                return false;
+            }
+            return port < 0 || recordPort == port;
+        }
+    }
+
+    /**
+     * 按固定大小分段映射的文件
+     * 写入方按需映射新的分段并扩展文件，读取方只访问已发布范围内的数据
+     */
+    private static final class MappedFile {
+        private final File file;
+        private final long chunkSize;
+        private final boolean writable;
+        private final RandomAccessFile raf;
+        private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+        MappedFile(File file, long chunkSize, boolean writable) throws IOException {
+            this.file = file;
+            this.chunkSize = chunkSize;
+            this.writable = writable;
+            this.raf = new RandomAccessFile(file, writable ? "rw" : "r");
+            if (!writable) {
+                mapExisting();
+            }
+        }
+
+        long length() throws IOException {
+            return raf.length();
+        }
+
+        /**
+         * 写入方取得包含position的分段，必要时映射新的分段
+         */
+        MappedByteBuffer chunk(long position) throws IOException {
+            int index = (int) (position / chunkSize);
+            MappedByteBuffer[] current = chunks;
+            if (index < current.length) {
+                return current[index];
+            }
+            MappedByteBuffer[] grown = new MappedByteBuffer[index + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            for (int i = current.length; i <= index; i++) {
+                grown[i] = map(FileChannel.MapMode.READ_WRITE, i * chunkSize, chunkSize);
+            }
+            chunks = grown;
+            return grown[index];
+        }
+
+        /**
+         * 读取方取得已映射的分段
+         */
+        MappedByteBuffer existingChunk(long position) {
+            return chunks[(int) (position / chunkSize)];
+        }
+
+        void close(long length) {
+            try {
+                if (writable) {
+                    for (MappedByteBuffer chunk : chunks) {
+                        chunk.force();
+                    }
+                    // 已映射的分段仍然有效，只截掉没有用到的部分
+                    raf.getChannel().truncate(length);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "截断索引文件失败: " + file, e);
+            } finally {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "关闭索引文件时出错");
+                }
+            }
+        }
+
+        private void mapExisting() throws IOException {
+            long length = raf.length();
+            int count = (int) ((length + chunkSize - 1) / chunkSize);
+            MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * chunkSize;
+                mapped[i] = map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, length - start));
+            }
+            chunks = mapped;
+        }
+
+        private MappedByteBuffer map(FileChannel.MapMode mode, long position, long size) throws IOException {
+            MappedByteBuffer buffer = raf.getChannel().map(mode, position, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+}
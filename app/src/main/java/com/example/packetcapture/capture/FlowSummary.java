@@ -0,0 +1,177 @@
+package com.example.packetcapture.capture;
+
+/**
+ * 一条流在某一时刻的统计快照
+ * 由FlowTracker生成，之后不再变化；地址等字符串在首次访问时生成。
+ * “发出”指应用发往远端的方向，“收到”指远端发回应用的方向。
+ */
+public final class FlowSummary {
+    private final int ipVersion;
+    private final int protocol;
+    private final long localAddressHigh;
+    private final long localAddressLow;
+    private final long remoteAddressHigh;
+    private final long remoteAddressLow;
+    private final int localPort;
+    private final int remotePort;
+    private final String hostname;
+    private final long firstSeen;
+    private final long lastSeen;
+    private final long packetsOut;
+    private final long packetsIn;
+    private final long bytesOut;
+    private final long bytesIn;
+    private final int handshakeRtt;
+    private final int retransmissions;
+    private final int outOfOrder;
+    private final int state;
+
+    private String localAddressText;
+    private String remoteAddressText;
+
+    FlowSummary(int ipVersion, int protocol,
+                long localAddressHigh, long localAddressLow,
+                long remoteAddressHigh, long remoteAddressLow,
+                int localPort, int remotePort, String hostname,
+                long firstSeen, long lastSeen,
+                long packetsOut, long packetsIn, long bytesOut, long bytesIn,
+                int handshakeRtt, int retransmissions, int outOfOrder, int state) {
+        this.ipVersion = ipVersion;
+        this.protocol = protocol;
+        this.localAddressHigh = localAddressHigh;
+        this.localAddressLow = localAddressLow;
+        this.remoteAddressHigh = remoteAddressHigh;
+        this.remoteAddressLow = remoteAddressLow;
+        this.localPort = localPort;
+        this.remotePort = remotePort;
+        this.hostname = hostname;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.packetsOut = packetsOut;
+        this.packetsIn = packetsIn;
+        this.bytesOut = bytesOut;
+        this.bytesIn = bytesIn;
+        this.handshakeRtt = handshakeRtt;
+        this.retransmissions = retransmissions;
+        this.outOfOrder = outOfOrder;
+        this.state = state;
+    }
+
+    public int getIpVersion() {
+        return ipVersion;
+    }
+
+    public int getProtocolNumber() {
+        return protocol;
+    }
+
+    public String getProtocol() {
+        return PacketDecoder.formatProtocol(protocol);
+    }
+
+    public String getLocalAddress() {
+        if (localAddressText == null) {
+            localAddressText = PacketDecoder.formatAddress(ipVersion, localAddressHigh, localAddressLow);
+        }
+        return localAddressText;
+    }
+
+    public String getRemoteAddress() {
+        if (remoteAddressText == null) {
+            remoteAddressText = PacketDecoder.formatAddress(ipVersion, remoteAddressHigh, remoteAddressLow);
+        }
+        return remoteAddressText;
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    /**
+     * 远端主机名，来自VPN内DNS应答登记的地址
+     * @return 未知时返回null
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public long getPacketsOut() {
+        return packetsOut;
+    }
+
+    public long getPacketsIn() {
+        return packetsIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * SYN到SYN/ACK的耗时（毫秒），没有看到完整握手或SYN被重传过时为-1
+     */
+    public int getHandshakeRtt() {
+        return handshakeRtt;
+    }
+
+    public int getRetransmissions() {
+        return retransmissions;
+    }
+
+    public int getOutOfOrder() {
+        return outOfOrder;
+    }
+
+    /**
+     * TCP状态，取值为FlowTracker.STATE_*
+     */
+    public int getState() {
+        return state;
+    }
+
+    public String getStateName() {
+        switch (state) {
+            case FlowTracker.STATE_SYN_SENT:
+                return "SYN_SENT";
+            case FlowTracker.STATE_SYN_RECEIVED:
+                return "SYN_RECEIVED";
+            case FlowTracker.STATE_ESTABLISHED:
+                return "ESTABLISHED";
+            case FlowTracker.STATE_CLOSING:
+                return "CLOSING";
+            case FlowTracker.STATE_CLOSED:
+                return "CLOSED";
+            case FlowTracker.STATE_RESET:
+                return "RESET";
+            default:
+                return "";
+        }
+    }
+
+    @Override
+    public String toString() {
+        String remote = hostname != null ? hostname + "(" + getRemoteAddress() + ")" : getRemoteAddress();
+        return getProtocol() + " " + getLocalAddress() + ":" + localPort + " -> " + remote + ":" + remotePort
+                + " 发出 " + packetsOut + "包/" + bytesOut + "字节, 收到 " + packetsIn + "包/" + bytesIn + "字节"
+                + (state != FlowTracker.STATE_NONE ? " " + getStateName() : "")
+                + (handshakeRtt >= 0 ? " 握手 " + handshakeRtt + "ms" : "")
+                + (retransmissions > 0 ? " 重传 " + retransmissions : "")
+                + (outOfOrder > 0 ? " 乱序 " + outOfOrder : "");
+    }
+}
@@ -0,0 +1,473 @@
+package com.example.packetcapture.capture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 按连接聚合的流量统计表
+ * 以本端/远端地址端口和协议组成的五元组为键，键和各项统计都按列保存在基本类型数组中，
+ * 用线性探测的开放寻址哈希表定位，删除时回移后续条目而不留墓碑，更新一个数据包不产生任何对象分配。
+ * 每条流记录两个方向的数据包数和字节数、首末时间、TCP状态、SYN到SYN/ACK的握手耗时，
+ * 以及按序列号判断的重传和乱序次数。空闲超时的流定期淘汰，表满时淘汰最久没有活动的流。
+ *
+ * TUN读取线程送入应用发出的数据包，转发引擎送入写回TUN的数据包，界面线程读取快照，
+ * 所有方法都由本对象的锁保护。
+ */
+public final class FlowTracker {
+    public static final int DEFAULT_MAX_FLOWS = 4096;
+
+    // TCP状态，非TCP的流始终为STATE_NONE
+    public static final int STATE_NONE = 0;
+    public static final int STATE_SYN_SENT = 1;
+    public static final int STATE_SYN_RECEIVED = 2;
+    public static final int STATE_ESTABLISHED = 3;
+    public static final int STATE_CLOSING = 4;
+    public static final int STATE_CLOSED = 5;
+    public static final int STATE_RESET = 6;
+
+    private static final long TCP_IDLE_TIMEOUT_MS = 10 * 60 * 1000L;
+    private static final long TCP_CLOSED_TIMEOUT_MS = 10 * 1000L;
+    private static final long UDP_IDLE_TIMEOUT_MS = 60 * 1000L;
+    private static final long SWEEP_INTERVAL_MS = 5 * 1000L;
+
+    // states数组中状态之外的标记位
+    private static final int STATE_MASK = 0xFF;
+    private static final int FIN_OUT = 0x100;
+    private static final int FIN_IN = 0x200;
+    private static final int SEQ_OUT_VALID = 0x400;
+    private static final int SEQ_IN_VALID = 0x800;
+    private static final int HOLE_OUT = 0x1000;
+    private static final int HOLE_IN = 0x2000;
+    // SYN被重传过，握手耗时不可信
+    private static final int SYN_RETRANSMITTED = 0x4000;
+
+    private final int maxFlows;
+    private final int mask;
+    // 可为null，生成快照时据此填写远端主机名
+    private final HostnameTable hostnames;
+
+    // 键，keys为ipVersion << 8 | protocol，0表示空槽
+    private final int[] keys;
+    private final long[] localAddressesHigh;
+    private final long[] localAddressesLow;
+    private final long[] remoteAddressesHigh;
+    private final long[] remoteAddressesLow;
+    // localPort << 16 | remotePort
+    private final int[] ports;
+
+    // 统计
+    private final long[] firstSeen;
+    private final long[] lastSeen;
+    private final long[] packetsOut;
+    private final long[] packetsIn;
+    private final long[] bytesOut;
+    private final long[] bytesIn;
+    private final long[] synSentAt;
+    private final int[] handshakeRtts;
+    private final int[] retransmissions;
+    private final int[] outOfOrder;
+    private final int[] states;
+    // 每个方向期望的下一个序列号，以及最近一个尚未补齐的序列号空洞
+    private final int[] nextSeqOut;
+    private final int[] nextSeqIn;
+    private final int[] holeStartOut;
+    private final int[] holeEndOut;
+    private final int[] holeStartIn;
+    private final int[] holeEndIn;
+
+    private int size;
+    private long evictedCount;
+    private long lastSweep;
+
+    /**
+     * @param maxFlows 同时跟踪的最大流数
+     * @param hostnames DNS应答登记的主机名表，可为null
+     */
+    public FlowTracker(int maxFlows, HostnameTable hostnames) {
+        if (maxFlows <= 0 || maxFlows > PacketStore.MAX_CAPACITY) {
+            throw new IllegalArgumentException("流数超出范围: " + maxFlows);
+        }
+        // 负载因子不超过一半，探测序列保持很短
+        int capacity = Integer.highestOneBit(maxFlows) << 1;
+        if (capacity < maxFlows * 2) {
+            capacity <<= 1;
+        }
+        this.maxFlows = maxFlows;
+        this.mask = capacity - 1;
+        this.hostnames = hostnames;
+        keys = new int[capacity];
+        localAddressesHigh = new long[capacity];
+        localAddressesLow = new long[capacity];
+        remoteAddressesHigh = new long[capacity];
+        remoteAddressesLow = new long[capacity];
+        ports = new int[capacity];
+        firstSeen = new long[capacity];
+        lastSeen = new long[capacity];
+        packetsOut = new long[capacity];
+        packetsIn = new long[capacity];
+        bytesOut = new long[capacity];
+        bytesIn = new long[capacity];
+        synSentAt = new long[capacity];
+        handshakeRtts = new int[capacity];
+        retransmissions = new int[capacity];
+        outOfOrder = new int[capacity];
+        states = new int[capacity];
+        nextSeqOut = new int[capacity];
+        nextSeqIn = new int[capacity];
+        holeStartOut = new int[capacity];
+        holeEndOut = new int[capacity];
+        holeStartIn = new int[capacity];
+        holeEndIn = new int[capacity];
+    }
+
+    public FlowTracker(HostnameTable hostnames) {
+        this(DEFAULT_MAX_FLOWS, hostnames);
+    }
+
+    /**
+     * 统计一个已解码的数据包
+     * @param decoder 已完成解码的解码器
+     * @param packet 解码器读取的数据包，用于读取TCP序列号
+     * @param outbound true表示应用发出的数据包，源地址为本端；false表示发给应用的数据包
+     * @param timestamp 捕获时间（毫秒）
+     */
+    public synchronized void onPacket(PacketDecoder decoder, ByteBuffer packet, boolean outbound, long timestamp) {
+        int ipVersion = decoder.getIpVersion();
+        int protocol = decoder.getProtocol();
+        if (ipVersion == 0 || (decoder.getFlags() & PacketDecoder.FLAG_FRAGMENT) != 0) {
+            return;
+        }
+        if (timestamp - lastSweep >= SWEEP_INTERVAL_MS) {
+            evictIdle(timestamp);
+            lastSweep = timestamp;
+        }
+
+        int key = ipVersion << 8 | protocol;
+        long localHigh, localLow, remoteHigh, remoteLow;
+        int portPair;
+        if (outbound) {
+            localHigh = decoder.getSourceAddressHigh();
+            localLow = decoder.getSourceAddressLow();
+            remoteHigh = decoder.getDestinationAddressHigh();
+            remoteLow = decoder.getDestinationAddressLow();
+            portPair = decoder.getSourcePort() << 16 | decoder.getDestinationPort();
+        } else {
+            localHigh = decoder.getDestinationAddressHigh();
+            localLow = decoder.getDestinationAddressLow();
+            remoteHigh = decoder.getSourceAddressHigh();
+            remoteLow = decoder.getSourceAddressLow();
+            portPair = decoder.getDestinationPort() << 16 | decoder.getSourcePort();
+        }
+
+        int slot = find(key, localHigh, localLow, remoteHigh, remoteLow, portPair);
+        if (slot < 0) {
+            if (size >= maxFlows) {
+                evictOldest();
+                slot = find(key, localHigh, localLow, remoteHigh, remoteLow, portPair);
+            }
+            slot = ~slot;
+            keys[slot] = key;
+            localAddressesHigh[slot] = localHigh;
+            localAddressesLow[slot] = localLow;
+            remoteAddressesHigh[slot] = remoteHigh;
+            remoteAddressesLow[slot] = remoteLow;
+            ports[slot] = portPair;
+            firstSeen[slot] = timestamp;
+            handshakeRtts[slot] = -1;
+            size++;
+        }
+
+        lastSeen[slot] = timestamp;
+        int length = decoder.getLength();
+        if (outbound) {
+            packetsOut[slot]++;
+            bytesOut[slot] += length;
+        } else {
+            packetsIn[slot]++;
+            bytesIn[slot] += length;
+        }
+        if (protocol == PacketDecoder.PROTOCOL_TCP && (decoder.getFlags() & PacketDecoder.FLAG_TRUNCATED) == 0) {
+            int seq = packet.getInt(decoder.getTransportOffset() + 4);
+            int payloadLength = Math.max(0, length - decoder.getPayloadOffset());
+            updateTcp(slot, decoder.getFlags() & PacketDecoder.TCP_FLAGS_MASK, seq, payloadLength, outbound, timestamp);
+        }
+    }
+
+    private void updateTcp(int slot, int flags, int seq, int payloadLength, boolean outbound, long timestamp) {
+        int state = states[slot];
+        int current = state & STATE_MASK;
+        boolean syn = (flags & PacketDecoder.TCP_SYN) != 0;
+        boolean ack = (flags & PacketDecoder.TCP_ACK) != 0;
+        boolean fin = (flags & PacketDecoder.TCP_FIN) != 0;
+
+        if ((flags & PacketDecoder.TCP_RST) != 0) {
+            current = STATE_RESET;
+        } else if (syn && !ack && outbound) {
+            if (current == STATE_NONE) {
+                current = STATE_SYN_SENT;
+                synSentAt[slot] = timestamp;
+            } else if (current == STATE_SYN_SENT) {
+                state |= SYN_RETRANSMITTED;
+            }
+        } else if (syn && ack && !outbound) {
+            if (current == STATE_SYN_SENT) {
+                current = STATE_SYN_RECEIVED;
+                if ((state & SYN_RETRANSMITTED) == 0) {
+                    handshakeRtts[slot] = (int) Math.min(Integer.MAX_VALUE, timestamp - synSentAt[slot]);
+                }
+            }
+        } else if (current == STATE_NONE || current == STATE_SYN_RECEIVED) {
+            // 从中途开始看到的连接直接视为已建立
+            current = STATE_ESTABLISHED;
+        }
+        if (fin && current != STATE_RESET) {
+            state |= outbound ? FIN_OUT : FIN_IN;
+            current = (state & (FIN_OUT | FIN_IN)) == (FIN_OUT | FIN_IN) ? STATE_CLOSED : STATE_CLOSING;
+        }
+
+        int segmentLength = payloadLength + (syn ? 1 : 0) + (fin ? 1 : 0);
+        if (segmentLength > 0) {
+            state = outbound
+                    ? trackSequence(slot, state, seq, segmentLength, SEQ_OUT_VALID, HOLE_OUT,
+                            nextSeqOut, holeStartOut, holeEndOut)
+                    : trackSequence(slot, state, seq, segmentLength, SEQ_IN_VALID, HOLE_IN,
+                            nextSeqIn, holeStartIn, holeEndIn);
+        }
+        states[slot] = (state & ~STATE_MASK) | current;
+    }
+
+    /**
+     * 按序列号判断一个方向上的重传和乱序
+     * 比期望更靠后的报文说明中间有空洞，之后落在空洞里的报文算作乱序到达，其余序列号已经见过的报文算作重传。
+     * 序列号按32位回绕比较。
+     * @return 更新后的标记位
+     */
+    private int trackSequence(int slot, int state, int seq, int segmentLength, int validFlag, int holeFlag,
+                              int[] nextSeq, int[] holeStart, int[] holeEnd) {
+        int end = seq + segmentLength;
+        if ((state & validFlag) == 0) {
+            nextSeq[slot] = end;
+            return state | validFlag;
+        }
+        int next = nextSeq[slot];
+        if (seq - next > 0) {
+            // 中间缺了一段，只记住最近的一个空洞
+            holeStart[slot] = next;
+            holeEnd[slot] = seq;
+            nextSeq[slot] = end;
+            return state | holeFlag;
+        }
+        if (seq == next) {
+            nextSeq[slot] = end;
+            return state;
+        }
+        if ((state & holeFlag) != 0 && seq - holeStart[slot] >= 0 && holeEnd[slot] - end >= 0) {
+            outOfOrder[slot]++;
+            if (seq == holeStart[slot]) {
+                holeStart[slot] = end;
+            } else if (end == holeEnd[slot]) {
+                holeEnd[slot] = seq;
+            }
+            if (holeEnd[slot] - holeStart[slot] <= 0) {
+                state &= ~holeFlag;
+            }
+        } else {
+            retransmissions[slot]++;
+            if (end - next > 0) {
+                nextSeq[slot] = end;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * 淘汰空闲超时的流：已关闭或重置的TCP连接很快淘汰，其余TCP连接和UDP按各自的空闲时间淘汰
+     * @return 淘汰的流数
+     */
+    public synchronized int evictIdle(long now) {
+        int evicted = 0;
+        for (int slot = 0; slot <= mask; ) {
+            if (keys[slot] != 0 && now - lastSeen[slot] > idleTimeout(slot)) {
+                // 回移后当前槽位可能换成了后面的条目，原地再检查一次
+                removeAt(slot);
+                evicted++;
+                continue;
+            }
+            slot++;
+        }
+        return evicted;
+    }
+
+    private long idleTimeout(int slot) {
+        if ((keys[slot] & 0xFF) != PacketDecoder.PROTOCOL_TCP) {
+            return UDP_IDLE_TIMEOUT_MS;
+        }
+        int state = states[slot] & STATE_MASK;
+        return state == STATE_CLOSED || state == STATE_RESET ? TCP_CLOSED_TIMEOUT_MS : TCP_IDLE_TIMEOUT_MS;
+    }
+
+    private void evictOldest() {
+        int oldest = -1;
+        for (int slot = 0; slot <= mask; slot++) {
+            if (keys[slot] != 0 && (oldest < 0 || lastSeen[slot] < lastSeen[oldest])) {
+                oldest = slot;
+            }
+        }
+        if (oldest >= 0) {
+            removeAt(oldest);
+        }
+    }
+
+    /**
+     * 生成所有流的快照，按首次出现的时间排序
+     */
+    public List<FlowSummary> snapshot() {
+        List<FlowSummary> flows;
+        synchronized (this) {
+            flows = new ArrayList<>(size);
+            for (int slot = 0; slot <= mask; slot++) {
+                if (keys[slot] != 0) {
+                    flows.add(summarize(slot));
+                }
+            }
+        }
+        Collections.sort(flows, new Comparator<FlowSummary>() {
+            @Override
+            public int compare(FlowSummary a, FlowSummary b) {
+                return Long.compare(a.getFirstSeen(), b.getFirstSeen());
+            }
+        });
+        return flows;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 因空闲超时或表满被淘汰的流数
+     */
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    public synchronized void clear() {
+        for (int slot = 0; slot <= mask; slot++) {
+            clearSlot(slot);
+        }
+        size = 0;
+    }
+
+    private FlowSummary summarize(int slot) {
+        int ipVersion = keys[slot] >>> 8;
+        String hostname = hostnames != null
+                ? hostnames.lookup(ipVersion, remoteAddressesHigh[slot], remoteAddressesLow[slot]) : null;
+        return new FlowSummary(ipVersion, keys[slot] & 0xFF,
+                localAddressesHigh[slot], localAddressesLow[slot],
+                remoteAddressesHigh[slot], remoteAddressesLow[slot],
+                ports[slot] >>> 16, ports[slot] & 0xFFFF, hostname,
+                firstSeen[slot], lastSeen[slot],
+                packetsOut[slot], packetsIn[slot], bytesOut[slot], bytesIn[slot],
+                handshakeRtts[slot], retransmissions[slot], outOfOrder[slot], states[slot] & STATE_MASK);
+    }
+
+    /**
+     * @return 找到时返回槽位；否则返回~插入位置
+     */
+    private int find(int key, long localHigh, long localLow, long remoteHigh, long remoteLow, int portPair) {
+        int slot = hash(key, localHigh, localLow, remoteHigh, remoteLow, portPair) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key && ports[slot] == portPair
+                    && remoteAddressesLow[slot] == remoteLow && remoteAddressesHigh[slot] == remoteHigh
+                    && localAddressesLow[slot] == localLow && localAddressesHigh[slot] == localHigh) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    private static int hash(int key, long localHigh, long localLow, long remoteHigh, long remoteLow, int portPair) {
+        long h = remoteLow * 31 + remoteHigh;
+        h = h * 31 + localLow;
+        h = h * 31 + localHigh;
+        h = h * 31 + portPair;
+        h = h * 31 + key;
+        h ^= h >>> 32;
+        int x = (int) h;
+        // 混合低位，避免只有端口不同的键落在相邻槽位
+        x ^= x >>> 16;
+        x *= 0x85EBCA6B;
+        x ^= x >>> 13;
+        return x;
+    }
+
+    private int homeSlot(int slot) {
+        return hash(keys[slot], localAddressesHigh[slot], localAddressesLow[slot],
+                remoteAddressesHigh[slot], remoteAddressesLow[slot], ports[slot]) & mask;
+    }
+
+    /**
+     * 删除一个条目，并把探测链上后面的条目往前移，使查找不必经过墓碑
+     */
+    private void removeAt(int slot) {
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (keys[next] == 0) {
+                break;
+            }
+            int home = homeSlot(next);
+            // home不在(hole, next]区间内时，该条目可以移到空出的槽位
+            boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!stays) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        clearSlot(hole);
+        size--;
+        evictedCount++;
+    }
+
+    private void copySlot(int from, int to) {
+        keys[to] = keys[from];
+        localAddressesHigh[to] = localAddressesHigh[from];
+        localAddressesLow[to] = localAddressesLow[from];
+        remoteAddressesHigh[to] = remoteAddressesHigh[from];
+        remoteAddressesLow[to] = remoteAddressesLow[from];
+        ports[to] = ports[from];
+        firstSeen[to] = firstSeen[from];
+        lastSeen[to] = lastSeen[from];
+        packetsOut[to] = packetsOut[from];
+        packetsIn[to] = packetsIn[from];
+        bytesOut[to] = bytesOut[from];
+        bytesIn[to] = bytesIn[from];
+        synSentAt[to] = synSentAt[from];
+        handshakeRtts[to] = handshakeRtts[from];
+        retransmissions[to] = retransmissions[from];
+        outOfOrder[to] = outOfOrder[from];
+        states[to] = states[from];
+        nextSeqOut[to] = nextSeqOut[from];
+        nextSeqIn[to] = nextSeqIn[from];
+        holeStartOut[to] = holeStartOut[from];
+        holeEndOut[to] = holeEndOut[from];
+        holeStartIn[to] = holeStartIn[from];
+        holeEndIn[to] = holeEndIn[from];
+    }
+
+    private void clearSlot(int slot) {
+        keys[slot] = 0;
+        packetsOut[slot] = 0;
+        packetsIn[slot] = 0;
+        bytesOut[slot] = 0;
+        bytesIn[slot] = 0;
+        retransmissions[slot] = 0;
+        outOfOrder[slot] = 0;
+        states[slot] = 0;
+    }
+}
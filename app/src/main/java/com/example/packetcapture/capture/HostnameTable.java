@@ -0,0 +1,147 @@
+package com.example.packetcapture.capture;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * IP地址到主机名的映射
+ * 由VPN内的DNS应答器在解析出A/AAAA记录时写入，抓包一侧按数据包的远端地址查询，
+ * 使捕获的连接能显示主机名而不只是地址。地址与PacketDecoder一样以高低两个long表示。
+ * 另外按编号保存最近的DNS查询域名，存储中的数据包行只记编号，显示时再取回域名。
+ * 容量固定，超出时淘汰最久未使用的条目；所有方法都是线程安全的，查询不产生对象分配。
+ */
+public final class HostnameTable {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int capacity;
+    private final LinkedHashMap<Address, String> names;
+    // 查询用的可变键，只在持有锁时使用
+    private final Address probe = new Address();
+    // DNS查询域名的环形表，编号对容量取模定位，槽位同时记下编号以识别已被覆盖的条目
+    private final String[] queryNames;
+    private final int[] queryNameIds;
+    private int nextQueryNameId = 1;
+
+    public HostnameTable(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("容量必须为正数: " + capacity);
+        }
+        this.capacity = capacity;
+        this.names = new LinkedHashMap<>(16, 0.75f, true);
+        this.queryNames = new String[capacity];
+        this.queryNameIds = new int[capacity];
+    }
+
+    public HostnameTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 记录地址对应的主机名，已有的记录被覆盖
+     * @param address IPv4为4字节，IPv6为16字节
+     */
+    public void put(byte[] address, String hostname) {
+        Address key = new Address();
+        if (address.length == 16) {
+            key.ipVersion = 6;
+            key.high = readLong(address, 0);
+            key.low = readLong(address, 8);
+        } else if (address.length == 4) {
+            key.ipVersion = 4;
+            key.low = readInt(address, 0) & 0xFFFFFFFFL;
+        } else {
+            return;
+        }
+        synchronized (this) {
+            names.put(key, hostname);
+            if (names.size() > capacity) {
+                Iterator<Map.Entry<Address, String>> eldest = names.entrySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * 按解码器的地址表示查询主机名
+     * @return 没有记录时返回null
+     */
+    public synchronized String lookup(int ipVersion, long high, long low) {
+        probe.ipVersion = ipVersion;
+        probe.high = ipVersion == 6 ? high : 0;
+        probe.low = ipVersion == 6 ? low : low & 0xFFFFFFFFL;
+        return names.get(probe);
+    }
+
+    /**
+     * 登记一个DNS查询的域名，覆盖最早登记的域名
+     * @return 大于0的编号；name为null时返回0
+     */
+    public synchronized int putQueryName(String name) {
+        if (name == null) {
+            return 0;
+        }
+        int id = nextQueryNameId;
+        nextQueryNameId = id == Integer.MAX_VALUE ? 1 : id + 1;
+        int slot = id % capacity;
+        queryNames[slot] = name;
+        queryNameIds[slot] = id;
+        return id;
+    }
+
+    /**
+     * @return 编号对应的域名；编号为0或已被后来的查询覆盖时返回null
+     */
+    public synchronized String getQueryName(int id) {
+        if (id <= 0) {
+            return null;
+        }
+        int slot = id % capacity;
+        return queryNameIds[slot] == id ? queryNames[slot] : null;
+    }
+
+    public synchronized int size() {
+        return names.size();
+    }
+
+    /**
+     * 清空地址和查询域名，编号继续递增，清空前登记的编号不会再取到域名
+     */
+    public synchronized void clear() {
+        names.clear();
+        Arrays.fill(queryNames, null);
+        Arrays.fill(queryNameIds, 0);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return (readInt(bytes, offset) & 0xFFFFFFFFL) << 32 | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static final class Address {
+        int ipVersion;
+        long high;
+        long low;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Address)) return false;
+            Address other = (Address) o;
+            return low == other.low && high == other.high && ipVersion == other.ipVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = low * 31 + high;
+            h = h * 31 + ipVersion;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
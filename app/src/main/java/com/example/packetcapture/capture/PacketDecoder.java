@@ -0,0 +1,451 @@
+package com.example.packetcapture.capture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 享元式数据包解码器
+ * 直接按偏移量从ByteBuffer中读取IPv4/IPv6及TCP/UDP/ICMP字段，结果以基本类型保存在实例中。
+ * 地址统一以两个long(高64位/低64位)表示，IPv4地址保存在低64位的低32位中。
+ * 同一个实例在TUN读取线程上反复复用，解码过程不产生任何对象分配，
+ * 字符串只在界面或导出需要时通过静态format方法生成。
+ * 该类不是线程安全的，每个读取线程应持有自己的实例。
+ */
+public final class PacketDecoder {
+    public static final int PROTOCOL_ICMP = 1;
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+    public static final int PROTOCOL_ICMPV6 = 58;
+
+    // IPv6扩展头
+    private static final int IPV6_HOP_BY_HOP = 0;
+    private static final int IPV6_ROUTING = 43;
+    private static final int IPV6_FRAGMENT = 44;
+    private static final int IPV6_AUTHENTICATION = 51;
+    private static final int IPV6_DESTINATION_OPTIONS = 60;
+    private static final int IPV6_MOBILITY = 135;
+    private static final int IPV6_MAX_EXTENSION_HEADERS = 16;
+
+    // TCP标志位，与TCP头部第13字节的位定义一致
+    public static final int TCP_FIN = 0x01;
+    public static final int TCP_SYN = 0x02;
+    public static final int TCP_RST = 0x04;
+    public static final int TCP_PSH = 0x08;
+    public static final int TCP_ACK = 0x10;
+    public static final int TCP_URG = 0x20;
+    public static final int TCP_FLAGS_MASK = 0x3F;
+
+    // 解码器附加的标记位，与TCP标志共用同一个int
+    public static final int FLAG_HTTP = 0x100;
+    public static final int FLAG_HTTPS = 0x200;
+    public static final int FLAG_TRUNCATED = 0x400;
+    public static final int FLAG_FRAGMENT = 0x800;
+    public static final int FLAG_DNS = 0x1000;
+
+    private static final int DNS_PORT = 53;
+
+    private int ipVersion;
+    private int protocol;
+    private long sourceAddressHigh;
+    private long sourceAddressLow;
+    private long destinationAddressHigh;
+    private long destinationAddressLow;
+    private int sourcePort;
+    private int destinationPort;
+    private int flags;
+    private int info;
+    private int ipHeaderLength;
+    private int transportOffset;
+    private int payloadOffset;
+    private int length;
+
+    /**
+     * 根据版本号解码一个IP数据包
+     * @param packet 数据包缓冲区，从下标0开始，不会修改其position和limit
+     * @param length 数据包长度
+     * @return 头部完整且可以解析时返回true
+     */
+    public boolean decode(ByteBuffer packet, int length) {
+        if (length < 1) {
+            reset(length);
+            return false;
+        }
+        int version = (packet.get(0) & 0xF0) >>> 4;
+        if (version == 4) {
+            return decodeIPv4(packet, length);
+        } else if (version == 6) {
+            return decodeIPv6(packet, length);
+        }
+        reset(length);
+        return false;
+    }
+
+    /**
+     * 解码一个IPv4数据包
+     * @param packet 数据包缓冲区，从下标0开始，不会修改其position和limit
+     * @param length 数据包长度
+     * @return 头部完整且可以解析时返回true
+     */
+    public boolean decodeIPv4(ByteBuffer packet, int length) {
+        reset(length);
+        if (length < 20) {
+            return false;
+        }
+
+        int versionAndIhl = packet.get(0) & 0xFF;
+        ipVersion = versionAndIhl >>> 4;
+        ipHeaderLength = (versionAndIhl & 0x0F) * 4;
+        if (ipVersion != 4 || ipHeaderLength < 20 || ipHeaderLength > length) {
+            return false;
+        }
+
+        protocol = packet.get(9) & 0xFF;
+        sourceAddressLow = packet.getInt(12) & 0xFFFFFFFFL;
+        destinationAddressLow = packet.getInt(16) & 0xFFFFFFFFL;
+        transportOffset = ipHeaderLength;
+
+        // 分片中除第一片外都不含传输层头部
+        int fragmentOffset = packet.getShort(6) & 0x1FFF;
+        if (fragmentOffset != 0) {
+            flags |= FLAG_FRAGMENT;
+            payloadOffset = transportOffset;
+            return true;
+        }
+
+        decodeTransport(packet, transportOffset, length);
+        return true;
+    }
+
+    /**
+     * 解码一个IPv6数据包，沿扩展头链找到传输层头部
+     * @param packet 数据包缓冲区，从下标0开始，不会修改其position和limit
+     * @param length 数据包长度
+     * @return 固定头部完整且可以解析时返回true
+     */
+    public boolean decodeIPv6(ByteBuffer packet, int length) {
+        reset(length);
+        if (length < 40) {
+            return false;
+        }
+
+        ipVersion = (packet.get(0) & 0xF0) >>> 4;
+        if (ipVersion != 6) {
+            return false;
+        }
+
+        sourceAddressHigh = packet.getLong(8);
+        sourceAddressLow = packet.getLong(16);
+        destinationAddressHigh = packet.getLong(24);
+        destinationAddressLow = packet.getLong(32);
+
+        int nextHeader = packet.get(6) & 0xFF;
+        int offset = 40;
+        for (int i = 0; i < IPV6_MAX_EXTENSION_HEADERS; i++) {
+            int headerLength;
+            switch (nextHeader) {
+                case IPV6_HOP_BY_HOP:
+                case IPV6_ROUTING:
+                case IPV6_DESTINATION_OPTIONS:
+                case IPV6_MOBILITY:
+                    if (offset + 8 > length) {
+                        return truncatedIPv6(nextHeader, offset);
+                    }
+                    headerLength = ((packet.get(offset + 1) & 0xFF) + 1) * 8;
+                    break;
+                case IPV6_AUTHENTICATION:
+                    if (offset + 8 > length) {
+                        return truncatedIPv6(nextHeader, offset);
+                    }
+                    headerLength = ((packet.get(offset + 1) & 0xFF) + 2) * 4;
+                    break;
+                case IPV6_FRAGMENT:
+                    if (offset + 8 > length) {
+                        return truncatedIPv6(nextHeader, offset);
+                    }
+                    headerLength = 8;
+                    // 非首个分片不含传输层头部
+                    if ((packet.getShort(offset + 2) & 0xFFF8) != 0) {
+                        protocol = packet.get(offset) & 0xFF;
+                        flags |= FLAG_FRAGMENT;
+                        ipHeaderLength = offset + headerLength;
+                        transportOffset = ipHeaderLength;
+                        payloadOffset = ipHeaderLength;
+                        return true;
+                    }
+                    break;
+                default:
+                    protocol = nextHeader;
+                    ipHeaderLength = offset;
+                    transportOffset = offset;
+                    decodeTransport(packet, offset, length);
+                    return true;
+            }
+            nextHeader = packet.get(offset) & 0xFF;
+            offset += headerLength;
+            if (offset > length) {
+                // 扩展头声明的长度超出了数据包
+                return truncatedIPv6(nextHeader, offset);
+            }
+        }
+
+        // 扩展头过多，按截断处理
+        return truncatedIPv6(nextHeader, offset);
+    }
+
+    private boolean truncatedIPv6(int nextHeader, int offset) {
+        protocol = nextHeader;
+        flags |= FLAG_TRUNCATED;
+        ipHeaderLength = Math.min(offset, length);
+        transportOffset = ipHeaderLength;
+        payloadOffset = ipHeaderLength;
+        return true;
+    }
+
+    private void decodeTransport(ByteBuffer packet, int offset, int length) {
+        int available = length - offset;
+        if (protocol == PROTOCOL_TCP) {
+            if (available < 20) {
+                flags |= FLAG_TRUNCATED;
+                return;
+            }
+            sourcePort = packet.getShort(offset) & 0xFFFF;
+            destinationPort = packet.getShort(offset + 2) & 0xFFFF;
+            flags |= packet.get(offset + 13) & TCP_FLAGS_MASK;
+            payloadOffset = offset + ((packet.get(offset + 12) & 0xF0) >>> 2);
+            if (destinationPort == 80) {
+                flags |= FLAG_HTTP;
+            } else if (destinationPort == 443) {
+                flags |= FLAG_HTTPS;
+            }
+        } else if (protocol == PROTOCOL_UDP) {
+            if (available < 8) {
+                flags |= FLAG_TRUNCATED;
+                return;
+            }
+            sourcePort = packet.getShort(offset) & 0xFFFF;
+            destinationPort = packet.getShort(offset + 2) & 0xFFFF;
+            info = packet.getShort(offset + 4) & 0xFFFF;
+            payloadOffset = offset + 8;
+            if (destinationPort == DNS_PORT || sourcePort == DNS_PORT) {
+                flags |= FLAG_DNS;
+            }
+        } else if (protocol == PROTOCOL_ICMP || protocol == PROTOCOL_ICMPV6) {
+            if (available < 4) {
+                flags |= FLAG_TRUNCATED;
+                return;
+            }
+            // info的高8位为类型，低8位为代码
+            info = (packet.get(offset) & 0xFF) << 8 | (packet.get(offset + 1) & 0xFF);
+            payloadOffset = offset + 4;
+        } else {
+            payloadOffset = offset;
+        }
+    }
+
+    private void reset(int length) {
+        this.length = length;
+        ipVersion = 0;
+        protocol = 0;
+        sourceAddressHigh = 0;
+        sourceAddressLow = 0;
+        destinationAddressHigh = 0;
+        destinationAddressLow = 0;
+        sourcePort = 0;
+        destinationPort = 0;
+        flags = 0;
+        info = 0;
+        ipHeaderLength = 0;
+        transportOffset = 0;
+        payloadOffset = 0;
+    }
+
+    public int getIpVersion() {
+        return ipVersion;
+    }
+
+    public int getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * IPv4源地址，仅在IPv4数据包上有意义
+     */
+    public int getSourceAddress() {
+        return (int) sourceAddressLow;
+    }
+
+    /**
+     * IPv4目标地址，仅在IPv4数据包上有意义
+     */
+    public int getDestinationAddress() {
+        return (int) destinationAddressLow;
+    }
+
+    public long getSourceAddressHigh() {
+        return sourceAddressHigh;
+    }
+
+    public long getSourceAddressLow() {
+        return sourceAddressLow;
+    }
+
+    public long getDestinationAddressHigh() {
+        return destinationAddressHigh;
+    }
+
+    public long getDestinationAddressLow() {
+        return destinationAddressLow;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public int getDestinationPort() {
+        return destinationPort;
+    }
+
+    /**
+     * TCP标志位与FLAG_*标记的组合
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * 协议相关的附加信息：UDP为UDP长度，ICMP/ICMPv6为(类型 << 8 | 代码)
+     */
+    public int getInfo() {
+        return info;
+    }
+
+    public int getIpHeaderLength() {
+        return ipHeaderLength;
+    }
+
+    public int getTransportOffset() {
+        return transportOffset;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * 将int形式的IPv4地址格式化为点分十进制字符串
+     */
+    public static String formatIPv4(int address) {
+        return new StringBuilder(15)
+                .append((address >>> 24) & 0xFF).append('.')
+                .append((address >>> 16) & 0xFF).append('.')
+                .append((address >>> 8) & 0xFF).append('.')
+                .append(address & 0xFF)
+                .toString();
+    }
+
+    /**
+     * 按RFC 5952格式化IPv6地址：小写十六进制，最长的连续零组压缩为"::"
+     */
+    public static String formatIPv6(long high, long low) {
+        int[] groups = new int[8];
+        for (int i = 0; i < 4; i++) {
+            groups[i] = (int) (high >>> (48 - i * 16)) & 0xFFFF;
+            groups[i + 4] = (int) (low >>> (48 - i * 16)) & 0xFFFF;
+        }
+
+        // 查找最长的连续零组，长度至少为2才压缩
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int i = 0; i < 8; ) {
+            if (groups[i] != 0) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < 8 && groups[i] == 0) {
+                i++;
+            }
+            if (i - start > bestLength) {
+                bestStart = start;
+                bestLength = i - start;
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(39);
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                builder.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ':') {
+                builder.append(':');
+            }
+            builder.append(Integer.toHexString(groups[i]));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 按IP版本格式化地址
+     */
+    public static String formatAddress(int ipVersion, long high, long low) {
+        return ipVersion == 6 ? formatIPv6(high, low) : formatIPv4((int) low);
+    }
+
+    /**
+     * 获取协议名称
+     */
+    public static String formatProtocol(int protocol) {
+        switch (protocol) {
+            case PROTOCOL_TCP:
+                return "TCP";
+            case PROTOCOL_UDP:
+                return "UDP";
+            case PROTOCOL_ICMP:
+                return "ICMP";
+            case PROTOCOL_ICMPV6:
+                return "ICMPv6";
+            default:
+                return "IP协议: " + protocol;
+        }
+    }
+
+    /**
+     * 生成与协议相关的详情文本
+     * @param protocol 传输层协议号
+     * @param flags getFlags()的返回值
+     * @param info getInfo()的返回值
+     * @return 详情文本
+     */
+    public static String formatDetails(int protocol, int flags, int info) {
+        switch (protocol) {
+            case PROTOCOL_TCP: {
+                StringBuilder details = new StringBuilder("标志: ");
+                if ((flags & TCP_SYN) != 0) details.append("SYN ");
+                if ((flags & TCP_ACK) != 0) details.append("ACK ");
+                if ((flags & TCP_FIN) != 0) details.append("FIN ");
+                if ((flags & TCP_RST) != 0) details.append("RST ");
+                if ((flags & FLAG_HTTP) != 0) {
+                    details.append(" | HTTP");
+                } else if ((flags & FLAG_HTTPS) != 0) {
+                    details.append(" | HTTPS");
+                }
+                return details.toString();
+            }
+            case PROTOCOL_UDP:
+                if ((flags & FLAG_DNS) != 0) {
+                    return "DNS | UDP长度: " + info + " 字节";
+                }
+                return "UDP长度: " + info + " 字节";
+            case PROTOCOL_ICMP:
+            case PROTOCOL_ICMPV6:
+                return "类型: " + (info >>> 8) + ", 代码: " + (info & 0xFF);
+            default:
+                return "";
+        }
+    }
+}
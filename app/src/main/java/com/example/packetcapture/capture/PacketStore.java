@@ -0,0 +1,340 @@
+package com.example.packetcapture.capture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 固定容量的数据包环形存储
+ * 按列保存数据包摘要（时间戳、地址、端口、协议、长度、标志、DNS查询域名编号），每一列都是一个基本类型数组，
+ * 地址按高低两个long保存，IPv4与IPv6使用相同的列。
+ * 容量在创建时确定，之后内存占用恒定，写满后新的数据包覆盖最旧的记录。
+ *
+ * 只允许一个写线程（TUN读取线程）调用append，读线程通过各自的Cursor按序号读取。
+ * 写线程写完一行后才发布新的序号；读线程只读取距离覆盖位置至少guard行的记录，
+ * 并在读取一行前后各检查一次，若该行在读取期间进入了覆盖区域则丢弃该行。
+ */
+public final class PacketStore {
+    public static final int DEFAULT_CAPACITY = 1 << 17;
+    public static final int MAX_CAPACITY = 1 << 24;
+
+    private final int capacity;
+    private final int mask;
+    // 写线程即将覆盖的区域大小，读线程不读取这一区域内的记录
+    private final int guard;
+
+    // 各列数据，下标为 sequence & mask
+    private final long[] timestamps;
+    private final long[] sourceAddressesHigh;
+    private final long[] sourceAddressesLow;
+    private final long[] destinationAddressesHigh;
+    private final long[] destinationAddressesLow;
+    private final int[] ports;
+    private final int[] protocols;
+    private final int[] lengths;
+    private final int[] flags;
+    private final int[] infos;
+    // DNS查询域名在HostnameTable中的编号，其他数据包为0
+    private final int[] names;
+
+    // 已写入完成的序号上界
+    private final AtomicLong published = new AtomicLong();
+    // clear()之后的起始序号，小于它的记录视为已删除
+    private volatile long floor;
+
+    /**
+     * @param requestedCapacity 期望容量，会向上取整为2的幂
+     */
+    public PacketStore(int requestedCapacity) {
+        if (requestedCapacity <= 0 || requestedCapacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("容量超出范围: " + requestedCapacity);
+        }
+        int size = Integer.highestOneBit(requestedCapacity);
+        if (size < requestedCapacity) {
+            size <<= 1;
+        }
+        capacity = size;
+        mask = size - 1;
+        guard = size >>> 6;
+        timestamps = new long[size];
+        sourceAddressesHigh = new long[size];
+        sourceAddressesLow = new long[size];
+        destinationAddressesHigh = new long[size];
+        destinationAddressesLow = new long[size];
+        ports = new int[size];
+        protocols = new int[size];
+        lengths = new int[size];
+        flags = new int[size];
+        infos = new int[size];
+        names = new int[size];
+    }
+
+    public PacketStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 追加解码器当前的结果，只能由写线程调用
+     * @param decoder 已完成解码的解码器
+     * @param timestamp 捕获时间
+     * @param nameId DNS查询域名在HostnameTable中的编号，没有时为0
+     * @return 新记录的序号
+     */
+    public long append(PacketDecoder decoder, long timestamp, int nameId) {
+        return append(decoder.getIpVersion(), decoder.getProtocol(),
+                decoder.getSourceAddressHigh(), decoder.getSourceAddressLow(),
+                decoder.getDestinationAddressHigh(), decoder.getDestinationAddressLow(),
+                decoder.getSourcePort(), decoder.getDestinationPort(),
+                decoder.getFlags(), decoder.getInfo(), timestamp, decoder.getLength(), nameId);
+    }
+
+    /**
+     * 追加一条记录，只能由写线程调用
+     * @return 新记录的序号
+     */
+    public long append(int ipVersion, int protocol,
+                       long sourceAddressHigh, long sourceAddressLow,
+                       long destinationAddressHigh, long destinationAddressLow,
+                       int sourcePort, int destinationPort, int flag, int info,
+                       long timestamp, int length, int nameId) {
+        long sequence = published.get();
+        int index = (int) sequence & mask;
+        timestamps[index] = timestamp;
+        sourceAddressesHigh[index] = sourceAddressHigh;
+        sourceAddressesLow[index] = sourceAddressLow;
+        destinationAddressesHigh[index] = destinationAddressHigh;
+        destinationAddressesLow[index] = destinationAddressLow;
+        ports[index] = sourcePort << 16 | (destinationPort & 0xFFFF);
+        protocols[index] = ipVersion << 8 | (protocol & 0xFF);
+        lengths[index] = length;
+        flags[index] = flag;
+        infos[index] = info;
+        names[index] = nameId;
+
+        published.lazySet(sequence + 1);
+        return sequence;
+    }
+
+    /**
+     * 读取指定序号的记录
+     * @param sequence 记录序号
+     * @param row 用于接收数据的行对象
+     * @return 记录存在且读取期间未被覆盖时返回true
+     */
+    public boolean read(long sequence, Row row) {
+        if (sequence < floor || sequence >= published.get()
+                || sequence < published.get() - capacity + guard) {
+            return false;
+        }
+
+        int index = (int) sequence & mask;
+        row.sequence = sequence;
+        row.timestamp = timestamps[index];
+        row.sourceAddressHigh = sourceAddressesHigh[index];
+        row.sourceAddressLow = sourceAddressesLow[index];
+        row.destinationAddressHigh = destinationAddressesHigh[index];
+        row.destinationAddressLow = destinationAddressesLow[index];
+        row.ports = ports[index];
+        row.protocol = protocols[index];
+        row.length = lengths[index];
+        row.flags = flags[index];
+        row.info = infos[index];
+        row.name = names[index];
+
+        // 读取期间写线程可能已经绕回并覆盖了这一行
+        return sequence >= published.get() - capacity + guard;
+    }
+
+    /**
+     * 查找第一条时间不早于timestamp的记录
+     * 时间戳由唯一的写线程按写入顺序生成，视为不减，按序号二分查找
+     * @param timestamp 时间（毫秒）
+     * @return 记录序号；所有记录都早于timestamp时返回getWriteSequence()
+     */
+    public long findSequence(long timestamp) {
+        long low = getOldestSequence();
+        long high = published.get();
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            long value = timestamps[(int) middle & mask];
+            // 读取后再检查是否已被覆盖，被覆盖的记录比仍可读的记录更早
+            if (middle < getOldestSequence() || value < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 创建从当前最旧记录开始读取的游标
+     */
+    public Cursor newCursor() {
+        return new Cursor(getOldestSequence());
+    }
+
+    /**
+     * 创建从指定序号开始读取的游标
+     */
+    public Cursor newCursor(long fromSequence) {
+        return new Cursor(fromSequence);
+    }
+
+    /**
+     * 当前仍可读取的最旧记录序号
+     */
+    public long getOldestSequence() {
+        return Math.max(floor, published.get() - capacity + guard);
+    }
+
+    /**
+     * 下一条记录将使用的序号，也即已写入记录的总数
+     */
+    public long getWriteSequence() {
+        return published.get();
+    }
+
+    /**
+     * 当前可读取的记录数
+     */
+    public int size() {
+        return (int) Math.max(0, published.get() - getOldestSequence());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 逻辑清空：之前写入的记录不再可读，不会阻塞写线程
+     */
+    public void clear() {
+        floor = published.get();
+    }
+
+    /**
+     * 读线程持有的游标，不同线程不能共享同一个游标
+     */
+    public final class Cursor {
+        private long position;
+        private long skipped;
+
+        private Cursor(long position) {
+            this.position = position;
+        }
+
+        /**
+         * 读取下一条记录
+         * @param row 用于接收数据的行对象
+         * @return 没有新记录时返回false
+         */
+        public boolean next(Row row) {
+            while (true) {
+                long oldest = getOldestSequence();
+                if (position < oldest) {
+                    // 游标落后于写线程，跳过已被覆盖的记录
+                    skipped += oldest - position;
+                    position = oldest;
+                }
+                if (position >= published.get()) {
+                    return false;
+                }
+                if (read(position, row)) {
+                    position++;
+                    return true;
+                }
+            }
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public void seek(long sequence) {
+            position = sequence;
+        }
+
+        /**
+         * 由于覆盖而被跳过的记录数
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+    }
+
+    /**
+     * 可复用的行对象，读取时由存储填充
+     */
+    public static final class Row {
+        long sequence;
+        long timestamp;
+        long sourceAddressHigh;
+        long sourceAddressLow;
+        long destinationAddressHigh;
+        long destinationAddressLow;
+        int ports;
+        int protocol;
+        int length;
+        int flags;
+        int info;
+        int name;
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getIpVersion() {
+            return protocol >>> 8;
+        }
+
+        public int getProtocol() {
+            return protocol & 0xFF;
+        }
+
+        public long getSourceAddressHigh() {
+            return sourceAddressHigh;
+        }
+
+        public long getSourceAddressLow() {
+            return sourceAddressLow;
+        }
+
+        public long getDestinationAddressHigh() {
+            return destinationAddressHigh;
+        }
+
+        public long getDestinationAddressLow() {
+            return destinationAddressLow;
+        }
+
+        public int getSourcePort() {
+            return ports >>> 16;
+        }
+
+        public int getDestinationPort() {
+            return ports & 0xFFFF;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getInfo() {
+            return info;
+        }
+
+        /**
+         * DNS查询域名在HostnameTable中的编号，没有时为0
+         */
+        public int getNameId() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.example.packetcapture.capture;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * pcapng格式的完整抓包记录器
+ * 数据包原样（按抓取长度截断）写成Enhanced Packet Block，链路类型为LINKTYPE_RAW，
+ * 时间戳精度为微秒，用epb_flags选项标明方向，生成的文件可以直接用Wireshark打开。
+ *
+ * 写入分两步：record把数据块复制到内存中的暂存环，只持有很短的锁，不接触磁盘；
+ * 后台刷写线程把暂存环中的数据块复制到内存映射的分段文件，并定期把脏页同步到磁盘。
+ * 每个分段预先映射为segmentSize大小，写满或者超过segmentDuration后换下一个分段，
+ * 关闭分段时把文件截断到实际长度。暂存环写满时丢弃数据包并计数，TUN读取线程不会因磁盘变慢而阻塞。
+ * 刷写线程同时解码写入的数据包，在分段旁边建立CaptureIndex，可以按时间、地址、端口和协议查询。
+ * TUN读取线程和转发引擎都可以调用record。
+ */
+public final class PcapngWriter {
+    private static final String TAG = "PcapngWriter";
+
+    public static final int DEFAULT_SNAP_LENGTH = 65535;
+    public static final int MAX_SNAP_LENGTH = 262144;
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+    public static final long MIN_SEGMENT_SIZE = 1L << 20;
+    public static final long DEFAULT_SEGMENT_DURATION_MS = 10 * 60 * 1000L;
+
+    private static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int BLOCK_INTERFACE_DESCRIPTION = 0x00000001;
+    private static final int BLOCK_ENHANCED_PACKET = 0x00000006;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    // 数据包直接以IPv4或IPv6头部开始
+    private static final int LINKTYPE_RAW = 101;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_EPB_FLAGS = 2;
+    private static final int EPB_FLAG_INBOUND = 1;
+    private static final int EPB_FLAG_OUTBOUND = 2;
+
+    private static final int SECTION_HEADER_LENGTH = 28;
+    private static final int INTERFACE_DESCRIPTION_LENGTH = 20;
+    // 块头、接口号、时间戳、两个长度、epb_flags选项、结束选项和块尾
+    private static final int PACKET_BLOCK_OVERHEAD = 44;
+
+    // 暂存环大小，必须是2的幂，能容纳至少一个最大的数据块
+    private static final int RING_SIZE = 8 << 20;
+    private static final int RING_MASK = RING_SIZE - 1;
+    // 暂存数据超过一半时立即唤醒刷写线程，否则按间隔轮询
+    private static final int WAKE_THRESHOLD = RING_SIZE / 2;
+    private static final long FLUSH_INTERVAL_MS = 100;
+    private static final long SYNC_INTERVAL_MS = 5 * 1000L;
+
+    private final File directory;
+    private final long segmentSize;
+    private final long segmentDuration;
+    private final int snapLength;
+    private final String filePrefix;
+
+    // 暂存环，[tail, head)之间是尚未写入文件的数据块，由本对象的锁保护
+    private final byte[] ring = new byte[RING_SIZE];
+    private long head;
+    private long tail;
+    private boolean closed;
+    private long droppedCount;
+    private long recordedCount;
+    private final List<File> segments = new ArrayList<>();
+    private volatile boolean failed;
+    // 建立失败时为null，不影响记录数据包
+    private volatile CaptureIndex index;
+
+    // 以下字段只在刷写线程上使用
+    private Thread flusher;
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer mapped;
+    private File segmentPath;
+    private long segmentStartedAt;
+    private long lastSyncAt;
+    private boolean dirty;
+    private int segmentIndex;
+    private final PacketDecoder decoder = new PacketDecoder();
+    private ByteBuffer scratch;
+
+    /**
+     * @param directory 分段文件所在目录，不存在时自动创建
+     * @param segmentSize 每个分段的最大字节数
+     * @param segmentDuration 每个分段最长覆盖的时间（毫秒），0表示只按大小切换
+     * @param snapLength 每个数据包最多记录的字节数
+     */
+    public PcapngWriter(File directory, long segmentSize, long segmentDuration, int snapLength) {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("分段大小超出范围: " + segmentSize);
+        }
+        if (segmentDuration < 0) {
+            throw new IllegalArgumentException("分段时长不能为负数: " + segmentDuration);
+        }
+        if (snapLength <= 0 || snapLength > MAX_SNAP_LENGTH) {
+            throw new IllegalArgumentException("抓取长度超出范围: " + snapLength);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segmentDuration = segmentDuration;
+        this.snapLength = snapLength;
+        this.filePrefix = "capture_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+    }
+
+    public PcapngWriter(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENT_DURATION_MS, DEFAULT_SNAP_LENGTH);
+    }
+
+    /**
+     * 启动后台刷写线程
+     */
+    public void start() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "无法创建抓包目录: " + directory);
+            failed = true;
+            return;
+        }
+        try {
+            index = CaptureIndex.create(directory, filePrefix);
+        } catch (IOException e) {
+            Log.w(TAG, "无法建立抓包索引，只记录数据包", e);
+        }
+        scratch = ByteBuffer.allocate(snapLength);
+        flusher = new Thread(this::runFlusher, "PcapngFlusher");
+        flusher.start();
+    }
+
+    /**
+     * 记录一个数据包，只复制到暂存环，不会阻塞在磁盘上
+     * @param packet 数据包缓冲区，数据从arrayOffset开始
+     * @param length 数据包长度
+     * @param timestamp 捕获时间（毫秒）
+     * @param outbound 应用发出的数据包为true，写回应用的为false
+     * @return 已关闭、写入失败或暂存环已满时返回false
+     */
+    public boolean record(ByteBuffer packet, int length, long timestamp, boolean outbound) {
+        if (failed) {
+            return false;
+        }
+        int captured = Math.min(length, snapLength);
+        int padded = (captured + 3) & ~3;
+        int blockLength = PACKET_BLOCK_OVERHEAD + padded;
+        long micros = timestamp * 1000;
+
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (head - tail + blockLength > RING_SIZE) {
+                droppedCount++;
+                return false;
+            }
+            long position = head;
+            position = putInt(position, BLOCK_ENHANCED_PACKET);
+            position = putInt(position, blockLength);
+            position = putInt(position, 0);
+            position = putInt(position, (int) (micros >>> 32));
+            position = putInt(position, (int) micros);
+            position = putInt(position, captured);
+            position = putInt(position, length);
+            position = putBytes(position, packet.array(), packet.arrayOffset(), captured);
+            for (int i = captured; i < padded; i++) {
+                ring[(int) position++ & RING_MASK] = 0;
+            }
+            position = putInt(position, OPTION_EPB_FLAGS | 4 << 16);
+            position = putInt(position, outbound ? EPB_FLAG_OUTBOUND : EPB_FLAG_INBOUND);
+            position = putInt(position, OPTION_END);
+            putInt(position, blockLength);
+
+            boolean wake = head - tail < WAKE_THRESHOLD && head + blockLength - tail >= WAKE_THRESHOLD;
+            head += blockLength;
+            recordedCount++;
+            if (wake) {
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 停止接收数据包，刷写线程写完暂存的数据后关闭当前分段，不等待其完成
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * 等待刷写线程结束
+     * @return 超时前结束时返回true
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        Thread thread = flusher;
+        if (thread == null) {
+            return true;
+        }
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    /**
+     * 已生成的分段文件，包括正在写入的分段
+     */
+    public synchronized List<File> getSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    public synchronized long getRecordedCount() {
+        return recordedCount;
+    }
+
+    /**
+     * 因暂存环已满而丢弃的数据包数
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * 分段旁的索引，未能建立时返回null
+     */
+    public CaptureIndex getIndex() {
+        return index;
+    }
+
+    public int getSnapLength() {
+        return snapLength;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * pcapng文件开头的节头部块和接口描述块
+     * @param snapLength 接口的抓取长度，0表示不限制
+     */
+    public static byte[] fileHeader(int snapLength) {
+        ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER_LENGTH + INTERFACE_DESCRIPTION_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(BLOCK_SECTION_HEADER);
+        header.putInt(SECTION_HEADER_LENGTH);
+        header.putInt(BYTE_ORDER_MAGIC);
+        header.putShort((short) 1);
+        header.putShort((short) 0);
+        // 节长度未知
+        header.putLong(-1L);
+        header.putInt(SECTION_HEADER_LENGTH);
+
+        header.putInt(BLOCK_INTERFACE_DESCRIPTION);
+        header.putInt(INTERFACE_DESCRIPTION_LENGTH);
+        header.putShort((short) LINKTYPE_RAW);
+        header.putShort((short) 0);
+        header.putInt(snapLength);
+        header.putInt(INTERFACE_DESCRIPTION_LENGTH);
+        return header.array();
+    }
+
+    private void runFlusher() {
+        try {
+            while (true) {
+                long position;
+                long end;
+                boolean stopping;
+                synchronized (this) {
+                    if (head == tail && !closed) {
+                        wait(FLUSH_INTERVAL_MS);
+                    }
+                    position = tail;
+                    end = head;
+                    stopping = closed;
+                }
+
+                long now = System.currentTimeMillis();
+                while (position < end) {
+                    position = writeBlock(position, now);
+                }
+                synchronized (this) {
+                    tail = end;
+                }
+                if (dirty && now - lastSyncAt >= SYNC_INTERVAL_MS) {
+                    mapped.force();
+                    dirty = false;
+                    lastSyncAt = now;
+                }
+                // 关闭后不会再有新的数据块
+                if (stopping) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "写入抓包文件失败", e);
+            failed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeSegment();
+            if (index != null) {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * 把暂存环中一个数据块写入当前分段
+     * @return 下一个数据块的位置
+     */
+    private long writeBlock(long position, long now) throws IOException {
+        int blockLength = getInt(position + 4);
+        if (mapped == null) {
+            openSegment(now);
+        } else if (mapped.remaining() < blockLength
+                || segmentDuration > 0 && now - segmentStartedAt >= segmentDuration) {
+            closeSegment();
+            openSegment(now);
+        }
+
+        int offset = mapped.position();
+        int start = (int) position & RING_MASK;
+        int first = Math.min(blockLength, RING_SIZE - start);
+        mapped.put(ring, start, first);
+        if (first < blockLength) {
+            mapped.put(ring, 0, blockLength - first);
+        }
+        dirty = true;
+        if (index != null) {
+            indexBlock(position, offset);
+        }
+        return position + blockLength;
+    }
+
+    /**
+     * 解码暂存环中的数据包并写入索引
+     */
+    private void indexBlock(long position, int offset) {
+        int high = getInt(position + 12);
+        int low = getInt(position + 16);
+        int captured = getInt(position + 20);
+        int length = getInt(position + 24);
+        boolean inbound = getInt(position + 32 + ((captured + 3) & ~3)) == EPB_FLAG_INBOUND;
+
+        // 数据块可能跨越暂存环的末尾，复制出来再解码
+        int start = (int) (position + 28) & RING_MASK;
+        int first = Math.min(captured, RING_SIZE - start);
+        System.arraycopy(ring, start, scratch.array(), 0, first);
+        if (first < captured) {
+            System.arraycopy(ring, 0, scratch.array(), first, captured - first);
+        }
+        decoder.decode(scratch, captured);
+        long micros = (long) high << 32 | (low & 0xFFFFFFFFL);
+        try {
+            index.append(decoder, micros / 1000, length, inbound, segmentIndex, offset);
+        } catch (IOException e) {
+            Log.e(TAG, "写入抓包索引失败，停止建立索引", e);
+            index.close();
+            index = null;
+        }
+    }
+
+    private void openSegment(long now) throws IOException {
+        File file = new File(directory, String.format(Locale.US, "%s_%03d.pcapng", filePrefix, ++segmentIndex));
+        RandomAccessFile opened = new RandomAccessFile(file, "rw");
+        try {
+            mapped = opened.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        segmentFile = opened;
+        segmentPath = file;
+        segmentStartedAt = now;
+        lastSyncAt = now;
+
+        // 每个分段都是独立的节，可以单独打开
+        mapped.put(fileHeader(snapLength));
+        dirty = true;
+
+        synchronized (this) {
+            segments.add(file);
+        }
+        Log.i(TAG, "开始写入抓包分段: " + file);
+    }
+
+    private void closeSegment() {
+        if (mapped == null) {
+            return;
+        }
+        int length = mapped.position();
+        try {
+            mapped.force();
+            // 去掉预先映射但没有用到的部分
+            segmentFile.getChannel().truncate(length);
+        } catch (IOException e) {
+            Log.e(TAG, "截断抓包分段失败: " + segmentPath, e);
+        } finally {
+            try {
+                segmentFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "关闭抓包分段时出错");
+            }
+            mapped = null;
+            segmentFile = null;
+            dirty = false;
+        }
+        Log.i(TAG, "抓包分段已完成: " + segmentPath + " (" + length + " 字节)");
+    }
+
+    private long putInt(long position, int value) {
+        ring[(int) position & RING_MASK] = (byte) value;
+        ring[(int) (position + 1) & RING_MASK] = (byte) (value >>> 8);
+        ring[(int) (position + 2) & RING_MASK] = (byte) (value >>> 16);
+        ring[(int) (position + 3) & RING_MASK] = (byte) (value >>> 24);
+        return position + 4;
+    }
+
+    private long putBytes(long position, byte[] data, int offset, int length) {
+        int start = (int) position & RING_MASK;
+        int first = Math.min(length, RING_SIZE - start);
+        System.arraycopy(data, offset, ring, start, first);
+        if (first < length) {
+            System.arraycopy(data, offset + first, ring, 0, length - first);
+        }
+        return position + length;
+    }
+
+    private int getInt(long position) {
+        return (ring[(int) position & RING_MASK] & 0xFF)
+                | (ring[(int) (position + 1) & RING_MASK] & 0xFF) << 8
+                | (ring[(int) (position + 2) & RING_MASK] & 0xFF) << 16
+                | (ring[(int) (position + 3) & RING_MASK] & 0xFF) << 24;
+    }
+}
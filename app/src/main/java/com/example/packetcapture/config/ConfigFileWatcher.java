@@ -0,0 +1,109 @@
+package com.example.packetcapture.config;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 监视重写配置文件，文件变化后在后台线程重新解析并发布新的规则快照
+ * 按固定间隔比较文件的修改时间和长度；发现变化后要等下一次检查时文件不再变化才重新加载，
+ * 避免读到正在写入的文件。解析失败时保留原来的规则，等文件再次变化后重试。
+ * 请求处理线程只读取已发布的快照，重新加载不会阻塞任何请求。
+ */
+public class ConfigFileWatcher {
+    private static final String TAG = "ConfigFileWatcher";
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+
+    private final File configFile;
+    private final RewriteConfig rewriteConfig;
+    private final long intervalMs;
+    private ScheduledExecutorService executor;
+
+    // 以下字段只在监视线程上访问
+    private long loadedModified;
+    private long loadedLength;
+    private long pendingModified = -1;
+    private long pendingLength = -1;
+
+    public ConfigFileWatcher(File configFile, RewriteConfig rewriteConfig) {
+        this(configFile, rewriteConfig, DEFAULT_INTERVAL_MS);
+    }
+
+    public ConfigFileWatcher(File configFile, RewriteConfig rewriteConfig, long intervalMs) {
+        this.configFile = configFile;
+        this.rewriteConfig = rewriteConfig;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * 开始监视；当前的文件内容视为已经加载
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        loadedModified = configFile.lastModified();
+        loadedLength = configFile.length();
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        Log.i(TAG, "开始监视配置文件: " + configFile);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void check() {
+        try {
+            long modified = configFile.lastModified();
+            long length = configFile.length();
+            if (modified == 0) {
+                // 文件不存在或暂时被替换掉，保留当前规则
+                return;
+            }
+            if (modified == loadedModified && length == loadedLength) {
+                pendingModified = -1;
+                return;
+            }
+            if (modified != pendingModified || length != pendingLength) {
+                // 刚发现变化，等下一次检查确认文件已经写完
+                pendingModified = modified;
+                pendingLength = length;
+                return;
+            }
+
+            loadedModified = modified;
+            loadedLength = length;
+            pendingModified = -1;
+            long previous = rewriteConfig.getSnapshot().getVersion();
+            if (rewriteConfig.loadConfigFromFile(configFile)) {
+                Log.i(TAG, "配置文件已重新加载，规则版本 " + previous + " -> "
+                        + rewriteConfig.getSnapshot().getVersion());
+            } else {
+                Log.w(TAG, "重新加载配置文件失败，继续使用版本 " + previous);
+            }
+        } catch (RuntimeException e) {
+            // 不让异常终止定时任务
+            Log.e(TAG, "检查配置文件时出错", e);
+        }
+    }
+}
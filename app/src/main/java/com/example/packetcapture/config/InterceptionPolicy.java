@@ -0,0 +1,106 @@
+package com.example.packetcapture.config;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * HTTPS解密的范围
+ * 关闭时所有HTTPS连接都只做隧道转发。开启后先看拒绝列表，命中的主机不解密（用于固定了证书的应用）；
+ * 允许列表非空时只解密命中的主机，为空时解密其余所有主机。
+ * 列表项为主机名，"*.example.com"匹配example.com的所有子域名，"*"匹配所有主机。创建后不再改变。
+ */
+public final class InterceptionPolicy {
+    public static final InterceptionPolicy DISABLED =
+            new InterceptionPolicy(false, Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    private final boolean enabled;
+    private final List<String> allow;
+    private final List<String> deny;
+
+    public InterceptionPolicy(boolean enabled, List<String> allow, List<String> deny) {
+        this.enabled = enabled;
+        this.allow = normalize(allow);
+        this.deny = normalize(deny);
+    }
+
+    /**
+     * 解析配置中的interception对象：{"enabled": true, "allow": [...], "deny": [...]}
+     */
+    public static InterceptionPolicy fromJson(JSONObject json) throws JSONException {
+        return new InterceptionPolicy(json.optBoolean("enabled", false),
+                stringList(json.optJSONArray("allow")), stringList(json.optJSONArray("deny")));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public List<String> getAllowList() {
+        return allow;
+    }
+
+    public List<String> getDenyList() {
+        return deny;
+    }
+
+    /**
+     * @param host 主机名或IP地址字面量
+     */
+    public boolean shouldIntercept(String host) {
+        if (!enabled || host == null || host.isEmpty()) {
+            return false;
+        }
+        String name = host.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (matchesAny(deny, name)) {
+            return false;
+        }
+        return allow.isEmpty() || matchesAny(allow, name);
+    }
+
+    private static boolean matchesAny(List<String> patterns, String host) {
+        for (String pattern : patterns) {
+            if (pattern.equals("*") || pattern.equals(host)) {
+                return true;
+            }
+            // "*.example.com"保存为".example.com"，按后缀匹配子域名
+            if (pattern.startsWith(".") && host.endsWith(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> normalize(List<String> patterns) {
+        List<String> result = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            String trimmed = pattern.trim().toLowerCase(Locale.ROOT);
+            if (trimmed.startsWith("*.")) {
+                trimmed = trimmed.substring(1);
+            }
+            if (!trimmed.isEmpty()) {
+                result.add(trimmed);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static List<String> stringList(JSONArray array) throws JSONException {
+        if (array == null) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            result.add(array.getString(i));
+        }
+        return result;
+    }
+}
@@ -2,30 +2,85 @@ package com.example.packetcapture.config;
 
 import android.util.Log;
 
+import com.example.packetcapture.rewrite.RewriteOperator;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * 重写规则配置
+ * 规则以不可变的快照发布：解析或设置规则时先在新列表上完成构建和编译，再一次性替换当前快照。
+ * 代理线程每次取当前快照使用，无需加锁，也不会看到构建到一半的规则。
+ */
 public class RewriteConfig {
     private static final String TAG = "RewriteConfig";
+    public static final int DEFAULT_MAX_BUFFERED_BODY_SIZE = 8 * 1024 * 1024;
     
-    private List<RewriteRule> rules;
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.<RewriteRule>emptyList());
+    // 命中规则的响应体最多缓存的字节数，超过则放弃改写、直接转发
+    private int maxBufferedBodySize = DEFAULT_MAX_BUFFERED_BODY_SIZE;
+    // HTTPS解密的范围，默认不解密
+    private volatile InterceptionPolicy interceptionPolicy = InterceptionPolicy.DISABLED;
     
     public RewriteConfig() {
-        rules = new ArrayList<>();
     }
     
+    /**
+     * 取得当前的规则快照，同一次处理中应只取一次
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+    
+    /**
+     * @return 当前快照中的规则，不可修改
+     */
     public List<RewriteRule> getRules() {
-        return rules;
+        return snapshot.getRules();
+    }
+    
+    public RuleMatcher getRuleMatcher() {
+        return snapshot.getMatcher();
+    }
+    
+    /**
+     * 用给定的规则发布新的快照
+     */
+    public Snapshot setRules(List<RewriteRule> rules) {
+        synchronized (this) {
+            Snapshot next = new Snapshot(snapshot.getVersion() + 1, rules);
+            snapshot = next;
+            return next;
+        }
+    }
+    
+    public int getMaxBufferedBodySize() {
+        return maxBufferedBodySize;
+    }
+    
+    public void setMaxBufferedBodySize(int maxBufferedBodySize) {
+        this.maxBufferedBodySize = maxBufferedBodySize;
+    }
+    
+    public InterceptionPolicy getInterceptionPolicy() {
+        return interceptionPolicy;
+    }
+    
+    public void setInterceptionPolicy(InterceptionPolicy interceptionPolicy) {
+        this.interceptionPolicy = interceptionPolicy != null ? interceptionPolicy : InterceptionPolicy.DISABLED;
     }
     
     public boolean loadConfigFromFile(File configFile) {
@@ -45,10 +100,28 @@ public class RewriteConfig {
         }
     }
     
+    /**
+     * 解析JSON格式的规则并发布为新的快照；解析失败时保留原来的规则
+     * 配置可以直接是规则数组，也可以是{"rules": [...], "interception": {...}}形式的对象，
+     * 后者同时设置HTTPS解密的范围（缺省时不解密）；数组形式不改变当前的解密范围。
+     */
     public boolean parseConfig(String configJson) {
         try {
-            rules.clear();
-            JSONArray rulesArray = new JSONArray(configJson);
+            List<RewriteRule> rules = new ArrayList<>();
+            InterceptionPolicy policy = null;
+            JSONArray rulesArray;
+            Object root = new JSONTokener(configJson).nextValue();
+            if (root instanceof JSONObject) {
+                JSONObject configObj = (JSONObject) root;
+                rulesArray = configObj.optJSONArray("rules");
+                if (rulesArray == null) {
+                    rulesArray = new JSONArray();
+                }
+                JSONObject interceptionObj = configObj.optJSONObject("interception");
+                policy = interceptionObj != null ? InterceptionPolicy.fromJson(interceptionObj) : InterceptionPolicy.DISABLED;
+            } else {
+                rulesArray = new JSONArray(configJson);
+            }
             
             for (int i = 0; i < rulesArray.length(); i++) {
                 JSONObject ruleObj = rulesArray.getJSONObject(i);
@@ -69,17 +142,15 @@ public class RewriteConfig {
                     
                     RewriteItem item = new RewriteItem(itemEnabled, itemType);
                     
-                    // 解析值
+                    // 解析值，具体含义由重写类型决定，见RewriteOperator
                     JSONObject valuesObj = itemObj.getJSONObject("values");
                     Map<String, String> values = new HashMap<>();
-                    
-                    if (itemType.equals("replaceResponseBody") && valuesObj.has("body")) {
-                        values.put("body", valuesObj.getString("body"));
-                    } else if (itemType.equals("replaceResponseHeader")) {
-                        // 处理响应头替换
-                        // 这里可以添加更多的处理逻辑
-                    } else if (itemType.equals("replaceResponseStatus")) {
-                        // 处理响应状态码替换
+                    Iterator<String> keys = valuesObj.keys();
+                    while (keys.hasNext()) {
+                        String key = keys.next();
+                        if (!valuesObj.isNull(key)) {
+                            values.put(key, valuesObj.get(key).toString());
+                        }
                     }
                     
                     item.setValues(values);
@@ -89,7 +160,12 @@ public class RewriteConfig {
                 rules.add(rule);
             }
             
-            Log.d(TAG, "Loaded " + rules.size() + " rewrite rules");
+            if (policy != null) {
+                setInterceptionPolicy(policy);
+            }
+            Snapshot published = setRules(rules);
+            Log.d(TAG, "Loaded " + rules.size() + " rewrite rules, " + published.getMatcher().size()
+                    + " compiled, version " + published.getVersion());
             return true;
         } catch (JSONException e) {
             Log.e(TAG, "Error parsing config JSON", e);
@@ -97,6 +173,39 @@ public class RewriteConfig {
         }
     }
     
+    /**
+     * 某一版本的规则及其编译结果，创建后不再改变
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final List<RewriteRule> rules;
+        private final RuleMatcher matcher;
+        
+        Snapshot(long version, List<RewriteRule> rules) {
+            this.version = version;
+            this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+            this.matcher = RuleMatcher.compile(this.rules);
+            // 发布前编译好所有重写项，请求处理时不再编译
+            for (RewriteRule rule : this.rules) {
+                for (RewriteItem item : rule.getItems()) {
+                    item.getOperator();
+                }
+            }
+        }
+        
+        public long getVersion() {
+            return version;
+        }
+        
+        public List<RewriteRule> getRules() {
+            return rules;
+        }
+        
+        public RuleMatcher getMatcher() {
+            return matcher;
+        }
+    }
+    
     public static class RewriteRule {
         private String name;
         private boolean enabled;
@@ -141,6 +250,9 @@ public class RewriteConfig {
         private boolean enabled;
         private String type;
         private Map<String, String> values;
+        // 由类型和值编译出的操作，值变化后重新编译
+        private volatile RewriteOperator operator;
+        private volatile boolean compiled;
         
         public RewriteItem(boolean enabled, String type) {
             this.enabled = enabled;
@@ -162,6 +274,18 @@ public class RewriteConfig {
         
         public void setValues(Map<String, String> values) {
             this.values = values;
+            this.compiled = false;
+        }
+        
+        /**
+         * @return 编译好的重写操作，类型未知或值无效时返回null
+         */
+        public RewriteOperator getOperator() {
+            if (!compiled) {
+                operator = RewriteOperator.create(type, values);
+                compiled = true;
+            }
+            return operator;
         }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,557 @@
+package com.example.packetcapture.config;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 编译后的重写规则索引
+ * 规则的url是对整个URL做完整匹配的正则表达式。编译时识别其中常见的写法，放进不需要正则的索引：
+ * <ul>
+ * <li>http://example\.com/path.* 等确定主机的规则按主机放进哈希表，路径放进基数树（前缀）或哈希表（完整路径）</li>
+ * <li>https?://([^/]+\.)?example\.com/.* 等通配子域名的规则放进按标签倒序组织的字典树</li>
+ * <li>https?://example.* 等只有字面前缀的规则放进以协议之后部分为键的基数树</li>
+ * </ul>
+ * 只有识别不了的正则才在匹配时逐条执行，而且只在编译时编译一次。
+ * 识别出的写法与原正则的匹配结果完全一致，查询返回所有命中的规则，按在配置中的先后顺序排列。
+ */
+public final class RuleMatcher {
+    private static final String TAG = "RuleMatcher";
+
+    private static final int SCHEME_HTTP = 1;
+    private static final int SCHEME_HTTPS = 2;
+    private static final int SCHEME_ANY = SCHEME_HTTP | SCHEME_HTTPS;
+
+    private static final String[] SCHEME_GROUPS = {
+            "https?", "(http|https)", "(https|http)", "(?:http|https)", "(?:https|http)"
+    };
+    private static final String[] SUBDOMAIN_WILDCARDS = {"[^/]+\\.", "[^\\/]+\\."};
+    private static final String[] OPTIONAL_SUBDOMAIN_WILDCARDS = {
+            "([^/]+\\.)?", "(?:[^/]+\\.)?", "([^\\/]+\\.)?", "(?:[^\\/]+\\.)?"
+    };
+    private static final String[] ANY_PATHS = {"(/.*)?", "(?:/.*)?", "(\\/.*)?", "(?:\\/.*)?"};
+    private static final String ANY = ".*";
+
+    private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.priority - b.priority;
+        }
+    };
+
+    /**
+     * 索引中的一条规则
+     */
+    private static final class Entry {
+        final RewriteConfig.RewriteRule rule;
+        final int priority;
+        final int schemes;
+        final Pattern pattern;
+
+        Entry(RewriteConfig.RewriteRule rule, int priority, int schemes, Pattern pattern) {
+            this.rule = rule;
+            this.priority = priority;
+            this.schemes = schemes;
+            this.pattern = pattern;
+        }
+    }
+
+    private final Map<String, PathIndex> exactHosts = new HashMap<>();
+    private final LabelNode suffixHosts = new LabelNode();
+    private final RadixNode literalPrefixes = new RadixNode("");
+    private final List<Entry> fallback = new ArrayList<>();
+    private int size;
+
+    private RuleMatcher() {
+    }
+
+    /**
+     * 编译启用的规则，规则在列表中的位置即优先级；无效的正则会被跳过
+     */
+    public static RuleMatcher compile(List<RewriteConfig.RewriteRule> rules) {
+        RuleMatcher matcher = new RuleMatcher();
+        for (int i = 0; i < rules.size(); i++) {
+            RewriteConfig.RewriteRule rule = rules.get(i);
+            if (rule.isEnabled() && rule.getUrl() != null) {
+                matcher.add(rule, i);
+            }
+        }
+        return matcher;
+    }
+
+    /**
+     * @return 索引中的规则数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 查找所有与URL匹配的规则
+     * @return 按优先级排列的规则，没有匹配时返回空列表
+     */
+    public List<RewriteConfig.RewriteRule> match(String url) {
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        List<Entry> matched = new ArrayList<>();
+        collect(url, matched);
+        if (matched.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (matched.size() > 1) {
+            Collections.sort(matched, BY_PRIORITY);
+        }
+        List<RewriteConfig.RewriteRule> result = new ArrayList<>(matched.size());
+        for (Entry entry : matched) {
+            result.add(entry.rule);
+        }
+        return result;
+    }
+
+    /**
+     * URL是否命中任一规则
+     */
+    public boolean matchesAny(String url) {
+        if (size == 0) {
+            return false;
+        }
+        List<Entry> matched = new ArrayList<>(2);
+        collect(url, matched);
+        return !matched.isEmpty();
+    }
+
+    private void collect(String url, List<Entry> out) {
+        int schemeEnd = url.indexOf("://");
+        int scheme = 0;
+        if (schemeEnd == 4 && url.startsWith("http")) {
+            scheme = SCHEME_HTTP;
+        } else if (schemeEnd == 5 && url.startsWith("https")) {
+            scheme = SCHEME_HTTPS;
+        }
+
+        if (scheme != 0) {
+            int authorityStart = schemeEnd + 3;
+            int pathStart = url.indexOf('/', authorityStart);
+            if (pathStart < 0) {
+                pathStart = url.length();
+            }
+            String authority = url.substring(authorityStart, pathStart);
+            String path = url.substring(pathStart);
+
+            PathIndex exact = exactHosts.get(authority);
+            if (exact != null) {
+                exact.collect(path, scheme, out);
+            }
+            collectSuffix(authority, path, scheme, out);
+            literalPrefixes.collect(url, authorityStart, scheme, out);
+        }
+
+        for (Entry entry : fallback) {
+            if (entry.pattern.matcher(url).matches()) {
+                out.add(entry);
+            }
+        }
+    }
+
+    /**
+     * 从最后一个标签开始沿字典树向下查找，途经的每个节点代表主机的一个后缀
+     */
+    private void collectSuffix(String authority, String path, int scheme, List<Entry> out) {
+        LabelNode node = suffixHosts;
+        int end = authority.length();
+        while (end > 0 && node.children != null) {
+            int dot = authority.lastIndexOf('.', end - 1);
+            node = node.children.get(authority.substring(dot + 1, end));
+            if (node == null) {
+                return;
+            }
+            if (dot < 0) {
+                // 主机正好等于后缀
+                if (node.apex != null) {
+                    node.apex.collect(path, scheme, out);
+                }
+                return;
+            }
+            if (dot > 0 && node.subdomains != null) {
+                node.subdomains.collect(path, scheme, out);
+            }
+            end = dot;
+        }
+    }
+
+    private void add(RewriteConfig.RewriteRule rule, int priority) {
+        String regex = rule.getUrl();
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            Log.w(TAG, "规则" + rule.getName() + "的URL不是有效的正则表达式: " + regex);
+            return;
+        }
+        size++;
+        if (!index(rule, priority, regex)) {
+            fallback.add(new Entry(rule, priority, SCHEME_ANY, pattern));
+        }
+    }
+
+    /**
+     * 尝试把规则放进索引
+     * @return 正则不是可识别的写法时返回false
+     */
+    private boolean index(RewriteConfig.RewriteRule rule, int priority, String regex) {
+        // Pattern.matches本来就是完整匹配，首尾的锚点可以去掉
+        if (regex.startsWith("^")) {
+            regex = regex.substring(1);
+        }
+        if (regex.endsWith("$") && !regex.endsWith("\\$")) {
+            regex = regex.substring(0, regex.length() - 1);
+        }
+
+        // 协议
+        int schemes;
+        int position;
+        String group = startsWithAny(regex, 0, SCHEME_GROUPS);
+        if (group != null) {
+            schemes = SCHEME_ANY;
+            position = group.length();
+        } else {
+            Literal scheme = Literal.read(regex, 0);
+            if (scheme.value.startsWith("https://")) {
+                schemes = SCHEME_HTTPS;
+                position = scheme.endOf("https".length());
+            } else if (scheme.value.startsWith("http://")) {
+                schemes = SCHEME_HTTP;
+                position = scheme.endOf("http".length());
+            } else {
+                return false;
+            }
+        }
+        Literal separator = Literal.read(regex, position);
+        if (!separator.value.startsWith("://")) {
+            return false;
+        }
+        position = separator.endOf("://".length());
+
+        // 主机前的子域名通配
+        boolean includeApex = false;
+        boolean wildcard = false;
+        String prefix = startsWithAny(regex, position, OPTIONAL_SUBDOMAIN_WILDCARDS);
+        if (prefix != null) {
+            wildcard = true;
+            includeApex = true;
+        } else {
+            prefix = startsWithAny(regex, position, SUBDOMAIN_WILDCARDS);
+            wildcard = prefix != null;
+        }
+        if (wildcard) {
+            position += prefix.length();
+        }
+
+        // 主机和路径的字面部分，以及剩下的路径写法
+        Literal literal = Literal.read(regex, position);
+        String rest = regex.substring(literal.end);
+        int slash = literal.value.indexOf('/');
+        String authority = slash < 0 ? literal.value : literal.value.substring(0, slash);
+        String pathLiteral = slash < 0 ? "" : literal.value.substring(slash);
+        if (authority.isEmpty()) {
+            return false;
+        }
+
+        boolean prefixMatch;
+        if (rest.isEmpty()) {
+            prefixMatch = false;
+        } else if (rest.equals(ANY) && slash >= 0) {
+            prefixMatch = true;
+        } else if (slash < 0 && isAny(rest, ANY_PATHS)) {
+            prefixMatch = true;
+        } else if (slash < 0 && (rest.equals("/" + ANY) || rest.equals("\\/" + ANY))) {
+            pathLiteral = "/";
+            prefixMatch = true;
+        } else if (slash < 0 && !wildcard && rest.equals(ANY)) {
+            // 主机之后可以是端口、路径甚至更长的主机名，只能按协议之后的字面前缀匹配
+            literalPrefixes.insert(authority, new Entry(rule, priority, schemes, null));
+            return true;
+        } else {
+            return false;
+        }
+
+        Entry entry = new Entry(rule, priority, schemes, null);
+        if (!wildcard) {
+            pathIndex(exactHosts, authority).add(pathLiteral, prefixMatch, entry);
+            return true;
+        }
+        LabelNode node = suffixHosts;
+        int end = authority.length();
+        while (end > 0) {
+            int dot = authority.lastIndexOf('.', end - 1);
+            node = node.child(authority.substring(dot + 1, end));
+            end = dot < 0 ? 0 : dot;
+            if (dot == 0) {
+                // 后缀以点开头，无法按标签表示
+                return false;
+            }
+        }
+        if (node.subdomains == null) {
+            node.subdomains = new PathIndex();
+        }
+        node.subdomains.add(pathLiteral, prefixMatch, entry);
+        if (includeApex) {
+            if (node.apex == null) {
+                node.apex = new PathIndex();
+            }
+            node.apex.add(pathLiteral, prefixMatch, entry);
+        }
+        return true;
+    }
+
+    private static PathIndex pathIndex(Map<String, PathIndex> map, String key) {
+        PathIndex index = map.get(key);
+        if (index == null) {
+            index = new PathIndex();
+            map.put(key, index);
+        }
+        return index;
+    }
+
+    private static String startsWithAny(String value, int offset, String[] candidates) {
+        for (String candidate : candidates) {
+            if (value.startsWith(candidate, offset)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAny(String value, String[] candidates) {
+        for (String candidate : candidates) {
+            if (value.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 正则开头的字面部分，转义的标点按原字符处理，被量词修饰的字符不算在内
+     */
+    private static final class Literal {
+        final String value;
+        // 每个字面字符在正则中的结束位置
+        final int[] ends;
+        final int end;
+
+        private Literal(String value, int[] ends, int end) {
+            this.value = value;
+            this.ends = ends;
+            this.end = end;
+        }
+
+        static Literal read(String regex, int from) {
+            StringBuilder value = new StringBuilder();
+            int[] ends = new int[regex.length() - from];
+            int position = from;
+            while (position < regex.length()) {
+                char c = regex.charAt(position);
+                int next;
+                char literal;
+                if (c == '\\') {
+                    if (position + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(position + 1))) {
+                        break;
+                    }
+                    literal = regex.charAt(position + 1);
+                    next = position + 2;
+                } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+                    break;
+                } else {
+                    literal = c;
+                    next = position + 1;
+                }
+                if (next < regex.length() && "?*+{".indexOf(regex.charAt(next)) >= 0) {
+                    // 这个字符带量词，不是字面量
+                    break;
+                }
+                ends[value.length()] = next;
+                value.append(literal);
+                position = next;
+            }
+            return new Literal(value.toString(), ends, position);
+        }
+
+        /**
+         * @return 前count个字面字符在正则中的结束位置，count至少为1
+         */
+        int endOf(int count) {
+            return ends[count - 1];
+        }
+    }
+
+    /**
+     * 一个主机下的路径索引：完整路径用哈希表，路径前缀用基数树
+     */
+    private static final class PathIndex {
+        private Map<String, List<Entry>> exact;
+        private RadixNode prefixes;
+
+        void add(String path, boolean prefixMatch, Entry entry) {
+            if (prefixMatch) {
+                if (prefixes == null) {
+                    prefixes = new RadixNode("");
+                }
+                prefixes.insert(path, entry);
+                return;
+            }
+            if (exact == null) {
+                exact = new HashMap<>();
+            }
+            List<Entry> entries = exact.get(path);
+            if (entries == null) {
+                entries = new ArrayList<>(1);
+                exact.put(path, entries);
+            }
+            entries.add(entry);
+        }
+
+        void collect(String path, int scheme, List<Entry> out) {
+            if (exact != null) {
+                List<Entry> entries = exact.get(path);
+                if (entries != null) {
+                    addMatching(entries, scheme, out);
+                }
+            }
+            if (prefixes != null) {
+                prefixes.collect(path, 0, scheme, out);
+            }
+        }
+    }
+
+    /**
+     * 按主机标签倒序组织的字典树，例如example.com对应 com -> example
+     */
+    private static final class LabelNode {
+        Map<String, LabelNode> children;
+        // 主机正好是这个后缀时适用的规则
+        PathIndex apex;
+        // 主机是这个后缀的子域名时适用的规则
+        PathIndex subdomains;
+
+        LabelNode child(String label) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            LabelNode child = children.get(label);
+            if (child == null) {
+                child = new LabelNode();
+                children.put(label, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * 压缩前缀树：每个节点代表从根到它的边上字符串拼成的前缀，节点上挂着以该前缀开头即匹配的规则
+     */
+    private static final class RadixNode {
+        String label;
+        List<RadixNode> children;
+        List<Entry> entries;
+
+        RadixNode(String label) {
+            this.label = label;
+        }
+
+        void insert(String key, Entry entry) {
+            RadixNode node = this;
+            int position = 0;
+            while (position < key.length()) {
+                int index = node.childIndex(key.charAt(position));
+                if (index < 0) {
+                    RadixNode leaf = new RadixNode(key.substring(position));
+                    node.addChild(leaf);
+                    node = leaf;
+                    break;
+                }
+                RadixNode child = node.children.get(index);
+                int common = 0;
+                while (common < child.label.length() && position + common < key.length()
+                        && child.label.charAt(common) == key.charAt(position + common)) {
+                    common++;
+                }
+                if (common < child.label.length()) {
+                    // 在公共前缀处拆分这条边
+                    RadixNode middle = new RadixNode(child.label.substring(0, common));
+                    child.label = child.label.substring(common);
+                    middle.addChild(child);
+                    node.children.set(index, middle);
+                    child = middle;
+                }
+                node = child;
+                position += common;
+            }
+            if (node.entries == null) {
+                node.entries = new ArrayList<>(1);
+            }
+            node.entries.add(entry);
+        }
+
+        /**
+         * 收集key从from开始的部分所经过的所有前缀上的规则
+         */
+        void collect(String key, int from, int scheme, List<Entry> out) {
+            RadixNode node = this;
+            int position = from;
+            while (true) {
+                if (node.entries != null) {
+                    addMatching(node.entries, scheme, out);
+                }
+                if (position >= key.length()) {
+                    return;
+                }
+                int index = node.childIndex(key.charAt(position));
+                if (index < 0) {
+                    return;
+                }
+                RadixNode child = node.children.get(index);
+                if (!key.startsWith(child.label, position)) {
+                    return;
+                }
+                position += child.label.length();
+                node = child;
+            }
+        }
+
+        private int childIndex(char first) {
+            if (children == null) {
+                return -1;
+            }
+            for (int i = 0; i < children.size(); i++) {
+                if (children.get(i).label.charAt(0) == first) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void addChild(RadixNode child) {
+            if (children == null) {
+                children = new ArrayList<>(2);
+            }
+            children.add(child);
+        }
+    }
+
+    private static void addMatching(List<Entry> entries, int scheme, List<Entry> out) {
+        for (Entry entry : entries) {
+            if ((entry.schemes & scheme) != 0) {
+                out.add(entry);
+            }
+        }
+    }
+}
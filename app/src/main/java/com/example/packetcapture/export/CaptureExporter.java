@@ -0,0 +1,333 @@
+package com.example.packetcapture.export;
+
+import android.util.Log;
+
+import com.example.packetcapture.PacketInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 后台导出流水线
+ * 读取线程从来源中按顺序取出记录，每CHUNK_SIZE条组成一批交给格式化线程池并行格式化；
+ * 各批的Future按提交顺序放入有界队列，写线程依次取出结果写入同一个带缓冲的文件通道，
+ * 因此输出顺序与来源一致，队列满时读取线程等待，内存中最多只有几批记录。
+ * 回调都在写线程上进行；取消或失败时删除未写完的文件。
+ * 取消只设置标记，各线程在等待队列的间隙检查标记后退出，不中断线程，
+ * 以免中断正在进行的文件通道读写而关闭格式化线程共享的pcapng分段通道。
+ */
+public final class CaptureExporter {
+    private static final String TAG = "CaptureExporter";
+
+    static final int CHUNK_SIZE = 2048;
+    // 等待队列时检查取消标记的间隔
+    private static final long POLL_INTERVAL_MS = 100;
+
+    /**
+     * 导出结果回调，在导出线程上调用
+     */
+    public interface Listener {
+        /**
+         * 每写完一批记录调用一次
+         * @param total 来源记录数的估计值，不小于exported且大于0
+         */
+        void onProgress(long exported, long total);
+
+        void onFinished(File file, long exported);
+
+        void onFailed(Exception e);
+
+        void onCancelled();
+    }
+
+    /**
+     * 一批记录的格式化结果
+     */
+    private static final class Formatted {
+        final byte[] data;
+        final int count;
+
+        Formatted(byte[] data, int count) {
+            this.data = data;
+            this.count = count;
+        }
+    }
+
+    private final ExportSource source;
+    private final File output;
+    private final RecordFormatter formatter;
+    private final int workers;
+    private final BlockingQueue<Future<Formatted>> pending;
+    // 读取结束的标记
+    private final FutureTask<Formatted> end = new FutureTask<>(() -> null);
+    private Listener listener;
+    private ExecutorService formatPool;
+    private Thread writerThread;
+    private Thread readerThread;
+    private volatile boolean cancelled;
+    // 写线程不再取出结果，读取线程据此停止
+    private volatile boolean stopped;
+
+    /**
+     * @param source 数据来源
+     * @param format 导出格式，PCAPNG要求来源带有pcapng记录
+     * @param output 输出文件，已存在时被覆盖
+     */
+    public CaptureExporter(ExportSource source, ExportFormat format, File output) {
+        this.source = source;
+        this.output = output;
+        switch (format) {
+            case JSON_LINES:
+                formatter = new JsonLinesFormatter();
+                break;
+            case HAR:
+                formatter = new HarFormatter();
+                break;
+            case PCAPNG:
+                if (!source.hasPackets()) {
+                    throw new IllegalArgumentException("数据来源没有pcapng记录，无法导出pcapng");
+                }
+                formatter = new PcapngFormatter(source);
+                break;
+            default:
+                formatter = new CsvFormatter();
+                break;
+        }
+        // 写线程和读取线程各占一个核
+        this.workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.pending = new ArrayBlockingQueue<>(workers * 2);
+        end.run();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 在新线程上开始导出
+     */
+    public void start() {
+        writerThread = new Thread(this::runWriter, "CaptureExport");
+        writerThread.start();
+    }
+
+    /**
+     * 取消导出，已写入的部分被删除
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 等待导出结束
+     * @return 超时前结束时返回true
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        Thread thread = writerThread;
+        if (thread == null) {
+            return true;
+        }
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    private void runWriter() {
+        formatPool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "ExportFormatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        readerThread = new Thread(this::runReader, "ExportReader");
+        readerThread.start();
+
+        long total = source.estimateSize();
+        long exported = 0;
+        boolean finished = false;
+        Exception failure = null;
+        try (ChannelWriter writer = new ChannelWriter(output)) {
+            writer.write(formatter.header());
+            boolean first = true;
+            while (true) {
+                Future<Formatted> future = pending.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (cancelled) {
+                    throw new CancellationException();
+                }
+                if (future == null) {
+                    continue;
+                }
+                if (future == end) {
+                    break;
+                }
+                Formatted formatted = future.get();
+                if (cancelled) {
+                    throw new CancellationException();
+                }
+                // 整个输出中第一条记录前不需要分隔符
+                int skip = 0;
+                if (formatted.data.length > 0) {
+                    skip = first ? formatter.separatorLength() : 0;
+                    first = false;
+                }
+                writer.write(formatted.data, skip, formatted.data.length - skip);
+                exported += formatted.count;
+                if (listener != null) {
+                    // 来源估计为0时也不能让回调按0做除数
+                    listener.onProgress(exported, Math.max(1, Math.max(total, exported)));
+                }
+            }
+            writer.write(formatter.footer());
+            finished = true;
+        } catch (InterruptedException | CancellationException e) {
+            cancelled = true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            failure = cause instanceof Exception ? (Exception) cause : new IOException(cause);
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            stopWorkers();
+        }
+
+        boolean leftover = (!finished || cancelled) && !output.delete() && output.exists();
+        // 先回调再写日志，日志出错时不会让调用方收不到结束通知
+        // 取消之后出现的错误不作为失败报告
+        if (cancelled || (!finished && failure == null)) {
+            if (listener != null) {
+                listener.onCancelled();
+            }
+        } else if (failure != null) {
+            if (listener != null) {
+                listener.onFailed(failure);
+            }
+            Log.e(TAG, "导出失败: " + output, failure);
+        } else {
+            if (listener != null) {
+                listener.onFinished(output, exported);
+            }
+            Log.i(TAG, "已导出 " + exported + " 条记录到 " + output);
+        }
+        if (leftover) {
+            Log.w(TAG, "无法删除未完成的导出文件: " + output);
+        }
+    }
+
+    /**
+     * 写线程结束后停止读取线程和格式化线程，等正在格式化的批次结束后再关闭分段通道
+     */
+    private void stopWorkers() {
+        stopped = true;
+        // 排队的批次不再需要，未开始的格式化任务不再执行
+        Future<Formatted> future;
+        while ((future = pending.poll()) != null) {
+            future.cancel(false);
+        }
+        formatPool.shutdown();
+        try {
+            readerThread.join();
+            // 读取线程结束前可能又提交了一批
+            while ((future = pending.poll()) != null) {
+                future.cancel(false);
+            }
+            formatPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (formatter instanceof PcapngFormatter) {
+            ((PcapngFormatter) formatter).close();
+        }
+    }
+
+    private void runReader() {
+        ChunkSink sink = new ChunkSink();
+        try {
+            source.read(sink);
+            if (!sink.abandoned && sink.chunk.count > 0) {
+                submit(sink.chunk);
+            }
+            if (!stopped) {
+                enqueue(end);
+            }
+        } catch (InterruptedException e) {
+            // 写线程已经结束
+        } catch (Exception e) {
+            FutureTask<Formatted> failed = new FutureTask<>(() -> {
+                throw e;
+            });
+            failed.run();
+            try {
+                enqueue(failed);
+            } catch (InterruptedException ignored) {
+                // 写线程已经结束
+            }
+        }
+    }
+
+    /**
+     * @return 写线程已经结束、批次没有提交时返回false
+     */
+    private boolean submit(final RecordChunk chunk) throws InterruptedException {
+        if (stopped) {
+            return false;
+        }
+        Future<Formatted> future = formatPool.submit(() -> new Formatted(formatter.format(chunk), chunk.count));
+        if (!enqueue(future)) {
+            future.cancel(false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 放入队列，队列满时等待写线程取出
+     * @return 写线程已经结束时返回false
+     */
+    private boolean enqueue(Future<Formatted> future) throws InterruptedException {
+        while (!stopped) {
+            if (pending.offer(future, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 在读取线程上把记录攒成批
+     */
+    private final class ChunkSink implements ExportSource.Sink {
+        RecordChunk chunk = new RecordChunk(CHUNK_SIZE);
+        boolean abandoned;
+
+        @Override
+        public boolean accept(PacketInfo packet, boolean inbound, int segment, int offset) {
+            if (cancelled || abandoned) {
+                abandoned = true;
+                return false;
+            }
+            if (chunk.add(packet, inbound, segment, offset)) {
+                try {
+                    abandoned = !submit(chunk);
+                } catch (InterruptedException e) {
+                    abandoned = true;
+                }
+                if (abandoned) {
+                    return false;
+                }
+                chunk = new RecordChunk(CHUNK_SIZE);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.packetcapture.export;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 带缓冲的文件通道写入器
+ * 小块数据先攒在直接缓冲区中，满了再一次写入通道；超过缓冲区大小的数据直接写入。只在写线程上使用。
+ */
+final class ChannelWriter implements Closeable {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long written;
+
+    ChannelWriter(File file) throws IOException {
+        stream = new FileOutputStream(file);
+        channel = stream.getChannel();
+    }
+
+    void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            flush();
+            if (length >= BUFFER_SIZE) {
+                writeFully(ByteBuffer.wrap(data, offset, length));
+                written += length;
+                return;
+            }
+        }
+        buffer.put(data, offset, length);
+        written += length;
+    }
+
+    /**
+     * 已写入的字节数，包括尚在缓冲区中的部分
+     */
+    long getWritten() {
+        return written;
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+}
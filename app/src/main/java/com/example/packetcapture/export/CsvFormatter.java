@@ -0,0 +1,29 @@
+package com.example.packetcapture.export;
+
+import com.example.packetcapture.PacketInfo;
+
+/**
+ * CSV格式，列与原来的导出相同，字段中的逗号替换为分号
+ */
+final class CsvFormatter extends RecordFormatter {
+    @Override
+    byte[] header() {
+        return "协议,源地址,目标地址,主机,时间戳,详情,大小(字节)\n".getBytes(UTF_8);
+    }
+
+    @Override
+    byte[] format(RecordChunk chunk) {
+        StringBuilder builder = new StringBuilder(chunk.count * 96);
+        for (int i = 0; i < chunk.count; i++) {
+            PacketInfo packet = chunk.packets[i];
+            builder.append(packet.getProtocol()).append(',')
+                    .append(packet.getSourceAddressWithPort()).append(',')
+                    .append(packet.getDestinationAddressWithPort()).append(',')
+                    .append(packet.getHostname() != null ? packet.getHostname().replace(",", ";") : "").append(',')
+                    .append(packet.getFormattedTimestamp()).append(',')
+                    .append(packet.getDetails().replace(",", ";")).append(',')
+                    .append(packet.getSize()).append('\n');
+        }
+        return builder.toString().getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.packetcapture.export;
+
+/**
+ * 导出格式
+ */
+public enum ExportFormat {
+    CSV("csv"),
+    JSON_LINES("jsonl"),
+    // 只包含从数据包记录推断出的HTTP/HTTPS连接，没有请求和响应内容
+    HAR("har"),
+    // 需要数据包来源带有pcapng记录
+    PCAPNG("pcapng");
+
+    private final String extension;
+
+    ExportFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+}
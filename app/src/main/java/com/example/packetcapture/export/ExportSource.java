@@ -0,0 +1,129 @@
+package com.example.packetcapture.export;
+
+import com.example.packetcapture.PacketInfo;
+import com.example.packetcapture.capture.CaptureIndex;
+import com.example.packetcapture.capture.HostnameTable;
+import com.example.packetcapture.capture.PacketStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 导出的数据来源
+ * read在导出的读取线程上调用，按顺序把每条记录交给sink。
+ */
+public abstract class ExportSource {
+    /**
+     * 接收记录的回调
+     */
+    public interface Sink {
+        /**
+         * @param inbound 写回应用的数据包为true
+         * @param segment 数据包在pcapng记录中的分段序号，没有记录时为0
+         * @param offset 数据包在分段文件中的偏移
+         * @return 返回false停止读取
+         */
+        boolean accept(PacketInfo packet, boolean inbound, int segment, int offset);
+    }
+
+    /**
+     * 记录数的估计值，用于计算进度
+     */
+    public abstract long estimateSize();
+
+    public abstract void read(Sink sink) throws IOException;
+
+    /**
+     * 来源是否带有pcapng记录，只有这样才能导出pcapng
+     */
+    public boolean hasPackets() {
+        return false;
+    }
+
+    /**
+     * pcapng分段序号对应的文件
+     * @return 来源没有pcapng记录时返回null
+     */
+    public File getSegmentFile(int segment) {
+        return null;
+    }
+
+    /**
+     * 内存中已有的数据包列表，调用方需传入不再修改的副本
+     */
+    public static ExportSource of(final List<PacketInfo> packets) {
+        return new ExportSource() {
+            @Override
+            public long estimateSize() {
+                return packets.size();
+            }
+
+            @Override
+            public void read(Sink sink) {
+                for (PacketInfo packet : packets) {
+                    if (!sink.accept(packet, false, 0, 0)) {
+                        return;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * 环形存储中当前可读的记录，导出开始之后写入的记录不包括在内
+     * @param hostnames 主机名表，可为null
+     */
+    public static ExportSource of(final PacketStore store, final HostnameTable hostnames) {
+        return new ExportSource() {
+            @Override
+            public long estimateSize() {
+                return store.size();
+            }
+
+            @Override
+            public void read(Sink sink) {
+                long end = store.getWriteSequence();
+                PacketStore.Cursor cursor = store.newCursor();
+                PacketStore.Row row = new PacketStore.Row();
+                while (cursor.getPosition() < end && cursor.next(row)) {
+                    if (!sink.accept(PacketInfo.of(row, hostnames), false, 0, 0)) {
+                        return;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * 磁盘索引中符合条件的记录，带有pcapng记录
+     * @param query 查询条件，为null时导出全部记录
+     * @param hostnames 主机名表，可为null
+     */
+    public static ExportSource of(final CaptureIndex index, final CaptureIndex.Query query,
+                                  final HostnameTable hostnames) {
+        return new ExportSource() {
+            @Override
+            public long estimateSize() {
+                return index.size();
+            }
+
+            @Override
+            public void read(final Sink sink) {
+                index.query(query != null ? query : new CaptureIndex.Query(),
+                        (row, inbound, segment, offset) ->
+                                sink.accept(PacketInfo.of(row, inbound, hostnames), inbound, segment, offset));
+            }
+
+            @Override
+            public boolean hasPackets() {
+                return true;
+            }
+
+            @Override
+            public File getSegmentFile(int segment) {
+                return index.getSegmentFile(segment);
+            }
+        };
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.packetcapture.export;
+
+import com.example.packetcapture.PacketInfo;
+import com.example.packetcapture.capture.PacketDecoder;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * HAR 1.2格式
+ * 数据包记录中没有HTTP请求和响应的内容，每个发往80/443端口的SYN数据包生成一个条目，
+ * 表示一次HTTP/HTTPS连接：方法为CONNECT，状态为0，serverIPAddress和connection记录地址和本地端口。
+ */
+final class HarFormatter extends RecordFormatter {
+    private static final String SEPARATOR = ",\n";
+    private static final ThreadLocal<SimpleDateFormat> ISO_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    @Override
+    byte[] header() {
+        return ("{\"log\":{\"version\":\"1.2\",\"creator\":{\"name\":\"PacketCapture\",\"version\":\"1.0\"},"
+                + "\"entries\":[\n").getBytes(UTF_8);
+    }
+
+    @Override
+    byte[] format(RecordChunk chunk) {
+        StringBuilder builder = new StringBuilder();
+        SimpleDateFormat dateFormat = ISO_FORMAT.get();
+        for (int i = 0; i < chunk.count; i++) {
+            PacketInfo packet = chunk.packets[i];
+            int flags = packet.getFlags();
+            if ((flags & (PacketDecoder.FLAG_HTTP | PacketDecoder.FLAG_HTTPS)) == 0
+                    || (flags & (PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK)) != PacketDecoder.TCP_SYN) {
+                continue;
+            }
+            boolean https = (flags & PacketDecoder.FLAG_HTTPS) != 0;
+            String address = packet.getDestinationAddress();
+            String host = packet.getHostname() != null ? packet.getHostname()
+                    : packet.getIpVersion() == 6 ? "[" + address + "]" : address;
+
+            builder.append(SEPARATOR);
+            builder.append("{\"startedDateTime\":\"").append(dateFormat.format(new Date(packet.getTimestamp())));
+            builder.append("\",\"time\":0,\"request\":{\"method\":\"CONNECT\",\"url\":");
+            appendJsonString(builder, (https ? "https://" : "http://") + host + ":" + packet.getDestinationPort() + "/");
+            builder.append(",\"httpVersion\":\"HTTP/1.1\",\"cookies\":[],\"headers\":[],\"queryString\":[],"
+                    + "\"headersSize\":-1,\"bodySize\":-1},");
+            builder.append("\"response\":{\"status\":0,\"statusText\":\"\",\"httpVersion\":\"\",\"cookies\":[],"
+                    + "\"headers\":[],\"content\":{\"size\":0,\"mimeType\":\"\"},\"redirectURL\":\"\","
+                    + "\"headersSize\":-1,\"bodySize\":-1},");
+            builder.append("\"cache\":{},\"timings\":{\"send\":0,\"wait\":0,\"receive\":0},\"serverIPAddress\":");
+            appendJsonString(builder, address);
+            builder.append(",\"connection\":\"").append(packet.getSourcePort()).append("\"}");
+        }
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    @Override
+    byte[] footer() {
+        return "\n]}}\n".getBytes(UTF_8);
+    }
+
+    @Override
+    int separatorLength() {
+        return SEPARATOR.length();
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.packetcapture.export;
+
+import com.example.packetcapture.PacketInfo;
+
+/**
+ * JSON Lines格式，每个数据包一行JSON对象
+ */
+final class JsonLinesFormatter extends RecordFormatter {
+    @Override
+    byte[] format(RecordChunk chunk) {
+        StringBuilder builder = new StringBuilder(chunk.count * 256);
+        for (int i = 0; i < chunk.count; i++) {
+            PacketInfo packet = chunk.packets[i];
+            builder.append("{\"time\":").append(packet.getTimestamp());
+            builder.append(",\"timestamp\":");
+            appendJsonString(builder, packet.getFormattedTimestamp());
+            builder.append(",\"direction\":\"").append(chunk.inbound[i] ? "in" : "out").append('"');
+            builder.append(",\"ipVersion\":").append(packet.getIpVersion());
+            builder.append(",\"protocol\":");
+            appendJsonString(builder, packet.getProtocol());
+            builder.append(",\"source\":");
+            appendJsonString(builder, packet.getSourceAddress());
+            builder.append(",\"sourcePort\":").append(packet.getSourcePort());
+            builder.append(",\"destination\":");
+            appendJsonString(builder, packet.getDestinationAddress());
+            builder.append(",\"destinationPort\":").append(packet.getDestinationPort());
+            builder.append(",\"host\":");
+            appendJsonString(builder, packet.getHostname());
+            builder.append(",\"length\":").append(packet.getSize());
+            builder.append(",\"details\":");
+            appendJsonString(builder, packet.getDetails());
+            builder.append("}\n");
+        }
+        return builder.toString().getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.packetcapture.export;
+
+import com.example.packetcapture.capture.PcapngWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * pcapng格式
+ * 从记录的分段文件中按位置原样复制每个数据包的Enhanced Packet Block，写在一个新的节和接口之后，
+ * 因此导出的是所选数据包的子集，时间戳和方向标记都保持不变。
+ * 分段文件通道在格式化线程之间共享，只使用按位置读取。
+ */
+final class PcapngFormatter extends RecordFormatter {
+    private static final int BLOCK_ENHANCED_PACKET = 0x00000006;
+    private static final int MAX_BLOCK_LENGTH = PcapngWriter.MAX_SNAP_LENGTH + 64;
+
+    private final ExportSource source;
+    private final Map<Integer, FileChannel> channels = new HashMap<>();
+
+    PcapngFormatter(ExportSource source) {
+        this.source = source;
+    }
+
+    @Override
+    byte[] header() {
+        return PcapngWriter.fileHeader(0);
+    }
+
+    @Override
+    byte[] format(RecordChunk chunk) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(chunk.count * 128);
+        ByteBuffer head = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < chunk.count; i++) {
+            if (chunk.segments[i] == 0) {
+                continue;
+            }
+            FileChannel channel = channel(chunk.segments[i]);
+            long position = chunk.offsets[i] & 0xFFFFFFFFL;
+            head.clear();
+            readFully(channel, head, position);
+            int type = head.getInt(0);
+            int length = head.getInt(4);
+            if (type != BLOCK_ENHANCED_PACKET || length < 32 || length > MAX_BLOCK_LENGTH || (length & 3) != 0) {
+                throw new IOException("pcapng记录已损坏: 分段 " + chunk.segments[i] + " 偏移 " + position);
+            }
+            ByteBuffer block = ByteBuffer.allocate(length);
+            readFully(channel, block, position);
+            output.write(block.array(), 0, length);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * 关闭打开过的分段文件
+     */
+    void close() {
+        synchronized (channels) {
+            for (FileChannel channel : channels.values()) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // 只读文件，忽略
+                }
+            }
+            channels.clear();
+        }
+    }
+
+    private FileChannel channel(int segment) throws IOException {
+        synchronized (channels) {
+            FileChannel channel = channels.get(segment);
+            if (channel == null) {
+                File file = source.getSegmentFile(segment);
+                if (file == null) {
+                    throw new IOException("找不到pcapng分段: " + segment);
+                }
+                channel = new RandomAccessFile(file, "r").getChannel();
+                channels.put(segment, channel);
+            }
+            return channel;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("pcapng记录不完整");
+            }
+        }
+    }
+}
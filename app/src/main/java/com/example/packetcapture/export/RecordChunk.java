@@ -0,0 +1,35 @@
+package com.example.packetcapture.export;
+
+import com.example.packetcapture.PacketInfo;
+
+/**
+ * 流水线中一次格式化的一批记录
+ * 由读取线程填满后交给格式化线程，之后不再修改。
+ */
+final class RecordChunk {
+    final PacketInfo[] packets;
+    final boolean[] inbound;
+    // 数据包在pcapng记录中的位置，segment为0表示没有记录
+    final int[] segments;
+    final int[] offsets;
+    int count;
+
+    RecordChunk(int capacity) {
+        packets = new PacketInfo[capacity];
+        inbound = new boolean[capacity];
+        segments = new int[capacity];
+        offsets = new int[capacity];
+    }
+
+    /**
+     * @return 添加后已满时返回true
+     */
+    boolean add(PacketInfo packet, boolean isInbound, int segment, int offset) {
+        packets[count] = packet;
+        inbound[count] = isInbound;
+        segments[count] = segment;
+        offsets[count] = offset;
+        count++;
+        return count == packets.length;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.packetcapture.export;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * 一种导出格式的格式化器
+ * format在多个格式化线程上并行调用，实现不能依赖可变的共享状态；头部和尾部由写线程写出。
+ */
+abstract class RecordFormatter {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    byte[] header() {
+        return EMPTY;
+    }
+
+    /**
+     * 格式化一批记录
+     * @return 这批记录的完整输出
+     */
+    abstract byte[] format(RecordChunk chunk) throws IOException;
+
+    byte[] footer() {
+        return EMPTY;
+    }
+
+    /**
+     * 每条输出前的分隔符长度，写线程丢弃整个输出中第一条记录前的分隔符
+     */
+    int separatorLength() {
+        return 0;
+    }
+
+    static void appendJsonString(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+}
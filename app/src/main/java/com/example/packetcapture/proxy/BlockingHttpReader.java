@@ -0,0 +1,196 @@
+package com.example.packetcapture.proxy;
+
+import com.example.packetcapture.rewrite.BodyStage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 阻塞流上的HTTP消息读取
+ * 从InputStream读入内部缓冲区后交给HttpParser解析，多读到的数据留在缓冲区里属于下一条消息，
+ * 因此同一连接上的流水线请求可以依次读出。转发消息体时，只有在即将阻塞读取时才刷新输出。
+ */
+final class BlockingHttpReader {
+    /** 流在两条消息之间正常结束 */
+    static final int END_OF_STREAM = -1;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final InputStream in;
+    private final HttpParser parser;
+    // 读取模式：[position, limit)为尚未解析的数据
+    private final ByteBuffer buffer;
+    private boolean eof;
+
+    BlockingHttpReader(InputStream in, HttpParser parser, int bufferSize) {
+        this.in = in;
+        this.parser = parser;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+    }
+
+    HttpParser getParser() {
+        return parser;
+    }
+
+    /**
+     * 读取下一条消息的头部
+     * @return 解析出的头部；流在两条消息之间结束时返回null
+     */
+    HttpHead readHead() throws IOException {
+        int event = next(null, false);
+        if (event == END_OF_STREAM) {
+            return null;
+        }
+        if (event != HttpParser.HEAD) {
+            throw new IllegalStateException("上一条消息尚未读完");
+        }
+        return parser.getHead();
+    }
+
+    /**
+     * 原样转发当前消息余下的部分，包括分块编码的长度行和尾部头部
+     */
+    void copyMessage(OutputStream out) throws IOException {
+        while (next(out, true) != HttpParser.COMPLETE) {
+            // 原始字节已在next中写出
+        }
+        out.flush();
+    }
+
+    /**
+     * 转发当前消息余下的消息体数据
+     * @param rechunk 为true时把每段数据重新编码为一个分块，并在结尾写出0长度块
+     */
+    void copyBody(OutputStream out, boolean rechunk) throws IOException {
+        int event;
+        while ((event = next(out, false)) != HttpParser.COMPLETE) {
+            if (event == HttpParser.BODY) {
+                writeBody(out, rechunk);
+            }
+        }
+        if (rechunk) {
+            out.write(LAST_CHUNK);
+        }
+        out.flush();
+    }
+
+    /**
+     * 让当前消息余下的解码后消息体流过重写处理链，结果写入out
+     */
+    void transformBody(BodyStage stage, OutputStream out) throws IOException {
+        int event;
+        while ((event = next(out, false)) != HttpParser.COMPLETE) {
+            if (event == HttpParser.BODY) {
+                stage.write(buffer.array(), buffer.arrayOffset() + parser.getBodyOffset(), parser.getBodyLength(), out);
+            }
+        }
+        stage.finish(out);
+    }
+
+    /**
+     * 读取解码后的消息体，最多读取limit字节
+     * @return 消息是否已读完；超过上限时返回false，已读取的数据保留在out中，可接着调用copyBody转发其余部分
+     */
+    boolean readBody(ByteArrayOutputStream out, long limit) throws IOException {
+        int event;
+        while ((event = next(null, false)) != HttpParser.COMPLETE) {
+            if (event == HttpParser.BODY) {
+                writeBody(out, false);
+                if (out.size() > limit) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 读取定长的解码后消息体
+     */
+    byte[] readBody(int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        readBody(out, Long.MAX_VALUE);
+        return out.toByteArray();
+    }
+
+    /**
+     * 取出缓冲区中已读入但尚未解析的数据，用于CONNECT之后转入隧道
+     */
+    byte[] drainBuffered() {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    boolean hasBuffered() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * 以分块形式写出一段数据，长度为0时不写出任何内容
+     */
+    static void writeChunk(OutputStream out, byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        out.write(Integer.toHexString(length).getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+        out.write(data, offset, length);
+        out.write(CRLF);
+    }
+
+    private void writeBody(OutputStream out, boolean rechunk) throws IOException {
+        int offset = buffer.arrayOffset() + parser.getBodyOffset();
+        if (rechunk) {
+            writeChunk(out, buffer.array(), offset, parser.getBodyLength());
+        } else {
+            out.write(buffer.array(), offset, parser.getBodyLength());
+        }
+    }
+
+    /**
+     * 解析下一个事件，缓冲区不足时从流中读取
+     * @param sink 不为null时，在阻塞读取前刷新它
+     * @param raw 为true时把解析消耗的原始字节写入sink
+     */
+    private int next(OutputStream sink, boolean raw) throws IOException {
+        while (true) {
+            int start = buffer.position();
+            int event = parser.parse(buffer);
+            if (raw && buffer.position() > start) {
+                sink.write(buffer.array(), buffer.arrayOffset() + start, buffer.position() - start);
+            }
+            if (event != HttpParser.NEED_MORE) {
+                return event;
+            }
+            if (eof) {
+                event = parser.finish();
+                return event == HttpParser.NEED_MORE ? END_OF_STREAM : event;
+            }
+            if (sink != null && in.available() == 0) {
+                sink.flush();
+            }
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        buffer.compact();
+        try {
+            int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read < 0) {
+                eof = true;
+            } else {
+                buffer.position(buffer.position() + read);
+            }
+        } finally {
+            buffer.flip();
+        }
+    }
+}
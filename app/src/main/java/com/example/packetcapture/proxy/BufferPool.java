@@ -0,0 +1,60 @@
+package com.example.packetcapture.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 直接缓冲区池
+ * 隧道只在有数据在途时才占用缓冲区，排空后立即归还，空闲隧道不持有任何缓冲区。
+ * 池中最多保留maxPooled个缓冲区，多出的交给GC回收。可被多个工作线程同时使用。
+ */
+final class BufferPool {
+    static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    static final int DEFAULT_MAX_POOLED = 256;
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * 取出一个已清空的缓冲区，池为空时新分配
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区；不是本池分配的缓冲区（如堆缓冲区）直接忽略
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.packetcapture.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * 生成X.509 v3证书
+ * Android没有公开的证书生成接口，这里直接按DER编码TBSCertificate，再用签发者的私钥签名，
+ * 只支持代理需要的几个扩展：基本约束、密钥用途、扩展密钥用途、主体备用名称和密钥标识符。
+ */
+final class CertificateBuilder {
+    private static final byte TAG_BOOLEAN = 0x01;
+    private static final byte TAG_INTEGER = 0x02;
+    private static final byte TAG_BIT_STRING = 0x03;
+    private static final byte TAG_OCTET_STRING = 0x04;
+    private static final byte TAG_NULL = 0x05;
+    private static final byte TAG_OID = 0x06;
+    private static final byte TAG_UTC_TIME = 0x17;
+    private static final byte TAG_GENERALIZED_TIME = 0x18;
+    private static final byte TAG_SEQUENCE = 0x30;
+
+    private static final String OID_SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+    private static final String OID_SHA256_WITH_ECDSA = "1.2.840.10045.4.3.2";
+    private static final String OID_SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+    private static final String OID_KEY_USAGE = "2.5.29.15";
+    private static final String OID_SUBJECT_ALT_NAME = "2.5.29.17";
+    private static final String OID_BASIC_CONSTRAINTS = "2.5.29.19";
+    private static final String OID_AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+    private static final String OID_EXT_KEY_USAGE = "2.5.29.37";
+    private static final String OID_SERVER_AUTH = "1.3.6.1.5.5.7.3.1";
+
+    // 密钥用途中各位的取值，第0位是最高位
+    static final int KEY_USAGE_DIGITAL_SIGNATURE = 0x80;
+    static final int KEY_USAGE_KEY_ENCIPHERMENT = 0x20;
+    static final int KEY_USAGE_KEY_CERT_SIGN = 0x04;
+    static final int KEY_USAGE_CRL_SIGN = 0x02;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final X500Principal issuer;
+    private final PrivateKey issuerKey;
+    private final PublicKey issuerPublicKey;
+    private X500Principal subject;
+    private PublicKey publicKey;
+    private Date notBefore;
+    private Date notAfter;
+    private boolean ca;
+    private int keyUsage;
+    private boolean serverAuth;
+    private final List<String> hostNames = new ArrayList<>();
+
+    /**
+     * @param issuerPublicKey 用于生成授权密钥标识符
+     */
+    CertificateBuilder(X500Principal issuer, PrivateKey issuerKey, PublicKey issuerPublicKey) {
+        this.issuer = issuer;
+        this.issuerKey = issuerKey;
+        this.issuerPublicKey = issuerPublicKey;
+    }
+
+    CertificateBuilder subject(X500Principal subject, PublicKey publicKey) {
+        this.subject = subject;
+        this.publicKey = publicKey;
+        return this;
+    }
+
+    CertificateBuilder validity(Date notBefore, Date notAfter) {
+        this.notBefore = notBefore;
+        this.notAfter = notAfter;
+        return this;
+    }
+
+    CertificateBuilder ca(boolean ca) {
+        this.ca = ca;
+        return this;
+    }
+
+    CertificateBuilder keyUsage(int keyUsage) {
+        this.keyUsage = keyUsage;
+        return this;
+    }
+
+    CertificateBuilder serverAuth(boolean serverAuth) {
+        this.serverAuth = serverAuth;
+        return this;
+    }
+
+    /**
+     * 添加主体备用名称，IP地址字面量按iPAddress编码，其余按dNSName编码
+     */
+    CertificateBuilder hostName(String hostName) {
+        hostNames.add(hostName);
+        return this;
+    }
+
+    X509Certificate build() throws GeneralSecurityException {
+        boolean ec = "EC".equals(issuerKey.getAlgorithm());
+        String signatureAlgorithm = ec ? "SHA256withECDSA" : "SHA256withRSA";
+        byte[] algorithm = ec
+                ? sequence(oid(OID_SHA256_WITH_ECDSA))
+                : sequence(oid(OID_SHA256_WITH_RSA), new byte[]{TAG_NULL, 0});
+
+        // 正数的随机序列号
+        byte[] serial = new byte[16];
+        RANDOM.nextBytes(serial);
+        serial[0] &= 0x7f;
+        serial[0] |= 0x40;
+
+        byte[] tbs = sequence(
+                tagged(0xa0, encode(TAG_INTEGER, new byte[]{2})),
+                encode(TAG_INTEGER, new BigInteger(serial).toByteArray()),
+                algorithm,
+                issuer.getEncoded(),
+                sequence(time(notBefore), time(notAfter)),
+                subject.getEncoded(),
+                publicKey.getEncoded(),
+                tagged(0xa3, extensions()));
+
+        Signature signature = Signature.getInstance(signatureAlgorithm);
+        signature.initSign(issuerKey);
+        signature.update(tbs);
+        byte[] signed = signature.sign();
+
+        byte[] certificate = sequence(tbs, algorithm, bitString(signed, 0));
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        return (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(certificate));
+    }
+
+    private byte[] extensions() throws GeneralSecurityException {
+        List<byte[]> extensions = new ArrayList<>();
+        extensions.add(extension(OID_BASIC_CONSTRAINTS, true,
+                ca ? sequence(new byte[]{TAG_BOOLEAN, 1, (byte) 0xff}) : sequence()));
+        if (keyUsage != 0) {
+            extensions.add(extension(OID_KEY_USAGE, true,
+                    bitString(new byte[]{(byte) keyUsage}, Integer.numberOfTrailingZeros(keyUsage))));
+        }
+        if (serverAuth) {
+            extensions.add(extension(OID_EXT_KEY_USAGE, false, sequence(oid(OID_SERVER_AUTH))));
+        }
+        if (!hostNames.isEmpty()) {
+            List<byte[]> names = new ArrayList<>();
+            for (String hostName : hostNames) {
+                byte[] address = ipAddress(hostName);
+                if (address != null) {
+                    names.add(encode((byte) 0x87, address));
+                } else {
+                    names.add(encode((byte) 0x82, hostName.getBytes(StandardCharsets.US_ASCII)));
+                }
+            }
+            extensions.add(extension(OID_SUBJECT_ALT_NAME, false, sequence(names.toArray(new byte[0][]))));
+        }
+        extensions.add(extension(OID_SUBJECT_KEY_IDENTIFIER, false,
+                encode(TAG_OCTET_STRING, keyIdentifier(publicKey))));
+        extensions.add(extension(OID_AUTHORITY_KEY_IDENTIFIER, false,
+                sequence(encode((byte) 0x80, keyIdentifier(issuerPublicKey)))));
+        return sequence(extensions.toArray(new byte[0][]));
+    }
+
+    /**
+     * 密钥标识符：对编码后的公钥信息取SHA-1
+     */
+    static byte[] keyIdentifier(PublicKey key) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-1").digest(key.getEncoded());
+    }
+
+    /**
+     * @return IPv4或IPv6字面量对应的地址字节，不是IP地址时返回null
+     */
+    private static byte[] ipAddress(String host) {
+        boolean ipv4 = host.matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}");
+        if (!ipv4 && host.indexOf(':') < 0) {
+            return null;
+        }
+        try {
+            // 字面量不会触发DNS查询
+            return InetAddress.getByName(host).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static byte[] extension(String oid, boolean critical, byte[] value) {
+        if (critical) {
+            return sequence(oid(oid), new byte[]{TAG_BOOLEAN, 1, (byte) 0xff}, encode(TAG_OCTET_STRING, value));
+        }
+        return sequence(oid(oid), encode(TAG_OCTET_STRING, value));
+    }
+
+    /**
+     * 2050年以前用UTCTime，之后用GeneralizedTime
+     */
+    private static byte[] time(Date date) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTime(date);
+        boolean utc = calendar.get(Calendar.YEAR) < 2050;
+        SimpleDateFormat format = new SimpleDateFormat(utc ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return encode(utc ? TAG_UTC_TIME : TAG_GENERALIZED_TIME,
+                format.format(date).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] oid(String oid) {
+        String[] parts = oid.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(parts[0]) * 40 + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; i++) {
+            long value = Long.parseLong(parts[i]);
+            int groups = 1;
+            while ((value >>> (7 * groups)) != 0) {
+                groups++;
+            }
+            for (int group = groups - 1; group >= 0; group--) {
+                int bits = (int) ((value >>> (7 * group)) & 0x7f);
+                out.write(group > 0 ? bits | 0x80 : bits);
+            }
+        }
+        return encode(TAG_OID, out.toByteArray());
+    }
+
+    private static byte[] bitString(byte[] bits, int unusedBits) {
+        byte[] content = new byte[bits.length + 1];
+        content[0] = (byte) unusedBits;
+        System.arraycopy(bits, 0, content, 1, bits.length);
+        return encode(TAG_BIT_STRING, content);
+    }
+
+    private static byte[] tagged(int tag, byte[] content) {
+        return encode((byte) tag, content);
+    }
+
+    private static byte[] sequence(byte[]... elements) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] element : elements) {
+            out.write(element, 0, element.length);
+        }
+        return encode(TAG_SEQUENCE, out.toByteArray());
+    }
+
+    private static byte[] encode(byte tag, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 6);
+        out.write(tag);
+        int length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = length > 0xffffff ? 4 : length > 0xffff ? 3 : length > 0xff ? 2 : 1;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >>> (8 * i));
+            }
+        }
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+}
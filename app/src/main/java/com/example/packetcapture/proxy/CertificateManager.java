@@ -6,44 +6,72 @@ import android.util.Log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
-import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
-import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.SSLSessionContext;
 import javax.security.auth.x500.X500Principal;
 
+/**
+ * 中间人解密使用的证书
+ * CA证书和所有叶子证书共用的密钥对在首次使用时生成并保存在KeyStore中；
+ * 叶子证书按主机名由CA签发，只需要一次签名，不再为每个主机生成密钥，签发结果由LeafCertificateCache缓存。
+ * 所有主机共用一个服务端SSLContext，握手时由LeafKeyManager按SNI选择证书，会话缓存也随之共享。
+ */
 public class CertificateManager {
     private static final String TAG = "CertificateManager";
     private static final String KEYSTORE_PASSWORD = "packetcapture";
     private static final String CA_ALIAS = "packet_capture_ca";
+    private static final String LEAF_ALIAS = "packet_capture_leaf";
     private static final String KEYSTORE_FILE = "packet_capture.keystore";
+    private static final String LEAF_CACHE_DIR = "leaf_certificates";
+    private static final int MAX_CACHED_CERTIFICATES = 512;
+    private static final long CACHE_TTL_MS = 30L * 24 * 60 * 60 * 1000;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long CA_VALIDITY_MS = 10 * 365 * DAY_MS;
+    // 各平台对服务器证书的有效期有上限（如398天），这里留出余量
+    private static final long LEAF_VALIDITY_MS = 365 * DAY_MS;
+    // 服务端会话缓存，客户端重新连接时可以恢复会话，省去完整握手
+    private static final int SESSION_CACHE_SIZE = 1024;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+    private static final X500Principal CA_SUBJECT = new X500Principal("CN=Packet Capture CA, O=Packet Capture, C=CN");
+    
+    /** 叶子证书使用2048位RSA密钥，兼容性最好 */
+    public static final String KEY_TYPE_RSA = "RSA";
+    /** 叶子证书使用P-256椭圆曲线密钥，握手更快 */
+    public static final String KEY_TYPE_EC = "EC";
     
     private Context context;
+    private String leafKeyType;
     private KeyStore keyStore;
     private PrivateKey caPrivateKey;
     private X509Certificate caCertificate;
-    private Map<String, SSLSocketFactory> socketFactoryCache;
+    private KeyPair leafKeyPair;
+    private LeafCertificateCache leafCache;
+    private LeafKeyManager leafKeyManager;
+    private SSLContext serverContext;
     
     public CertificateManager(Context context) {
+        this(context, KEY_TYPE_RSA);
+    }
+    
+    /**
+     * @param leafKeyType KEY_TYPE_RSA或KEY_TYPE_EC；与已保存的密钥类型不同时重新生成叶子密钥
+     */
+    public CertificateManager(Context context, String leafKeyType) {
         this.context = context;
-        this.socketFactoryCache = new HashMap<>();
+        this.leafKeyType = leafKeyType;
         initKeyStore();
     }
     
@@ -51,36 +79,69 @@ public class CertificateManager {
         try {
             keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
             File keystoreFile = new File(context.getFilesDir(), KEYSTORE_FILE);
+            boolean changed = false;
             
             if (keystoreFile.exists()) {
                 // 加载现有的KeyStore
                 try (FileInputStream fis = new FileInputStream(keystoreFile)) {
                     keyStore.load(fis, KEYSTORE_PASSWORD.toCharArray());
-                    
-                    // 获取CA证书和私钥
-                    if (keyStore.containsAlias(CA_ALIAS)) {
-                        caPrivateKey = (PrivateKey) keyStore.getKey(CA_ALIAS, KEYSTORE_PASSWORD.toCharArray());
-                        caCertificate = (X509Certificate) keyStore.getCertificate(CA_ALIAS);
-                    } else {
-                        generateCACertificate();
-                    }
                 }
             } else {
-                // 创建新的KeyStore
                 keyStore.load(null, KEYSTORE_PASSWORD.toCharArray());
+            }
+            
+            // 获取CA证书和私钥
+            boolean caReplaced = false;
+            if (keyStore.containsAlias(CA_ALIAS)) {
+                caPrivateKey = (PrivateKey) keyStore.getKey(CA_ALIAS, KEYSTORE_PASSWORD.toCharArray());
+                caCertificate = (X509Certificate) keyStore.getCertificate(CA_ALIAS);
+            }
+            if (caPrivateKey == null || caCertificate == null
+                    || caCertificate.getNotAfter().getTime() < System.currentTimeMillis()) {
                 generateCACertificate();
-                
+                caReplaced = true;
+                changed = true;
+            }
+            
+            // 所有叶子证书共用的密钥对，CA更换或密钥类型变化时重新生成
+            if (!caReplaced && keyStore.containsAlias(LEAF_ALIAS)) {
+                PrivateKey leafPrivateKey = (PrivateKey) keyStore.getKey(LEAF_ALIAS, KEYSTORE_PASSWORD.toCharArray());
+                Certificate leafCertificate = keyStore.getCertificate(LEAF_ALIAS);
+                if (leafPrivateKey != null && leafCertificate != null
+                        && leafKeyType.equals(leafPrivateKey.getAlgorithm())) {
+                    leafKeyPair = new KeyPair(leafCertificate.getPublicKey(), leafPrivateKey);
+                }
+            }
+            if (leafKeyPair == null) {
+                generateLeafKeyPair();
+                changed = true;
+            }
+            
+            if (changed) {
                 // 保存KeyStore
                 try (FileOutputStream fos = new FileOutputStream(keystoreFile)) {
                     keyStore.store(fos, KEYSTORE_PASSWORD.toCharArray());
                 }
             }
+            
+            leafCache = new LeafCertificateCache(new File(context.getFilesDir(), LEAF_CACHE_DIR),
+                    MAX_CACHED_CERTIFICATES, CACHE_TTL_MS, this::mintLeafCertificate);
+            // 之前的证书只有在CA和叶子密钥都没变时才能继续使用，load会校验并删除其余的
+            leafCache.load(caCertificate, leafKeyPair.getPublic());
+            
+            leafKeyManager = new LeafKeyManager(this, leafKeyPair.getPrivate().getAlgorithm());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(new KeyManager[]{leafKeyManager}, null, new SecureRandom());
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            serverContext = context;
         } catch (Exception e) {
             Log.e(TAG, "初始化KeyStore时出错", e);
         }
     }
     
-    private void generateCACertificate() throws Exception {
+    private void generateCACertificate() throws GeneralSecurityException {
         // 生成RSA密钥对
         KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
         keyPairGenerator.initialize(2048);
@@ -89,63 +150,102 @@ public class CertificateManager {
         PublicKey publicKey = keyPair.getPublic();
         caPrivateKey = keyPair.getPrivate();
         
-        // 创建CA证书
-        X500Principal subject = new X500Principal("CN=Packet Capture CA, O=Packet Capture, C=CN");
-        
-        // 这里简化了证书生成过程，实际应用中应使用更完整的证书生成库
-        // 例如 Bouncy Castle
+        // 创建自签名的CA证书
+        long now = System.currentTimeMillis();
+        caCertificate = new CertificateBuilder(CA_SUBJECT, caPrivateKey, publicKey)
+                .subject(CA_SUBJECT, publicKey)
+                .validity(new Date(now - DAY_MS), new Date(now + CA_VALIDITY_MS))
+                .ca(true)
+                .keyUsage(CertificateBuilder.KEY_USAGE_DIGITAL_SIGNATURE | CertificateBuilder.KEY_USAGE_KEY_CERT_SIGN
+                        | CertificateBuilder.KEY_USAGE_CRL_SIGN)
+                .build();
         
         // 保存到KeyStore
         Certificate[] chain = new Certificate[1];
         chain[0] = caCertificate;
         keyStore.setKeyEntry(CA_ALIAS, caPrivateKey, KEYSTORE_PASSWORD.toCharArray(), chain);
+        Log.i(TAG, "已生成新的CA证书");
+    }
+    
+    private void generateLeafKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(leafKeyType);
+        if (KEY_TYPE_EC.equals(leafKeyType)) {
+            keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        } else {
+            keyPairGenerator.initialize(2048);
+        }
+        leafKeyPair = keyPairGenerator.generateKeyPair();
         
-        // 保存KeyStore
-        File keystoreFile = new File(context.getFilesDir(), KEYSTORE_FILE);
-        try (FileOutputStream fos = new FileOutputStream(keystoreFile)) {
-            keyStore.store(fos, KEYSTORE_PASSWORD.toCharArray());
+        // KeyStore中的私钥必须带证书链，用CA给这个密钥签发一张占位证书
+        X509Certificate holder = newLeafBuilder("Packet Capture Leaf Key").build();
+        keyStore.setKeyEntry(LEAF_ALIAS, leafKeyPair.getPrivate(), KEYSTORE_PASSWORD.toCharArray(),
+                new Certificate[]{holder, caCertificate});
+    }
+    
+    private X509Certificate mintLeafCertificate(String hostname) throws GeneralSecurityException {
+        Log.d(TAG, "签发证书: " + hostname);
+        return newLeafBuilder(hostname).hostName(hostname).build();
+    }
+    
+    private CertificateBuilder newLeafBuilder(String commonName) {
+        long now = System.currentTimeMillis();
+        int keyUsage = CertificateBuilder.KEY_USAGE_DIGITAL_SIGNATURE;
+        if (KEY_TYPE_RSA.equals(leafKeyType)) {
+            keyUsage |= CertificateBuilder.KEY_USAGE_KEY_ENCIPHERMENT;
         }
+        // 叶子证书不能晚于CA到期
+        long notAfter = Math.min(now + LEAF_VALIDITY_MS, caCertificate.getNotAfter().getTime());
+        return new CertificateBuilder(caCertificate.getSubjectX500Principal(), caPrivateKey,
+                caCertificate.getPublicKey())
+                .subject(new X500Principal("CN=" + commonName.replace(",", "\\,")), leafKeyPair.getPublic())
+                .validity(new Date(now - DAY_MS), new Date(notAfter))
+                .keyUsage(keyUsage)
+                .serverAuth(true);
+    }
+    
+    public X509Certificate getCACertificate() {
+        return caCertificate;
     }
     
-    public SSLSocketFactory getSocketFactory(String hostname) {
-        // 检查缓存
-        if (socketFactoryCache.containsKey(hostname)) {
-            return socketFactoryCache.get(hostname);
+    /**
+     * 取得主机的证书链（叶子证书和CA证书），同一主机的证书只签发一次
+     * @return 初始化失败或签发失败时返回null
+     */
+    public X509Certificate[] getCertificateChain(String hostname) {
+        if (leafCache == null) {
+            return null;
         }
-        
         try {
-            // 创建服务器证书
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-            keyPairGenerator.initialize(2048);
-            KeyPair keyPair = keyPairGenerator.generateKeyPair();
-            
-            // 使用CA私钥签名服务器证书
-            // 这里简化了证书生成过程
-            
-            // 创建KeyStore并导入证书
-            KeyStore serverKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-            serverKeyStore.load(null, KEYSTORE_PASSWORD.toCharArray());
-            
-            // 创建SSLContext
-            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            kmf.init(serverKeyStore, KEYSTORE_PASSWORD.toCharArray());
-            
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            tmf.init(keyStore);
-            
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());
-            
-            SSLSocketFactory socketFactory = sslContext.getSocketFactory();
-            socketFactoryCache.put(hostname, socketFactory);
-            
-            return socketFactory;
-        } catch (Exception e) {
-            Log.e(TAG, "创建SSL Socket Factory时出错", e);
+            return new X509Certificate[]{leafCache.get(hostname), caCertificate};
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "签发证书时出错: " + hostname, e);
             return null;
         }
     }
     
+    /**
+     * 所有叶子证书共用的私钥
+     */
+    public PrivateKey getLeafPrivateKey() {
+        return leafKeyPair != null ? leafKeyPair.getPrivate() : null;
+    }
+    
+    /**
+     * 所有主机共用的服务端SSLContext，证书在握手时按SNI选择
+     * 会话按客户端提供的会话ID或票据恢复；客户端只应在新的主机名也适用于原证书时恢复会话（RFC 8446 4.6.1）。
+     * @return 初始化失败时返回null
+     */
+    public SSLContext getServerContext() {
+        return serverContext;
+    }
+    
+    /**
+     * 服务端SSLContext使用的KeyManager，客户端不发送SNI时用它登记连接对应的主机名
+     */
+    LeafKeyManager getLeafKeyManager() {
+        return leafKeyManager;
+    }
+    
     public File exportCACertificate() {
         try {
             File certFile = new File(context.getExternalFilesDir(null), "packet_capture_ca.crt");
@@ -161,4 +261,4 @@ public class CertificateManager {
             return null;
         }
     }
-} 
\ No newline at end of file
+}
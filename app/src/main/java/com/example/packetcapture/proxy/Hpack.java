@@ -0,0 +1,425 @@
+package com.example.packetcapture.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP/2的头部压缩（RFC 7541）
+ * 解码一侧完整实现静态表、动态表、Huffman编码和表大小更新；编码一侧只引用静态表，
+ * 其余头部以不加入索引的字面量发出，因此不需要跟踪对方的动态表大小。
+ * 头部列表用HttpHead承载，伪头部（:method、:status等）和普通头部一样按顺序保存。
+ */
+final class Hpack {
+    /** 本端允许对方使用的动态表大小，即SETTINGS_HEADER_TABLE_SIZE的默认值 */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    // 每个表项在名称和值之外额外计入的长度
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+
+    // RFC 7541附录B的Huffman编码，下标为字节值；EOS（30个1）不会出现在合法数据中，单独处理
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    // 解码用的二叉树：非负值为子节点下标，负值为-(字节值+1)，0表示不存在（根节点不会被引用）
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    // 静态表中名称第一次出现的位置，以及名称和值完全相同的位置
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * 头部块无法解码，属于连接错误COMPRESSION_ERROR
+     */
+    static final class CompressionException extends IOException {
+        CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 解码器，每个连接一个，按收到的顺序解码各头部块
+     */
+    static final class Decoder {
+        // 动态表，最新的表项在末尾
+        private final List<String[]> dynamicTable = new ArrayList<>();
+        private final int maxTableSizeLimit;
+        private int maxTableSize;
+        private int tableSize;
+
+        /**
+         * @param maxTableSizeLimit 本端在SETTINGS_HEADER_TABLE_SIZE中声明的大小
+         */
+        Decoder(int maxTableSizeLimit) {
+            this.maxTableSizeLimit = maxTableSizeLimit;
+            this.maxTableSize = maxTableSizeLimit;
+        }
+
+        /**
+         * 解码一个完整的头部块
+         * @return 头部列表，起始行为空
+         */
+        HttpHead decode(byte[] data, int offset, int length) throws CompressionException {
+            HttpHead headers = new HttpHead(null, null, null);
+            int[] position = {offset};
+            int end = offset + length;
+            boolean headerSeen = false;
+            while (position[0] < end) {
+                int b = data[position[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    // 索引表示
+                    String[] entry = entry(readInt(data, position, end, 7));
+                    headers.add(entry[0], entry[1]);
+                    headerSeen = true;
+                } else if ((b & 0xc0) == 0x40) {
+                    // 加入索引的字面量
+                    String[] entry = readLiteral(data, position, end, 6);
+                    headers.add(entry[0], entry[1]);
+                    insert(entry);
+                    headerSeen = true;
+                } else if ((b & 0xe0) == 0x20) {
+                    // 动态表大小更新只能出现在头部块开头
+                    if (headerSeen) {
+                        throw new CompressionException("表大小更新不在头部块开头");
+                    }
+                    int size = readInt(data, position, end, 5);
+                    if (size > maxTableSizeLimit) {
+                        throw new CompressionException("动态表大小超过上限: " + size);
+                    }
+                    maxTableSize = size;
+                    evict(0);
+                } else {
+                    // 不加入索引（0000）或永不索引（0001）的字面量
+                    String[] entry = readLiteral(data, position, end, 4);
+                    headers.add(entry[0], entry[1]);
+                    headerSeen = true;
+                }
+            }
+            return headers;
+        }
+
+        private String[] readLiteral(byte[] data, int[] position, int end, int prefixBits)
+                throws CompressionException {
+            int index = readInt(data, position, end, prefixBits);
+            String name = index == 0 ? readString(data, position, end) : entry(index)[0];
+            return new String[]{name, readString(data, position, end)};
+        }
+
+        private String[] entry(int index) throws CompressionException {
+            if (index <= 0) {
+                throw new CompressionException("无效的索引: " + index);
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length;
+            if (dynamicIndex > dynamicTable.size()) {
+                throw new CompressionException("索引超出动态表: " + index);
+            }
+            return dynamicTable.get(dynamicTable.size() - dynamicIndex);
+        }
+
+        private void insert(String[] entry) {
+            int size = entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+            evict(size);
+            // 比整个表还大的表项使表清空，自身也不加入
+            if (size <= maxTableSize) {
+                dynamicTable.add(entry);
+                tableSize += size;
+            }
+        }
+
+        /**
+         * 淘汰最旧的表项，直到还能容纳additional字节
+         */
+        private void evict(int additional) {
+            int removed = 0;
+            while (removed < dynamicTable.size() && tableSize + additional > maxTableSize) {
+                String[] oldest = dynamicTable.get(removed++);
+                tableSize -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+            }
+            if (removed > 0) {
+                dynamicTable.subList(0, removed).clear();
+            }
+        }
+    }
+
+    /**
+     * 编码器，不使用动态表，可以在多个连接间共享
+     */
+    static final class Encoder {
+        /**
+         * 把头部列表编码为一个头部块；名称一律转为小写
+         */
+        void encode(HttpHead headers, ByteArrayOutputStream out) {
+            for (int i = 0; i < headers.size(); i++) {
+                String name = headers.getName(i).toLowerCase(Locale.ROOT);
+                String value = headers.getValue(i);
+                Integer index = STATIC_ENTRIES.get(name + '\0' + value);
+                if (index != null) {
+                    writeInt(out, 0x80, 7, index);
+                    continue;
+                }
+                // 凭据类的头部标记为永不索引，提示后续的中间节点也不要压缩它们
+                boolean sensitive = name.equals("authorization") || name.equals("proxy-authorization")
+                        || (name.equals("cookie") && value.length() < 20);
+                Integer nameIndex = STATIC_NAMES.get(name);
+                writeInt(out, sensitive ? 0x10 : 0x00, 4, nameIndex != null ? nameIndex : 0);
+                if (nameIndex == null) {
+                    writeString(out, name);
+                }
+                writeString(out, value);
+            }
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            writeInt(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * 带前缀的整数编码（RFC 7541第5.1节）
+     * @param flags 第一个字节中前缀之外的高位
+     */
+    static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readInt(byte[] data, int[] position, int end, int prefixBits) throws CompressionException {
+        int max = (1 << prefixBits) - 1;
+        int value = data[position[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (position[0] >= end) {
+                throw new CompressionException("整数被截断");
+            }
+            int b = data[position[0]++] & 0xff;
+            if (shift > 21) {
+                throw new CompressionException("整数溢出");
+            }
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static String readString(byte[] data, int[] position, int end) throws CompressionException {
+        if (position[0] >= end) {
+            throw new CompressionException("字符串被截断");
+        }
+        boolean huffman = (data[position[0]] & 0x80) != 0;
+        int length = readInt(data, position, end, 7);
+        if (length > end - position[0]) {
+            throw new CompressionException("字符串被截断");
+        }
+        int start = position[0];
+        position[0] += length;
+        if (huffman) {
+            return decodeHuffman(data, start, length);
+        }
+        return new String(data, start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String decodeHuffman(byte[] data, int offset, int length) throws CompressionException {
+        StringBuilder builder = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        // 上一个符号之后读过的位数，以及这些位是否全为1
+        int pendingBits = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[node * 2 + one];
+                pendingBits++;
+                allOnes &= one == 1;
+                if (next < 0) {
+                    builder.append((char) (-next - 1));
+                    node = 0;
+                    pendingBits = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    // 只有EOS的路径上会走到不存在的节点
+                    throw new CompressionException("Huffman数据中出现EOS");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        // 结尾的填充必须是不超过7位的EOS前缀
+        if (pendingBits > 7 || !allOnes) {
+            throw new CompressionException("Huffman填充无效");
+        }
+        return builder.toString();
+    }
+
+    private static int[] buildHuffmanTree() {
+        // 256个符号的前缀树最多255个内部节点
+        int[] tree = new int[256 * 2];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int slot = node * 2 + ((code >>> bit) & 1);
+                if (bit == 0) {
+                    tree[slot] = -symbol - 1;
+                } else {
+                    if (tree[slot] == 0) {
+                        tree[slot] = nodes++;
+                    }
+                    node = tree[slot];
+                }
+            }
+        }
+        return tree;
+    }
+}
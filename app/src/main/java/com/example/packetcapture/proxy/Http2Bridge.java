@@ -0,0 +1,438 @@
+package com.example.packetcapture.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * HTTP/2流与HTTP/1.1消息之间的转换
+ * 流上收到的请求或响应被还原为HTTP/1.1字节流，交给现有的解析、重写和转发逻辑；反方向把HTTP/1.1消息
+ * 解析后按帧写到流上。每个HTTP/2流因此相当于一条只承载一个请求的连接，重写处理链和上游连接池
+ * 不需要区分协议版本，两侧也可以各自协商：客户端用HTTP/2时上游仍可以是HTTP/1.1，反之亦然。
+ */
+final class Http2Bridge {
+    // HTTP/2中禁止出现的连接相关头部（RFC 9113第8.2.2节）
+    private static final String[] CONNECTION_HEADERS = {
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "te"
+    };
+    private static final byte[] EMPTY = new byte[0];
+
+    private Http2Bridge() {
+    }
+
+    /**
+     * 把流上收到的消息还原为HTTP/1.1字节流
+     * 有Content-Length的消息体原样输出，其余按分块编码输出，尾部头部放在最后一个分块之后；
+     * 响应前的1xx各自输出为一个没有消息体的响应。
+     */
+    static final class MessageInputStream extends InputStream {
+        private static final int PHASE_HEAD = 0;
+        private static final int PHASE_BODY = 1;
+        private static final int PHASE_DONE = 2;
+
+        private final Http2Stream stream;
+        private final boolean request;
+        private final byte[] chunk = new byte[16 * 1024];
+        private int phase = PHASE_HEAD;
+        private boolean chunked;
+        private String method;
+        // 已经生成、尚未被读走的起始行、头部或分块编码数据
+        private byte[] pending;
+        private int pendingOffset;
+
+        /**
+         * @param request 为true时流上是请求（本端是服务端角色），否则是响应
+         */
+        MessageInputStream(Http2Stream stream, boolean request) {
+            this.stream = stream;
+            this.request = request;
+        }
+
+        /**
+         * 请求的方法，必要时等待请求头部
+         */
+        String getMethod() throws IOException {
+            while (method == null && phase == PHASE_HEAD) {
+                loadHead();
+            }
+            return method;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                if (pending != null) {
+                    int n = Math.min(length, pending.length - pendingOffset);
+                    System.arraycopy(pending, pendingOffset, buffer, offset, n);
+                    pendingOffset += n;
+                    if (pendingOffset == pending.length) {
+                        pending = null;
+                    }
+                    return n;
+                }
+                if (phase == PHASE_HEAD) {
+                    loadHead();
+                } else if (phase == PHASE_BODY) {
+                    if (!chunked) {
+                        int n = stream.read(buffer, offset, length);
+                        if (n >= 0) {
+                            return n;
+                        }
+                        phase = PHASE_DONE;
+                    } else {
+                        int n = stream.read(chunk, 0, chunk.length);
+                        setPending(n >= 0 ? chunkBytes(n) : lastChunk(stream.takeHeaders()));
+                        if (n < 0) {
+                            phase = PHASE_DONE;
+                        }
+                    }
+                } else {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public int available() {
+            return pending != null ? pending.length - pendingOffset : 0;
+        }
+
+        @Override
+        public void close() {
+            stream.close();
+        }
+
+        /**
+         * 取下一个头部块，生成起始行和头部
+         */
+        private void loadHead() throws IOException {
+            HttpHead headers = stream.takeHeaders();
+            if (headers == null) {
+                throw new IOException("HTTP/2流在头部之前结束");
+            }
+            boolean finished = stream.isFinished();
+            HttpHead head;
+            int status = -1;
+            if (request) {
+                head = toHttp1Request(headers);
+                method = head.getMethod();
+            } else {
+                head = toHttp1Response(headers);
+                status = head.getStatusCode();
+                if (status >= 100 && status < 200) {
+                    // 临时响应，之后还有下一个头部块
+                    setPending(head.toBytes());
+                    return;
+                }
+            }
+            if (head.get("Content-Length") != null) {
+                phase = PHASE_BODY;
+            } else if ((request && finished) || status == 204 || status == 304) {
+                phase = PHASE_DONE;
+            } else {
+                // 长度未知，尾部头部也只能随分块编码传递
+                head.add("Transfer-Encoding", "chunked");
+                chunked = true;
+                phase = PHASE_BODY;
+            }
+            setPending(head.toBytes());
+        }
+
+        private void setPending(byte[] data) {
+            pending = data.length > 0 ? data : null;
+            pendingOffset = 0;
+        }
+
+        private byte[] chunkBytes(int length) {
+            byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            byte[] data = new byte[size.length + length + 2];
+            System.arraycopy(size, 0, data, 0, size.length);
+            System.arraycopy(chunk, 0, data, size.length, length);
+            data[data.length - 2] = '\r';
+            data[data.length - 1] = '\n';
+            return data;
+        }
+
+        private static byte[] lastChunk(HttpHead trailers) throws IOException {
+            StringBuilder builder = new StringBuilder("0\r\n");
+            if (trailers != null) {
+                for (int i = 0; i < trailers.size(); i++) {
+                    String name = trailers.getName(i);
+                    if (!name.startsWith(":")) {
+                        checkField(name, trailers.getValue(i));
+                        builder.append(name).append(": ").append(trailers.getValue(i)).append("\r\n");
+                    }
+                }
+            }
+            builder.append("\r\n");
+            return builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * 解析写入的HTTP/1.1消息，按帧写到流上
+     * 起始行和头部转为HEADERS，消息体转为DATA，分块编码的尾部头部转为结尾的HEADERS；1xx响应作为临时的HEADERS发出。
+     * 消息结束后流的本端随之结束，之后写入的数据被忽略。
+     */
+    static final class MessageOutputStream extends OutputStream {
+        private final Http2Stream stream;
+        private final HttpParser parser;
+        private final boolean request;
+        private boolean interim;
+        private boolean ended;
+        private boolean complete;
+
+        /**
+         * @param parser 解析写入消息的解析器，解析响应时须已设置请求的方法
+         */
+        MessageOutputStream(Http2Stream stream, HttpParser parser, boolean request) {
+            this.stream = stream;
+            this.parser = parser;
+            this.request = request;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (!complete) {
+                int event = parser.parse(buffer);
+                if (event == HttpParser.NEED_MORE) {
+                    return;
+                }
+                onEvent(event, data);
+            }
+        }
+
+        /**
+         * 消息是否已完整写出
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * 写入已经结束：以关闭连接结束的消息在这里结束流
+         * @throws IOException 消息不完整
+         */
+        void finish() throws IOException {
+            if (complete) {
+                return;
+            }
+            if (parser.finish() != HttpParser.COMPLETE) {
+                throw new IOException("消息不完整");
+            }
+            onEvent(HttpParser.COMPLETE, null);
+        }
+
+        private void onEvent(int event, byte[] data) throws IOException {
+            switch (event) {
+                case HttpParser.HEAD:
+                    HttpHead head = parser.getHead();
+                    if (request) {
+                        ended = parser.hasNoBody();
+                        stream.writeHeaders(toHttp2Request(head), ended);
+                        break;
+                    }
+                    int status = head.getStatusCode();
+                    if (status == 101) {
+                        throw new IOException("HTTP/2不支持协议升级");
+                    }
+                    interim = status >= 100 && status < 200;
+                    ended = !interim && parser.hasNoBody();
+                    stream.writeHeaders(toHttp2Response(head), ended);
+                    break;
+                case HttpParser.BODY:
+                    stream.writeData(data, parser.getBodyOffset(), parser.getBodyLength(), false);
+                    break;
+                case HttpParser.COMPLETE:
+                    if (interim) {
+                        interim = false;
+                        break;
+                    }
+                    if (!ended) {
+                        HttpHead trailers = parser.getTrailers();
+                        if (trailers != null) {
+                            stream.writeHeaders(toHttp2Fields(trailers, new HttpHead(null, null, null)), true);
+                        } else {
+                            stream.writeData(EMPTY, 0, 0, true);
+                        }
+                    }
+                    complete = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static HttpHead toHttp1Request(HttpHead headers) throws IOException {
+        String method = headers.get(":method");
+        String path = headers.get(":path");
+        String authority = headers.get(":authority");
+        if (method == null || (path == null && !"CONNECT".equals(method))) {
+            throw new IOException("HTTP/2请求缺少伪头部");
+        }
+        String target = path != null ? path : authority;
+        checkToken(method);
+        checkToken(target);
+        HttpHead head = new HttpHead(method, target, "HTTP/1.1");
+        if (authority != null && headers.get("Host") == null) {
+            checkField("Host", authority);
+            head.add("Host", authority);
+        }
+        // HTTP/2允许把Cookie拆成多个头部，HTTP/1.1中必须合并为一个
+        StringBuilder cookie = null;
+        for (int i = 0; i < headers.size(); i++) {
+            if (headers.getName(i).equalsIgnoreCase("cookie")) {
+                cookie = cookie == null ? new StringBuilder() : cookie.append("; ");
+                cookie.append(headers.getValue(i));
+            }
+        }
+        for (int i = 0; i < headers.size(); i++) {
+            String name = headers.getName(i);
+            if (!name.startsWith(":") && !name.equalsIgnoreCase("cookie")) {
+                checkField(name, headers.getValue(i));
+                head.add(name, headers.getValue(i));
+            }
+        }
+        if (cookie != null) {
+            checkField("Cookie", cookie.toString());
+            head.add("Cookie", cookie.toString());
+        }
+        return head;
+    }
+
+    private static HttpHead toHttp1Response(HttpHead headers) throws IOException {
+        String status = headers.get(":status");
+        if (status == null || status.length() != 3 || !Character.isDigit(status.charAt(0))
+                || !Character.isDigit(status.charAt(1)) || !Character.isDigit(status.charAt(2))) {
+            throw new IOException("HTTP/2响应缺少有效的:status");
+        }
+        HttpHead head = new HttpHead("HTTP/1.1", status, reasonPhrase(Integer.parseInt(status)));
+        for (int i = 0; i < headers.size(); i++) {
+            String name = headers.getName(i);
+            if (!name.startsWith(":")) {
+                checkField(name, headers.getValue(i));
+                head.add(name, headers.getValue(i));
+            }
+        }
+        return head;
+    }
+
+    private static HttpHead toHttp2Request(HttpHead head) throws IOException {
+        String authority = head.get("Host");
+        if (authority == null) {
+            throw new IOException("请求缺少Host头部");
+        }
+        HttpHead headers = new HttpHead(null, null, null);
+        headers.add(":method", head.getMethod());
+        headers.add(":scheme", "https");
+        headers.add(":authority", authority);
+        headers.add(":path", head.getTarget());
+        toHttp2Fields(head, headers);
+        headers.remove("host");
+        // gRPC依赖尾部头部，服务器要求请求声明支持（HTTP/1.1一侧的TE已作为逐跳头部去掉）
+        String contentType = head.get("Content-Type");
+        if (contentType != null && contentType.startsWith("application/grpc")) {
+            headers.add("te", "trailers");
+        }
+        return headers;
+    }
+
+    private static HttpHead toHttp2Response(HttpHead head) {
+        HttpHead headers = new HttpHead(null, null, null);
+        headers.add(":status", String.valueOf(head.getStatusCode()));
+        return toHttp2Fields(head, headers);
+    }
+
+    /**
+     * 复制普通头部，名称转为小写，去掉连接相关的头部
+     */
+    private static HttpHead toHttp2Fields(HttpHead from, HttpHead to) {
+        for (int i = 0; i < from.size(); i++) {
+            String name = from.getName(i).toLowerCase(Locale.ROOT);
+            if (!isConnectionHeader(name)) {
+                to.add(name, from.getValue(i));
+            }
+        }
+        return to;
+    }
+
+    private static boolean isConnectionHeader(String name) {
+        for (String header : CONNECTION_HEADERS) {
+            if (header.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * HPACK可以携带任意字节，写入HTTP/1.1之前拒绝含有换行等字符的头部，防止拆分出额外的头部或请求
+     */
+    private static void checkField(String name, String value) throws IOException {
+        if (name.indexOf(':') >= 0) {
+            throw new IOException("无效的头部名称: " + name);
+        }
+        checkToken(name);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) {
+                throw new IOException("头部值中含有非法字符: " + name);
+            }
+        }
+    }
+
+    /**
+     * 头部名称、请求方法和请求目标中不能有空白和控制字符
+     */
+    private static void checkToken(String token) throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IOException("空的头部名称或请求行");
+        }
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c <= ' ' || c >= 0x7f) {
+                throw new IOException("非法字符: " + token);
+            }
+        }
+    }
+
+    private static String reasonPhrase(int status) {
+        switch (status) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            default: return "";
+        }
+    }
+}
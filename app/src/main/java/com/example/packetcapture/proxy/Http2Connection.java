@@ -0,0 +1,868 @@
+package com.example.packetcapture.proxy;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * HTTP/2连接（RFC 9113）：帧的读写、SETTINGS、流量控制和流的管理
+ * 同一个类用于两侧：对客户端是服务端角色，流由对方发起，每个新流收到头部后交给Listener；
+ * 对上游是客户端角色，由newStream创建流，第一次发出HEADERS时才分配流ID，保证ID按发送顺序递增。
+ * 帧只在一个线程上读取（run）；发送可以来自任意线程，每组帧在writeLock下完整写出。
+ * DATA帧受对方的连接窗口和流窗口限制，窗口用尽时发送线程等待WINDOW_UPDATE；
+ * 接收方向每个流最多缓存一个流窗口的数据，数据被读走后才归还窗口，读得慢的流不会占用无限内存。
+ * 不支持服务器推送，PRIORITY帧被忽略。
+ */
+final class Http2Connection implements Runnable {
+    private static final String TAG = "Http2Connection";
+    /** ALPN中HTTP/2的协议名 */
+    static final String PROTOCOL = "h2";
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_PRIORITY = 0x2;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    // 本端不调整SETTINGS_MAX_FRAME_SIZE，对方发来的帧不超过默认值
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int MAX_ALLOWED_FRAME_SIZE = 16777215;
+    // 本端声明的设置：每个流和整个连接最多缓存的未读数据，以及同时打开的流数
+    private static final int STREAM_WINDOW_SIZE = 256 * 1024;
+    private static final int CONNECTION_WINDOW_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_HEADER_LIST_SIZE = HttpHead.DEFAULT_MAX_HEAD_SIZE;
+    private static final int WRITE_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * 服务端角色下对方发起的流
+     */
+    interface Listener {
+        /**
+         * 收到新流的请求头部后在读取线程上调用，不能阻塞
+         */
+        void onStream(Http2Stream stream);
+    }
+
+    /**
+     * 连接错误，发送GOAWAY后关闭连接
+     */
+    static final class ConnectionException extends IOException {
+        final int errorCode;
+
+        ConnectionException(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final boolean client;
+    private final Listener listener;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Object writeLock = new Object();
+
+    // 以下状态由本对象的锁保护
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    private int nextStreamId = 1;
+    private int lastPeerStreamId;
+    // 已创建但还没有发出HEADERS的流
+    private int reserved;
+    private int openedStreams;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int receiveWindow = DEFAULT_WINDOW_SIZE;
+    private int consumed;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = MAX_FRAME_SIZE;
+    private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+    private boolean goAwayReceived;
+    private boolean closed;
+    private long idleSince = System.currentTimeMillis();
+
+    /**
+     * @param client 为true时本端是客户端角色（连接上游）
+     * @param listener 服务端角色下接收新流，客户端角色为null
+     */
+    Http2Connection(Socket socket, boolean client, Listener listener) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+        this.client = client;
+        this.listener = listener;
+    }
+
+    /**
+     * ALPN的设置和查询需要Android 10（API 29）以上，更低的版本两侧都只用HTTP/1.1
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+    }
+
+    /**
+     * @return TLS握手是否协商出了HTTP/2
+     */
+    static boolean isNegotiated(SSLSocket socket) {
+        return isSupported() && PROTOCOL.equals(socket.getApplicationProtocol());
+    }
+
+    /**
+     * 发出连接前言（客户端角色）、本端的SETTINGS和连接窗口的扩大量
+     */
+    void start() throws IOException {
+        ByteArrayOutputStream settings = new ByteArrayOutputStream();
+        if (client) {
+            writeSetting(settings, SETTINGS_ENABLE_PUSH, 0);
+        }
+        writeSetting(settings, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        writeSetting(settings, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+        writeSetting(settings, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        byte[] payload = settings.toByteArray();
+        synchronized (this) {
+            receiveWindow = CONNECTION_WINDOW_SIZE;
+        }
+        synchronized (writeLock) {
+            if (client) {
+                out.write(PREFACE);
+            }
+            writeFrameLocked(TYPE_SETTINGS, 0, 0, payload, 0, payload.length);
+            writeWindowUpdateLocked(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+            out.flush();
+        }
+    }
+
+    /**
+     * 读取并处理帧，直到连接关闭；服务端角色下先校验客户端的连接前言
+     */
+    @Override
+    public void run() {
+        int errorCode = NO_ERROR;
+        try {
+            byte[] header = new byte[FRAME_HEADER_SIZE];
+            byte[] payload = new byte[MAX_FRAME_SIZE];
+            if (!client) {
+                byte[] preface = new byte[PREFACE.length];
+                if (!readFully(preface, preface.length, true) || !Arrays.equals(preface, PREFACE)) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "无效的连接前言");
+                }
+            }
+            while (readFrame(header, payload)) {
+                // 帧已在readFrame中处理
+            }
+        } catch (ConnectionException e) {
+            Log.w(TAG, "HTTP/2连接错误: " + e.getMessage());
+            errorCode = e.errorCode;
+        } catch (SocketTimeoutException e) {
+            Log.d(TAG, "HTTP/2连接空闲超时");
+        } catch (IOException e) {
+            if (!isClosed()) {
+                Log.d(TAG, "HTTP/2连接已断开: " + e.getMessage());
+            }
+        } finally {
+            shutdown(errorCode);
+        }
+    }
+
+    /**
+     * 客户端角色：创建一个新流，发出HEADERS之前不占用流ID
+     * @return 连接已关闭、收到GOAWAY或并发流数已达对方上限时返回null
+     */
+    synchronized Http2Stream newStream() {
+        if (closed || goAwayReceived || nextStreamId < 0
+                || streams.size() + reserved >= peerMaxConcurrentStreams) {
+            return null;
+        }
+        reserved++;
+        openedStreams++;
+        return new Http2Stream(this, 0, 0, STREAM_WINDOW_SIZE);
+    }
+
+    /**
+     * @return 连接能否再创建新流
+     */
+    synchronized boolean isUsable() {
+        return !closed && !goAwayReceived && nextStreamId > 0;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 当前打开的流数，包括已创建但还没有发出HEADERS的流
+     */
+    synchronized int getActiveStreams() {
+        return streams.size() + reserved;
+    }
+
+    /**
+     * 曾经创建过的流数
+     */
+    synchronized int getOpenedStreams() {
+        return openedStreams;
+    }
+
+    /**
+     * 最后一个流结束的时间，有打开的流时无意义
+     */
+    synchronized long getIdleSince() {
+        return idleSince;
+    }
+
+    /**
+     * 发送GOAWAY后关闭连接，所有未结束的流被重置
+     */
+    void close() {
+        shutdown(NO_ERROR);
+    }
+
+    void writeHeaders(Http2Stream stream, HttpHead headers, boolean endStream) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+        encoder.encode(headers, block);
+        byte[] data = block.toByteArray();
+        synchronized (writeLock) {
+            int maxFrameSize;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("HTTP/2连接已关闭");
+                }
+                if (stream.id == 0) {
+                    // 在writeLock内分配流ID，各流的HEADERS按ID递增的顺序发出
+                    if (goAwayReceived || nextStreamId < 0) {
+                        throw new IOException("HTTP/2连接不再接受新流");
+                    }
+                    stream.id = nextStreamId;
+                    nextStreamId += 2;
+                    reserved--;
+                    stream.sendWindow = peerInitialWindowSize;
+                    streams.put(stream.id, stream);
+                }
+                maxFrameSize = peerMaxFrameSize;
+            }
+            int offset = 0;
+            int type = TYPE_HEADERS;
+            do {
+                int length = Math.min(maxFrameSize, data.length - offset);
+                int flags = offset + length == data.length ? FLAG_END_HEADERS : 0;
+                if (type == TYPE_HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrameLocked(type, flags, stream.id, data, offset, length);
+                offset += length;
+                type = TYPE_CONTINUATION;
+            } while (offset < data.length);
+            out.flush();
+        }
+    }
+
+    /**
+     * 按流量控制窗口和最大帧长度分成若干DATA帧写出，窗口不足时等待
+     * @param endStream 最后一帧带END_STREAM；length为0时只发出一个空的结束帧
+     */
+    void writeData(Http2Stream stream, byte[] buffer, int offset, int length, boolean endStream) throws IOException {
+        do {
+            int n;
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("HTTP/2连接已关闭");
+                    }
+                    if (!streams.containsKey(stream.id)) {
+                        throw new IOException("HTTP/2流已关闭: " + stream.id);
+                    }
+                    n = (int) Math.min(Math.min(length, peerMaxFrameSize), Math.min(sendWindow, stream.sendWindow));
+                    if (n > 0 || length == 0) {
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("等待HTTP/2发送窗口时被中断");
+                    }
+                }
+                sendWindow -= n;
+                stream.sendWindow -= n;
+            }
+            boolean last = n == length;
+            synchronized (writeLock) {
+                writeFrameLocked(TYPE_DATA, last && endStream ? FLAG_END_STREAM : 0, stream.id, buffer, offset, n);
+                if (last) {
+                    out.flush();
+                }
+            }
+            offset += n;
+            length -= n;
+        } while (length > 0);
+    }
+
+    /**
+     * 本端重置流
+     */
+    void resetStream(Http2Stream stream, int code) {
+        synchronized (this) {
+            if (stream.id == 0) {
+                // 还没有发出HEADERS，对方不知道这个流
+                reserved--;
+                updateIdle();
+                return;
+            }
+            if (streams.remove(stream.id) == null) {
+                return;
+            }
+            updateIdle();
+            notifyAll();
+        }
+        try {
+            writeRstStream(stream.id, code);
+        } catch (IOException e) {
+            Log.d(TAG, "发送RST_STREAM失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 流的两个方向都已正常结束
+     */
+    synchronized void removeStream(Http2Stream stream) {
+        streams.remove(stream.id);
+        updateIdle();
+    }
+
+    /**
+     * 流上的数据被读走，累计到窗口的一半时发出WINDOW_UPDATE
+     * @param stream 为null时只归还连接窗口
+     */
+    void onConsumed(Http2Stream stream, int count) {
+        int connectionIncrement = 0;
+        int streamIncrement = 0;
+        synchronized (this) {
+            consumed += count;
+            if (consumed >= CONNECTION_WINDOW_SIZE / 2) {
+                connectionIncrement = consumed;
+                receiveWindow += consumed;
+                consumed = 0;
+            }
+            if (stream != null) {
+                stream.consumed += count;
+            }
+            if (stream != null && stream.consumed >= STREAM_WINDOW_SIZE / 2 && streams.containsKey(stream.id)) {
+                streamIncrement = stream.consumed;
+                stream.receiveWindow += stream.consumed;
+                stream.consumed = 0;
+            }
+        }
+        try {
+            synchronized (writeLock) {
+                if (connectionIncrement > 0) {
+                    writeWindowUpdateLocked(0, connectionIncrement);
+                }
+                if (streamIncrement > 0) {
+                    writeWindowUpdateLocked(stream.id, streamIncrement);
+                }
+                if (connectionIncrement > 0 || streamIncrement > 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "发送WINDOW_UPDATE失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 读取并处理一帧
+     * @return 连接在两帧之间正常结束时返回false
+     */
+    private boolean readFrame(byte[] header, byte[] payload) throws IOException {
+        if (!readFully(header, FRAME_HEADER_SIZE, true)) {
+            return false;
+        }
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        int type = header[3] & 0xff;
+        int flags = header[4] & 0xff;
+        int streamId = readInt(header, 5) & 0x7fffffff;
+        if (length > MAX_FRAME_SIZE) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "帧过长: " + length);
+        }
+        readFully(payload, length, false);
+
+        switch (type) {
+            case TYPE_DATA:
+                onData(streamId, flags, payload, length);
+                break;
+            case TYPE_HEADERS:
+                onHeaders(streamId, flags, payload, length, header);
+                break;
+            case TYPE_PRIORITY:
+                break;
+            case TYPE_RST_STREAM:
+                if (streamId == 0 || length != 4) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "无效的RST_STREAM");
+                }
+                onRstStream(streamId, readInt(payload, 0));
+                break;
+            case TYPE_SETTINGS:
+                if (streamId != 0) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "SETTINGS不在流0上");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    onSettings(payload, length);
+                }
+                break;
+            case TYPE_PUSH_PROMISE:
+                throw new ConnectionException(PROTOCOL_ERROR, "未启用服务器推送");
+            case TYPE_PING:
+                if (streamId != 0 || length != 8) {
+                    throw new ConnectionException(FRAME_SIZE_ERROR, "无效的PING");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    synchronized (writeLock) {
+                        writeFrameLocked(TYPE_PING, FLAG_ACK, 0, payload, 0, 8);
+                        out.flush();
+                    }
+                }
+                break;
+            case TYPE_GOAWAY:
+                if (streamId != 0 || length < 8) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "无效的GOAWAY");
+                }
+                onGoAway(readInt(payload, 0) & 0x7fffffff, readInt(payload, 4));
+                break;
+            case TYPE_WINDOW_UPDATE:
+                if (length != 4) {
+                    throw new ConnectionException(FRAME_SIZE_ERROR, "无效的WINDOW_UPDATE");
+                }
+                onWindowUpdate(streamId, readInt(payload, 0) & 0x7fffffff);
+                break;
+            case TYPE_CONTINUATION:
+                throw new ConnectionException(PROTOCOL_ERROR, "意外的CONTINUATION");
+            default:
+                // 未知的帧类型必须忽略
+                break;
+        }
+        return true;
+    }
+
+    private void onData(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "DATA在流0上");
+        }
+        int offset = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length < 1) {
+                throw new ConnectionException(PROTOCOL_ERROR, "DATA填充无效");
+            }
+            offset = 1;
+            end -= payload[0] & 0xff;
+            if (end < offset) {
+                throw new ConnectionException(PROTOCOL_ERROR, "DATA填充无效");
+            }
+        }
+        Http2Stream stream;
+        boolean overflow = false;
+        synchronized (this) {
+            // 整帧（含填充）都计入流量控制
+            receiveWindow -= length;
+            if (receiveWindow < 0) {
+                throw new ConnectionException(FLOW_CONTROL_ERROR, "超出连接接收窗口");
+            }
+            stream = streams.get(streamId);
+            if (stream != null) {
+                stream.receiveWindow -= length;
+                overflow = stream.receiveWindow < 0;
+            }
+        }
+        if (overflow) {
+            stream.reset(FLOW_CONTROL_ERROR);
+            stream = null;
+        }
+        // 填充和发给已关闭流的数据不会被读取，立即归还窗口
+        int unread = stream != null ? length - (end - offset) : length;
+        if (unread > 0) {
+            onConsumed(stream, unread);
+        }
+        if (stream == null) {
+            if (streamId > highestStreamId()) {
+                throw new ConnectionException(PROTOCOL_ERROR, "DATA在空闲的流上: " + streamId);
+            }
+            return;
+        }
+        stream.onData(Arrays.copyOfRange(payload, offset, end), (flags & FLAG_END_STREAM) != 0);
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload, int length, byte[] header) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "HEADERS在流0上");
+        }
+        int offset = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length < 1) {
+                throw new ConnectionException(PROTOCOL_ERROR, "HEADERS填充无效");
+            }
+            offset = 1;
+            end -= payload[0] & 0xff;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (end < offset) {
+            throw new ConnectionException(PROTOCOL_ERROR, "HEADERS长度无效");
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(end - offset);
+        block.write(payload, offset, end - offset);
+        boolean endHeaders = (flags & FLAG_END_HEADERS) != 0;
+        while (!endHeaders) {
+            // 头部块的其余部分必须紧接着在同一个流的CONTINUATION中
+            readFully(header, FRAME_HEADER_SIZE, false);
+            int continuationLength = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            if ((header[3] & 0xff) != TYPE_CONTINUATION || (readInt(header, 5) & 0x7fffffff) != streamId) {
+                throw new ConnectionException(PROTOCOL_ERROR, "头部块被其他帧打断");
+            }
+            if (continuationLength > MAX_FRAME_SIZE) {
+                throw new ConnectionException(FRAME_SIZE_ERROR, "帧过长: " + continuationLength);
+            }
+            if (block.size() + continuationLength > MAX_HEADER_LIST_SIZE) {
+                throw new ConnectionException(PROTOCOL_ERROR, "头部块过大");
+            }
+            readFully(payload, continuationLength, false);
+            block.write(payload, 0, continuationLength);
+            endHeaders = (header[4] & FLAG_END_HEADERS) != 0;
+        }
+        // 即使流已关闭也要解码，保持动态表与对方同步
+        HttpHead headers;
+        try {
+            headers = decoder.decode(block.toByteArray(), 0, block.size());
+        } catch (Hpack.CompressionException e) {
+            throw new ConnectionException(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+        Http2Stream stream;
+        boolean created = false;
+        boolean refused = false;
+        synchronized (this) {
+            stream = streams.get(streamId);
+            if (stream == null && !client && (streamId & 1) == 1 && streamId > lastPeerStreamId) {
+                lastPeerStreamId = streamId;
+                if (closed || streams.size() >= MAX_CONCURRENT_STREAMS) {
+                    refused = true;
+                } else {
+                    stream = new Http2Stream(this, streamId, peerInitialWindowSize, STREAM_WINDOW_SIZE);
+                    streams.put(streamId, stream);
+                    openedStreams++;
+                    created = true;
+                }
+            }
+        }
+        if (refused) {
+            writeRstStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        if (stream == null) {
+            // 已被重置的流上迟到的头部
+            return;
+        }
+        if (headerListSize(headers) > MAX_HEADER_LIST_SIZE) {
+            stream.reset(PROTOCOL_ERROR);
+            return;
+        }
+        stream.onHeaders(headers, endStream);
+        if (created) {
+            listener.onStream(stream);
+        }
+    }
+
+    private void onRstStream(int streamId, int code) {
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.remove(streamId);
+            updateIdle();
+            notifyAll();
+        }
+        if (stream != null) {
+            stream.onReset(code);
+        }
+    }
+
+    private void onSettings(byte[] payload, int length) throws IOException {
+        if (length % 6 != 0) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "SETTINGS长度无效");
+        }
+        synchronized (this) {
+            for (int i = 0; i < length; i += 6) {
+                int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                int value = readInt(payload, i + 2);
+                switch (id) {
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) {
+                            throw new ConnectionException(FLOW_CONTROL_ERROR, "初始窗口过大");
+                        }
+                        // 新的初始窗口对已打开的流同样生效
+                        int delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        notifyAll();
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        if (value < MAX_FRAME_SIZE || value > MAX_ALLOWED_FRAME_SIZE) {
+                            throw new ConnectionException(PROTOCOL_ERROR, "无效的最大帧长度: " + value);
+                        }
+                        peerMaxFrameSize = value;
+                        break;
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        peerMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                        break;
+                    case SETTINGS_HEADER_TABLE_SIZE:
+                    case SETTINGS_ENABLE_PUSH:
+                    case SETTINGS_MAX_HEADER_LIST_SIZE:
+                    default:
+                        // 编码器不使用动态表；其余设置与本端无关
+                        break;
+                }
+            }
+        }
+        synchronized (writeLock) {
+            writeFrameLocked(TYPE_SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+            out.flush();
+        }
+    }
+
+    private void onGoAway(int lastStreamId, int code) {
+        List<Http2Stream> refused = new ArrayList<>();
+        synchronized (this) {
+            goAwayReceived = true;
+            // 本端发起、对方没有处理的流可以安全地在新连接上重试
+            Iterator<Http2Stream> iterator = streams.values().iterator();
+            while (iterator.hasNext()) {
+                Http2Stream stream = iterator.next();
+                if (client && stream.id > lastStreamId) {
+                    iterator.remove();
+                    refused.add(stream);
+                }
+            }
+            updateIdle();
+            notifyAll();
+        }
+        if (code != NO_ERROR) {
+            Log.w(TAG, "对方发送GOAWAY，错误码 " + code);
+        }
+        for (Http2Stream stream : refused) {
+            stream.onReset(REFUSED_STREAM);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int increment) throws IOException {
+        Http2Stream overflowed = null;
+        synchronized (this) {
+            if (streamId == 0) {
+                if (increment == 0) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "连接窗口增量为0");
+                }
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW_SIZE) {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR, "连接发送窗口溢出");
+                }
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    if (increment == 0 || stream.sendWindow > MAX_WINDOW_SIZE) {
+                        overflowed = stream;
+                    }
+                }
+            }
+            notifyAll();
+        }
+        if (overflowed != null) {
+            overflowed.reset(FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * 关闭连接，重置所有未结束的流
+     */
+    private void shutdown(int errorCode) {
+        List<Http2Stream> remaining;
+        int lastStreamId;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            remaining = new ArrayList<>(streams.values());
+            streams.clear();
+            lastStreamId = lastPeerStreamId;
+            notifyAll();
+        }
+        for (Http2Stream stream : remaining) {
+            stream.onReset(CANCEL);
+        }
+        try {
+            byte[] payload = new byte[8];
+            writeInt(payload, 0, lastStreamId);
+            writeInt(payload, 4, errorCode);
+            synchronized (writeLock) {
+                writeFrameLocked(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 连接可能已经断开
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "关闭HTTP/2连接时出错");
+        }
+    }
+
+    /**
+     * 本端已知的最大流ID，更大的ID属于尚未打开的流
+     */
+    private synchronized int highestStreamId() {
+        return client ? nextStreamId - 2 : lastPeerStreamId;
+    }
+
+    private void updateIdle() {
+        if (streams.isEmpty() && reserved == 0) {
+            idleSince = System.currentTimeMillis();
+        }
+    }
+
+    private void writeRstStream(int streamId, int code) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, code);
+        synchronized (writeLock) {
+            writeFrameLocked(TYPE_RST_STREAM, 0, streamId, payload, 0, 4);
+            out.flush();
+        }
+    }
+
+    private void writeWindowUpdateLocked(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, increment);
+        writeFrameLocked(TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeFrameLocked(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        byte[] header = new byte[FRAME_HEADER_SIZE];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt(header, 5, streamId);
+        out.write(header);
+        out.write(payload, offset, length);
+    }
+
+    private static void writeSetting(ByteArrayOutputStream out, int id, int value) {
+        out.write(id >>> 8);
+        out.write(id);
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * @param frameStart 为true时是在两帧之间读取：连接正常结束返回false；
+     *                   读超时且没有打开的流时抛出SocketTimeoutException，有打开的流时继续等待
+     */
+    private boolean readFully(byte[] buffer, int length, boolean frameStart) throws IOException {
+        int count = 0;
+        while (count < length) {
+            int read;
+            try {
+                read = in.read(buffer, count, length - count);
+            } catch (SocketTimeoutException e) {
+                if (count == 0 && frameStart && getActiveStreams() == 0) {
+                    throw e;
+                }
+                continue;
+            }
+            if (read < 0) {
+                if (count == 0 && frameStart) {
+                    return false;
+                }
+                throw new EOFException("HTTP/2帧被截断");
+            }
+            count += read;
+        }
+        return true;
+    }
+
+    private static int headerListSize(HttpHead headers) {
+        int size = 0;
+        for (int i = 0; i < headers.size(); i++) {
+            size += headers.getName(i).length() + headers.getValue(i).length() + 32;
+        }
+        return size;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
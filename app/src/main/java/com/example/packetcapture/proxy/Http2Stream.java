@@ -0,0 +1,202 @@
+package com.example.packetcapture.proxy;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * HTTP/2连接上的一个流
+ * 接收方向由连接的读取线程放入头部块和数据，使用方在自己的线程上用takeHeaders和read阻塞读取；
+ * 发送方向直接调用连接按帧写出。两个方向都结束或任一方重置后，流从连接上移除。
+ */
+final class Http2Stream {
+    private final Http2Connection connection;
+    // 客户端角色下第一次发出HEADERS时才分配，之前为0
+    int id;
+
+    // 流量控制计数，由连接的锁保护
+    long sendWindow;
+    int receiveWindow;
+    // 已被读走、尚未通过WINDOW_UPDATE归还给对方的字节数
+    int consumed;
+
+    // 以下状态由本对象的锁保护
+    private final ArrayDeque<HttpHead> headerBlocks = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> data = new ArrayDeque<>();
+    private int dataOffset;
+    private boolean remoteClosed;
+    private boolean localClosed;
+    private int errorCode = -1;
+    private boolean removed;
+
+    Http2Stream(Http2Connection connection, int id, long sendWindow, int receiveWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+        this.receiveWindow = receiveWindow;
+    }
+
+    Http2Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * 取下一个头部块：响应前的1xx、请求或响应头部、尾部头部
+     * @return 对方已结束发送且没有更多头部块时返回null
+     * @throws IOException 流被重置或连接断开
+     */
+    synchronized HttpHead takeHeaders() throws IOException {
+        while (headerBlocks.isEmpty()) {
+            if (remoteClosed) {
+                return null;
+            }
+            checkReset();
+            await();
+        }
+        return headerBlocks.poll();
+    }
+
+    /**
+     * 读取消息体数据
+     * @return 对方已结束发送时返回-1
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = 0;
+        synchronized (this) {
+            while (data.isEmpty()) {
+                if (remoteClosed) {
+                    return -1;
+                }
+                checkReset();
+                await();
+            }
+            while (count < length && !data.isEmpty()) {
+                byte[] chunk = data.peek();
+                int n = Math.min(length - count, chunk.length - dataOffset);
+                System.arraycopy(chunk, dataOffset, buffer, offset + count, n);
+                count += n;
+                dataOffset += n;
+                if (dataOffset == chunk.length) {
+                    data.poll();
+                    dataOffset = 0;
+                }
+            }
+        }
+        // 数据被读走后才归还窗口，对方的发送速度受本端读取速度限制
+        connection.onConsumed(this, count);
+        return count;
+    }
+
+    synchronized boolean isRemoteClosed() {
+        return remoteClosed;
+    }
+
+    /**
+     * 对方已结束发送，且收到的头部块和数据都已取走
+     */
+    synchronized boolean isFinished() {
+        return remoteClosed && headerBlocks.isEmpty() && data.isEmpty();
+    }
+
+    void writeHeaders(HttpHead headers, boolean endStream) throws IOException {
+        connection.writeHeaders(this, headers, endStream);
+        if (endStream) {
+            closeLocal();
+        }
+    }
+
+    void writeData(byte[] buffer, int offset, int length, boolean endStream) throws IOException {
+        connection.writeData(this, buffer, offset, length, endStream);
+        if (endStream) {
+            closeLocal();
+        }
+    }
+
+    /**
+     * 结束使用：两个方向都已结束时什么也不做；本端已发完时以NO_ERROR重置，告诉对方不必再发送；
+     * 否则以CANCEL重置
+     */
+    void close() {
+        int code;
+        synchronized (this) {
+            if (removed || errorCode >= 0) {
+                return;
+            }
+            code = localClosed ? Http2Connection.NO_ERROR : Http2Connection.CANCEL;
+        }
+        reset(code);
+    }
+
+    /**
+     * 重置流，对方之后发来的帧被忽略
+     */
+    void reset(int code) {
+        synchronized (this) {
+            if (removed || errorCode >= 0) {
+                return;
+            }
+            errorCode = code;
+            notifyAll();
+        }
+        connection.resetStream(this, code);
+    }
+
+    synchronized void onHeaders(HttpHead headers, boolean endStream) {
+        headerBlocks.add(headers);
+        if (endStream) {
+            remoteClosed = true;
+        }
+        notifyAll();
+        if (endStream) {
+            removeIfDone();
+        }
+    }
+
+    synchronized void onData(byte[] chunk, boolean endStream) {
+        if (chunk.length > 0) {
+            data.add(chunk);
+        }
+        if (endStream) {
+            remoteClosed = true;
+            removeIfDone();
+        }
+        notifyAll();
+    }
+
+    /**
+     * 对方重置了流或连接已断开
+     */
+    synchronized void onReset(int code) {
+        if (errorCode < 0) {
+            errorCode = code;
+        }
+        removed = true;
+        notifyAll();
+    }
+
+    private synchronized void closeLocal() {
+        localClosed = true;
+        removeIfDone();
+    }
+
+    private void removeIfDone() {
+        if (localClosed && remoteClosed && !removed) {
+            removed = true;
+            connection.removeStream(this);
+        }
+    }
+
+    private void checkReset() throws IOException {
+        if (errorCode >= 0) {
+            throw new IOException("HTTP/2流已重置: " + id + " 错误码 " + errorCode);
+        }
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待HTTP/2数据时被中断");
+        }
+    }
+}
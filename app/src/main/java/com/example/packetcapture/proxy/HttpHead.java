@@ -0,0 +1,298 @@
+package com.example.packetcapture.proxy;
+
+import com.example.packetcapture.rewrite.HeaderEditor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP/1.x 请求头或响应头
+ * 保留头部的原始顺序和大小写，同名头部可以出现多次。
+ * 对请求而言起始行三段分别是方法、目标、版本；对响应而言是版本、状态码、原因短语。
+ */
+final class HttpHead implements HeaderEditor {
+    static final int DEFAULT_MAX_HEAD_SIZE = 64 * 1024;
+
+    private final String first;
+    private String second;
+    private String third;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+
+    HttpHead(String first, String second, String third) {
+        this.first = first;
+        this.second = second;
+        this.third = third;
+    }
+
+    /**
+     * 解析以空行结尾的完整头部，行尾可以是CRLF或LF
+     * @param request 为true时按请求行校验，否则按状态行校验
+     */
+    static HttpHead parse(byte[] data, int offset, int length, boolean request) throws HttpParser.HttpParseException {
+        int end = offset + length;
+        int lineEnd = indexOfLineEnd(data, offset, end);
+        String startLine = line(data, offset, lineEnd);
+        HttpHead head = parseStartLine(startLine, request);
+        parseFields(data, nextLine(data, lineEnd, end), end, head);
+        return head;
+    }
+
+    /**
+     * 解析以空行结尾的头部行（不含起始行），如分块编码的尾部头部，结果追加到head中
+     */
+    static void parseFields(byte[] data, int position, int end, HttpHead head) throws HttpParser.HttpParseException {
+        while (position < end) {
+            int lineEnd = indexOfLineEnd(data, position, end);
+            if (lineEnd == position) {
+                break;
+            }
+            byte firstByte = data[position];
+            if (firstByte == ' ' || firstByte == '\t') {
+                // 已废弃的折行写法，拒绝以免前后端理解不一致
+                throw new HttpParser.HttpParseException("不支持头部折行");
+            }
+            int colon = -1;
+            for (int i = position; i < lineEnd; i++) {
+                if (data[i] == ':') {
+                    colon = i;
+                    break;
+                }
+            }
+            if (colon <= position) {
+                throw new HttpParser.HttpParseException("无效的头部行: " + line(data, position, lineEnd));
+            }
+            for (int i = position; i < colon; i++) {
+                byte c = data[i];
+                if (c <= ' ' || c >= 0x7f) {
+                    throw new HttpParser.HttpParseException("无效的头部名称: " + line(data, position, colon));
+                }
+            }
+            head.add(line(data, position, colon), line(data, colon + 1, lineEnd).trim());
+            position = nextLine(data, lineEnd, end);
+        }
+    }
+
+    private static HttpHead parseStartLine(String line, boolean request) throws HttpParser.HttpParseException {
+        int firstSpace = line.indexOf(' ');
+        int secondSpace = firstSpace < 0 ? -1 : line.indexOf(' ', firstSpace + 1);
+        if (firstSpace <= 0) {
+            throw new HttpParser.HttpParseException("无效的起始行: " + line);
+        }
+        if (request) {
+            if (secondSpace < 0 || secondSpace == firstSpace + 1) {
+                throw new HttpParser.HttpParseException("无效的请求行: " + line);
+            }
+            String method = line.substring(0, firstSpace);
+            String version = line.substring(secondSpace + 1);
+            for (int i = 0; i < method.length(); i++) {
+                char c = method.charAt(i);
+                if (c <= ' ' || c >= 0x7f) {
+                    throw new HttpParser.HttpParseException("无效的请求方法: " + line);
+                }
+            }
+            if (!version.startsWith("HTTP/1.")) {
+                throw new HttpParser.HttpParseException("不支持的HTTP版本: " + line);
+            }
+            return new HttpHead(method, line.substring(firstSpace + 1, secondSpace), version);
+        }
+
+        String version = line.substring(0, firstSpace);
+        String status = secondSpace < 0 ? line.substring(firstSpace + 1) : line.substring(firstSpace + 1, secondSpace);
+        if (!version.startsWith("HTTP/1.") || status.length() != 3
+                || !Character.isDigit(status.charAt(0)) || !Character.isDigit(status.charAt(1))
+                || !Character.isDigit(status.charAt(2))) {
+            throw new HttpParser.HttpParseException("无效的状态行: " + line);
+        }
+        return new HttpHead(version, status, secondSpace < 0 ? "" : line.substring(secondSpace + 1));
+    }
+
+    /**
+     * @return 行内容的结束位置（不含CR）
+     */
+    private static int indexOfLineEnd(byte[] data, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (data[i] == '\n') {
+                return i > from && data[i - 1] == '\r' ? i - 1 : i;
+            }
+        }
+        return end;
+    }
+
+    private static int nextLine(byte[] data, int lineEnd, int end) {
+        if (lineEnd < end && data[lineEnd] == '\r') {
+            lineEnd++;
+        }
+        return lineEnd + 1;
+    }
+
+    private static String line(byte[] data, int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    String getMethod() {
+        return first;
+    }
+
+    String getTarget() {
+        return second;
+    }
+
+    String getRequestVersion() {
+        return third;
+    }
+
+    String getResponseVersion() {
+        return first;
+    }
+
+    int getStatusCode() {
+        try {
+            return Integer.parseInt(second);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    String getReasonPhrase() {
+        return third;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    String getName(int index) {
+        return names.get(index);
+    }
+
+    String getValue(int index) {
+        return values.get(index);
+    }
+
+    /**
+     * 返回第一个同名头部的值，名称不区分大小写
+     */
+    String get(String name) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                return values.get(i);
+            }
+        }
+        return null;
+    }
+
+    void add(String name, String value) {
+        names.add(name);
+        values.add(value);
+    }
+
+    /**
+     * 替换所有同名头部为一个新值
+     */
+    void set(String name, String value) {
+        remove(name);
+        add(name, value);
+    }
+
+    void remove(String name) {
+        for (int i = names.size() - 1; i >= 0; i--) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                names.remove(i);
+                values.remove(i);
+            }
+        }
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return get(name);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        set(name, value);
+    }
+
+    @Override
+    public void removeHeader(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void setStatus(int code, String reason) {
+        second = String.valueOf(code);
+        third = reason;
+    }
+
+    /**
+     * 检查逗号分隔的头部（如Connection、Transfer-Encoding）中是否包含某个记号
+     */
+    boolean hasToken(String name, String token) {
+        for (int i = 0; i < names.size(); i++) {
+            if (!names.get(i).equalsIgnoreCase(name)) {
+                continue;
+            }
+            for (String item : values.get(i).split(",")) {
+                if (item.trim().equalsIgnoreCase(token)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    boolean isChunked() {
+        return hasToken("Transfer-Encoding", "chunked");
+    }
+
+    /**
+     * @return Content-Length的值，没有或无法解析时返回-1
+     */
+    long getContentLength() {
+        String value = get("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 去掉逐跳头部：Connection本身以及它列出的头部、Keep-Alive、Proxy-Connection等
+     */
+    void removeHopByHopHeaders() {
+        List<String> listed = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase("Connection")) {
+                for (String item : values.get(i).split(",")) {
+                    String token = item.trim();
+                    if (!token.isEmpty() && !token.equalsIgnoreCase("close") && !token.equalsIgnoreCase("keep-alive")) {
+                        listed.add(token);
+                    }
+                }
+            }
+        }
+        for (String name : listed) {
+            remove(name);
+        }
+        remove("Connection");
+        remove("Keep-Alive");
+        remove("Proxy-Connection");
+        remove("TE");
+    }
+
+    byte[] toBytes() {
+        StringBuilder builder = new StringBuilder(64 + names.size() * 32);
+        builder.append(first).append(' ').append(second).append(' ').append(third).append("\r\n");
+        for (int i = 0; i < names.size(); i++) {
+            builder.append(names.get(i)).append(": ").append(values.get(i)).append("\r\n");
+        }
+        builder.append("\r\n");
+        return builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
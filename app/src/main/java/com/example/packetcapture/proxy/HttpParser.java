@@ -0,0 +1,435 @@
+package com.example.packetcapture.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 增量式HTTP/1.1消息解析器
+ * 直接在ByteBuffer上逐字节推进，数据可以任意切分后分多次送入，不依赖阻塞流或NIO中的任何一种。
+ * 每次调用parse返回一个事件：
+ * HEAD 头部解析完成，可通过getHead取得；BODY 得到一段消息体数据，位于缓冲区的
+ * [getBodyOffset(), getBodyOffset() + getBodyLength())；COMPLETE 当前消息结束，解析器已复位，
+ * 缓冲区中剩余的数据属于下一条消息（流水线）；NEED_MORE 需要更多数据。
+ * 分块编码的长度行、块尾CRLF和尾部头部由解析器消耗，BODY只给出解码后的数据；调用方若要原样转发，
+ * 可以直接转发每次调用前后position之间的原始字节。
+ * 头部缓存在解析器内部可复用的数组中，超过maxHeadSize时抛出HeadTooLargeException。
+ */
+final class HttpParser {
+    static final int NEED_MORE = 0;
+    static final int HEAD = 1;
+    static final int BODY = 2;
+    static final int COMPLETE = 3;
+
+    private static final int MAX_CHUNK_LINE_LENGTH = 1024;
+
+    private static final int STATE_START = 0;
+    private static final int STATE_HEAD = 1;
+    private static final int STATE_FIXED = 2;
+    private static final int STATE_UNTIL_EOF = 3;
+    private static final int STATE_CHUNK_SIZE = 4;
+    private static final int STATE_CHUNK_EXTENSION = 5;
+    private static final int STATE_CHUNK_SIZE_LF = 6;
+    private static final int STATE_CHUNK_DATA = 7;
+    private static final int STATE_CHUNK_DATA_CR = 8;
+    private static final int STATE_CHUNK_DATA_LF = 9;
+    private static final int STATE_TRAILER = 10;
+    private static final int STATE_END = 11;
+
+    private final boolean request;
+    private final int maxHeadSize;
+
+    private int state = STATE_START;
+    private byte[] headBytes = new byte[512];
+    private int headLength;
+    private HttpHead head;
+
+    // 消息体分帧
+    private boolean chunked;
+    private long remaining;
+    private int lineLength;
+    private int trailerLength;
+    private boolean sawChunkDigit;
+    // 上一条分块消息的尾部头部
+    private HttpHead trailers;
+
+    // 响应解析时对应请求的方法，用于判断HEAD请求的响应没有消息体
+    private String requestMethod;
+
+    private int bodyOffset;
+    private int bodyLength;
+
+    HttpParser(boolean request, int maxHeadSize) {
+        this.request = request;
+        this.maxHeadSize = maxHeadSize;
+    }
+
+    /**
+     * 解析响应前设置对应请求的方法
+     */
+    void setRequestMethod(String requestMethod) {
+        this.requestMethod = requestMethod;
+    }
+
+    HttpHead getHead() {
+        return head;
+    }
+
+    /**
+     * 最近一条分块编码消息的尾部头部，没有时为null；下一条消息的头部解析完成后清空
+     */
+    HttpHead getTrailers() {
+        return trailers;
+    }
+
+    int getBodyOffset() {
+        return bodyOffset;
+    }
+
+    int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * 当前消息体是否为分块编码
+     */
+    boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * 当前消息体是否以连接关闭结束
+     */
+    boolean isUntilEof() {
+        return state == STATE_UNTIL_EOF;
+    }
+
+    /**
+     * 当前消息头部之后是否没有消息体
+     */
+    boolean hasNoBody() {
+        return state == STATE_END;
+    }
+
+    /**
+     * 是否处于两条消息之间且尚未读到下一条消息的任何数据
+     */
+    boolean isIdle() {
+        return state == STATE_START;
+    }
+
+    void reset() {
+        state = STATE_START;
+        headLength = 0;
+        head = null;
+        chunked = false;
+        remaining = 0;
+        lineLength = 0;
+        trailerLength = 0;
+        bodyLength = 0;
+    }
+
+    /**
+     * 从buffer的position开始解析，解析过的数据使position前移
+     */
+    int parse(ByteBuffer buffer) throws HttpParseException {
+        while (true) {
+            switch (state) {
+                case STATE_START:
+                    if (!buffer.hasRemaining()) {
+                        return NEED_MORE;
+                    }
+                    byte first = buffer.get(buffer.position());
+                    if (first == '\r' || first == '\n') {
+                        // 容忍消息之间多余的空行
+                        buffer.position(buffer.position() + 1);
+                        continue;
+                    }
+                    state = STATE_HEAD;
+                    break;
+
+                case STATE_HEAD:
+                    if (!parseHead(buffer)) {
+                        return NEED_MORE;
+                    }
+                    return HEAD;
+
+                case STATE_FIXED:
+                case STATE_UNTIL_EOF:
+                case STATE_CHUNK_DATA:
+                    if (!buffer.hasRemaining()) {
+                        return NEED_MORE;
+                    }
+                    int length = buffer.remaining();
+                    if (state != STATE_UNTIL_EOF && remaining < length) {
+                        length = (int) remaining;
+                    }
+                    bodyOffset = buffer.position();
+                    bodyLength = length;
+                    buffer.position(bodyOffset + length);
+                    if (state != STATE_UNTIL_EOF) {
+                        remaining -= length;
+                        if (remaining == 0) {
+                            state = state == STATE_FIXED ? STATE_END : STATE_CHUNK_DATA_CR;
+                        }
+                    }
+                    return BODY;
+
+                case STATE_CHUNK_SIZE:
+                case STATE_CHUNK_EXTENSION:
+                case STATE_CHUNK_SIZE_LF:
+                    if (!parseChunkSize(buffer)) {
+                        return NEED_MORE;
+                    }
+                    break;
+
+                case STATE_CHUNK_DATA_CR:
+                case STATE_CHUNK_DATA_LF:
+                    if (!buffer.hasRemaining()) {
+                        return NEED_MORE;
+                    }
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        state = STATE_CHUNK_SIZE;
+                        resetChunkLine();
+                    } else if (b == '\r' && state == STATE_CHUNK_DATA_CR) {
+                        state = STATE_CHUNK_DATA_LF;
+                    } else {
+                        throw new HttpParseException("分块数据后缺少CRLF");
+                    }
+                    break;
+
+                case STATE_TRAILER:
+                    if (!parseTrailer(buffer)) {
+                        return NEED_MORE;
+                    }
+                    break;
+
+                case STATE_END:
+                    reset();
+                    return COMPLETE;
+
+                default:
+                    throw new IllegalStateException("未知状态: " + state);
+            }
+        }
+    }
+
+    /**
+     * 输入已经结束
+     * @return 以连接关闭结束的消息返回COMPLETE；两条消息之间正常结束返回NEED_MORE
+     * @throws HttpParseException 消息在中途被截断
+     */
+    int finish() throws HttpParseException {
+        if (state == STATE_UNTIL_EOF || state == STATE_END) {
+            reset();
+            return COMPLETE;
+        }
+        if (state == STATE_START) {
+            return NEED_MORE;
+        }
+        throw new HttpParseException("消息未结束连接就已关闭");
+    }
+
+    private boolean parseHead(ByteBuffer buffer) throws HttpParseException {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        while (position < limit) {
+            byte b = buffer.get(position++);
+            if (headLength >= maxHeadSize) {
+                buffer.position(position);
+                throw new HeadTooLargeException(maxHeadSize);
+            }
+            if (headLength == headBytes.length) {
+                byte[] larger = new byte[Math.min(maxHeadSize, headLength * 2)];
+                System.arraycopy(headBytes, 0, larger, 0, headLength);
+                headBytes = larger;
+            }
+            headBytes[headLength++] = b;
+            if (b == '\n' && endsWithBlankLine()) {
+                buffer.position(position);
+                head = HttpHead.parse(headBytes, 0, headLength, request);
+                startBody();
+                return true;
+            }
+        }
+        buffer.position(position);
+        return false;
+    }
+
+    private boolean endsWithBlankLine() {
+        int n = headLength;
+        return (n >= 2 && headBytes[n - 2] == '\n')
+                || (n >= 3 && headBytes[n - 2] == '\r' && headBytes[n - 3] == '\n');
+    }
+
+    /**
+     * 按RFC 7230第3.3.3节确定消息体的长度
+     */
+    private void startBody() throws HttpParseException {
+        chunked = false;
+        trailers = null;
+        if (!request) {
+            int status = head.getStatusCode();
+            if ("HEAD".equalsIgnoreCase(requestMethod) || (status >= 100 && status < 200)
+                    || status == 204 || status == 304) {
+                state = STATE_END;
+                return;
+            }
+        }
+
+        if (head.get("Transfer-Encoding") != null) {
+            if (!head.isChunked()) {
+                if (request) {
+                    throw new HttpParseException("不支持的Transfer-Encoding: " + head.get("Transfer-Encoding"));
+                }
+                state = STATE_UNTIL_EOF;
+                return;
+            }
+            // 同时出现时以Transfer-Encoding为准，去掉Content-Length防止请求走私
+            head.remove("Content-Length");
+            chunked = true;
+            state = STATE_CHUNK_SIZE;
+            resetChunkLine();
+            return;
+        }
+
+        String contentLength = null;
+        for (int i = 0; i < head.size(); i++) {
+            if (head.getName(i).equalsIgnoreCase("Content-Length")) {
+                String value = head.getValue(i).trim();
+                if (contentLength != null && !contentLength.equals(value)) {
+                    throw new HttpParseException("Content-Length不一致");
+                }
+                contentLength = value;
+            }
+        }
+        if (contentLength != null) {
+            remaining = parseContentLength(contentLength);
+            state = remaining > 0 ? STATE_FIXED : STATE_END;
+            return;
+        }
+        state = request ? STATE_END : STATE_UNTIL_EOF;
+    }
+
+    private static long parseContentLength(String value) throws HttpParseException {
+        if (value.isEmpty() || value.length() > 18) {
+            throw new HttpParseException("无效的Content-Length: " + value);
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new HttpParseException("无效的Content-Length: " + value);
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    private void resetChunkLine() {
+        remaining = 0;
+        lineLength = 0;
+        sawChunkDigit = false;
+    }
+
+    private boolean parseChunkSize(ByteBuffer buffer) throws HttpParseException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (++lineLength > MAX_CHUNK_LINE_LENGTH) {
+                throw new HttpParseException("分块长度行过长");
+            }
+            if (state == STATE_CHUNK_SIZE_LF) {
+                if (b != '\n') {
+                    throw new HttpParseException("分块长度行缺少LF");
+                }
+                endChunkSizeLine();
+                return true;
+            }
+            if (b == '\r') {
+                state = STATE_CHUNK_SIZE_LF;
+                continue;
+            }
+            if (b == '\n') {
+                endChunkSizeLine();
+                return true;
+            }
+            if (state == STATE_CHUNK_EXTENSION) {
+                continue;
+            }
+            int digit = Character.digit(b, 16);
+            if (digit >= 0) {
+                if (remaining > (Long.MAX_VALUE >> 4)) {
+                    throw new HttpParseException("分块长度溢出");
+                }
+                remaining = (remaining << 4) | digit;
+                sawChunkDigit = true;
+            } else if (b == ';' || b == ' ' || b == '\t') {
+                state = STATE_CHUNK_EXTENSION;
+            } else {
+                throw new HttpParseException("无效的分块长度");
+            }
+        }
+        return false;
+    }
+
+    private void endChunkSizeLine() throws HttpParseException {
+        if (!sawChunkDigit) {
+            throw new HttpParseException("缺少分块长度");
+        }
+        if (remaining == 0) {
+            state = STATE_TRAILER;
+            lineLength = 0;
+            trailerLength = 0;
+        } else {
+            state = STATE_CHUNK_DATA;
+        }
+    }
+
+    private boolean parseTrailer(ByteBuffer buffer) throws HttpParseException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (trailerLength == maxHeadSize) {
+                throw new HeadTooLargeException(maxHeadSize);
+            }
+            // 头部已经解析完毕，尾部头部借用同一个数组
+            if (trailerLength == headBytes.length) {
+                byte[] larger = new byte[Math.min(maxHeadSize, trailerLength * 2)];
+                System.arraycopy(headBytes, 0, larger, 0, trailerLength);
+                headBytes = larger;
+            }
+            headBytes[trailerLength++] = b;
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    if (trailerLength > 2) {
+                        trailers = new HttpHead(null, null, null);
+                        HttpHead.parseFields(headBytes, 0, trailerLength, trailers);
+                    }
+                    state = STATE_END;
+                    return true;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * HTTP消息格式错误
+     */
+    static class HttpParseException extends IOException {
+        HttpParseException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 头部超过长度上限
+     */
+    static class HeadTooLargeException extends HttpParseException {
+        HeadTooLargeException(int maxSize) {
+            super("头部超过" + maxSize + "字节");
+        }
+    }
+}
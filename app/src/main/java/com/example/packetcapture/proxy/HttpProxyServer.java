@@ -3,58 +3,148 @@ package com.example.packetcapture.proxy;
 import android.util.Log;
 
 import com.example.packetcapture.config.RewriteConfig;
+import com.example.packetcapture.tunnel.DnsCache;
+import com.example.packetcapture.tunnel.RedirectTable;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HttpProxyServer {
     private static final String TAG = "HttpProxyServer";
     private static final int DEFAULT_PORT = 8888;
+    private static final int RESOLVER_THREADS = 4;
+    private static final long EVICT_INTERVAL_SECONDS = 30;
+    // 每连接一个线程的阻塞处理最多同时占用的线程数，超出时直接关闭新连接
+    private static final int MAX_HANDLER_THREADS = 64;
+    // 解密后HTTP/2流的处理线程数和排队上限，所有连接共享；排满时新的流被拒绝
+    private static final int STREAM_THREADS = 16;
+    private static final int MAX_QUEUED_STREAMS = 256;
     
     private int port;
     private boolean isRunning;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
     private ExecutorService executorService;
+    private final ThreadPoolExecutor streamExecutor;
     private RewriteConfig rewriteConfig;
+    private RedirectTable redirectTable;
+    // VPN内DNS应答的缓存，连接上游时优先使用
+    private DnsCache dnsCache;
+    
+    // Selector工作线程：非阻塞模式下承载全部连接，阻塞模式下只承载隧道转发
+    private boolean nonBlocking = true;
+    private SelectorWorker[] workers;
+    private ExecutorService resolverExecutor;
+    private final BufferPool bufferPool = new BufferPool();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    
+    // 阻塞模式下所有连接共享的上游连接池，定期回收空闲连接；非阻塞模式下只用于解密后的HTTPS请求
+    private UpstreamConnectionPool connectionPool;
+    private ScheduledExecutorService evictionExecutor;
+    
+    // HTTPS解密，未设置证书时为null
+    private volatile TlsInterceptor tlsInterceptor;
     
     public HttpProxyServer(int port, RewriteConfig rewriteConfig) {
         this.port = port;
         this.rewriteConfig = rewriteConfig;
-        this.executorService = Executors.newCachedThreadPool();
+        this.executorService = new ThreadPoolExecutor(0, MAX_HANDLER_THREADS, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>());
+        this.streamExecutor = new ThreadPoolExecutor(STREAM_THREADS, STREAM_THREADS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_STREAMS));
+        this.streamExecutor.allowCoreThreadTimeOut(true);
     }
     
     public HttpProxyServer(RewriteConfig rewriteConfig) {
         this(DEFAULT_PORT, rewriteConfig);
     }
     
+    /**
+     * 设置透明重定向表，用于识别由VPN改接过来的连接
+     */
+    public void setRedirectTable(RedirectTable redirectTable) {
+        this.redirectTable = redirectTable;
+    }
+    
+    /**
+     * 设置与VPN共享的DNS缓存，需在start之前调用
+     */
+    public void setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+    }
+    
+    /**
+     * 选择连接处理模式，需在start之前调用
+     * 默认为基于Selector的非阻塞模式，只有需要解密的HTTPS连接交给线程池；
+     * 关闭后每个连接占用线程池中的一个线程，线程数有上限。
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+    
+    /**
+     * 设置HTTPS解密使用的证书，可以在启动后设置
+     * 解密的范围由RewriteConfig中的InterceptionPolicy决定；未设置证书时HTTPS一律隧道转发。
+     */
+    public void setCertificateManager(CertificateManager certificateManager) {
+        this.tlsInterceptor = certificateManager != null ? new TlsInterceptor(certificateManager, rewriteConfig) : null;
+    }
+    
     public void start() {
         if (isRunning) return;
-        
+    
         try {
-            serverSocket = new ServerSocket();
-            serverSocket.setReuseAddress(true);
-            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
-            
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    
+            int count = Math.max(1, Runtime.getRuntime().availableProcessors());
+            workers = new SelectorWorker[count];
+            for (int i = 0; i < count; i++) {
+                workers[i] = new SelectorWorker("ProxySelector-" + i);
+                workers[i].start();
+            }
+    
+            connectionPool = new UpstreamConnectionPool();
+            connectionPool.setDnsCache(dnsCache);
+            evictionExecutor = Executors.newSingleThreadScheduledExecutor();
+            evictionExecutor.scheduleWithFixedDelay(connectionPool::evictIdle,
+                    EVICT_INTERVAL_SECONDS, EVICT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    
             isRunning = true;
-            Log.i(TAG, "HTTP代理服务器启动在端口: " + port);
-            
-            // 启动接受连接的线程
-            new Thread(this::acceptConnections).start();
+            if (nonBlocking) {
+                startNonBlocking();
+            } else {
+                // 启动接受连接的线程
+                new Thread(this::acceptConnections).start();
+            }
+            Log.i(TAG, "HTTP代理服务器" + (nonBlocking ? "(非阻塞, " + count + "个工作线程)" : "")
+                    + "启动在端口: " + port);
         } catch (IOException e) {
             Log.e(TAG, "启动HTTP代理服务器失败", e);
+            isRunning = false;
+            closeResources();
         }
     }
     
     private void acceptConnections() {
-        while (isRunning && !serverSocket.isClosed()) {
+        while (isRunning && serverChannel.isOpen()) {
             try {
-                Socket clientSocket = serverSocket.accept();
-                executorService.submit(new ProxyConnectionHandler(clientSocket, rewriteConfig));
+                // 阻塞模式下接受的套接字同样带有通道，隧道可以交给工作线程转发
+                SocketChannel clientChannel = serverChannel.accept();
+                submitBlocking(clientChannel, newBlockingHandler(clientChannel));
             } catch (IOException e) {
                 if (isRunning) {
                     Log.e(TAG, "接受连接时出错", e);
@@ -63,18 +153,141 @@ public class HttpProxyServer {
         }
     }
     
-    public void stop() {
-        isRunning = false;
+    private void startNonBlocking() throws IOException {
+        serverChannel.configureBlocking(false);
+        resolverExecutor = Executors.newFixedThreadPool(RESOLVER_THREADS);
+    
+        // 接受连接也放在第一个工作线程上
+        final SelectorWorker acceptWorker = workers[0];
+        acceptWorker.execute(() -> {
+            try {
+                acceptWorker.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor());
+            } catch (IOException e) {
+                Log.e(TAG, "注册监听通道失败", e);
+            }
+        });
+    }
+    
+    private ProxyConnectionHandler newBlockingHandler(SocketChannel clientChannel) {
+        ProxyConnectionHandler handler = new ProxyConnectionHandler(clientChannel.socket(), rewriteConfig, redirectTable);
+        handler.setRelay(nextWorker(), bufferPool);
+        handler.setConnectionPool(connectionPool);
+        handler.setTlsInterceptor(tlsInterceptor);
+        handler.setStreamExecutor(streamExecutor);
+        handler.setDnsCache(dnsCache);
+        return handler;
+    }
+    
+    /**
+     * 在线程池上处理阻塞连接，线程已用完时关闭连接而不是无限增加线程
+     */
+    private void submitBlocking(SocketChannel client, Runnable task) {
+        try {
+            executorService.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "处理线程已满，拒绝连接");
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // 已经放弃的连接
+            }
+        }
+    }
+    
+    private int maxBufferedBodySize() {
+        return rewriteConfig != null ? rewriteConfig.getMaxBufferedBodySize() : RewriteConfig.DEFAULT_MAX_BUFFERED_BODY_SIZE;
+    }
+    
+    private SelectorWorker nextWorker() {
+        return workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+    }
+    
+    /**
+     * 接受新连接，并按轮询方式分配给工作线程
+     */
+    private class Acceptor implements SelectorWorker.Handler {
+        @Override
+        public void onSelected(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+    
+                final InetSocketAddress originalDestination = redirectTable != null
+                        ? redirectTable.lookup(channel.socket().getPort()) : null;
+                TlsInterceptor interceptor = tlsInterceptor;
+                if (originalDestination != null && originalDestination.getPort() != 80
+                        && interceptor != null && interceptor.isEnabled()) {
+                    // 可能需要解密的透明重定向连接直接交给阻塞模式处理
+                    channel.configureBlocking(true);
+                    submitBlocking(channel, newBlockingHandler(channel));
+                    continue;
+                }
+                SelectorWorker worker = nextWorker();
+                final NioProxyConnection connection = new NioProxyConnection(worker, channel,
+                        new HttpsInterceptor(rewriteConfig), resolverExecutor, bufferPool, maxBufferedBodySize(),
+                        tlsHandoff);
+                connection.setDnsCache(dnsCache);
+                worker.execute(() -> connection.start(originalDestination));
+            }
+        }
+    
+        @Override
+        public void close() {
+            if (isRunning) {
+                Log.e(TAG, "监听通道异常关闭");
+            }
+        }
+    }
+    
+    /**
+     * 非阻塞模式下需要解密的CONNECT连接交给线程池上的ProxyConnectionHandler
+     */
+    private final NioProxyConnection.TlsHandoff tlsHandoff = new NioProxyConnection.TlsHandoff() {
+        @Override
+        public boolean isEnabled() {
+            TlsInterceptor interceptor = tlsInterceptor;
+            return interceptor != null && interceptor.isEnabled();
+        }
         
-        if (serverSocket != null && !serverSocket.isClosed()) {
+        @Override
+        public void handOff(SocketChannel client, HttpHead connectRequest, byte[] pending) {
+            ProxyConnectionHandler handler = newBlockingHandler(client);
+            submitBlocking(client, () -> handler.runConnect(connectRequest, pending));
+        }
+    };
+    
+    private void closeResources() {
+        if (serverChannel != null) {
             try {
-                serverSocket.close();
+                serverChannel.close();
             } catch (IOException e) {
                 Log.e(TAG, "关闭服务器套接字时出错", e);
             }
         }
-        
+        if (workers != null) {
+            for (SelectorWorker worker : workers) {
+                if (worker != null) {
+                    worker.stop();
+                }
+            }
+        }
+        if (resolverExecutor != null) {
+            resolverExecutor.shutdownNow();
+        }
+        if (evictionExecutor != null) {
+            evictionExecutor.shutdownNow();
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+    }
+    
+    public void stop() {
+        isRunning = false;
+        closeResources();
         executorService.shutdown();
+        streamExecutor.shutdown();
         Log.i(TAG, "HTTP代理服务器已停止");
     }
     
@@ -3,13 +3,16 @@ package com.example.packetcapture.proxy;
 import android.util.Log;
 
 import com.example.packetcapture.config.RewriteConfig;
+import com.example.packetcapture.rewrite.BodyStage;
+import com.example.packetcapture.rewrite.RewriteOperator;
+import com.example.packetcapture.rewrite.RewritePipeline;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 public class HttpsInterceptor {
     private static final String TAG = "HttpsInterceptor";
@@ -21,51 +24,86 @@ public class HttpsInterceptor {
     }
     
     /**
-     * 拦截并处理HTTP响应
+     * 检查URL是否命中任一启用的重写规则
+     * 未命中的请求无需缓存响应，可以直接流式转发
      * @param url 请求URL
-     * @param responseBody 原始响应体
-     * @return 处理后的响应体
+     * @return 是否有匹配的规则
      */
-    public byte[] interceptResponse(String url, byte[] responseBody) {
-        if (rewriteConfig == null || rewriteConfig.getRules().isEmpty()) {
-            return responseBody;
+    public boolean hasMatchingRule(String url) {
+        if (rewriteConfig == null) {
+            return false;
         }
-        
-        // 检查是否有匹配的重写规则
-        for (RewriteConfig.RewriteRule rule : rewriteConfig.getRules()) {
-            if (!rule.isEnabled()) {
-                continue;
-            }
-            
-            // 使用正则表达式匹配URL
-            if (Pattern.matches(rule.getUrl(), url)) {
-                Log.d(TAG, "找到匹配的重写规则: " + rule.getName() + " 对于URL: " + url);
-                
-                // 处理响应体替换
-                for (RewriteConfig.RewriteItem item : rule.getItems()) {
-                    if (item.isEnabled() && "replaceResponseBody".equals(item.getType())) {
-                        String newBody = item.getValues().get("body");
-                        if (newBody != null) {
-                            Log.d(TAG, "替换响应体");
-                            return newBody.getBytes(StandardCharsets.UTF_8);
-                        }
-                    }
+        return rewriteConfig.getSnapshot().getMatcher().matchesAny(url);
+    }
+
+    /**
+     * 取得作用于请求的重写操作
+     * @param url 请求URL
+     * @return 没有需要执行的操作时返回null
+     */
+    public RewritePipeline getRequestPipeline(String url) {
+        return pipeline(url, true);
+    }
+    
+    /**
+     * 取得作用于响应的重写操作
+     * @param url 请求URL
+     * @return 没有需要执行的操作时返回null
+     */
+    public RewritePipeline getResponsePipeline(String url) {
+        return pipeline(url, false);
+    }
+    
+    private RewritePipeline pipeline(String url, boolean request) {
+        if (rewriteConfig == null) {
+            return null;
+        }
+        // 整个过程使用同一个快照，不受并发的重新加载影响
+        RewriteConfig.Snapshot snapshot = rewriteConfig.getSnapshot();
+        List<RewriteOperator> operators = null;
+        for (RewriteConfig.RewriteRule rule : snapshot.getMatcher().match(url)) {
+            for (RewriteConfig.RewriteItem item : rule.getItems()) {
+                RewriteOperator operator = item.isEnabled() ? item.getOperator() : null;
+                if (operator == null || operator.isRequest() != request) {
+                    continue;
                 }
+                if (operators == null) {
+                    operators = new ArrayList<>();
+                    Log.d(TAG, "找到匹配的重写规则: " + rule.getName() + " 对于URL: " + url);
+                }
+                operators.add(operator);
             }
         }
-        
-        return responseBody;
+        return operators == null ? null : RewritePipeline.create(operators);
+    }
+    
+    /**
+     * 拦截并处理完整的HTTP响应体
+     * @param url 请求URL
+     * @param responseBody 原始响应体
+     * @return 处理后的响应体
+     */
+    public byte[] interceptResponse(String url, byte[] responseBody) {
+        return intercept(getResponsePipeline(url), responseBody);
     }
     
     /**
-     * 拦截并处理HTTP请求
+     * 拦截并处理完整的HTTP请求体
      * @param url 请求URL
      * @param requestBody 原始请求体
      * @return 处理后的请求体
      */
     public byte[] interceptRequest(String url, byte[] requestBody) {
-        // 目前只实现了响应拦截，可以在这里添加请求拦截逻辑
-        return requestBody;
+        return intercept(getRequestPipeline(url), requestBody);
+    }
+    
+    private static byte[] intercept(RewritePipeline pipeline, byte[] body) {
+        if (pipeline == null) {
+            return body;
+        }
+        // 没有头部信息，按UTF-8文本处理
+        BodyStage stage = pipeline.apply(new HttpHead("HTTP/1.1", "200", "OK"), true, Integer.MAX_VALUE);
+        return stage == null ? body : RewritePipeline.run(stage, body);
     }
     
     /**
@@ -0,0 +1,285 @@
+package com.example.packetcapture.proxy;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 按主机名缓存签发的叶子证书
+ * 内存中是按访问顺序淘汰的LRU表，条目超过存活时间后重新签发；每张证书同时以DER格式写入磁盘，
+ * 重启后加载回来。同一主机的并发请求只签发一次，其余线程等待同一个结果。
+ * 所有叶子证书共用一个密钥对，因此磁盘上只需要保存证书本身。
+ */
+final class LeafCertificateCache {
+    private static final String TAG = "LeafCertificateCache";
+    private static final String FILE_SUFFIX = ".crt";
+    // 证书到期前这么久就不再使用，避免在客户端时钟稍快时出错
+    private static final long EXPIRY_MARGIN_MS = 24L * 60 * 60 * 1000;
+
+    /**
+     * 签发一张证书，可能耗时，在请求的线程上调用
+     */
+    interface Minter {
+        X509Certificate mint(String host) throws GeneralSecurityException;
+    }
+
+    static final class Entry {
+        final X509Certificate certificate;
+        final long createdAt;
+
+        Entry(X509Certificate certificate, long createdAt) {
+            this.certificate = certificate;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final File directory;
+    private final int maxEntries;
+    private final long ttlMs;
+    private final Minter minter;
+    private final Map<String, Entry> entries;
+    private final ConcurrentHashMap<String, FutureTask<Entry>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory 保存证书的目录，为null时不持久化
+     */
+    LeafCertificateCache(File directory, int maxEntries, long ttlMs, Minter minter) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.minter = minter;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LeafCertificateCache.Entry> eldest) {
+                if (size() <= LeafCertificateCache.this.maxEntries) {
+                    return false;
+                }
+                deleteFile(eldest.getKey());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * 从磁盘加载之前签发的证书
+     * 不是由当前CA签发、不是当前叶子公钥、已过期或超过存活时间的证书直接删除。
+     */
+    void load(X509Certificate issuer, PublicKey leafPublicKey) {
+        if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // 按写入时间从旧到新加入，超过容量时淘汰的是最旧的
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            X509Certificate certificate = readCertificate(file);
+            String host = certificate != null ? hostOf(certificate) : null;
+            if (host == null || !fileFor(host).equals(file)
+                    || !isUsable(certificate, file.lastModified(), now)
+                    || !certificate.getPublicKey().equals(leafPublicKey)
+                    || !isIssuedBy(certificate, issuer)) {
+                if (!file.delete()) {
+                    Log.w(TAG, "删除失效的证书文件失败: " + file);
+                }
+                continue;
+            }
+            synchronized (entries) {
+                entries.put(host, new Entry(certificate, file.lastModified()));
+            }
+            loaded++;
+        }
+        Log.i(TAG, "从磁盘加载了" + loaded + "张证书");
+    }
+
+    /**
+     * 取得主机的证书，没有或已失效时签发一张
+     */
+    X509Certificate get(String host) throws GeneralSecurityException {
+        final String key = host.toLowerCase(Locale.ROOT);
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (isUsable(entry.certificate, entry.createdAt, now)) {
+                    return entry.certificate;
+                }
+                entries.remove(key);
+            }
+        }
+
+        FutureTask<Entry> task = new FutureTask<>(() -> mint(key));
+        FutureTask<Entry> existing = pending.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                pending.remove(key, task);
+            }
+            existing = task;
+        }
+        try {
+            return existing.get().certificate;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("等待签发证书时被中断");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            throw new GeneralSecurityException("签发证书失败: " + host, cause);
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * 清空内存和磁盘上的证书，CA更换后调用
+     */
+    void clear() {
+        synchronized (entries) {
+            for (String host : entries.keySet()) {
+                deleteFile(host);
+            }
+            entries.clear();
+        }
+    }
+
+    private Entry mint(String host) throws GeneralSecurityException {
+        X509Certificate certificate = minter.mint(host);
+        Entry entry = new Entry(certificate, System.currentTimeMillis());
+        synchronized (entries) {
+            entries.put(host, entry);
+        }
+        writeFile(host, certificate);
+        return entry;
+    }
+
+    private boolean isUsable(X509Certificate certificate, long createdAt, long now) {
+        return now - createdAt < ttlMs && certificate.getNotAfter().getTime() - EXPIRY_MARGIN_MS > now;
+    }
+
+    private static boolean isIssuedBy(X509Certificate certificate, X509Certificate issuer) {
+        try {
+            certificate.verify(issuer.getPublicKey());
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 证书主题的CN就是签发时的主机名
+     */
+    private static String hostOf(X509Certificate certificate) {
+        String name = certificate.getSubjectX500Principal().getName();
+        for (String part : name.split(",")) {
+            if (part.startsWith("CN=")) {
+                return part.substring(3).toLowerCase(Locale.ROOT);
+            }
+        }
+        return null;
+    }
+
+    private static X509Certificate readCertificate(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    return null;
+                }
+                offset += read;
+            }
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            return (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(data));
+        } catch (IOException | GeneralSecurityException e) {
+            Log.w(TAG, "读取证书文件失败: " + file + " " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeFile(String host, X509Certificate certificate) {
+        if (directory == null) {
+            return;
+        }
+        // 先写临时文件再改名，进程中途退出也不会留下不完整的证书
+        File file = fileFor(host);
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("无法创建目录 " + directory);
+            }
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(certificate.getEncoded());
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("重命名失败");
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            Log.w(TAG, "保存证书失败: " + host + " " + e.getMessage());
+            temp.delete();
+        }
+    }
+
+    private void deleteFile(String host) {
+        if (directory != null) {
+            fileFor(host).delete();
+        }
+    }
+
+    /**
+     * 文件名取主机名的SHA-1，避免主机名中的特殊字符
+     */
+    private File fileFor(String host) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(host.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + FILE_SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(directory, name.append(FILE_SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.packetcapture.proxy;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * 按SNI选择叶子证书的KeyManager，所有主机共用一个服务端SSLContext
+ * 别名就是主机名：握手时从ClientHello的SNI取得主机名，证书链由CertificateManager按需签发，
+ * 私钥是所有叶子证书共用的那一个。客户端没有发送SNI时使用握手前为该连接登记的主机名。
+ */
+final class LeafKeyManager extends X509ExtendedKeyManager {
+    private final CertificateManager certificateManager;
+    private final String keyAlgorithm;
+    // 没有SNI时使用的主机名，只在握手期间登记
+    private final Map<Socket, String> defaultHosts = new ConcurrentHashMap<>();
+
+    LeafKeyManager(CertificateManager certificateManager, String keyAlgorithm) {
+        this.certificateManager = certificateManager;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /**
+     * 登记客户端没有发送SNI时使用的主机名，握手结束后须调用clearDefaultHost
+     */
+    void setDefaultHost(Socket socket, String host) {
+        defaultHosts.put(socket, host);
+    }
+
+    void clearDefaultHost(Socket socket) {
+        defaultHosts.remove(socket);
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        if (!matchesKeyType(keyType)) {
+            return null;
+        }
+        String host = null;
+        if (socket instanceof SSLSocket) {
+            host = serverName(((SSLSocket) socket).getHandshakeSession());
+        }
+        if (host == null && socket != null) {
+            host = defaultHosts.get(socket);
+        }
+        return host != null ? host.toLowerCase(Locale.ROOT) : null;
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        if (!matchesKeyType(keyType) || engine == null) {
+            return null;
+        }
+        String host = serverName(engine.getHandshakeSession());
+        return host != null ? host.toLowerCase(Locale.ROOT) : null;
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        return certificateManager.getCertificateChain(alias);
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        return certificateManager.getLeafPrivateKey();
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        // 别名随主机动态产生，无法列举
+        return null;
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return null;
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+        return null;
+    }
+
+    /**
+     * 协议要求的密钥类型，如RSA、EC或EC_RSA（由RSA签名的EC证书）；RSASSA-PSS专用密钥不匹配RSA密钥
+     */
+    private boolean matchesKeyType(String keyType) {
+        return keyType != null && (keyType.equals(keyAlgorithm) || keyType.startsWith(keyAlgorithm + "_"));
+    }
+
+    private static String serverName(SSLSession session) {
+        if (!(session instanceof ExtendedSSLSession)) {
+            return null;
+        }
+        for (SNIServerName name : ((ExtendedSSLSession) session).getRequestedServerNames()) {
+            if (name instanceof SNIHostName) {
+                return ((SNIHostName) name).getAsciiName();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,824 @@
+package com.example.packetcapture.proxy;
+
+import android.util.Log;
+
+import com.example.packetcapture.rewrite.BodyStage;
+import com.example.packetcapture.rewrite.RewritePipeline;
+import com.example.packetcapture.tunnel.DnsCache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+
+/**
+ * 非阻塞模式下的单个代理连接
+ * 整个生命周期都在同一个SelectorWorker线程上推进：
+ * READING_HEAD 读取请求头 -> RESOLVING 在解析线程上查询DNS -> CONNECTING 连接上游 -> RELAYING 双向转发。
+ * CONNECT请求和透明重定向的非80端口连接在上游连上后交给TunnelRelay转发；普通HTTP请求
+ * 改写为源站形式后转发，请求和响应都由HttpParser增量解析，只转发到消息结束为止。
+ * 命中重写规则的消息体解码后流过重写处理链，再由ReframingOutputStream重新分帧，其余消息边收边发。
+ * 客户端要求保持连接时，响应结束后回到READING_HEAD处理下一个（可能已经流水线发来的）请求，
+ * 上游连接则每个请求单独建立。两个方向各有一个缓冲区，缓冲区满时取消对应一侧的读事件，以此实现背压。
+ * 开启HTTPS解密时，CONNECT请求连同客户端通道转交给阻塞模式的ProxyConnectionHandler处理。
+ */
+class NioProxyConnection implements SelectorWorker.Handler {
+    private static final String TAG = "NioProxyConnection";
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEAD_SIZE = HttpHead.DEFAULT_MAX_HEAD_SIZE;
+    // 重新分块时每块额外占用的长度行和CRLF
+    private static final int CHUNK_OVERHEAD = 16;
+    private static final byte[] CONNECT_ESTABLISHED =
+            "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    enum State {
+        READING_HEAD,
+        RESOLVING,
+        CONNECTING,
+        RELAYING,
+        CLOSED
+    }
+
+    /**
+     * 接收需要解密的CONNECT连接
+     */
+    interface TlsHandoff {
+        /**
+         * 当前是否开启了解密
+         */
+        boolean isEnabled();
+
+        /**
+         * 在其他线程上以阻塞模式继续处理连接，调用时通道已切换为阻塞模式
+         * @param pending CONNECT请求之后客户端已经发出的数据
+         */
+        void handOff(SocketChannel client, HttpHead connectRequest, byte[] pending);
+    }
+
+    // 响应体的转发方式
+    private static final int RESPONSE_HEAD = 0;
+    private static final int RESPONSE_RAW = 1;
+    private static final int RESPONSE_REWRITE = 2;
+
+    private final SelectorWorker worker;
+    private final SocketChannel client;
+    private final HttpsInterceptor interceptor;
+    private final Executor resolver;
+    private final BufferPool bufferPool;
+    private final int maxBufferedBodySize;
+    private final TlsHandoff tlsHandoff;
+    private final HttpParser requestParser = new HttpParser(true, MAX_HEAD_SIZE);
+    // VPN内DNS应答的缓存，命中时不必再经解析线程
+    private DnsCache dnsCache;
+
+    private State state = State.READING_HEAD;
+    private SelectionKey clientKey;
+    private SocketChannel upstream;
+    private SelectionKey upstreamKey;
+
+    // 所有缓冲区都处于写入模式，数据位于[0, position)
+    private final ByteBuffer clientInput = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer clientToUpstream;
+    private ByteBuffer upstreamInput;
+    private ByteBuffer upstreamToClient;
+
+    private boolean clientEof;
+    private boolean upstreamEof;
+
+    // 隧道：上游连上后交给TunnelRelay，以下为需要先发出的数据
+    private boolean tunnel;
+    private ByteBuffer pendingToClient;
+    private ByteBuffer pendingToUpstream;
+
+    // 当前请求的转发状态
+    private String requestUrl;
+    private boolean keepAlive;
+    // 客户端是否支持分块编码
+    private boolean clientChunked;
+    private boolean requestComplete;
+    private HttpParser responseParser;
+    private int responseMode;
+    private boolean interimResponse;
+    private boolean responseComplete;
+    // 命中重写规则时的消息体处理链和重新分帧后的输出
+    private BodyStage requestStage;
+    private ReframingOutputStream requestBody;
+    private RewritePipeline responsePipeline;
+    // 给HTTP/1.0客户端解开分块编码时只重新分帧，responseStage为null
+    private BodyStage responseStage;
+    private ReframingOutputStream responseBody;
+
+    /**
+     * @param tlsHandoff 接收需要解密的连接，为null时CONNECT一律隧道转发
+     */
+    NioProxyConnection(SelectorWorker worker, SocketChannel client, HttpsInterceptor interceptor, Executor resolver,
+                       BufferPool bufferPool, int maxBufferedBodySize, TlsHandoff tlsHandoff) {
+        this.worker = worker;
+        this.client = client;
+        this.interceptor = interceptor;
+        this.resolver = resolver;
+        this.bufferPool = bufferPool;
+        this.maxBufferedBodySize = maxBufferedBodySize;
+        this.tlsHandoff = tlsHandoff;
+    }
+
+    /**
+     * 设置解析上游主机名时优先使用的DNS缓存，需在start之前调用
+     */
+    void setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+    }
+
+    /**
+     * 在工作线程上开始处理连接
+     * @param originalDestination 透明重定向连接的原始目标，普通代理连接为null
+     */
+    void start(InetSocketAddress originalDestination) {
+        try {
+            clientKey = worker.register(client, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+
+        if (originalDestination != null && originalDestination.getPort() != 80) {
+            // 透明重定向的隧道，不需要读取请求头
+            tunnel = true;
+            connect(originalDestination);
+        }
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) throws IOException {
+        if (key == clientKey) {
+            if (key.isReadable()) {
+                onClientReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                onClientWritable();
+            }
+        } else if (key == upstreamKey) {
+            if (key.isConnectable()) {
+                onUpstreamConnectable();
+                if (state == State.CLOSED) {
+                    return;
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                onUpstreamWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                onUpstreamReadable();
+            }
+        }
+        process();
+        updateInterest();
+    }
+
+    private void onClientReadable() throws IOException {
+        int read = client.read(clientInput);
+        if (read < 0) {
+            clientEof = true;
+            keepAlive = false;
+            if (state == State.READING_HEAD || (state == State.RELAYING && !requestComplete)) {
+                // 请求还没有读完整，无法继续
+                close();
+            }
+        }
+    }
+
+    /**
+     * 解析缓冲区中已有的数据并在各缓冲区之间搬运，每次有事件发生后调用
+     */
+    private void process() throws IOException {
+        while (true) {
+            if (state == State.READING_HEAD) {
+                readRequestHead();
+            }
+            if (state != State.RELAYING) {
+                return;
+            }
+            forwardRequestBody();
+            forwardResponse();
+            if (state != State.RELAYING || !responseComplete || upstreamToClient.position() > 0) {
+                return;
+            }
+            // 响应已经全部发出
+            if (!keepAlive || !requestComplete) {
+                close();
+                return;
+            }
+            finishExchange();
+        }
+    }
+
+    private void readRequestHead() {
+        int event;
+        clientInput.flip();
+        try {
+            event = requestParser.parse(clientInput);
+        } catch (HttpParser.HeadTooLargeException e) {
+            sendErrorAndClose(431, "Request Header Fields Too Large");
+            return;
+        } catch (HttpParser.HttpParseException e) {
+            Log.w(TAG, "无效的HTTP请求: " + e.getMessage());
+            sendErrorAndClose(400, "Bad Request");
+            return;
+        } finally {
+            clientInput.compact();
+        }
+        if (event == HttpParser.HEAD) {
+            onRequestHead(requestParser.getHead());
+        }
+    }
+
+    private void onRequestHead(HttpHead request) {
+        String method = request.getMethod();
+        String target = request.getTarget();
+
+        if ("CONNECT".equalsIgnoreCase(method)) {
+            int colon = target.lastIndexOf(':');
+            String host = target;
+            int port = 443;
+            if (colon > 0 && target.indexOf(']', colon) < 0) {
+                host = target.substring(0, colon);
+                port = parsePort(target.substring(colon + 1), 443);
+            }
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+
+            // CONNECT之后客户端已经发出的数据（通常没有）保留下来转发给上游
+            clientInput.flip();
+            byte[] pending = new byte[clientInput.remaining()];
+            clientInput.get(pending);
+            clientInput.clear();
+            if (tlsHandoff != null && tlsHandoff.isEnabled()) {
+                handOffTls(request, pending);
+                return;
+            }
+            tunnel = true;
+            pendingToClient = ByteBuffer.wrap(CONNECT_ESTABLISHED);
+            pendingToUpstream = ByteBuffer.wrap(pending);
+            resolveAndConnect(host, port);
+            return;
+        }
+
+        String host;
+        int port = 80;
+        String path = target;
+        if (target.startsWith("/")) {
+            String hostHeader = request.get("Host");
+            if (hostHeader == null) {
+                sendErrorAndClose(400, "Bad Request");
+                return;
+            }
+            int colon = hostHeader.lastIndexOf(':');
+            if (colon > 0 && hostHeader.indexOf(']', colon) < 0) {
+                host = hostHeader.substring(0, colon);
+                port = parsePort(hostHeader.substring(colon + 1), 80);
+            } else {
+                host = hostHeader;
+            }
+        } else {
+            try {
+                URI uri = new URI(target);
+                if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+                    sendErrorAndClose(400, "Bad Request");
+                    return;
+                }
+                host = uri.getHost();
+                port = uri.getPort() > 0 ? uri.getPort() : 80;
+                path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+                if (uri.getRawQuery() != null) {
+                    path += "?" + uri.getRawQuery();
+                }
+            } catch (URISyntaxException e) {
+                sendErrorAndClose(400, "Bad Request");
+                return;
+            }
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        String authority = (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + (port == 80 ? "" : ":" + port);
+
+        // 重建请求头：源站形式的请求行，去掉逐跳头部，上游连接每个请求单独建立
+        HttpHead upstreamRequest = new HttpHead(method, path, "HTTP/1.1");
+        for (int i = 0; i < request.size(); i++) {
+            upstreamRequest.add(request.getName(i), request.getValue(i));
+        }
+        upstreamRequest.removeHopByHopHeaders();
+        if (upstreamRequest.get("Host") == null) {
+            upstreamRequest.add("Host", authority);
+        }
+
+        requestUrl = "http://" + authority + path;
+        RewritePipeline requestPipeline = interceptor.getRequestPipeline(requestUrl);
+        requestStage = requestPipeline != null
+                ? requestPipeline.apply(upstreamRequest, !requestParser.hasNoBody(), maxBufferedBodySize) : null;
+        responsePipeline = interceptor.getResponsePipeline(requestUrl);
+        if (responsePipeline != null) {
+            responsePipeline.limitAcceptEncoding(upstreamRequest);
+        }
+        upstreamRequest.set("Connection", "close");
+        keepAlive = !clientEof && isKeepAlive(request, request.getRequestVersion());
+        clientChunked = "HTTP/1.1".equals(request.getRequestVersion());
+        requestComplete = false;
+        responseParser = new HttpParser(false, MAX_HEAD_SIZE);
+        responseParser.setRequestMethod(method);
+        responseMode = RESPONSE_HEAD;
+        interimResponse = false;
+        responseComplete = false;
+
+        upstreamInput = ByteBuffer.allocate(BUFFER_SIZE);
+        upstreamToClient = ByteBuffer.allocate(BUFFER_SIZE);
+        if (requestStage != null) {
+            // 请求头要等确定了改写后的分帧方式才能发出，客户端的100 Continue由代理直接答复
+            if (request.hasToken("Expect", "100-continue")) {
+                upstreamRequest.remove("Expect");
+                queueToClient(CONTINUE_RESPONSE);
+            }
+            clientToUpstream = ByteBuffer.allocate(BUFFER_SIZE);
+            requestBody = new ReframingOutputStream(upstreamRequest, new QueueStream(false),
+                    ReframingOutputStream.DEFAULT_THRESHOLD, true);
+        } else {
+            byte[] headBytes = upstreamRequest.toBytes();
+            clientToUpstream = ByteBuffer.allocate(Math.max(BUFFER_SIZE, headBytes.length));
+            clientToUpstream.put(headBytes);
+        }
+
+        resolveAndConnect(host, port);
+    }
+
+    /**
+     * 把CONNECT连接转交给阻塞模式处理，本对象不再处理任何事件
+     * 通道注册在Selector上时不能切换为阻塞模式，取消的键要到下一次select时才注销，因此转交放在之后的任务中进行。
+     */
+    private void handOffTls(final HttpHead request, final byte[] pending) {
+        state = State.CLOSED;
+        clientKey.cancel();
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.configureBlocking(true);
+                } catch (IOException e) {
+                    Log.w(TAG, "切换为阻塞模式失败: " + e.getMessage());
+                    closeQuietly(null, client);
+                    return;
+                }
+                tlsHandoff.handOff(client, request, pending);
+            }
+        });
+    }
+
+    /**
+     * 当前请求的响应已经发完，关闭上游连接，准备读取下一个请求
+     */
+    private void finishExchange() {
+        closeQuietly(upstreamKey, upstream);
+        upstreamKey = null;
+        upstream = null;
+        upstreamEof = false;
+        clientToUpstream = null;
+        upstreamInput = null;
+        upstreamToClient = null;
+        responseParser = null;
+        requestUrl = null;
+        closeStages();
+        requestBody = null;
+        responsePipeline = null;
+        responseBody = null;
+        state = State.READING_HEAD;
+    }
+
+    /**
+     * 释放没有走到finish的处理链，其中的压缩器持有本地内存
+     */
+    private void closeStages() {
+        if (requestStage != null) {
+            requestStage.close();
+            requestStage = null;
+        }
+        if (responseStage != null) {
+            responseStage.close();
+            responseStage = null;
+        }
+    }
+
+    private void resolveAndConnect(final String host, final int port) {
+        InetAddress cached = dnsCache != null ? dnsCache.lookup(host) : null;
+        if (cached != null) {
+            connect(new InetSocketAddress(cached, port));
+            return;
+        }
+        state = State.RESOLVING;
+        // DNS查询可能阻塞，交给解析线程完成后再回到工作线程
+        resolver.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final InetAddress address = InetAddress.getByName(host);
+                    worker.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            connect(new InetSocketAddress(address, port));
+                        }
+                    });
+                } catch (UnknownHostException e) {
+                    worker.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendErrorAndClose(502, "Bad Gateway");
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void connect(InetSocketAddress destination) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CONNECTING;
+        try {
+            upstream = SocketChannel.open();
+            upstream.configureBlocking(false);
+            upstream.socket().setTcpNoDelay(true);
+            if (upstream.connect(destination)) {
+                upstreamKey = worker.register(upstream, 0, this);
+                onConnected();
+                process();
+            } else {
+                upstreamKey = worker.register(upstream, SelectionKey.OP_CONNECT, this);
+            }
+            updateInterest();
+        } catch (IOException e) {
+            Log.w(TAG, "连接上游失败: " + destination + " " + e.getMessage());
+            if (state == State.RELAYING) {
+                close();
+            } else {
+                sendErrorAndClose(502, "Bad Gateway");
+            }
+        }
+    }
+
+    private void onUpstreamConnectable() {
+        try {
+            if (upstream.finishConnect()) {
+                onConnected();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "连接上游失败: " + e.getMessage());
+            sendErrorAndClose(502, "Bad Gateway");
+        }
+    }
+
+    private void onConnected() {
+        if (!tunnel) {
+            state = State.RELAYING;
+            return;
+        }
+        // 隧道交给TunnelRelay，沿用已注册的SelectionKey，本对象不再处理任何事件
+        state = State.CLOSED;
+        new TunnelRelay(worker, bufferPool, client, upstream).start(pendingToClient, pendingToUpstream);
+        pendingToClient = null;
+        pendingToUpstream = null;
+    }
+
+    private void onUpstreamWritable() throws IOException {
+        clientToUpstream.flip();
+        upstream.write(clientToUpstream);
+        clientToUpstream.compact();
+    }
+
+    private void onUpstreamReadable() throws IOException {
+        if (upstream.read(upstreamInput) < 0) {
+            upstreamEof = true;
+        }
+    }
+
+    private void onClientWritable() throws IOException {
+        upstreamToClient.flip();
+        client.write(upstreamToClient);
+        upstreamToClient.compact();
+    }
+
+    /**
+     * 把已读到的请求体搬到发往上游的缓冲区，到请求结束为止；之后的数据属于下一个请求
+     * 不需要改写时原样搬运，否则解码后流过处理链再重新分帧。
+     */
+    private void forwardRequestBody() throws IOException {
+        if (requestComplete) {
+            return;
+        }
+        clientInput.flip();
+        int limit = clientInput.limit();
+        try {
+            while (true) {
+                int start = clientInput.position();
+                int room = requestStage != null
+                        ? Math.max(0, clientToUpstream.remaining() - CHUNK_OVERHEAD) : clientToUpstream.remaining();
+                clientInput.limit(Math.min(limit, start + room));
+                int event = requestParser.parse(clientInput);
+                clientInput.limit(limit);
+                if (requestStage == null) {
+                    clientToUpstream.put(clientInput.array(), start, clientInput.position() - start);
+                } else if (event == HttpParser.BODY) {
+                    requestStage.write(clientInput.array(), requestParser.getBodyOffset(),
+                            requestParser.getBodyLength(), requestBody);
+                }
+                if (event == HttpParser.COMPLETE) {
+                    if (requestStage != null) {
+                        requestStage.finish(requestBody);
+                        requestBody.finish();
+                        requestStage.close();
+                        requestStage = null;
+                        requestBody = null;
+                    }
+                    requestComplete = true;
+                    return;
+                }
+                if (event == HttpParser.NEED_MORE) {
+                    return;
+                }
+            }
+        } finally {
+            clientInput.limit(limit);
+            clientInput.compact();
+        }
+    }
+
+    /**
+     * 解析上游响应并按当前的转发方式写入发往客户端的缓冲区
+     */
+    private void forwardResponse() throws IOException {
+        if (responseComplete) {
+            return;
+        }
+        upstreamInput.flip();
+        int limit = upstreamInput.limit();
+        try {
+            while (!responseComplete && state == State.RELAYING) {
+                int start = upstreamInput.position();
+                int mode = responseMode;
+                // 只有直接写给客户端的数据受客户端缓冲区大小限制
+                if (mode == RESPONSE_RAW) {
+                    upstreamInput.limit(Math.min(limit, start + upstreamToClient.remaining()));
+                } else if (mode == RESPONSE_REWRITE) {
+                    upstreamInput.limit(Math.min(limit,
+                            start + Math.max(0, upstreamToClient.remaining() - CHUNK_OVERHEAD)));
+                }
+                int event = responseParser.parse(upstreamInput);
+                upstreamInput.limit(limit);
+                if (mode == RESPONSE_RAW) {
+                    queueToClient(upstreamInput.array(), start, upstreamInput.position() - start);
+                }
+
+                if (event == HttpParser.HEAD) {
+                    onResponseHead(responseParser.getHead());
+                } else if (event == HttpParser.BODY) {
+                    onResponseBody(mode);
+                } else if (event == HttpParser.COMPLETE) {
+                    onResponseComplete();
+                } else {
+                    if (upstreamEof && !upstreamInput.hasRemaining()) {
+                        if (responseParser.finish() == HttpParser.COMPLETE) {
+                            onResponseComplete();
+                        } else {
+                            // 上游没有返回响应就关闭了连接
+                            close();
+                        }
+                    }
+                    return;
+                }
+            }
+        } finally {
+            upstreamInput.limit(limit);
+            upstreamInput.compact();
+        }
+    }
+
+    private void onResponseHead(HttpHead response) {
+        if (response.getStatusCode() < 200) {
+            // 100 Continue等临时响应原样转发，之后还有最终响应
+            interimResponse = true;
+            queueToClient(response.toBytes());
+            return;
+        }
+        response.removeHopByHopHeaders();
+        responseStage = responsePipeline != null
+                ? responsePipeline.apply(response, !responseParser.hasNoBody(), maxBufferedBodySize) : null;
+        if (responseStage != null) {
+            // 改写后重新分帧，原来以关闭连接结束的响应也可以保持客户端连接
+            response.set("Connection", keepAlive ? "keep-alive" : "close");
+            responseBody = new ReframingOutputStream(response, new QueueStream(true),
+                    ReframingOutputStream.DEFAULT_THRESHOLD, clientChunked);
+            responseMode = RESPONSE_REWRITE;
+            return;
+        }
+        if (responseParser.isChunked() && !clientChunked) {
+            // HTTP/1.0客户端不认识分块编码：解码后不经处理链直接重新分帧
+            response.set("Connection", keepAlive ? "keep-alive" : "close");
+            responseBody = new ReframingOutputStream(response, new QueueStream(true),
+                    ReframingOutputStream.DEFAULT_THRESHOLD, false);
+            responseMode = RESPONSE_REWRITE;
+            return;
+        }
+        sendResponseHead(response);
+        responseMode = RESPONSE_RAW;
+    }
+
+    private void sendResponseHead(HttpHead response) {
+        // 以连接关闭结束的响应，客户端连接也只能随之关闭
+        if (responseParser.isUntilEof()) {
+            keepAlive = false;
+        }
+        response.set("Connection", keepAlive ? "keep-alive" : "close");
+        queueToClient(response.toBytes());
+    }
+
+    private void onResponseBody(int mode) throws IOException {
+        if (mode != RESPONSE_REWRITE) {
+            return;
+        }
+        if (responseStage != null) {
+            responseStage.write(upstreamInput.array(), responseParser.getBodyOffset(),
+                    responseParser.getBodyLength(), responseBody);
+        } else {
+            responseBody.write(upstreamInput.array(), responseParser.getBodyOffset(), responseParser.getBodyLength());
+        }
+    }
+
+    private void onResponseComplete() throws IOException {
+        if (interimResponse) {
+            interimResponse = false;
+            return;
+        }
+        if (responseMode == RESPONSE_REWRITE) {
+            if (responseStage != null) {
+                responseStage.finish(responseBody);
+            }
+            responseBody.finish();
+            if (responseBody.isCloseDelimited()) {
+                keepAlive = false;
+            }
+            if (responseStage != null) {
+                responseStage.close();
+                responseStage = null;
+            }
+            responseBody = null;
+        }
+        responseComplete = true;
+    }
+
+    private void queueToClient(byte[] data) {
+        queueToClient(data, 0, data.length);
+    }
+
+    /**
+     * 写入发往客户端的缓冲区，放不下时扩大缓冲区（只在写出头部或改写后的消息体时发生）
+     */
+    private void queueToClient(byte[] data, int offset, int length) {
+        upstreamToClient = append(upstreamToClient, data, offset, length);
+    }
+
+    private static ByteBuffer append(ByteBuffer target, byte[] data, int offset, int length) {
+        if (target.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(target.position() + length);
+            target.flip();
+            larger.put(target);
+            target = larger;
+        }
+        target.put(data, offset, length);
+        return target;
+    }
+
+    /**
+     * 把改写后的消息写入发往客户端或上游的缓冲区
+     */
+    private final class QueueStream extends OutputStream {
+        private final boolean toClient;
+
+        QueueStream(boolean toClient) {
+            this.toClient = toClient;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            if (toClient) {
+                queueToClient(data, offset, length);
+            } else {
+                clientToUpstream = append(clientToUpstream, data, offset, length);
+            }
+        }
+    }
+
+    private void updateInterest() {
+        if (state == State.CLOSED) {
+            return;
+        }
+
+        int clientOps = 0;
+        if (!clientEof && clientInput.hasRemaining()
+                && (state == State.READING_HEAD || (state == State.RELAYING && !requestComplete))) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if (state == State.RELAYING && upstreamToClient.position() > 0) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        if (clientKey != null && clientKey.isValid()) {
+            clientKey.interestOps(clientOps);
+        }
+
+        if (upstreamKey != null && upstreamKey.isValid()) {
+            int upstreamOps = 0;
+            if (state == State.CONNECTING) {
+                upstreamOps = SelectionKey.OP_CONNECT;
+            } else if (state == State.RELAYING) {
+                if (!upstreamEof && !responseComplete && upstreamInput.hasRemaining()) {
+                    upstreamOps |= SelectionKey.OP_READ;
+                }
+                if (clientToUpstream.position() > 0) {
+                    upstreamOps |= SelectionKey.OP_WRITE;
+                }
+            }
+            upstreamKey.interestOps(upstreamOps);
+        }
+    }
+
+    /**
+     * HTTP/1.1默认保持连接，HTTP/1.0需要显式的keep-alive
+     */
+    private static boolean isKeepAlive(HttpHead head, String version) {
+        if (head.hasToken("Connection", "close")) {
+            return false;
+        }
+        return "HTTP/1.1".equals(version) || head.hasToken("Connection", "keep-alive");
+    }
+
+    private void sendErrorAndClose(int status, String reason) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (state == State.READING_HEAD || state == State.RESOLVING || state == State.CONNECTING) {
+            byte[] response = ("HTTP/1.1 " + status + " " + reason
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            try {
+                // 尽力写出，写不完也直接关闭
+                client.write(ByteBuffer.wrap(response));
+            } catch (IOException e) {
+                Log.w(TAG, "写入错误响应失败: " + e.getMessage());
+            }
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        closeQuietly(clientKey, client);
+        closeQuietly(upstreamKey, upstream);
+        closeStages();
+    }
+
+    private static void closeQuietly(SelectionKey key, SocketChannel channel) {
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "关闭通道时出错: " + e.getMessage());
+            }
+        }
+    }
+
+    private static int parsePort(String value, int defaultPort) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultPort;
+        }
+    }
+}
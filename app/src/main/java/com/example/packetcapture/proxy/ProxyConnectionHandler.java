@@ -3,253 +3,720 @@ package com.example.packetcapture.proxy;
 import android.util.Log;
 
 import com.example.packetcapture.config.RewriteConfig;
+import com.example.packetcapture.rewrite.BodyStage;
+import com.example.packetcapture.rewrite.RewritePipeline;
+import com.example.packetcapture.tunnel.DnsCache;
+import com.example.packetcapture.tunnel.RedirectTable;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.URL;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLSocket;
 
 public class ProxyConnectionHandler implements Runnable {
     private static final String TAG = "ProxyConnectionHandler";
-    private static final Pattern HTTP_REQUEST_PATTERN = Pattern.compile("^(GET|POST|PUT|DELETE|HEAD|OPTIONS|TRACE|CONNECT)\\s+(\\S+)\\s+HTTP/\\d\\.\\d$");
+    // 持久连接上两个请求之间允许的最长空闲时间
+    private static final int CLIENT_IDLE_TIMEOUT_MS = 60 * 1000;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONNECT_ESTABLISHED =
+            "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // 等待ClientHello的最长时间，超时说明不是客户端先发言的协议，改为隧道转发
+    private static final int CLIENT_HELLO_TIMEOUT_MS = 3 * 1000;
     
     private Socket clientSocket;
     private RewriteConfig rewriteConfig;
     private HttpsInterceptor httpsInterceptor;
+    private RedirectTable redirectTable;
+    private SelectorWorker relayWorker;
+    private BufferPool bufferPool;
+    private UpstreamConnectionPool connectionPool;
+    // 为null时HTTPS一律隧道转发
+    private TlsInterceptor tlsInterceptor;
+    // 处理HTTP/2流的线程池，未设置时每个HTTP/2连接使用自己的线程池
+    private ExecutorService streamExecutor;
+    // VPN内DNS应答的缓存，为null时由系统解析
+    private DnsCache dnsCache;
+    // 未设置共享连接池时使用的私有连接池，只在本客户端连接内复用
+    private boolean ownsConnectionPool;
+    private int maxBufferedBodySize;
+    // 隧道已交给工作线程转发，客户端套接字不再由本线程关闭
+    private boolean handedOff;
     
     public ProxyConnectionHandler(Socket clientSocket, RewriteConfig rewriteConfig) {
+        this(clientSocket, rewriteConfig, null);
+    }
+    
+    public ProxyConnectionHandler(Socket clientSocket, RewriteConfig rewriteConfig, RedirectTable redirectTable) {
         this.clientSocket = clientSocket;
         this.rewriteConfig = rewriteConfig;
         this.httpsInterceptor = new HttpsInterceptor(rewriteConfig);
+        this.redirectTable = redirectTable;
+        this.maxBufferedBodySize = rewriteConfig != null
+                ? rewriteConfig.getMaxBufferedBodySize() : RewriteConfig.DEFAULT_MAX_BUFFERED_BODY_SIZE;
+    }
+    
+    /**
+     * 设置隧道转发使用的工作线程和缓冲区池
+     * 未设置或客户端套接字不带通道时，隧道退回到双线程流式转发
+     */
+    void setRelay(SelectorWorker relayWorker, BufferPool bufferPool) {
+        this.relayWorker = relayWorker;
+        this.bufferPool = bufferPool;
+    }
+    
+    /**
+     * 设置所有连接共享的上游连接池
+     */
+    void setConnectionPool(UpstreamConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+    
+    /**
+     * 设置HTTPS解密使用的证书和范围
+     */
+    void setTlsInterceptor(TlsInterceptor tlsInterceptor) {
+        this.tlsInterceptor = tlsInterceptor;
+    }
+    
+    /**
+     * 设置处理解密后HTTP/2流的共享线程池，必须有界；未设置时协商出的HTTP/2连接会被关闭
+     */
+    void setStreamExecutor(ExecutorService streamExecutor) {
+        this.streamExecutor = streamExecutor;
+    }
+    
+    /**
+     * 设置连接上游时优先使用的DNS缓存
+     */
+    void setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
     }
     
     @Override
     public void run() {
+        serve(null, null);
+    }
+    
+    /**
+     * 处理非阻塞模式转交过来的CONNECT请求，客户端通道须已切换为阻塞模式
+     * @param pending CONNECT请求之后客户端已经发出的数据
+     */
+    void runConnect(HttpHead request, byte[] pending) {
+        serve(request, pending);
+    }
+    
+    private void serve(HttpHead connectRequest, byte[] pending) {
+        if (connectionPool == null) {
+            connectionPool = new UpstreamConnectionPool();
+            connectionPool.setDnsCache(dnsCache);
+            ownsConnectionPool = true;
+        }
         try {
             InputStream clientInput = clientSocket.getInputStream();
-            OutputStream clientOutput = clientSocket.getOutputStream();
-            
-            // 解析HTTP请求
-            BufferedReader reader = new BufferedReader(new InputStreamReader(clientInput));
-            String requestLine = reader.readLine();
-            
-            if (requestLine == null) {
-                closeQuietly(clientSocket);
+            OutputStream clientOutput = new BufferedOutputStream(clientSocket.getOutputStream());
+            if (connectRequest != null) {
+                handleHttpsConnect(connectRequest, pending, clientInput, clientOutput);
                 return;
             }
             
-            Matcher matcher = HTTP_REQUEST_PATTERN.matcher(requestLine);
-            if (!matcher.matches()) {
-                Log.w(TAG, "无效的HTTP请求: " + requestLine);
-                closeQuietly(clientSocket);
+            // 由VPN透明重定向过来的连接，可以直接查到原始目标
+            InetSocketAddress originalDestination = null;
+            if (redirectTable != null) {
+                originalDestination = redirectTable.lookup(clientSocket.getPort());
+            }
+            if (originalDestination != null && originalDestination.getPort() != 80) {
+                handleTransparentTunnel(originalDestination, clientInput, clientOutput);
                 return;
             }
             
-            String method = matcher.group(1);
-            String requestUrl = matcher.group(2);
+            BlockingHttpReader clientReader = new BlockingHttpReader(clientInput,
+                    new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE), READ_BUFFER_SIZE);
+            clientSocket.setSoTimeout(CLIENT_IDLE_TIMEOUT_MS);
+            String defaultAuthority = originalDestination != null
+                    ? originalDestination.getAddress().getHostAddress() + ":" + originalDestination.getPort() : null;
+            HttpHead request = serveRequests(clientReader, clientOutput, defaultAuthority, false);
             
             // 如果是CONNECT方法（HTTPS隧道），处理HTTPS连接
-            if ("CONNECT".equalsIgnoreCase(method)) {
-                handleHttpsConnect(requestLine, reader, clientInput, clientOutput);
-                return;
+            if (request != null) {
+                clientSocket.setSoTimeout(0);
+                handleHttpsConnect(request, clientReader.drainBuffered(), clientInput, clientOutput);
             }
-            
-            // 处理普通HTTP请求
-            handleHttpRequest(method, requestUrl, reader, clientOutput);
-            
         } catch (IOException e) {
             Log.e(TAG, "处理代理连接时出错", e);
         } finally {
-            closeQuietly(clientSocket);
+            if (ownsConnectionPool) {
+                connectionPool.close();
+            }
+            if (!handedOff) {
+                closeQuietly(clientSocket);
+            }
         }
     }
     
-    private void handleHttpRequest(String method, String requestUrl, BufferedReader reader, OutputStream clientOutput) throws IOException {
-        // 解析请求头
-        Map<String, String> headers = new HashMap<>();
-        String line;
-        while ((line = reader.readLine()) != null && !line.isEmpty()) {
-            int colonIndex = line.indexOf(':');
-            if (colonIndex > 0) {
-                String key = line.substring(0, colonIndex).trim();
-                String value = line.substring(colonIndex + 1).trim();
-                headers.put(key, value);
+    /**
+     * 持久连接：依次处理同一连接上的请求（包括流水线请求），直到任一方要求关闭
+     * @param defaultAuthority 请求没有Host头时使用的目标，可为null
+     * @param tls 是否是解密后的HTTPS连接
+     * @return 明文连接上收到的CONNECT请求，需要随后建立隧道；其余情况返回null
+     */
+    private HttpHead serveRequests(BlockingHttpReader clientReader, OutputStream clientOutput,
+                                   String defaultAuthority, boolean tls) throws IOException {
+        while (true) {
+            HttpHead request;
+            try {
+                request = clientReader.readHead();
+            } catch (SocketTimeoutException e) {
+                return null;
+            } catch (HttpParser.HeadTooLargeException e) {
+                sendError(clientOutput, 431, "Request Header Fields Too Large");
+                return null;
+            } catch (HttpParser.HttpParseException e) {
+                Log.w(TAG, "无效的HTTP请求: " + e.getMessage());
+                sendError(clientOutput, 400, "Bad Request");
+                return null;
+            }
+            if (request == null) {
+                return null;
+            }
+            if (!tls && "CONNECT".equalsIgnoreCase(request.getMethod())) {
+                return request;
+            }
+            
+            // 处理普通HTTP请求
+            if (!handleHttpRequest(request, clientReader, clientOutput, defaultAuthority, tls)) {
+                return null;
             }
         }
+    }
+    
+    /**
+     * 转发一个普通HTTP请求及其响应
+     * @param defaultAuthority 请求没有Host头时使用的目标，可为null
+     * @param tls 请求来自解密后的HTTPS连接，上游同样使用TLS
+     * @return 客户端连接是否可以继续处理下一个请求
+     */
+    private boolean handleHttpRequest(HttpHead request, BlockingHttpReader clientReader, OutputStream clientOutput,
+                                      String defaultAuthority, boolean tls) throws IOException {
+        String method = request.getMethod();
+        String target = request.getTarget();
+        String scheme = tls ? "https" : "http";
+        int defaultPort = tls ? 443 : 80;
+        String host;
+        int port = defaultPort;
+        String path;
         
-        // 创建连接到目标服务器的请求
-        URL url = new URL(requestUrl);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod(method);
-        
-        // 设置请求头
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            connection.setRequestProperty(entry.getKey(), entry.getValue());
-        }
-        
-        // 如果是POST等方法，需要处理请求体
-        if ("POST".equals(method) || "PUT".equals(method)) {
-            connection.setDoOutput(true);
-            int contentLength = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
-            if (contentLength > 0) {
-                byte[] buffer = new byte[contentLength];
-                int bytesRead = 0;
-                int offset = 0;
-                while (offset < contentLength && (bytesRead = reader.read(buffer, offset, contentLength - offset)) != -1) {
-                    offset += bytesRead;
+        if (target.startsWith("/")) {
+            // 透明重定向和解密后的请求只有路径，用Host头或原始目标确定目标主机
+            String hostHeader = request.get("Host");
+            if (hostHeader == null) {
+                hostHeader = defaultAuthority;
+            }
+            if (hostHeader == null) {
+                Log.w(TAG, "无法确定请求的目标主机: " + target);
+                sendError(clientOutput, 400, "Bad Request");
+                return false;
+            }
+            int colon = hostHeader.lastIndexOf(':');
+            if (colon > 0 && hostHeader.indexOf(']', colon) < 0) {
+                host = hostHeader.substring(0, colon);
+                port = parsePort(hostHeader.substring(colon + 1), defaultPort);
+            } else {
+                host = hostHeader;
+            }
+            path = target;
+        } else {
+            try {
+                URI uri = new URI(target);
+                if (!scheme.equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+                    sendError(clientOutput, 400, "Bad Request");
+                    return false;
                 }
-                
-                // 拦截请求体
-                buffer = httpsInterceptor.interceptRequest(requestUrl, buffer);
-                
-                OutputStream out = connection.getOutputStream();
-                out.write(buffer);
-                out.flush();
+                host = uri.getHost();
+                port = uri.getPort() > 0 ? uri.getPort() : defaultPort;
+                path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+                if (uri.getRawQuery() != null) {
+                    path += "?" + uri.getRawQuery();
+                }
+            } catch (URISyntaxException e) {
+                sendError(clientOutput, 400, "Bad Request");
+                return false;
             }
         }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        String authority = (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + (port == defaultPort ? "" : ":" + port);
+        String requestUrl = scheme + "://" + authority + path;
+        boolean clientKeepAlive = isKeepAlive(request, request.getRequestVersion());
+        
+        // 重建发往上游的请求：源站形式的目标，去掉逐跳头部，上游连接默认保持
+        HttpHead upstreamRequest = new HttpHead(method, path, "HTTP/1.1");
+        for (int i = 0; i < request.size(); i++) {
+            upstreamRequest.add(request.getName(i), request.getValue(i));
+        }
+        upstreamRequest.removeHopByHopHeaders();
+        if (upstreamRequest.get("Host") == null) {
+            upstreamRequest.add("Host", authority);
+        }
         
-        // 获取响应
-        int responseCode = connection.getResponseCode();
+        // 客户端在等待100 Continue时不会发送请求体，由代理直接答复
+        if (request.hasToken("Expect", "100-continue")) {
+            upstreamRequest.remove("Expect");
+            clientOutput.write(CONTINUE_RESPONSE);
+            clientOutput.flush();
+        }
         
-        // 读取原始响应体
-        byte[] responseBody;
+        // 定长且不超过上限的请求体先读入内存，上游连接失效时也可以重发；
+        // 分块编码或过大的请求体流式转发，需要改写时边改写边发送
+        HttpParser requestParser = clientReader.getParser();
+        long contentLength = requestParser.isChunked() ? -1 : request.getContentLength();
+        boolean hasRequestBody = !requestParser.hasNoBody();
+        RewritePipeline requestPipeline = httpsInterceptor.getRequestPipeline(requestUrl);
+        BodyStage requestStage = requestPipeline != null
+                ? requestPipeline.apply(upstreamRequest, hasRequestBody, maxBufferedBodySize) : null;
+        RewritePipeline responsePipeline = httpsInterceptor.getResponsePipeline(requestUrl);
+        if (responsePipeline != null) {
+            responsePipeline.limitAcceptEncoding(upstreamRequest);
+        }
+        byte[] requestBody = null;
+        HttpHead response = null;
+        UpstreamConnectionPool.Connection upstream = null;
         try {
-            InputStream in = connection.getInputStream();
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                byteArrayOutputStream.write(buffer, 0, bytesRead);
+            if (hasRequestBody && contentLength > 0 && contentLength <= maxBufferedBodySize) {
+                requestBody = clientReader.readBody((int) contentLength);
+                if (requestStage != null) {
+                    requestBody = RewritePipeline.run(requestStage, requestBody);
+                    requestStage = null;
+                }
+                upstreamRequest.set("Content-Length", String.valueOf(requestBody.length));
+                hasRequestBody = false;
             }
-            responseBody = byteArrayOutputStream.toByteArray();
-            in.close();
-        } catch (IOException e) {
-            // 处理错误响应
-            InputStream errorStream = connection.getErrorStream();
-            if (errorStream != null) {
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = errorStream.read(buffer)) != -1) {
-                    byteArrayOutputStream.write(buffer, 0, bytesRead);
+            boolean replayable = !hasRequestBody;
+            
+            // 发送请求并读取响应头；复用的连接可能已被服务器关闭，此时换一条新连接重试一次
+            while (response == null) {
+                try {
+                    upstream = connectionPool.acquire(host, port, tls);
+                } catch (IOException e) {
+                    Log.w(TAG, "连接上游失败: " + authority + " " + e.getMessage());
+                    sendError(clientOutput, 502, "Bad Gateway");
+                    return false;
                 }
-                responseBody = byteArrayOutputStream.toByteArray();
-                errorStream.close();
-            } else {
-                responseBody = new byte[0];
+                try {
+                    if (requestStage != null) {
+                        // 改写后的长度未知，由输出流决定用Content-Length还是分块编码
+                        ReframingOutputStream body = new ReframingOutputStream(upstreamRequest, upstream.out,
+                                ReframingOutputStream.DEFAULT_THRESHOLD, true);
+                        clientReader.transformBody(requestStage, body);
+                        body.finish();
+                    } else {
+                        upstream.out.write(upstreamRequest.toBytes());
+                        if (requestBody != null) {
+                            upstream.out.write(requestBody);
+                        } else if (hasRequestBody) {
+                            clientReader.copyMessage(upstream.out);
+                        }
+                    }
+                    upstream.out.flush();
+                    response = readFinalResponse(upstream.reader, method);
+                } catch (IOException e) {
+                    boolean retry = upstream.isReused() && replayable;
+                    connectionPool.discard(upstream);
+                    if (!retry) {
+                        Log.w(TAG, "转发请求失败: " + requestUrl + " " + e.getMessage());
+                        sendError(clientOutput, 502, "Bad Gateway");
+                        return false;
+                    }
+                    Log.d(TAG, "复用的上游连接已失效，重试: " + authority);
+                }
+            }
+        } finally {
+            // 请求体中途出错或上游失败时处理链没有走到finish，这里释放其中的压缩器
+            if (requestStage != null) {
+                requestStage.close();
             }
         }
+        if (requestBody == null && !hasRequestBody) {
+            // 没有请求体的消息在解析器中还停在结束状态，推进到下一条消息
+            clientReader.readBody(0);
+        }
         
-        // 拦截并修改响应体
-        responseBody = httpsInterceptor.interceptResponse(requestUrl, responseBody);
+        try {
+            boolean upstreamReusable = isKeepAlive(response, response.getResponseVersion())
+                    && !upstream.reader.getParser().isUntilEof();
+            boolean keepAlive = forwardResponse(responsePipeline, response, upstream.reader, clientOutput, clientKeepAlive,
+                    "HTTP/1.1".equals(request.getRequestVersion()));
+            if (upstreamReusable) {
+                connectionPool.release(upstream);
+            } else {
+                connectionPool.discard(upstream);
+            }
+            return keepAlive;
+        } catch (IOException e) {
+            connectionPool.discard(upstream);
+            throw e;
+        }
+    }
+    
+    /**
+     * 把上游响应转发给客户端；命中重写规则的响应边收边改写，其余原样转发
+     * @param pipeline 作用于响应的重写操作，没有时为null
+     * @param chunkedAllowed 客户端是否支持分块编码
+     * @return 客户端连接是否可以继续使用
+     */
+    private boolean forwardResponse(RewritePipeline pipeline, HttpHead response, BlockingHttpReader upstreamReader,
+                                    OutputStream clientOutput, boolean clientKeepAlive,
+                                    boolean chunkedAllowed) throws IOException {
+        HttpParser parser = upstreamReader.getParser();
+        boolean hasBody = !parser.hasNoBody();
+        // 以关闭连接结束的响应，客户端连接也只能随之关闭
+        boolean untilEof = parser.isUntilEof();
         
-        // 写入响应头
-        StringBuilder responseBuilder = new StringBuilder();
-        responseBuilder.append("HTTP/1.1 ").append(responseCode).append(" ")
-                .append(connection.getResponseMessage()).append("\r\n");
+        response.removeHopByHopHeaders();
+        BodyStage stage = pipeline != null ? pipeline.apply(response, hasBody, maxBufferedBodySize) : null;
+        if (stage == null && parser.isChunked() && !chunkedAllowed) {
+            // HTTP/1.0客户端不认识分块编码：解码后重新分帧，超过阈值时以关闭连接结束
+            response.set("Connection", clientKeepAlive ? "keep-alive" : "close");
+            ReframingOutputStream body = new ReframingOutputStream(response, clientOutput,
+                    ReframingOutputStream.DEFAULT_THRESHOLD, false);
+            upstreamReader.copyBody(body, false);
+            body.finish();
+            return clientKeepAlive && !body.isCloseDelimited();
+        }
+        if (stage == null) {
+            // 消息体不需要改写：边收边发，分块编码原样转发
+            boolean keepAlive = clientKeepAlive && !untilEof;
+            response.set("Connection", keepAlive ? "keep-alive" : "close");
+            clientOutput.write(response.toBytes());
+            upstreamReader.copyMessage(clientOutput);
+            return keepAlive;
+        }
         
-        for (Map.Entry<String, List<String>> entry : connection.getHeaderFields().entrySet()) {
-            String key = entry.getKey();
-            if (key != null) {
-                for (String value : entry.getValue()) {
-                    // 如果我们修改了响应体，需要更新Content-Length头
-                    if (key.equalsIgnoreCase("Content-Length")) {
-                        responseBuilder.append(key).append(": ").append(responseBody.length).append("\r\n");
-                    } else {
-                        responseBuilder.append(key).append(": ").append(value).append("\r\n");
-                    }
-                }
+        // 改写后重新分帧，原来以关闭连接结束的响应也可以保持客户端连接
+        response.set("Connection", clientKeepAlive ? "keep-alive" : "close");
+        ReframingOutputStream body = new ReframingOutputStream(response, clientOutput,
+                ReframingOutputStream.DEFAULT_THRESHOLD, chunkedAllowed);
+        try {
+            upstreamReader.transformBody(stage, body);
+            body.finish();
+        } finally {
+            stage.close();
+        }
+        return clientKeepAlive && !body.isCloseDelimited();
+    }
+    
+    /**
+     * 读取最终响应头，跳过100 Continue等1xx临时响应
+     */
+    private static HttpHead readFinalResponse(BlockingHttpReader upstreamReader, String method) throws IOException {
+        upstreamReader.getParser().setRequestMethod(method);
+        while (true) {
+            HttpHead response = upstreamReader.readHead();
+            if (response == null) {
+                throw new IOException("上游未返回响应就关闭了连接");
             }
+            int status = response.getStatusCode();
+            if (status >= 200 || status == 101) {
+                return response;
+            }
+            upstreamReader.readBody(0);
         }
-        responseBuilder.append("\r\n");
-        clientOutput.write(responseBuilder.toString().getBytes());
-        
-        // 写入响应体
-        clientOutput.write(responseBody);
-        clientOutput.flush();
-        connection.disconnect();
     }
     
-    private void handleHttpsConnect(String requestLine, BufferedReader reader, InputStream clientInput, OutputStream clientOutput) throws IOException {
+    /**
+     * HTTP/1.1默认保持连接，HTTP/1.0需要显式的keep-alive
+     */
+    private static boolean isKeepAlive(HttpHead head, String version) {
+        if (head.hasToken("Connection", "close")) {
+            return false;
+        }
+        return "HTTP/1.1".equals(version) || head.hasToken("Connection", "keep-alive");
+    }
+    
+    private static int parsePort(String value, int defaultPort) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultPort;
+        }
+    }
+    
+    private static void sendError(OutputStream clientOutput, int status, String reason) {
+        try {
+            clientOutput.write(("HTTP/1.1 " + status + " " + reason
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            clientOutput.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "写入错误响应失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * @param pending CONNECT请求之后客户端已经发出的数据，随隧道一起转发
+     */
+    private void handleHttpsConnect(HttpHead request, byte[] pending, InputStream clientInput,
+                                    OutputStream clientOutput) throws IOException {
         // 解析主机和端口
-        String[] parts = requestLine.split("\\s+")[1].split(":");
-        String host = parts[0];
-        int port = (parts.length > 1) ? Integer.parseInt(parts[1]) : 443;
+        String authority = request.getTarget();
+        int colon = authority.lastIndexOf(':');
+        String host = authority;
+        int port = 443;
+        if (colon > 0 && authority.indexOf(']', colon) < 0) {
+            host = authority.substring(0, colon);
+            port = parsePort(authority.substring(colon + 1), 443);
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
         
-        // 读取所有请求头
-        String line;
-        while ((line = reader.readLine()) != null && !line.isEmpty()) {
-            // 忽略请求头
+        if (tlsInterceptor != null && tlsInterceptor.isEnabled()) {
+            // 先告诉客户端连接已建立，客户端随后才会发出ClientHello
+            clientOutput.write(CONNECT_ESTABLISHED);
+            clientOutput.flush();
+            interceptTls(host, port, pending, clientInput, clientOutput);
+            return;
+        }
+        tunnelTo(resolve(host, port), CONNECT_ESTABLISHED, pending, clientInput, clientOutput);
+    }
+    
+    private void handleTransparentTunnel(InetSocketAddress destination, InputStream clientInput, OutputStream clientOutput) throws IOException {
+        // 客户端以为自己直接连上了目标，不需要回复200；主机名只能从SNI得知
+        if (tlsInterceptor != null && tlsInterceptor.isEnabled()) {
+            interceptTls(destination.getAddress().getHostAddress(), destination.getPort(), null, clientInput, clientOutput);
+            return;
+        }
+        tunnelTo(destination, null, null, clientInput, clientOutput);
+    }
+    
+    /**
+     * 读取ClientHello，按SNI决定解密还是隧道转发
+     * 解密时用主机证书终止客户端的TLS，解密后的请求和普通HTTP请求一样解析、改写，再经TLS连接发往上游。
+     * 客户端协商了HTTP/2时，连接上的每个流各自作为一个请求处理。
+     * @param host CONNECT的目标或透明重定向的目标地址，客户端没有发送SNI时使用
+     * @param pending 已从客户端读到的数据，可为null
+     */
+    private void interceptTls(String host, int port, byte[] pending, InputStream clientInput,
+                              OutputStream clientOutput) throws IOException {
+        ByteArrayOutputStream consumed = new ByteArrayOutputStream();
+        if (pending != null) {
+            consumed.write(pending, 0, pending.length);
+        }
+        TlsClientHello hello;
+        clientSocket.setSoTimeout(CLIENT_HELLO_TIMEOUT_MS);
+        try {
+            hello = TlsClientHello.read(clientInput, consumed);
+        } catch (SocketTimeoutException e) {
+            hello = null;
         }
+        clientSocket.setSoTimeout(0);
+        byte[] prefix = consumed.toByteArray();
+        String serverName = hello != null && hello.getServerName() != null ? hello.getServerName() : host;
         
-        // 连接到目标服务器
-        Socket serverSocket = new Socket(host, port);
+        SSLSocket tlsClient = null;
+        if (hello != null && tlsInterceptor.shouldIntercept(serverName)) {
+            try {
+                tlsClient = tlsInterceptor.accept(clientSocket, prefix, serverName);
+            } catch (IOException e) {
+                // 握手失败时ClientHello已被消费，只能关闭连接，客户端重试时改为隧道转发
+                return;
+            }
+        }
+        if (tlsClient == null) {
+            tunnelTo(resolve(host, port), null, prefix, clientInput, clientOutput);
+            return;
+        }
         
         try {
-            // 告诉客户端连接已建立
-            clientOutput.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes());
-            clientOutput.flush();
-            
-            // 创建双向管道
-            Thread clientToServer = new Thread(() -> {
-                try {
-                    pipe(clientInput, serverSocket.getOutputStream());
-                } catch (IOException e) {
-                    closeQuietly(clientSocket);
-                    closeQuietly(serverSocket);
-                }
-            });
-            
-            Thread serverToClient = new Thread(() -> {
-                try {
-                    // 这里可以添加响应拦截和修改逻辑
-                    InputStream serverInput = serverSocket.getInputStream();
-                    
-                    // 注意：HTTPS流量是加密的，需要更复杂的解密机制才能修改内容
-                    // 这里简化处理，直接传递数据
-                    // 如果要实现真正的HTTPS拦截，需要实现中间人代理（MITM）
-                    pipe(serverInput, clientOutput);
-                } catch (IOException e) {
-                    closeQuietly(clientSocket);
-                    closeQuietly(serverSocket);
-                }
-            });
-            
-            clientToServer.start();
-            serverToClient.start();
-            
-            // 等待两个线程完成
+            tlsClient.setSoTimeout(CLIENT_IDLE_TIMEOUT_MS);
+            String defaultAuthority = (serverName.indexOf(':') >= 0 ? "[" + serverName + "]" : serverName) + ":" + port;
+            if (Http2Connection.isNegotiated(tlsClient)) {
+                serveHttp2(tlsClient, defaultAuthority);
+                return;
+            }
+            BlockingHttpReader reader = new BlockingHttpReader(tlsClient.getInputStream(),
+                    new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE), READ_BUFFER_SIZE);
+            OutputStream output = new BufferedOutputStream(tlsClient.getOutputStream());
+            serveRequests(reader, output, defaultAuthority, true);
+        } finally {
+            closeQuietly(tlsClient);
+        }
+    }
+    
+    /**
+     * 在解密后的HTTP/2连接上处理请求，本线程负责读取帧，每个流交给共享的有界线程池
+     * 线程池排满时以REFUSED_STREAM拒绝新的流，客户端可以安全重试。
+     * 连接空闲超过CLIENT_IDLE_TIMEOUT_MS后关闭。
+     */
+    private void serveHttp2(SSLSocket tlsClient, final String defaultAuthority) throws IOException {
+        final ExecutorService executor = streamExecutor;
+        if (executor == null) {
+            throw new IOException("没有处理HTTP/2流的线程池");
+        }
+        Http2Connection connection = new Http2Connection(tlsClient, false, stream -> {
             try {
-                clientToServer.join();
-                serverToClient.join();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                executor.execute(() -> serveStream(stream, defaultAuthority));
+            } catch (RejectedExecutionException e) {
+                stream.reset(Http2Connection.REFUSED_STREAM);
             }
+        });
+        try {
+            connection.start();
+            connection.run();
+        } finally {
+            connection.close();
+        }
+    }
+    
+    /**
+     * 把一个HTTP/2流当作只有一个请求的HTTP/1.1连接处理，请求和响应由Http2Bridge转换
+     */
+    private void serveStream(Http2Stream stream, String defaultAuthority) {
+        Http2Bridge.MessageInputStream requestInput = new Http2Bridge.MessageInputStream(stream, true);
+        try {
+            HttpParser responseParser = new HttpParser(false, HttpHead.DEFAULT_MAX_HEAD_SIZE);
+            responseParser.setRequestMethod(requestInput.getMethod());
+            Http2Bridge.MessageOutputStream responseOutput =
+                    new Http2Bridge.MessageOutputStream(stream, responseParser, false);
+            BlockingHttpReader reader = new BlockingHttpReader(requestInput,
+                    new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE), READ_BUFFER_SIZE);
+            serveRequests(reader, responseOutput, defaultAuthority, true);
+            responseOutput.finish();
+            // 响应已发完，请求中没有读取的部分不再需要
+            stream.close();
+        } catch (IOException e) {
+            Log.w(TAG, "处理HTTP/2流时出错: " + e.getMessage());
+            stream.reset(Http2Connection.INTERNAL_ERROR);
+        }
+    }
+    
+    private InetSocketAddress resolve(String host, int port) {
+        return dnsCache != null ? dnsCache.resolve(host, port) : new InetSocketAddress(host, port);
+    }
+    
+    /**
+     * 连接上游并双向转发
+     * @param established 连上之后先回复给客户端的数据，可为null
+     * @param pending 已从客户端读到、需要先发给上游的数据，可为null
+     */
+    private void tunnelTo(InetSocketAddress destination, byte[] established, byte[] pending, InputStream clientInput,
+                          OutputStream clientOutput) throws IOException {
+        if (destination.isUnresolved()) {
+            throw new UnknownHostException(destination.getHostString());
+        }
+        if (canRelay()) {
+            SocketChannel serverChannel = SocketChannel.open(destination);
+            if (established != null) {
+                clientOutput.write(established);
+                clientOutput.flush();
+            }
+            relay(serverChannel, pending != null ? ByteBuffer.wrap(pending) : null);
+            return;
+        }
+        
+        // 连接到目标服务器
+        Socket serverSocket = new Socket(destination.getAddress(), destination.getPort());
+        
+        try {
+            if (established != null) {
+                clientOutput.write(established);
+                clientOutput.flush();
+            }
+            if (pending != null) {
+                serverSocket.getOutputStream().write(pending);
+            }
+            
+            tunnel(serverSocket, clientInput, clientOutput);
         } finally {
             closeQuietly(serverSocket);
         }
     }
     
+    private boolean canRelay() {
+        return relayWorker != null && bufferPool != null && clientSocket.getChannel() != null;
+    }
+    
+    /**
+     * 把客户端和上游两个通道交给工作线程上的TunnelRelay，本线程随即返回
+     * @param toUpstream 已从客户端读到、需要先发给上游的数据，可为null
+     */
+    private void relay(final SocketChannel serverChannel, final ByteBuffer toUpstream) throws IOException {
+        final SocketChannel clientChannel = clientSocket.getChannel();
+        try {
+            serverChannel.socket().setTcpNoDelay(true);
+            serverChannel.configureBlocking(false);
+            clientChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        handedOff = true;
+        relayWorker.execute(() -> new TunnelRelay(relayWorker, bufferPool, clientChannel, serverChannel).start(null, toUpstream));
+    }
+    
+    private void tunnel(Socket serverSocket, InputStream clientInput, OutputStream clientOutput) {
+        // 创建双向管道
+        Thread clientToServer = new Thread(() -> {
+            try {
+                pipe(clientInput, serverSocket.getOutputStream());
+            } catch (IOException e) {
+                closeQuietly(clientSocket);
+                closeQuietly(serverSocket);
+            }
+        });
+        
+        Thread serverToClient = new Thread(() -> {
+            try {
+                // 这里可以添加响应拦截和修改逻辑
+                InputStream serverInput = serverSocket.getInputStream();
+                
+                // 注意：HTTPS流量是加密的，需要更复杂的解密机制才能修改内容
+                // 这里简化处理，直接传递数据
+                // 如果要实现真正的HTTPS拦截，需要实现中间人代理（MITM）
+                pipe(serverInput, clientOutput);
+            } catch (IOException e) {
+                closeQuietly(clientSocket);
+                closeQuietly(serverSocket);
+            }
+        });
+        
+        clientToServer.start();
+        serverToClient.start();
+        
+        // 等待两个线程完成
+        try {
+            clientToServer.join();
+            serverToClient.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     private void pipe(InputStream in, OutputStream out) throws IOException {
         byte[] buffer = new byte[8192];
         int bytesRead;
         while ((bytesRead = in.read(buffer)) != -1) {
             out.write(buffer, 0, bytesRead);
-            out.flush();
+            // 只有暂时没有后续数据时才刷新，连续到达的数据合并写出
+            if (in.available() == 0) {
+                out.flush();
+            }
         }
+        out.flush();
     }
     
     private void closeQuietly(Socket socket) {
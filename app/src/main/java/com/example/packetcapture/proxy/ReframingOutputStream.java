@@ -0,0 +1,105 @@
+package com.example.packetcapture.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 改写后消息体的输出
+ * 改写前无法知道新的长度，因此先缓存输出：消息结束时不超过阈值就按Content-Length发出；
+ * 超过阈值后改用分块编码边改写边发送，对方不支持分块编码时改为以关闭连接结束。
+ * 头部在确定分帧方式之后才写出。
+ */
+final class ReframingOutputStream extends OutputStream {
+    static final int DEFAULT_THRESHOLD = 64 * 1024;
+
+    private final HttpHead head;
+    private final OutputStream out;
+    private final int threshold;
+    private final boolean chunkedAllowed;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private boolean closeDelimited;
+    private boolean finished;
+
+    /**
+     * @param chunkedAllowed 对方是否支持分块编码（HTTP/1.1）
+     */
+    ReframingOutputStream(HttpHead head, OutputStream out, int threshold, boolean chunkedAllowed) {
+        this.head = head;
+        this.out = out;
+        this.threshold = threshold;
+        this.chunkedAllowed = chunkedAllowed;
+        head.remove("Content-Length");
+        head.remove("Transfer-Encoding");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (pending != null) {
+            pending.write(data, offset, length);
+            if (pending.size() > threshold) {
+                startStreaming();
+            }
+            return;
+        }
+        if (closeDelimited) {
+            out.write(data, offset, length);
+        } else {
+            BlockingHttpReader.writeChunk(out, data, offset, length);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (pending == null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * 消息体结束，写出尚未写出的头部和数据
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (pending != null) {
+            head.set("Content-Length", String.valueOf(pending.size()));
+            out.write(head.toBytes());
+            pending.writeTo(out);
+            pending = null;
+        } else if (!closeDelimited) {
+            out.write(BlockingHttpReader.LAST_CHUNK);
+        }
+        out.flush();
+    }
+
+    /**
+     * 消息体以关闭连接结束，连接不能再复用
+     */
+    boolean isCloseDelimited() {
+        return closeDelimited;
+    }
+
+    private void startStreaming() throws IOException {
+        if (chunkedAllowed) {
+            head.set("Transfer-Encoding", "chunked");
+        } else {
+            closeDelimited = true;
+            head.set("Connection", "close");
+        }
+        out.write(head.toBytes());
+        byte[] buffered = pending.toByteArray();
+        pending = null;
+        write(buffered, 0, buffered.length);
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.packetcapture.proxy;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 代理的Selector工作线程
+ * 每个工作线程独占一个Selector，连接注册后其所有事件都在同一线程上处理，
+ * 其他线程只能通过execute投递任务，由工作线程在下一轮循环中执行。
+ */
+class SelectorWorker implements Runnable {
+    private static final String TAG = "SelectorWorker";
+
+    /**
+     * 注册到工作线程上的通道事件处理器
+     */
+    interface Handler {
+        void onSelected(SelectionKey key) throws IOException;
+
+        void close();
+    }
+
+    private final String name;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running;
+    private Thread thread;
+
+    SelectorWorker(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    boolean inWorkerThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 在工作线程上执行任务
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * 注册通道，只能在工作线程上调用
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Handler handler = (Handler) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        handler.onSelected(key);
+                    } catch (Exception e) {
+                        Log.w(TAG, "处理连接事件时出错: " + e.getMessage());
+                        handler.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Selector出错", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.e(TAG, "执行任务时出错", e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Handler) {
+                ((Handler) attachment).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "关闭Selector时出错", e);
+        }
+    }
+}
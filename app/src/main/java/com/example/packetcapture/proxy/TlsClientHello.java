@@ -0,0 +1,190 @@
+package com.example.packetcapture.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 从客户端发来的第一批TLS记录中解析ClientHello，取出SNI主机名和ALPN协议列表
+ * 只读取不消费：读到的字节原样保留，之后交给真正的TLS实现或直接转发给上游。
+ * ClientHello可能分散在多个记录中，凑齐整条握手消息后才解析。
+ */
+final class TlsClientHello {
+    private static final int CONTENT_TYPE_HANDSHAKE = 22;
+    private static final int HANDSHAKE_CLIENT_HELLO = 1;
+    private static final int EXTENSION_SERVER_NAME = 0;
+    private static final int EXTENSION_ALPN = 16;
+    private static final int RECORD_HEADER_SIZE = 5;
+    // ClientHello一般不超过几KB，超过这个长度不再等待
+    private static final int MAX_HELLO_SIZE = 64 * 1024;
+
+    /**
+     * 数据不是TLS握手或ClientHello格式错误
+     */
+    static final class NotClientHelloException extends IOException {
+        NotClientHelloException(String message) {
+            super(message);
+        }
+    }
+
+    private final String serverName;
+    private final List<String> protocols;
+
+    private TlsClientHello(String serverName, List<String> protocols) {
+        this.serverName = serverName;
+        this.protocols = Collections.unmodifiableList(protocols);
+    }
+
+    /**
+     * @return SNI中的主机名，客户端没有发送时为null
+     */
+    String getServerName() {
+        return serverName;
+    }
+
+    /**
+     * @return ALPN中客户端支持的协议，按客户端的偏好排列；没有发送时为空
+     */
+    List<String> getProtocols() {
+        return protocols;
+    }
+
+    /**
+     * 从输入流读取，直到得到完整的ClientHello
+     * @param consumed 已经读到的数据，新读到的数据也追加在这里
+     * @return 解析结果；数据不是TLS握手、格式错误或连接提前结束时返回null，此时consumed中是已读到的全部数据
+     */
+    static TlsClientHello read(InputStream in, ByteArrayOutputStream consumed) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (true) {
+            byte[] data = consumed.toByteArray();
+            try {
+                TlsClientHello hello = parse(data, data.length);
+                if (hello != null) {
+                    return hello;
+                }
+            } catch (NotClientHelloException e) {
+                return null;
+            }
+            int read = in.read(buffer);
+            if (read < 0) {
+                return null;
+            }
+            consumed.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * 解析缓冲区开头的ClientHello
+     * @return 数据还不完整时返回null
+     * @throws NotClientHelloException 数据不是TLS握手或格式错误
+     */
+    static TlsClientHello parse(byte[] data, int length) throws NotClientHelloException {
+        if (length > 0 && (data[0] & 0xff) != CONTENT_TYPE_HANDSHAKE) {
+            throw new NotClientHelloException("不是TLS握手");
+        }
+        // 拼接各记录中的握手数据
+        ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+        int position = 0;
+        while (true) {
+            if (handshake.size() >= 4) {
+                byte[] message = handshake.toByteArray();
+                if ((message[0] & 0xff) != HANDSHAKE_CLIENT_HELLO) {
+                    throw new NotClientHelloException("第一条握手消息不是ClientHello");
+                }
+                int messageLength = readInt(message, 1, 3);
+                if (messageLength > MAX_HELLO_SIZE) {
+                    throw new NotClientHelloException("ClientHello过长");
+                }
+                if (message.length >= 4 + messageLength) {
+                    return parseBody(message, 4, 4 + messageLength);
+                }
+            }
+            if (position + RECORD_HEADER_SIZE > length) {
+                return null;
+            }
+            int recordLength = readInt(data, position + 3, 2);
+            if ((data[position] & 0xff) != CONTENT_TYPE_HANDSHAKE || data[position + 1] != 3
+                    || recordLength == 0 || recordLength > 16384 + 2048) {
+                throw new NotClientHelloException("无效的TLS记录");
+            }
+            if (position + RECORD_HEADER_SIZE + recordLength > length) {
+                return null;
+            }
+            handshake.write(data, position + RECORD_HEADER_SIZE, recordLength);
+            position += RECORD_HEADER_SIZE + recordLength;
+        }
+    }
+
+    private static TlsClientHello parseBody(byte[] data, int position, int end) throws NotClientHelloException {
+        // 版本和随机数
+        position += 2 + 32;
+        // 会话ID、密码套件、压缩方法
+        position = skip(data, position, end, 1);
+        position = skip(data, position, end, 2);
+        position = skip(data, position, end, 1);
+        String serverName = null;
+        List<String> protocols = new ArrayList<>();
+        if (position == end) {
+            // 没有扩展
+            return new TlsClientHello(null, protocols);
+        }
+        int extensionsEnd = skip(data, position, end, 2);
+        position += 2;
+        while (position + 4 <= extensionsEnd) {
+            int type = readInt(data, position, 2);
+            int extensionEnd = skip(data, position + 2, extensionsEnd, 2);
+            int body = position + 4;
+            if (type == EXTENSION_SERVER_NAME && body + 2 <= extensionEnd) {
+                int listEnd = skip(data, body, extensionEnd, 2);
+                int entry = body + 2;
+                while (entry + 3 <= listEnd) {
+                    int nameEnd = skip(data, entry + 1, listEnd, 2);
+                    if (data[entry] == 0) {
+                        serverName = new String(data, entry + 3, nameEnd - entry - 3, StandardCharsets.US_ASCII);
+                        break;
+                    }
+                    entry = nameEnd;
+                }
+            } else if (type == EXTENSION_ALPN && body + 2 <= extensionEnd) {
+                int listEnd = skip(data, body, extensionEnd, 2);
+                int entry = body + 2;
+                while (entry < listEnd) {
+                    int protocolEnd = skip(data, entry, listEnd, 1);
+                    protocols.add(new String(data, entry + 1, protocolEnd - entry - 1, StandardCharsets.US_ASCII));
+                    entry = protocolEnd;
+                }
+            }
+            position = extensionEnd;
+        }
+        return new TlsClientHello(serverName, protocols);
+    }
+
+    /**
+     * 跳过一个带长度前缀的字段
+     * @param lengthSize 长度前缀的字节数
+     * @return 字段之后的位置
+     */
+    private static int skip(byte[] data, int position, int end, int lengthSize) throws NotClientHelloException {
+        if (position + lengthSize > end) {
+            throw new NotClientHelloException("ClientHello被截断");
+        }
+        int next = position + lengthSize + readInt(data, position, lengthSize);
+        if (next > end) {
+            throw new NotClientHelloException("ClientHello被截断");
+        }
+        return next;
+    }
+
+    private static int readInt(byte[] data, int position, int size) {
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (data[position + i] & 0xff);
+        }
+        return value;
+    }
+}
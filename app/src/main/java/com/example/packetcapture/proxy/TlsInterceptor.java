@@ -0,0 +1,120 @@
+package com.example.packetcapture.proxy;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.example.packetcapture.config.InterceptionPolicy;
+import com.example.packetcapture.config.RewriteConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * HTTPS解密：在客户端一侧用CA签发的主机证书终止TLS
+ * 是否解密由配置中的InterceptionPolicy决定。固定了证书的应用会拒绝代理的证书，
+ * 握手失败的主机在一段时间内自动改为隧道转发，这段时间内的连接不受影响。
+ * 用已读出的ClientHello重新构造服务端套接字需要Android 7.0（API 24）以上，更低的版本一律不解密。
+ * 客户端在ALPN中提供h2时优先协商HTTP/2（需要API 29），握手后由调用方按getApplicationProtocol选择协议。
+ */
+final class TlsInterceptor {
+    private static final String TAG = "TlsInterceptor";
+    // 握手失败的主机在这段时间内不再解密
+    private static final long BYPASS_DURATION_MS = 10 * 60 * 1000;
+    private static final int MAX_BYPASSED_HOSTS = 1024;
+
+    private final CertificateManager certificateManager;
+    private final RewriteConfig rewriteConfig;
+    // 主机名 -> 恢复解密的时间
+    private final Map<String, Long> bypassed = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_BYPASSED_HOSTS;
+        }
+    };
+
+    TlsInterceptor(CertificateManager certificateManager, RewriteConfig rewriteConfig) {
+        this.certificateManager = certificateManager;
+        this.rewriteConfig = rewriteConfig;
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+    }
+
+    /**
+     * 当前是否可能解密，为false时无需读取ClientHello
+     */
+    boolean isEnabled() {
+        return isSupported() && rewriteConfig != null && rewriteConfig.getInterceptionPolicy().isEnabled();
+    }
+
+    /**
+     * @param host SNI主机名，没有时为CONNECT的目标或原始目标地址
+     */
+    boolean shouldIntercept(String host) {
+        if (!isSupported() || rewriteConfig == null || host == null) {
+            return false;
+        }
+        InterceptionPolicy policy = rewriteConfig.getInterceptionPolicy();
+        if (!policy.shouldIntercept(host)) {
+            return false;
+        }
+        String key = host.toLowerCase(Locale.ROOT);
+        synchronized (bypassed) {
+            Long until = bypassed.get(key);
+            if (until == null) {
+                return true;
+            }
+            if (until > System.currentTimeMillis()) {
+                return false;
+            }
+            bypassed.remove(key);
+            return true;
+        }
+    }
+
+    /**
+     * 在客户端连接上以服务端身份完成握手
+     * @param consumed 已从客户端读出的数据，至少包含完整的ClientHello
+     * @return 握手完成的套接字；无法取得主机证书时返回null，此时客户端连接未被改动
+     * @throws IOException 握手失败，主机已暂时改为隧道转发
+     */
+    SSLSocket accept(Socket client, byte[] consumed, String host) throws IOException {
+        SSLContext context = certificateManager.getServerContext();
+        // 先签发好证书，签发失败时还可以改为隧道转发
+        if (context == null || certificateManager.getCertificateChain(host) == null) {
+            return null;
+        }
+        SSLSocket socket = (SSLSocket) context.getSocketFactory()
+                .createSocket(client, new ByteArrayInputStream(consumed), true);
+        socket.setUseClientMode(false);
+        if (Http2Connection.isSupported()) {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setApplicationProtocols(new String[]{Http2Connection.PROTOCOL, "http/1.1"});
+            socket.setSSLParameters(parameters);
+        }
+        LeafKeyManager keyManager = certificateManager.getLeafKeyManager();
+        keyManager.setDefaultHost(socket, host);
+        try {
+            socket.startHandshake();
+        } catch (IOException e) {
+            // 多数情况是客户端不信任代理的CA或固定了证书
+            Log.w(TAG, "客户端拒绝了 " + host + " 的证书，暂时改为隧道转发: " + e.getMessage());
+            synchronized (bypassed) {
+                bypassed.put(host.toLowerCase(Locale.ROOT), System.currentTimeMillis() + BYPASS_DURATION_MS);
+            }
+            throw e;
+        } finally {
+            keyManager.clearDefaultHost(socket);
+        }
+        return socket;
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.packetcapture.proxy;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 双向隧道转发
+ * 客户端与上游两个非阻塞SocketChannel注册在同一个SelectorWorker上，每个方向最多占用
+ * MAX_BUFFERS个池化直接缓冲区：读取时分散读入，写出时聚集写出，数据不经过Java堆。
+ * 读到数据后立即尝试写出，只有对端暂时写不下时才关注OP_WRITE；缓冲区写满时取消来源的
+ * OP_READ，由TCP窗口把背压传回发送方。一侧读到EOF且数据写完后半关闭另一侧的输出，
+ * 两个方向都结束后关闭两个通道。所有方法只在工作线程上调用。
+ */
+final class TunnelRelay implements SelectorWorker.Handler {
+    private static final String TAG = "TunnelRelay";
+    private static final int MAX_BUFFERS = 2;
+
+    private final SelectorWorker worker;
+    private final BufferPool pool;
+    private final SocketChannel client;
+    private final SocketChannel upstream;
+    private final Direction clientToUpstream;
+    private final Direction upstreamToClient;
+
+    private SelectionKey clientKey;
+    private SelectionKey upstreamKey;
+    private boolean closed;
+
+    TunnelRelay(SelectorWorker worker, BufferPool pool, SocketChannel client, SocketChannel upstream) {
+        this.worker = worker;
+        this.pool = pool;
+        this.client = client;
+        this.upstream = upstream;
+        this.clientToUpstream = new Direction(client, upstream);
+        this.upstreamToClient = new Direction(upstream, client);
+    }
+
+    /**
+     * 注册两个通道并开始转发；两个通道必须已连接且为非阻塞模式
+     * 通道若已注册在该工作线程上，则沿用原有的SelectionKey并改由本对象处理
+     * @param toClient 需要先发给客户端的数据（如CONNECT的200响应），可为null
+     * @param toUpstream 需要先发给上游的数据（如已读到的请求剩余部分），可为null
+     */
+    void start(ByteBuffer toClient, ByteBuffer toUpstream) {
+        upstreamToClient.offer(toClient);
+        clientToUpstream.offer(toUpstream);
+        try {
+            clientKey = worker.register(client, 0, this);
+            upstreamKey = worker.register(upstream, 0, this);
+            // 先尝试写出预置数据，省去一次OP_WRITE往返
+            upstreamToClient.write();
+            clientToUpstream.write();
+            updateInterest();
+        } catch (IOException e) {
+            Log.w(TAG, "启动隧道失败: " + e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) throws IOException {
+        if (key == clientKey) {
+            if (key.isWritable()) {
+                upstreamToClient.write();
+            }
+            if (!closed && key.isReadable()) {
+                clientToUpstream.read();
+            }
+        } else if (key == upstreamKey) {
+            if (key.isWritable()) {
+                clientToUpstream.write();
+            }
+            if (!closed && key.isReadable()) {
+                upstreamToClient.read();
+            }
+        }
+        if (!closed) {
+            updateInterest();
+        }
+    }
+
+    private void updateInterest() {
+        if (closed) {
+            return;
+        }
+        int clientOps = (clientToUpstream.wantsRead() ? SelectionKey.OP_READ : 0)
+                | (upstreamToClient.hasData() ? SelectionKey.OP_WRITE : 0);
+        int upstreamOps = (upstreamToClient.wantsRead() ? SelectionKey.OP_READ : 0)
+                | (clientToUpstream.hasData() ? SelectionKey.OP_WRITE : 0);
+        if (clientKey.isValid()) {
+            clientKey.interestOps(clientOps);
+        }
+        if (upstreamKey.isValid()) {
+            upstreamKey.interestOps(upstreamOps);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        clientToUpstream.releaseAll();
+        upstreamToClient.releaseAll();
+        closeQuietly(clientKey, client);
+        closeQuietly(upstreamKey, upstream);
+    }
+
+    private void closeIfFinished() {
+        if (clientToUpstream.outputShutdown && upstreamToClient.outputShutdown) {
+            close();
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key, SocketChannel channel) {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "关闭通道时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 单个方向的转发状态
+     * 缓冲区始终处于读取模式：[position, limit)为待写出的数据
+     */
+    private final class Direction {
+        private final SocketChannel source;
+        private final SocketChannel sink;
+        // 比MAX_BUFFERS多一个位置，留给预置数据
+        private final ByteBuffer[] buffers = new ByteBuffer[MAX_BUFFERS + 1];
+        private final int[] starts = new int[MAX_BUFFERS + 1];
+        private int count;
+        private boolean eof;
+        boolean outputShutdown;
+
+        Direction(SocketChannel source, SocketChannel sink) {
+            this.source = source;
+            this.sink = sink;
+        }
+
+        void offer(ByteBuffer data) {
+            if (data != null && data.hasRemaining()) {
+                buffers[count++] = data;
+            }
+        }
+
+        boolean hasData() {
+            return count > 0;
+        }
+
+        boolean wantsRead() {
+            return !eof && hasSpace();
+        }
+
+        private boolean hasSpace() {
+            if (count == 0) {
+                return true;
+            }
+            ByteBuffer last = buffers[count - 1];
+            return count < MAX_BUFFERS || (last.isDirect() && last.limit() < last.capacity());
+        }
+
+        void read() throws IOException {
+            // 从第一个还有空间的池化缓冲区开始分散读取，不足时补充新的缓冲区
+            int first = count;
+            if (count > 0) {
+                ByteBuffer last = buffers[count - 1];
+                if (last.isDirect() && last.limit() < last.capacity()) {
+                    first = count - 1;
+                }
+            }
+            while (count < MAX_BUFFERS || count == first) {
+                ByteBuffer buffer = pool.acquire();
+                buffer.limit(0);
+                buffers[count++] = buffer;
+            }
+
+            for (int i = first; i < count; i++) {
+                ByteBuffer buffer = buffers[i];
+                starts[i] = buffer.position();
+                buffer.position(buffer.limit());
+                buffer.limit(buffer.capacity());
+            }
+            long read;
+            try {
+                read = source.read(buffers, first, count - first);
+            } finally {
+                for (int i = first; i < count; i++) {
+                    ByteBuffer buffer = buffers[i];
+                    buffer.limit(buffer.position());
+                    buffer.position(starts[i]);
+                }
+                releaseEmptyTail();
+            }
+
+            if (read < 0) {
+                eof = true;
+                shutdownSinkIfDrained();
+            } else if (read > 0) {
+                write();
+            }
+        }
+
+        void write() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            sink.write(buffers, 0, count);
+
+            // 归还已写完的缓冲区
+            int drained = 0;
+            while (drained < count && !buffers[drained].hasRemaining()) {
+                pool.release(buffers[drained]);
+                drained++;
+            }
+            if (drained > 0) {
+                System.arraycopy(buffers, drained, buffers, 0, count - drained);
+                for (int i = count - drained; i < count; i++) {
+                    buffers[i] = null;
+                }
+                count -= drained;
+            }
+            shutdownSinkIfDrained();
+        }
+
+        private void releaseEmptyTail() {
+            while (count > 0 && !buffers[count - 1].hasRemaining()) {
+                pool.release(buffers[--count]);
+                buffers[count] = null;
+            }
+        }
+
+        private void shutdownSinkIfDrained() throws IOException {
+            if (eof && count == 0 && !outputShutdown) {
+                outputShutdown = true;
+                sink.socket().shutdownOutput();
+                closeIfFinished();
+            }
+        }
+
+        void releaseAll() {
+            for (int i = 0; i < count; i++) {
+                pool.release(buffers[i]);
+                buffers[i] = null;
+            }
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package com.example.packetcapture.proxy;
+
+import android.util.Log;
+
+import com.example.packetcapture.tunnel.DnsCache;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 按主机划分的上游连接池
+ * 每个host:port最多同时存在maxPerHost个连接（含正在使用和空闲的），达到上限时取连接的线程等待。
+ * 空闲连接按后进先出复用，空闲超过idleTimeoutMs的连接被回收。取出空闲连接前先做一次健康检查：
+ * 用极短的超时尝试读取，读到EOF或意外数据说明服务器已关闭连接或状态异常，直接丢弃。
+ * 解密后的HTTPS请求使用TLS连接，与同一主机的明文连接分开计数和复用。所有连接池共用一个客户端SSLContext，
+ * 会话按host:port缓存，新连接优先用会话票据或会话ID恢复之前的会话，省去完整握手的往返和签名校验。
+ * TLS连接通过ALPN优先协商HTTP/2：协商成功的连接作为一个名额长期保留，之后到同一主机的请求都在它上面
+ * 各开一个流，直到达到服务器允许的并发流数才建立新连接；已知主机支持HTTP/2时，其他请求等待正在建立的连接，
+ * 不再并行建立多条连接。
+ */
+final class UpstreamConnectionPool {
+    private static final String TAG = "UpstreamConnectionPool";
+    static final int DEFAULT_MAX_PER_HOST = 6;
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000;
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final long ACQUIRE_TIMEOUT_MS = 30 * 1000;
+    private static final int HEALTH_CHECK_TIMEOUT_MS = 1;
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    private static final int TLS_SESSION_CACHE_SIZE = 256;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 8 * 60 * 60;
+
+    /**
+     * 一条上游连接，或HTTP/2连接上的一个流
+     * 流和普通连接一样读写HTTP/1.1消息，由Http2Bridge转换为HTTP/2帧，只承载一个请求。
+     */
+    static final class Connection {
+        final String key;
+        // HTTP/2流没有自己的套接字
+        final Socket socket;
+        final Http2Stream stream;
+        final InputStream in;
+        final OutputStream out;
+        // 响应读取器，缓冲区随连接一起复用
+        final BlockingHttpReader reader;
+        private long idleSince;
+        private boolean reused;
+
+        Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.stream = null;
+            this.in = socket.getInputStream();
+            this.out = new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE);
+            this.reader = new BlockingHttpReader(in, new HttpParser(false, HttpHead.DEFAULT_MAX_HEAD_SIZE),
+                    STREAM_BUFFER_SIZE);
+        }
+
+        /**
+         * @param reused HTTP/2连接上是否已经有过其他流
+         */
+        Connection(String key, Http2Stream stream, boolean reused) {
+            this.key = key;
+            this.socket = null;
+            this.stream = stream;
+            this.in = new Http2Bridge.MessageInputStream(stream, false);
+            this.out = new Http2Bridge.MessageOutputStream(stream,
+                    new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE), true);
+            this.reader = new BlockingHttpReader(in, new HttpParser(false, HttpHead.DEFAULT_MAX_HEAD_SIZE),
+                    STREAM_BUFFER_SIZE);
+            this.reused = reused;
+        }
+
+        /**
+         * 是否是从池中取出的旧连接；旧连接上的请求失败时可以换新连接重试
+         */
+        boolean isReused() {
+            return reused;
+        }
+
+        boolean isHealthy() {
+            if (stream != null) {
+                return !stream.getConnection().isClosed();
+            }
+            if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+                return false;
+            }
+            try {
+                if (reader.hasBuffered() || in.available() > 0) {
+                    // 上一个响应之后不应再有数据
+                    return false;
+                }
+                int timeout = socket.getSoTimeout();
+                socket.setSoTimeout(HEALTH_CHECK_TIMEOUT_MS);
+                try {
+                    // 读到EOF或意外数据都说明连接不能再用
+                    in.read();
+                    return false;
+                } catch (SocketTimeoutException e) {
+                    // 没有数据可读，连接正常
+                    return true;
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            if (stream != null) {
+                // 响应已读完时流已经结束，否则重置流，连接本身不受影响
+                stream.close();
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "关闭上游连接时出错: " + key);
+            }
+        }
+    }
+
+    private static final class Host {
+        final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        // 协商为HTTP/2的连接，每条占用一个名额
+        final List<Http2Connection> sessions = new ArrayList<>();
+        int total;
+        // 正在建立的连接数
+        int connecting;
+        // 最近一次TLS握手协商出了HTTP/2
+        boolean http2;
+    }
+
+    private final int maxPerHost;
+    private final long idleTimeoutMs;
+    private final Map<String, Host> hosts = new HashMap<>();
+    private boolean closed;
+    // VPN内DNS应答的缓存，为null时由系统解析
+    private volatile DnsCache dnsCache;
+
+    UpstreamConnectionPool() {
+        this(DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    UpstreamConnectionPool(int maxPerHost, long idleTimeoutMs) {
+        this.maxPerHost = maxPerHost;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    void setDnsCache(DnsCache dnsCache) {
+        this.dnsCache = dnsCache;
+    }
+
+    /**
+     * 取得一条到host:port的连接，优先复用健康的空闲连接
+     * @param tls 是否建立TLS连接，按系统信任的证书校验服务器
+     * @throws IOException 连接失败、握手失败、连接池已关闭或等待空闲名额超时
+     */
+    Connection acquire(String host, int port, boolean tls) throws IOException {
+        String key = (tls ? "https://" : "") + host + ":" + port;
+        while (true) {
+            Connection candidate = null;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MS;
+                while (true) {
+                    if (closed) {
+                        throw new IOException("连接池已关闭");
+                    }
+                    Host entry = hostFor(key);
+                    long now = System.currentTimeMillis();
+                    Connection stream = openStream(key, entry);
+                    if (stream != null) {
+                        return stream;
+                    }
+                    while ((candidate = entry.idle.pollLast()) != null) {
+                        if (now - candidate.idleSince <= idleTimeoutMs) {
+                            break;
+                        }
+                        candidate.close();
+                        entry.total--;
+                    }
+                    if (candidate != null) {
+                        break;
+                    }
+                    // 主机支持HTTP/2时等正在建立的连接，新请求随后在它上面开流
+                    if (entry.total < maxPerHost && !(entry.http2 && entry.connecting > 0)) {
+                        entry.total++;
+                        entry.connecting++;
+                        break;
+                    }
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        throw new IOException("等待连接超时: " + key);
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("等待连接时被中断");
+                    }
+                }
+            }
+
+            if (candidate == null) {
+                return connect(key, host, port, tls);
+            }
+            // 健康检查可能阻塞片刻，放在锁外进行
+            if (candidate.isHealthy()) {
+                candidate.reused = true;
+                return candidate;
+            }
+            discard(candidate);
+        }
+    }
+
+    /**
+     * 在已有的HTTP/2连接上开一个流，顺便移除已经不能再用的连接
+     * @return 没有可用的HTTP/2连接时返回null
+     */
+    private Connection openStream(String key, Host entry) {
+        Iterator<Http2Connection> iterator = entry.sessions.iterator();
+        while (iterator.hasNext()) {
+            Http2Connection session = iterator.next();
+            if (!session.isUsable()) {
+                if (session.getActiveStreams() == 0) {
+                    session.close();
+                }
+                iterator.remove();
+                entry.total--;
+                notifyAll();
+                continue;
+            }
+            Http2Stream stream = session.newStream();
+            if (stream != null) {
+                return new Connection(key, stream, session.getOpenedStreams() > 1);
+            }
+        }
+        return null;
+    }
+
+    private Connection connect(String key, String host, int port, boolean tls) throws IOException {
+        Socket socket = new Socket();
+        Http2Connection session = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DnsCache cache = dnsCache;
+            socket.connect(cache != null ? cache.resolve(host, port) : new InetSocketAddress(host, port),
+                    CONNECT_TIMEOUT_MS);
+            if (tls) {
+                SSLSocket tlsSocket = startTls(socket, host, port);
+                socket = tlsSocket;
+                if (Http2Connection.isNegotiated(tlsSocket)) {
+                    session = new Http2Connection(tlsSocket, true, null);
+                    session.start();
+                }
+            }
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // 忽略
+            }
+            synchronized (this) {
+                Host entry = hostFor(key);
+                entry.total--;
+                entry.connecting--;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            Host entry = hostFor(key);
+            entry.connecting--;
+            entry.http2 = session != null;
+            notifyAll();
+            if (session == null) {
+                return new Connection(key, socket);
+            }
+            // 连接归池中所有请求共用，由单独的线程读取帧
+            Thread reader = new Thread(session, "Http2-" + key);
+            reader.setDaemon(true);
+            reader.start();
+            if (closed) {
+                session.close();
+                throw new IOException("连接池已关闭");
+            }
+            entry.sessions.add(session);
+            Http2Stream stream = session.newStream();
+            if (stream == null) {
+                throw new IOException("服务器不接受新的HTTP/2流: " + key);
+            }
+            return new Connection(key, stream, false);
+        }
+    }
+
+    /**
+     * 共用的客户端SSLContext，首次建立TLS连接时创建
+     */
+    private static final class ClientTls {
+        static final SSLSocketFactory FACTORY = createFactory();
+
+        private static SSLSocketFactory createFactory() {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                SSLSessionContext sessions = context.getClientSessionContext();
+                sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+                return context.getSocketFactory();
+            } catch (GeneralSecurityException e) {
+                Log.e(TAG, "创建SSLContext失败，使用系统默认配置", e);
+                return (SSLSocketFactory) SSLSocketFactory.getDefault();
+            }
+        }
+    }
+
+    /**
+     * 在已连接的套接字上进行客户端握手，发送SNI并校验证书中的主机名
+     * 系统支持时通过ALPN同时提供h2和http/1.1，由服务器选择。
+     */
+    private static SSLSocket startTls(Socket socket, String host, int port) throws IOException {
+        // 传入host和port，会话缓存才能按目标查找可恢复的会话
+        SSLSocket tlsSocket = (SSLSocket) ClientTls.FACTORY.createSocket(socket, host, port, true);
+        enableSessionTickets(tlsSocket);
+        SSLParameters parameters = tlsSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        if (Http2Connection.isSupported()) {
+            parameters.setApplicationProtocols(new String[]{Http2Connection.PROTOCOL, "http/1.1"});
+        }
+        tlsSocket.setSSLParameters(parameters);
+        tlsSocket.setSoTimeout(CONNECT_TIMEOUT_MS);
+        tlsSocket.startHandshake();
+        tlsSocket.setSoTimeout(0);
+        return tlsSocket;
+    }
+
+    /**
+     * Android的TLS实现（Conscrypt）在客户端默认不使用会话票据，只能通过非公开的方法打开
+     */
+    private static void enableSessionTickets(SSLSocket socket) {
+        try {
+            Method method = socket.getClass().getMethod("setUseSessionTickets", boolean.class);
+            method.invoke(socket, true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // 其他实现默认已启用或不支持，按会话ID恢复
+        }
+    }
+
+    /**
+     * 归还一条状态完好、响应已读完的连接
+     */
+    void release(Connection connection) {
+        if (connection.stream != null) {
+            // 流只承载一个请求，HTTP/2连接本身留在池中
+            connection.close();
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                connection.idleSince = System.currentTimeMillis();
+                hostFor(connection.key).idle.addLast(connection);
+                notifyAll();
+                return;
+            }
+        }
+        discard(connection);
+    }
+
+    /**
+     * 关闭一条不能再复用的连接，并释放它占用的名额
+     */
+    void discard(Connection connection) {
+        connection.close();
+        if (connection.stream != null) {
+            return;
+        }
+        synchronized (this) {
+            Host entry = hosts.get(connection.key);
+            if (entry != null) {
+                entry.total--;
+                if (entry.total <= 0 && entry.idle.isEmpty()) {
+                    hosts.remove(connection.key);
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * 回收空闲超时的连接
+     * @return 回收的连接数
+     */
+    synchronized int evictIdle() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        Iterator<Map.Entry<String, Host>> iterator = hosts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Host entry = iterator.next().getValue();
+            Iterator<Connection> idle = entry.idle.iterator();
+            while (idle.hasNext()) {
+                Connection connection = idle.next();
+                if (now - connection.idleSince > idleTimeoutMs) {
+                    idle.remove();
+                    connection.close();
+                    entry.total--;
+                    evicted++;
+                }
+            }
+            Iterator<Http2Connection> sessions = entry.sessions.iterator();
+            while (sessions.hasNext()) {
+                Http2Connection session = sessions.next();
+                if (session.getActiveStreams() == 0
+                        && (!session.isUsable() || now - session.getIdleSince() > idleTimeoutMs)) {
+                    sessions.remove();
+                    session.close();
+                    entry.total--;
+                    evicted++;
+                }
+            }
+            if (entry.total <= 0 && entry.idle.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        if (evicted > 0) {
+            notifyAll();
+        }
+        return evicted;
+    }
+
+    /**
+     * 关闭所有空闲连接；之后归还的连接也会直接关闭
+     */
+    synchronized void close() {
+        closed = true;
+        for (Host entry : hosts.values()) {
+            for (Connection connection : entry.idle) {
+                connection.close();
+            }
+            entry.idle.clear();
+            for (Http2Connection session : entry.sessions) {
+                session.close();
+            }
+            entry.sessions.clear();
+        }
+        hosts.clear();
+        notifyAll();
+    }
+
+    private Host hostFor(String key) {
+        Host entry = hosts.get(key);
+        if (entry == null) {
+            entry = new Host();
+            hosts.put(key, entry);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.packetcapture.rewrite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 消息体重写的一个处理阶段
+ * 消息体分段送入write，处理结果写入out；阶段可以暂存一部分数据（例如可能跨段的匹配），
+ * 但必须在finish时全部写出。每个实例只处理一条消息。
+ * 无论处理是正常结束还是中途放弃，最后都要调用close释放阶段持有的资源。
+ */
+public interface BodyStage {
+    void write(byte[] data, int offset, int length, OutputStream out) throws IOException;
+
+    void finish(OutputStream out) throws IOException;
+
+    /**
+     * 释放持有的资源（如压缩库的本地内存），可以重复调用
+     */
+    void close();
+}
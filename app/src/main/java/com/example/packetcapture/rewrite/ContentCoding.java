@@ -0,0 +1,408 @@
+package com.example.packetcapture.rewrite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 消息体的内容编码（Content-Encoding）
+ * 支持gzip和deflate的流式解压和压缩，其余编码（如br）无法解压，只能原样转发。
+ * 解压和压缩都实现为BodyStage，接在重写处理链的两端。
+ */
+final class ContentCoding {
+    static final String IDENTITY = "identity";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private ContentCoding() {
+    }
+
+    /**
+     * 规范化Content-Encoding的值
+     * @return identity、gzip、deflate之一；无法处理的编码（包括多重编码）返回null
+     */
+    static String normalize(String contentEncoding) {
+        if (contentEncoding == null) {
+            return IDENTITY;
+        }
+        String coding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        switch (coding) {
+            case "":
+            case IDENTITY:
+                return IDENTITY;
+            case GZIP:
+            case "x-gzip":
+                return GZIP;
+            case DEFLATE:
+                return DEFLATE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 从Accept-Encoding中去掉无法解压的编码，保留gzip和deflate
+     * @return 过滤后的值；一种可用的压缩编码都没有时返回identity
+     */
+    static String filterAcceptEncoding(String acceptEncoding) {
+        StringBuilder result = new StringBuilder();
+        for (String item : acceptEncoding.split(",")) {
+            String trimmed = item.trim();
+            int semicolon = trimmed.indexOf(';');
+            String coding = (semicolon >= 0 ? trimmed.substring(0, semicolon) : trimmed).trim();
+            String normalized = normalize(coding);
+            if (normalized == null || normalized.equals(IDENTITY) || coding.isEmpty()) {
+                continue;
+            }
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(trimmed);
+        }
+        return result.length() > 0 ? result.toString() : IDENTITY;
+    }
+
+    /**
+     * @param coding normalize返回的gzip或deflate
+     */
+    static BodyStage decoder(String coding) {
+        return new Decoder(GZIP.equals(coding));
+    }
+
+    /**
+     * @param coding normalize返回的gzip或deflate
+     */
+    static BodyStage encoder(String coding) {
+        return new Encoder(GZIP.equals(coding));
+    }
+
+    /**
+     * 流式解压
+     * gzip依次处理头部、压缩数据和尾部，支持多个成员首尾相接；deflate按规范应为zlib格式，
+     * 但也有服务器直接发送裸deflate数据，按前两个字节判断。
+     */
+    private static final class Decoder implements BodyStage {
+        private static final int HEADER = 0;
+        private static final int DATA = 1;
+        private static final int TRAILER = 2;
+        private static final int DONE = 3;
+
+        // gzip头部的解析步骤，按头部字段的顺序排列
+        private static final int FIXED = 0;
+        private static final int EXTRA_LENGTH = 1;
+        private static final int EXTRA = 2;
+        private static final int NAME = 3;
+        private static final int COMMENT = 4;
+        private static final int HEADER_CRC = 5;
+        private static final int HEADER_DONE = 6;
+
+        private final boolean gzip;
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private final CRC32 crc = new CRC32();
+        // gzip的尾部，以及deflate用于判断格式的开头，凑齐之前暂存在这里
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        // gzip头部固定的前10个字节
+        private final byte[] fixed = new byte[10];
+        private Inflater inflater;
+        private int state = HEADER;
+        // 当前gzip成员头部的解析进度：所在步骤、步骤内已读的字节数、头部标志和还要跳过的字节数
+        private int headerStep = FIXED;
+        private int headerCount;
+        private int headerFlags;
+        private int headerSkip;
+
+        Decoder(boolean gzip) {
+            this.gzip = gzip;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length, OutputStream out) throws IOException {
+            int end = offset + length;
+            while (offset < end) {
+                switch (state) {
+                    case HEADER:
+                        offset = gzip ? readGzipHeader(data, offset, end) : readZlibHeader(data, offset, end, out);
+                        break;
+                    case DATA:
+                        offset = inflate(data, offset, end, out);
+                        break;
+                    case TRAILER:
+                        offset = readTrailer(data, offset, end);
+                        break;
+                    default:
+                        // 压缩数据之后的多余字节忽略
+                        return;
+                }
+            }
+        }
+
+        @Override
+        public void finish(OutputStream out) throws IOException {
+            close();
+            boolean headerStarted = pending.size() > 0 || headerStep != FIXED || headerCount > 0;
+            if (state == DATA || (state == HEADER && headerStarted) || state == TRAILER) {
+                throw new IOException("压缩数据不完整");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+
+        private int readZlibHeader(byte[] data, int offset, int end, OutputStream out) throws IOException {
+            // 只看前两个字节判断格式，这两个字节本身也是Inflater的输入
+            if (pending.size() + end - offset < 2) {
+                pending.write(data, offset, end - offset);
+                return end;
+            }
+            byte[] first = pending.size() > 0
+                    ? new byte[]{pending.toByteArray()[0], data[offset]} : new byte[]{data[offset], data[offset + 1]};
+            startInflater(!isZlibHeader(first));
+            if (pending.size() == 0) {
+                return offset;
+            }
+            pending.write(data, offset, end - offset);
+            byte[] joined = pending.toByteArray();
+            pending.reset();
+            inflate(joined, 0, joined.length, out);
+            return end;
+        }
+
+        /**
+         * 按步骤读入gzip头部，每个字节只看一次；头部完整时恰好读完，不会读进压缩数据
+         */
+        private int readGzipHeader(byte[] data, int offset, int end) throws IOException {
+            while (offset < end) {
+                switch (headerStep) {
+                    case FIXED:
+                        int take = Math.min(end - offset, fixed.length - headerCount);
+                        System.arraycopy(data, offset, fixed, headerCount, take);
+                        offset += take;
+                        headerCount += take;
+                        if (headerCount < fixed.length) {
+                            return offset;
+                        }
+                        if (((fixed[0] & 0xff) | (fixed[1] & 0xff) << 8) != GZIP_MAGIC || fixed[2] != 8) {
+                            throw new IOException("不是gzip数据");
+                        }
+                        headerFlags = fixed[3] & 0xff;
+                        break;
+                    case EXTRA_LENGTH:
+                        headerSkip |= (data[offset++] & 0xff) << (8 * headerCount++);
+                        if (headerCount < 2) {
+                            continue;
+                        }
+                        break;
+                    case EXTRA:
+                    case HEADER_CRC:
+                        int skip = Math.min(end - offset, headerSkip);
+                        offset += skip;
+                        headerSkip -= skip;
+                        if (headerSkip > 0) {
+                            return offset;
+                        }
+                        break;
+                    default:
+                        // 文件名和注释以0结尾
+                        while (offset < end && data[offset] != 0) {
+                            offset++;
+                        }
+                        if (offset == end) {
+                            return offset;
+                        }
+                        offset++;
+                        break;
+                }
+                nextHeaderStep();
+                if (headerStep == HEADER_DONE) {
+                    headerStep = FIXED;
+                    startInflater(true);
+                    return offset;
+                }
+            }
+            return offset;
+        }
+
+        /**
+         * 前进到头部标志中存在的下一个字段
+         */
+        private void nextHeaderStep() {
+            headerCount = 0;
+            while (++headerStep < HEADER_DONE) {
+                switch (headerStep) {
+                    case EXTRA_LENGTH:
+                        headerSkip = 0;
+                        if ((headerFlags & FEXTRA) != 0) {
+                            return;
+                        }
+                        break;
+                    case EXTRA:
+                        if (headerSkip > 0) {
+                            return;
+                        }
+                        break;
+                    case NAME:
+                        if ((headerFlags & FNAME) != 0) {
+                            return;
+                        }
+                        break;
+                    case COMMENT:
+                        if ((headerFlags & FCOMMENT) != 0) {
+                            return;
+                        }
+                        break;
+                    default:
+                        if ((headerFlags & FHCRC) != 0) {
+                            headerSkip = 2;
+                            return;
+                        }
+                        break;
+                }
+            }
+        }
+
+        private void startInflater(boolean nowrap) {
+            if (inflater == null) {
+                inflater = new Inflater(nowrap);
+            } else {
+                inflater.reset();
+            }
+            crc.reset();
+            state = DATA;
+        }
+
+        private int inflate(byte[] data, int offset, int end, OutputStream out) throws IOException {
+            inflater.setInput(data, offset, end - offset);
+            try {
+                while (true) {
+                    int count = inflater.inflate(output);
+                    if (count > 0) {
+                        crc.update(output, 0, count);
+                        out.write(output, 0, count);
+                    }
+                    if (inflater.finished()) {
+                        state = gzip ? TRAILER : DONE;
+                        return end - inflater.getRemaining();
+                    }
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        return end;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("无效的压缩数据: " + e.getMessage());
+            }
+        }
+
+        private int readTrailer(byte[] data, int offset, int end) throws IOException {
+            int take = Math.min(end - offset, 8 - pending.size());
+            pending.write(data, offset, take);
+            if (pending.size() < 8) {
+                return offset + take;
+            }
+            byte[] trailer = pending.toByteArray();
+            pending.reset();
+            long expected = (trailer[0] & 0xffL) | (trailer[1] & 0xffL) << 8
+                    | (trailer[2] & 0xffL) << 16 | (trailer[3] & 0xffL) << 24;
+            if (expected != crc.getValue()) {
+                throw new IOException("gzip校验失败");
+            }
+            // 后面可能还有下一个gzip成员
+            state = HEADER;
+            return offset + take;
+        }
+
+        private static boolean isZlibHeader(byte[] header) {
+            int cmf = header[0] & 0xff;
+            int flg = header[1] & 0xff;
+            return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+        }
+    }
+
+    /**
+     * 流式压缩
+     * 代理到客户端一般是本机回环连接，压缩只是为了保持原来的Content-Encoding，因此使用最快的压缩级别。
+     */
+    private static final class Encoder implements BodyStage {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final boolean gzip;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private boolean started;
+
+        Encoder(boolean gzip) {
+            this.gzip = gzip;
+            this.deflater = new Deflater(Deflater.BEST_SPEED, gzip);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length, OutputStream out) throws IOException {
+            start(out);
+            if (gzip) {
+                crc.update(data, offset, length);
+            }
+            deflater.setInput(data, offset, length);
+            while (!deflater.needsInput()) {
+                drain(out);
+            }
+        }
+
+        @Override
+        public void finish(OutputStream out) throws IOException {
+            start(out);
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(out);
+            }
+            if (gzip) {
+                writeInt(out, (int) crc.getValue());
+                writeInt(out, (int) deflater.getBytesRead());
+            }
+            close();
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+
+        private void start(OutputStream out) throws IOException {
+            if (!started) {
+                started = true;
+                if (gzip) {
+                    out.write(GZIP_HEADER);
+                }
+            }
+        }
+
+        private void drain(OutputStream out) throws IOException {
+            int count = deflater.deflate(output);
+            if (count > 0) {
+                out.write(output, 0, count);
+            }
+        }
+
+        private static void writeInt(OutputStream out, int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >>> 8) & 0xff);
+            out.write((value >>> 16) & 0xff);
+            out.write((value >>> 24) & 0xff);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.packetcapture.rewrite;
+
+/**
+ * 重写操作对消息头部的访问接口，由代理中的HTTP头部实现
+ */
+public interface HeaderEditor {
+    /**
+     * 返回第一个同名头部的值，名称不区分大小写
+     */
+    String getHeader(String name);
+
+    /**
+     * 替换所有同名头部为一个新值
+     */
+    void setHeader(String name, String value);
+
+    void removeHeader(String name);
+
+    /**
+     * 修改响应的状态码和原因短语，对请求无效
+     */
+    void setStatus(int code, String reason);
+}
@@ -0,0 +1,196 @@
+package com.example.packetcapture.rewrite;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按路径修改JSON消息体中的一个值
+ * JSON只能整体解析，因此这个阶段会缓存消息体，最多maxSize字节；超过上限或解析失败时原样输出。
+ * 路径形如 $.data.items[0].name 或 data.items.0.name；值为null时删除该字段。
+ */
+final class JsonPatcher implements BodyStage {
+    private static final String TAG = "JsonPatcher";
+
+    private final List<Object> path;
+    private final Object value;
+    private final Charset charset;
+    private final int maxSize;
+    private ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+
+    JsonPatcher(List<Object> path, Object value, Charset charset, int maxSize) {
+        this.path = path;
+        this.value = value;
+        this.charset = charset;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 把路径拆成字段名（String）和数组下标（Integer）
+     * @return 路径无效时返回null
+     */
+    static List<Object> parsePath(String path) {
+        String trimmed = path.trim();
+        if (trimmed.startsWith("$")) {
+            trimmed = trimmed.substring(1);
+        }
+        List<Object> segments = new ArrayList<>();
+        int position = 0;
+        while (position < trimmed.length()) {
+            char c = trimmed.charAt(position);
+            if (c == '.') {
+                position++;
+                continue;
+            }
+            if (c == '[') {
+                int close = trimmed.indexOf(']', position);
+                if (close < 0) {
+                    return null;
+                }
+                String index = trimmed.substring(position + 1, close).trim();
+                if (index.length() >= 2 && (index.charAt(0) == '\'' || index.charAt(0) == '"')) {
+                    segments.add(index.substring(1, index.length() - 1));
+                } else {
+                    try {
+                        segments.add(Integer.parseInt(index));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                }
+                position = close + 1;
+                continue;
+            }
+            int end = position;
+            while (end < trimmed.length() && trimmed.charAt(end) != '.' && trimmed.charAt(end) != '[') {
+                end++;
+            }
+            String name = trimmed.substring(position, end);
+            segments.add(isIndex(name) ? (Object) Integer.valueOf(name) : name);
+            position = end;
+        }
+        return segments.isEmpty() ? null : segments;
+    }
+
+    private static boolean isIndex(String name) {
+        if (name.isEmpty() || name.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把配置中的值解析为JSON值，不是合法JSON时按字符串处理
+     */
+    static Object parseValue(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new JSONTokener(value).nextValue();
+        } catch (JSONException e) {
+            return value;
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        if (buffered == null) {
+            out.write(data, offset, length);
+            return;
+        }
+        buffered.write(data, offset, length);
+        if (buffered.size() > maxSize) {
+            Log.w(TAG, "消息体超过" + maxSize + "字节，不修改JSON");
+            buffered.writeTo(out);
+            buffered = null;
+        }
+    }
+
+    @Override
+    public void finish(OutputStream out) throws IOException {
+        if (buffered == null) {
+            return;
+        }
+        String text = new String(buffered.toByteArray(), charset);
+        try {
+            Object root = new JSONTokener(text).nextValue();
+            if (patch(root)) {
+                out.write(root.toString().getBytes(charset));
+                buffered = null;
+                return;
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "消息体不是有效的JSON: " + e.getMessage());
+        }
+        buffered.writeTo(out);
+        buffered = null;
+    }
+
+    @Override
+    public void close() {
+        buffered = null;
+    }
+
+    /**
+     * @return 找到了路径上的父节点并完成修改
+     */
+    private boolean patch(Object root) throws JSONException {
+        Object parent = root;
+        for (int i = 0; i < path.size() - 1; i++) {
+            parent = child(parent, path.get(i));
+            if (parent == null) {
+                return false;
+            }
+        }
+        Object key = path.get(path.size() - 1);
+        if (parent instanceof JSONObject) {
+            // data.items.0 这种写法中的数字也可能是字段名
+            String name = String.valueOf(key);
+            if (value == null) {
+                ((JSONObject) parent).remove(name);
+            } else {
+                ((JSONObject) parent).put(name, value);
+            }
+            return true;
+        }
+        if (parent instanceof JSONArray && key instanceof Integer) {
+            JSONArray array = (JSONArray) parent;
+            int index = (Integer) key;
+            if (index < 0 || index >= array.length()) {
+                return false;
+            }
+            if (value == null) {
+                array.remove(index);
+            } else {
+                array.put(index, value);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static Object child(Object node, Object key) {
+        if (node instanceof JSONObject) {
+            return ((JSONObject) node).opt(String.valueOf(key));
+        }
+        if (node instanceof JSONArray && key instanceof Integer) {
+            return ((JSONArray) node).opt((Integer) key);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.packetcapture.rewrite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 按字节查找替换固定字符串
+ * 每段数据处理完后保留末尾不足一个查找串长度的字节，与下一段拼接后再查找，
+ * 因此跨段的匹配也能找到，而暂存的数据始终少于查找串的长度。
+ */
+final class LiteralReplacer implements BodyStage {
+    private final byte[] find;
+    private final byte[] replacement;
+    private byte[] window;
+    private int windowLength;
+
+    LiteralReplacer(byte[] find, byte[] replacement) {
+        this.find = find;
+        this.replacement = replacement;
+        this.window = new byte[Math.max(64, find.length * 2)];
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (windowLength == 0 && length >= find.length) {
+            // 没有暂存数据时直接在输入上查找，避免复制
+            int kept = replace(data, offset, length, out, false);
+            keep(data, offset + length - kept, kept);
+            return;
+        }
+        ensureCapacity(windowLength + length);
+        System.arraycopy(data, offset, window, windowLength, length);
+        windowLength += length;
+        int kept = replace(window, 0, windowLength, out, false);
+        System.arraycopy(window, windowLength - kept, window, 0, kept);
+        windowLength = kept;
+    }
+
+    @Override
+    public void finish(OutputStream out) throws IOException {
+        replace(window, 0, windowLength, out, true);
+        windowLength = 0;
+    }
+
+    @Override
+    public void close() {
+        // 只持有堆内存，没有需要释放的资源
+    }
+
+    /**
+     * 查找并写出可以确定的部分
+     * @return 末尾留待下一段继续查找的字节数
+     */
+    private int replace(byte[] data, int offset, int length, OutputStream out, boolean last) throws IOException {
+        int end = offset + length;
+        int written = offset;
+        int position = offset;
+        int lastStart = end - find.length;
+        while (position <= lastStart) {
+            if (matchesAt(data, position)) {
+                out.write(data, written, position - written);
+                out.write(replacement);
+                position += find.length;
+                written = position;
+            } else {
+                position++;
+            }
+        }
+        if (last) {
+            out.write(data, written, end - written);
+            return 0;
+        }
+        // 最后不足查找串长度的部分可能是下一个匹配的开头
+        int keepFrom = Math.max(written, end - (find.length - 1));
+        out.write(data, written, keepFrom - written);
+        return end - keepFrom;
+    }
+
+    private boolean matchesAt(byte[] data, int position) {
+        for (int i = 0; i < find.length; i++) {
+            if (data[position + i] != find[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void keep(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, window, 0, length);
+        windowLength = length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (window.length < capacity) {
+            byte[] larger = new byte[Math.max(capacity, window.length * 2)];
+            System.arraycopy(window, 0, larger, 0, windowLength);
+            window = larger;
+        }
+    }
+}
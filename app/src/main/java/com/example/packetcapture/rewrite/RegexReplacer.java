@@ -0,0 +1,111 @@
+package com.example.packetcapture.rewrite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 按正则表达式查找替换文本
+ * 消息体按字符集增量解码，跨段的多字节字符留到下一段再解码。每段处理后保留末尾window个字符
+ * 不写出，与后续文本拼接后再匹配，因此长度不超过window的匹配即使跨段也能找到；
+ * 匹配若可能随后续输入继续延长，在窗口之内的部分也留到下一段再决定，留下的文本始终不超过window个字符。
+ */
+final class RegexReplacer implements BodyStage {
+    private final Pattern pattern;
+    private final String replacement;
+    private final int window;
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    private final StringBuilder text = new StringBuilder();
+    private ByteBuffer undecoded = ByteBuffer.allocate(16);
+    private CharBuffer decoded = CharBuffer.allocate(1024);
+
+    RegexReplacer(Pattern pattern, String replacement, int window, Charset charset) {
+        this.pattern = pattern;
+        this.replacement = replacement;
+        this.window = window;
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        decode(ByteBuffer.wrap(data, offset, length), false);
+        replace(out, false);
+    }
+
+    @Override
+    public void finish(OutputStream out) throws IOException {
+        decode(ByteBuffer.allocate(0), true);
+        replace(out, true);
+    }
+
+    @Override
+    public void close() {
+        // 只持有堆内存，没有需要释放的资源
+    }
+
+    private void decode(ByteBuffer input, boolean last) {
+        if (undecoded.position() > 0) {
+            // 拼上上一段末尾不完整的字符
+            ByteBuffer joined = ByteBuffer.allocate(undecoded.position() + input.remaining());
+            undecoded.flip();
+            joined.put(undecoded).put(input).flip();
+            undecoded.clear();
+            input = joined;
+        }
+        if (decoded.capacity() < input.remaining()) {
+            decoded = CharBuffer.allocate(input.remaining());
+        }
+        decoded.clear();
+        decoder.decode(input, decoded, last);
+        if (last) {
+            decoder.flush(decoded);
+            decoder.reset();
+        }
+        decoded.flip();
+        text.append(decoded);
+        if (input.hasRemaining()) {
+            if (undecoded.capacity() < input.remaining()) {
+                undecoded = ByteBuffer.allocate(input.remaining());
+            }
+            undecoded.put(input);
+        }
+    }
+
+    private void replace(OutputStream out, boolean last) throws IOException {
+        int safeEnd = last ? text.length() : text.length() - window;
+        if (safeEnd <= 0) {
+            return;
+        }
+        StringBuffer result = new StringBuffer();
+        Matcher matcher = pattern.matcher(text);
+        int emitted = 0;
+        int emitEnd = safeEnd;
+        while (matcher.find()) {
+            if (!last && matcher.hitEnd()) {
+                // 这个匹配可能因后续输入而变化，从它的开头起留到下一段
+                emitEnd = Math.max(emitted, matcher.start());
+                break;
+            }
+            matcher.appendReplacement(result, replacement);
+            emitted = matcher.end();
+            if (!last && emitted >= safeEnd) {
+                break;
+            }
+        }
+        // 留下的文本最多window个字符，更早开始的匹配超出了窗口，原样写出
+        emitEnd = Math.max(Math.max(emitEnd, emitted), safeEnd);
+        result.append(text, emitted, emitEnd);
+        text.delete(0, emitEnd);
+        out.write(result.toString().getBytes(charset));
+    }
+}
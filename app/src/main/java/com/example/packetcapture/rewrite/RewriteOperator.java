@@ -0,0 +1,284 @@
+package com.example.packetcapture.rewrite;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 一个编译好的重写操作，由配置中的一个重写项生成，创建后不再改变，可在多个线程间共享
+ * 操作类型名中的Request/Response决定作用于请求还是响应：
+ * <ul>
+ * <li>replaceResponseHeader / replaceRequestHeader：name、value，设置头部</li>
+ * <li>removeResponseHeader / removeRequestHeader：name，删除头部</li>
+ * <li>replaceResponseStatus：status、reason，修改状态码</li>
+ * <li>replaceResponseBody / replaceRequestBody：body，整体替换消息体</li>
+ * <li>replaceResponseText / replaceRequestText：find、replace、regex、window，查找替换消息体文本</li>
+ * <li>patchResponseJson / patchRequestJson：path、value，修改JSON消息体中的一个值</li>
+ * </ul>
+ */
+public abstract class RewriteOperator {
+    private static final String TAG = "RewriteOperator";
+    public static final int DEFAULT_REGEX_WINDOW = 4096;
+
+    private final boolean request;
+
+    RewriteOperator(boolean request) {
+        this.request = request;
+    }
+
+    /**
+     * 作用于请求还是响应
+     */
+    public boolean isRequest() {
+        return request;
+    }
+
+    /**
+     * 修改消息头部
+     */
+    public void applyHead(HeaderEditor head) {
+    }
+
+    /**
+     * 是否修改消息体
+     */
+    public boolean rewritesBody() {
+        return false;
+    }
+
+    /**
+     * 为一条消息创建消息体处理阶段
+     * @param charset 文本消息体的字符集，消息体不是可处理的文本时为null
+     * @param maxBufferedSize 需要整体处理消息体时最多缓存的字节数
+     * @return 不适用于这条消息时返回null
+     */
+    public BodyStage newBodyStage(Charset charset, int maxBufferedSize) {
+        return null;
+    }
+
+    /**
+     * 由配置中的重写项创建操作
+     * @return 未知的类型或缺少必要的值时返回null
+     */
+    public static RewriteOperator create(String type, Map<String, String> values) {
+        if (type == null) {
+            return null;
+        }
+        boolean request = type.contains("Request");
+        if (!request && !type.contains("Response")) {
+            return null;
+        }
+        String kind = type.replace("Request", "").replace("Response", "");
+        switch (kind) {
+            case "replaceHeader": {
+                String name = values.get("name");
+                return name == null ? null : new SetHeader(request, name, values.get("value"));
+            }
+            case "removeHeader": {
+                String name = values.get("name");
+                return name == null ? null : new SetHeader(request, name, null);
+            }
+            case "replaceStatus":
+                return request ? null : SetStatus.create(values);
+            case "replaceBody": {
+                String body = values.get("body");
+                return body == null ? null : new ReplaceBody(request, body);
+            }
+            case "replaceText":
+                return ReplaceText.create(request, values);
+            case "patchJson":
+                return PatchJson.create(request, values);
+            default:
+                Log.w(TAG, "未知的重写类型: " + type);
+                return null;
+        }
+    }
+
+    /**
+     * 设置或删除头部
+     */
+    private static final class SetHeader extends RewriteOperator {
+        private final String name;
+        private final String value;
+
+        SetHeader(boolean request, String name, String value) {
+            super(request);
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public void applyHead(HeaderEditor head) {
+            if (value == null) {
+                head.removeHeader(name);
+            } else {
+                head.setHeader(name, value);
+            }
+        }
+    }
+
+    private static final class SetStatus extends RewriteOperator {
+        private final int status;
+        private final String reason;
+
+        private SetStatus(int status, String reason) {
+            super(false);
+            this.status = status;
+            this.reason = reason;
+        }
+
+        static SetStatus create(Map<String, String> values) {
+            try {
+                int status = Integer.parseInt(values.get("status").trim());
+                if (status < 100 || status > 999) {
+                    return null;
+                }
+                String reason = values.get("reason");
+                return new SetStatus(status, reason != null ? reason : "");
+            } catch (RuntimeException e) {
+                Log.w(TAG, "无效的状态码: " + values.get("status"));
+                return null;
+            }
+        }
+
+        @Override
+        public void applyHead(HeaderEditor head) {
+            head.setStatus(status, reason);
+        }
+    }
+
+    /**
+     * 丢弃原消息体，输出固定内容
+     */
+    private static final class ReplaceBody extends RewriteOperator {
+        private final byte[] body;
+
+        ReplaceBody(boolean request, String body) {
+            super(request);
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean rewritesBody() {
+            return true;
+        }
+
+        @Override
+        public void applyHead(HeaderEditor head) {
+            // 新内容按UTF-8编码输出，原来的压缩方式不再适用
+            head.removeHeader("Content-Encoding");
+        }
+
+        @Override
+        public BodyStage newBodyStage(Charset charset, int maxBufferedSize) {
+            return new BodyStage() {
+                @Override
+                public void write(byte[] data, int offset, int length, OutputStream out) {
+                }
+
+                @Override
+                public void finish(OutputStream out) throws IOException {
+                    out.write(body);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    private static final class ReplaceText extends RewriteOperator {
+        private final String find;
+        private final String replacement;
+        private final Pattern pattern;
+        private final int window;
+
+        private ReplaceText(boolean request, String find, String replacement, Pattern pattern, int window) {
+            super(request);
+            this.find = find;
+            this.replacement = replacement;
+            this.pattern = pattern;
+            this.window = window;
+        }
+
+        static ReplaceText create(boolean request, Map<String, String> values) {
+            String find = values.get("find");
+            if (find == null || find.isEmpty()) {
+                return null;
+            }
+            String replacement = values.get("replace") != null ? values.get("replace") : "";
+            if (!Boolean.parseBoolean(values.get("regex"))) {
+                return new ReplaceText(request, find, replacement, null, 0);
+            }
+            int window = DEFAULT_REGEX_WINDOW;
+            if (values.get("window") != null) {
+                try {
+                    window = Math.max(1, Integer.parseInt(values.get("window").trim()));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "无效的window: " + values.get("window"));
+                }
+            }
+            try {
+                return new ReplaceText(request, find, replacement, Pattern.compile(find), window);
+            } catch (PatternSyntaxException e) {
+                Log.w(TAG, "无效的正则表达式: " + find);
+                return null;
+            }
+        }
+
+        @Override
+        public boolean rewritesBody() {
+            return true;
+        }
+
+        @Override
+        public BodyStage newBodyStage(Charset charset, int maxBufferedSize) {
+            if (charset == null) {
+                return null;
+            }
+            if (pattern == null) {
+                return new LiteralReplacer(find.getBytes(charset), replacement.getBytes(charset));
+            }
+            return new RegexReplacer(pattern, replacement, window, charset);
+        }
+    }
+
+    private static final class PatchJson extends RewriteOperator {
+        private final List<Object> path;
+        private final Object value;
+
+        private PatchJson(boolean request, List<Object> path, Object value) {
+            super(request);
+            this.path = path;
+            this.value = value;
+        }
+
+        static PatchJson create(boolean request, Map<String, String> values) {
+            String path = values.get("path");
+            List<Object> segments = path == null ? null : JsonPatcher.parsePath(path);
+            if (segments == null) {
+                Log.w(TAG, "无效的JSON路径: " + path);
+                return null;
+            }
+            return new PatchJson(request, segments, JsonPatcher.parseValue(values.get("value")));
+        }
+
+        @Override
+        public boolean rewritesBody() {
+            return true;
+        }
+
+        @Override
+        public BodyStage newBodyStage(Charset charset, int maxBufferedSize) {
+            return charset == null ? null : new JsonPatcher(path, value, charset, maxBufferedSize);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.packetcapture.rewrite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 作用于一条消息的一组重写操作，按规则优先级和重写项的顺序依次执行
+ * 头部操作直接修改头部；消息体操作串成一条处理链，前一个阶段的输出就是后一个阶段的输入，
+ * 消息体按段流过整条链，除JSON修改外不需要缓存整个消息体。
+ * 经过gzip或deflate压缩的消息体在链的开头解压、结尾按修改后的Content-Encoding重新压缩。
+ */
+public final class RewritePipeline {
+    private final List<RewriteOperator> operators;
+    private final boolean rewritesBody;
+
+    private RewritePipeline(List<RewriteOperator> operators) {
+        this.operators = operators;
+        boolean body = false;
+        for (RewriteOperator operator : operators) {
+            body |= operator.rewritesBody();
+        }
+        this.rewritesBody = body;
+    }
+
+    /**
+     * @return 没有任何操作时返回null
+     */
+    public static RewritePipeline create(List<RewriteOperator> operators) {
+        if (operators.isEmpty()) {
+            return null;
+        }
+        return new RewritePipeline(Collections.unmodifiableList(new ArrayList<>(operators)));
+    }
+
+    public boolean rewritesBody() {
+        return rewritesBody;
+    }
+
+    /**
+     * 会改写响应体时，把发往上游的请求的Accept-Encoding限制为能够解压的编码
+     * 响应仍然可以压缩传输，只是不会使用br等无法解压、也就无法改写的编码。
+     */
+    public void limitAcceptEncoding(HeaderEditor request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (rewritesBody && acceptEncoding != null) {
+            request.setHeader("Accept-Encoding", ContentCoding.filterAcceptEncoding(acceptEncoding));
+        }
+    }
+
+    /**
+     * 修改头部，并为消息体创建处理链
+     * 是否按文本处理由修改前的Content-Type决定；无法解压的消息体不做文本处理。
+     * @param hasBody 消息是否有消息体
+     * @return 消息体不需要改写时返回null；否则调用方需要按新的长度重新分帧
+     */
+    public BodyStage apply(HeaderEditor head, boolean hasBody, int maxBufferedSize) {
+        String coding = ContentCoding.normalize(head.getHeader("Content-Encoding"));
+        Charset charset = coding != null ? textCharset(head.getHeader("Content-Type")) : null;
+        for (RewriteOperator operator : operators) {
+            operator.applyHead(head);
+        }
+        if (!hasBody || !rewritesBody) {
+            return null;
+        }
+        List<BodyStage> stages = new ArrayList<>(operators.size() + 2);
+        for (RewriteOperator operator : operators) {
+            BodyStage stage = operator.newBodyStage(charset, maxBufferedSize);
+            if (stage != null) {
+                stages.add(stage);
+            }
+        }
+        if (stages.isEmpty()) {
+            return null;
+        }
+        if (coding != null && !coding.equals(ContentCoding.IDENTITY)) {
+            stages.add(0, ContentCoding.decoder(coding));
+        }
+        // 头部操作可能删除或修改了Content-Encoding，输出按修改后的编码
+        String outputCoding = ContentCoding.normalize(head.getHeader("Content-Encoding"));
+        if (outputCoding != null && !outputCoding.equals(ContentCoding.IDENTITY)) {
+            stages.add(ContentCoding.encoder(outputCoding));
+        }
+        return stages.size() == 1 ? stages.get(0) : new Chain(stages);
+    }
+
+    /**
+     * 让整个消息体一次性通过处理链
+     */
+    public static byte[] run(BodyStage stage, byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        try {
+            stage.write(body, 0, body.length, out);
+            stage.finish(out);
+        } catch (IOException e) {
+            // 写入内存不会失败
+            throw new IllegalStateException(e);
+        } finally {
+            stage.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 判断消息体是否是可以按文本处理的类型
+     * @return 文本的字符集，没有声明时为UTF-8；不是文本时返回null
+     */
+    static Charset textCharset(String contentType) {
+        if (contentType == null) {
+            return StandardCharsets.UTF_8;
+        }
+        String[] parts = contentType.split(";");
+        String mime = parts[0].trim().toLowerCase(Locale.ROOT);
+        if (!mime.startsWith("text/") && !mime.endsWith("json") && !mime.endsWith("+xml")
+                && !mime.endsWith("/xml") && !mime.endsWith("javascript")
+                && !mime.equals("application/x-www-form-urlencoded")) {
+            return null;
+        }
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.regionMatches(true, 0, "charset=", 0, 8)) {
+                String name = parameter.substring(8).trim().replace("\"", "");
+                try {
+                    return Charset.forName(name);
+                } catch (RuntimeException e) {
+                    return null;
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * 把多个阶段串起来，每个阶段的输出直接写进下一个阶段
+     */
+    private static final class Chain implements BodyStage {
+        private final List<BodyStage> stages;
+        private final Link[] links;
+
+        Chain(List<BodyStage> stages) {
+            this.stages = stages;
+            this.links = new Link[stages.size()];
+            for (int i = 1; i < stages.size(); i++) {
+                links[i] = new Link(stages.get(i));
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length, OutputStream out) throws IOException {
+            stages.get(0).write(data, offset, length, sink(1, out));
+        }
+
+        @Override
+        public void finish(OutputStream out) throws IOException {
+            for (int i = 0; i < stages.size(); i++) {
+                stages.get(i).finish(sink(i + 1, out));
+            }
+        }
+
+        @Override
+        public void close() {
+            for (BodyStage stage : stages) {
+                stage.close();
+            }
+        }
+
+        private OutputStream sink(int index, OutputStream out) {
+            if (index == stages.size()) {
+                return out;
+            }
+            Link link = links[index];
+            link.next = sink(index + 1, out);
+            return link;
+        }
+    }
+
+    private static final class Link extends OutputStream {
+        private final BodyStage stage;
+        private final byte[] single = new byte[1];
+        OutputStream next;
+
+        Link(BodyStage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            stage.write(single, 0, 1, next);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (length > 0) {
+                stage.write(data, offset, length, next);
+            }
+        }
+    }
+}
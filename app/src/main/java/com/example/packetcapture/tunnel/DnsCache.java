@@ -0,0 +1,224 @@
+package com.example.packetcapture.tunnel;
+
+import com.example.packetcapture.capture.HostnameTable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * DNS应答缓存
+ * 以问题（域名、类型、类别、是否要求DNSSEC）为键保存上游的完整应答，按最久未使用淘汰。
+ * 肯定应答按应答记录的最小TTL缓存，否定应答（NXDOMAIN或没有所需类型的记录）按SOA给出的时间缓存，
+ * 截断、服务器错误和TTL为0的应答不缓存。命中时复制应答，换上查询的ID和问题，并按已缓存的时间减小各记录的TTL；
+ * 应答超出查询方能接收的UDP长度时只回复置了TC位的头部和问题。
+ * 存入应答时顺便把A/AAAA记录中的地址登记到HostnameTable，代理也可以用缓存代替系统解析。
+ * 所有公开方法都是线程安全的。
+ */
+public final class DnsCache {
+    public static final int DEFAULT_CAPACITY = 2048;
+    // 上游给出的TTL过长时的上限
+    private static final long MAX_TTL_SECONDS = 24 * 60 * 60;
+    private static final long MAX_NEGATIVE_TTL_SECONDS = 15 * 60;
+
+    private static final class Entry {
+        final byte[] response;
+        final int[] ttlOffsets;
+        final int questionEnd;
+        final long storedAt;
+        final long expiresAt;
+        final List<byte[]> addresses;
+
+        Entry(byte[] response, int[] ttlOffsets, int questionEnd, long storedAt, long expiresAt,
+              List<byte[]> addresses) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.questionEnd = questionEnd;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.addresses = addresses;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+    // 为null时不登记主机名
+    private final HostnameTable hostnames;
+    private long hitCount;
+    private long missCount;
+
+    public DnsCache(int capacity, HostnameTable hostnames) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("容量必须为正数: " + capacity);
+        }
+        this.capacity = capacity;
+        this.hostnames = hostnames;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public DnsCache(HostnameTable hostnames) {
+        this(DEFAULT_CAPACITY, hostnames);
+    }
+
+    static String key(String name, int type, int questionClass, boolean dnssecOk) {
+        return name + '/' + type + '/' + questionClass + (dnssecOk ? "/do" : "");
+    }
+
+    /**
+     * 用缓存回答一条查询
+     * @param key 查询对应的键
+     * @param query 已解析的查询
+     * @param data 查询报文所在的数组
+     * @param offset 查询报文的起始位置
+     * @return 回复报文；未命中或已过期时返回null
+     */
+    byte[] answer(String key, DnsMessage query, byte[] data, int offset, long now) {
+        Entry entry;
+        synchronized (this) {
+            entry = get(key, now);
+            if (entry == null) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+        }
+
+        boolean truncated = entry.response.length > query.getUdpPayloadSize();
+        byte[] reply = truncated ? DnsMessage.truncate(entry.response, 0, entry.questionEnd) : entry.response.clone();
+        DnsMessage.writeShort(reply, 0, query.getId());
+        int flags = DnsMessage.readShort(reply, 2) & ~DnsMessage.FLAG_RECURSION_DESIRED;
+        DnsMessage.writeShort(reply, 2, flags | (query.getFlags() & DnsMessage.FLAG_RECURSION_DESIRED));
+        // 沿用查询中域名的大小写，部分客户端靠随机大小写校验应答
+        if (entry.questionEnd == query.getQuestionEnd()) {
+            System.arraycopy(data, offset + DnsMessage.HEADER_SIZE, reply, DnsMessage.HEADER_SIZE,
+                    entry.questionEnd - DnsMessage.HEADER_SIZE);
+        }
+        if (truncated) {
+            return reply;
+        }
+        long elapsed = (now - entry.storedAt) / 1000;
+        for (int ttlOffset : entry.ttlOffsets) {
+            long ttl = DnsMessage.readInt(reply, ttlOffset) & 0xFFFFFFFFL;
+            DnsMessage.writeInt(reply, ttlOffset, (int) Math.max(0, ttl - elapsed));
+        }
+        return reply;
+    }
+
+    /**
+     * 保存上游的应答
+     * @param key 查询对应的键
+     * @param response 已解析的应答
+     * @param data 应答报文所在的数组
+     */
+    void store(String key, DnsMessage response, byte[] data, int offset, int length, long now) {
+        if (hostnames != null) {
+            for (byte[] address : response.getAddresses()) {
+                hostnames.put(address, response.getName());
+            }
+        }
+        if (response.isTruncated()) {
+            return;
+        }
+        long ttl;
+        int code = response.getResponseCode();
+        if (code == DnsMessage.RCODE_NO_ERROR && response.getAnswerCount() > 0) {
+            ttl = Math.min(response.getAnswerTtl(), MAX_TTL_SECONDS);
+        } else if (code == DnsMessage.RCODE_NO_ERROR || code == DnsMessage.RCODE_NAME_ERROR) {
+            ttl = Math.min(response.getNegativeTtl(), MAX_NEGATIVE_TTL_SECONDS);
+        } else {
+            return;
+        }
+        if (ttl <= 0) {
+            return;
+        }
+
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        int[] ttlOffsets = new int[response.getTtlCount()];
+        System.arraycopy(response.getTtlOffsets(), 0, ttlOffsets, 0, ttlOffsets.length);
+        Entry entry = new Entry(copy, ttlOffsets, response.getQuestionEnd(), now, now + ttl * 1000,
+                new ArrayList<>(response.getAddresses()));
+        synchronized (this) {
+            entries.put(key, entry);
+            if (entries.size() > capacity) {
+                Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * 解析主机名，缓存中没有时交给系统解析
+     * 供代理连接上游时使用，系统解析可能阻塞
+     * @return 系统也无法解析时返回未解析的地址
+     */
+    public InetSocketAddress resolve(String host, int port) {
+        InetAddress address = lookup(host);
+        return address != null ? new InetSocketAddress(address, port) : new InetSocketAddress(host, port);
+    }
+
+    /**
+     * 只查缓存，优先使用未过期的A记录，其次AAAA记录，不会阻塞
+     * @return 未缓存、已过期或host本身是IP地址时返回null
+     */
+    public InetAddress lookup(String host) {
+        if (host.isEmpty() || host.indexOf(':') >= 0 || Character.isDigit(host.charAt(host.length() - 1))) {
+            return null;
+        }
+        String name = host.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        long now = System.currentTimeMillis();
+        byte[] address;
+        synchronized (this) {
+            Entry entry = get(key(name, DnsMessage.TYPE_A, DnsMessage.CLASS_IN, false), now);
+            if (entry == null || entry.addresses.isEmpty()) {
+                entry = get(key(name, DnsMessage.TYPE_AAAA, DnsMessage.CLASS_IN, false), now);
+            }
+            if (entry == null || entry.addresses.isEmpty()) {
+                return null;
+            }
+            address = entry.addresses.get(0);
+            hitCount++;
+        }
+        try {
+            return InetAddress.getByAddress(host, address);
+        } catch (UnknownHostException e) {
+            // 地址长度已在解析时校验过，不会发生
+            return null;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private Entry get(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= now) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,347 @@
+package com.example.packetcapture.tunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DNS报文解析器
+ * 解析头部、唯一的问题和全部资源记录，记下缓存需要的信息：各记录TTL字段的位置、应答的最小TTL、
+ * 否定应答的TTL（RFC 2308，取SOA记录TTL与MINIMUM字段的较小值）以及A/AAAA记录中的地址。
+ * 偏移量都相对于报文起始位置。实例可以反复复用，不是线程安全的。
+ */
+public final class DnsMessage {
+    static final int HEADER_SIZE = 12;
+    static final int MAX_UDP_SIZE = 512;
+
+    static final int FLAG_RESPONSE = 0x8000;
+    static final int FLAG_TRUNCATED = 0x0200;
+    static final int FLAG_RECURSION_DESIRED = 0x0100;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int RCODE_MASK = 0x000F;
+
+    static final int RCODE_NO_ERROR = 0;
+    static final int RCODE_NAME_ERROR = 3;
+
+    static final int TYPE_A = 1;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_OPT = 41;
+    static final int CLASS_IN = 1;
+
+    // EDNS扩展标志中的DO位，位于OPT记录TTL字段的低16位
+    private static final int EDNS_DNSSEC_OK = 0x8000;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_POINTER_JUMPS = 16;
+
+    private int id;
+    private int flags;
+    private int answerCount;
+    private String name;
+    private int questionType;
+    private int questionClass;
+    private int questionEnd;
+    private int udpPayloadSize;
+    private boolean dnssecOk;
+
+    private int[] ttlOffsets = new int[16];
+    private int ttlCount;
+    private long answerTtl;
+    private long negativeTtl;
+    private final List<byte[]> addresses = new ArrayList<>();
+
+    /**
+     * 解析一条只有一个问题的DNS报文
+     * @return 报文格式错误或问题数不为1时返回false
+     */
+    boolean parse(byte[] data, int offset, int length) {
+        reset();
+        if (length < HEADER_SIZE) {
+            return false;
+        }
+        int end = offset + length;
+        id = readShort(data, offset);
+        flags = readShort(data, offset + 2);
+        int questionCount = readShort(data, offset + 4);
+        answerCount = readShort(data, offset + 6);
+        int authorityCount = readShort(data, offset + 8);
+        int additionalCount = readShort(data, offset + 10);
+        if (questionCount != 1) {
+            return false;
+        }
+
+        int position = offset + HEADER_SIZE;
+        name = readName(data, offset, position, end);
+        position = skipName(data, position, end);
+        if (name == null || position < 0 || position + 4 > end) {
+            return false;
+        }
+        questionType = readShort(data, position);
+        questionClass = readShort(data, position + 2);
+        position += 4;
+        questionEnd = position - offset;
+
+        int total = answerCount + authorityCount + additionalCount;
+        for (int i = 0; i < total; i++) {
+            position = skipName(data, position, end);
+            if (position < 0 || position + 10 > end) {
+                return false;
+            }
+            int type = readShort(data, position);
+            int recordClass = readShort(data, position + 2);
+            long ttl = readInt(data, position + 4) & 0xFFFFFFFFL;
+            int dataLength = readShort(data, position + 8);
+            int rdata = position + 10;
+            if (rdata + dataLength > end) {
+                return false;
+            }
+
+            if (type == TYPE_OPT) {
+                // OPT记录的类别字段是发送方可接收的UDP载荷大小，TTL字段是扩展标志
+                udpPayloadSize = Math.max(MAX_UDP_SIZE, recordClass);
+                dnssecOk = (ttl & EDNS_DNSSEC_OK) != 0;
+            } else {
+                addTtlOffset(position + 4 - offset);
+                if (i < answerCount) {
+                    answerTtl = Math.min(answerTtl, ttl);
+                    if (recordClass == CLASS_IN && (type == TYPE_A && dataLength == 4
+                            || type == TYPE_AAAA && dataLength == 16)) {
+                        byte[] address = new byte[dataLength];
+                        System.arraycopy(data, rdata, address, 0, dataLength);
+                        addresses.add(address);
+                    }
+                } else if (i < answerCount + authorityCount && type == TYPE_SOA) {
+                    // MINIMUM是SOA记录数据的最后4个字节
+                    if (dataLength >= 20) {
+                        long minimum = readInt(data, rdata + dataLength - 4) & 0xFFFFFFFFL;
+                        negativeTtl = Math.min(negativeTtl, Math.min(ttl, minimum));
+                    }
+                }
+            }
+            position = rdata + dataLength;
+        }
+        return true;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getFlags() {
+        return flags;
+    }
+
+    boolean isResponse() {
+        return (flags & FLAG_RESPONSE) != 0;
+    }
+
+    boolean isStandardQuery() {
+        return (flags & OPCODE_MASK) == 0;
+    }
+
+    boolean isTruncated() {
+        return (flags & FLAG_TRUNCATED) != 0;
+    }
+
+    int getResponseCode() {
+        return flags & RCODE_MASK;
+    }
+
+    int getAnswerCount() {
+        return answerCount;
+    }
+
+    /**
+     * 问题中的域名，已转为小写，不带结尾的点；根域为空字符串
+     */
+    String getName() {
+        return name;
+    }
+
+    int getQuestionType() {
+        return questionType;
+    }
+
+    int getQuestionClass() {
+        return questionClass;
+    }
+
+    /**
+     * 问题部分结束的位置，也就是头部加问题的长度
+     */
+    int getQuestionEnd() {
+        return questionEnd;
+    }
+
+    /**
+     * 发送方可接收的最大UDP报文长度，没有EDNS时为512
+     */
+    int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    boolean isDnssecOk() {
+        return dnssecOk;
+    }
+
+    int getTtlCount() {
+        return ttlCount;
+    }
+
+    int[] getTtlOffsets() {
+        return ttlOffsets;
+    }
+
+    /**
+     * 应答部分记录的最小TTL（秒），没有应答记录时为-1
+     */
+    long getAnswerTtl() {
+        return answerTtl == Long.MAX_VALUE ? -1 : answerTtl;
+    }
+
+    /**
+     * 否定应答可以缓存的时间（秒），授权部分没有SOA记录时为-1
+     */
+    long getNegativeTtl() {
+        return negativeTtl == Long.MAX_VALUE ? -1 : negativeTtl;
+    }
+
+    /**
+     * 应答部分A/AAAA记录中的地址，4或16字节
+     */
+    List<byte[]> getAddresses() {
+        return addresses;
+    }
+
+    /**
+     * 读取DNS报文问题中的域名，供抓包显示使用
+     * @param data 报文所在的数组
+     * @param offset DNS报文在数组中的起始位置
+     * @param length DNS报文长度
+     * @return 报文不完整或没有问题时返回null
+     */
+    public static String readQuestionName(byte[] data, int offset, int length) {
+        if (length < HEADER_SIZE || readShort(data, offset + 4) == 0) {
+            return null;
+        }
+        return readName(data, offset, offset + HEADER_SIZE, offset + length);
+    }
+
+    /**
+     * 跳过一个域名
+     * @return 域名之后的位置，格式错误时返回-1
+     */
+    static int skipName(byte[] data, int position, int end) {
+        while (position < end) {
+            int length = data[position] & 0xFF;
+            if (length == 0) {
+                return position + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                return position + 2 <= end ? position + 2 : -1;
+            }
+            if ((length & 0xC0) != 0) {
+                return -1;
+            }
+            position += 1 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * 读取一个可能带压缩指针的域名
+     * @param start 报文起始位置，压缩指针相对于它
+     * @return 小写的域名，格式错误时返回null
+     */
+    static String readName(byte[] data, int start, int position, int end) {
+        StringBuilder name = new StringBuilder();
+        int jumps = 0;
+        while (position < end) {
+            int length = data[position] & 0xFF;
+            if (length == 0) {
+                return name.toString();
+            }
+            if ((length & 0xC0) == 0xC0) {
+                if (position + 1 >= end || ++jumps > MAX_POINTER_JUMPS) {
+                    return null;
+                }
+                position = start + ((length & 0x3F) << 8 | (data[position + 1] & 0xFF));
+                continue;
+            }
+            if ((length & 0xC0) != 0 || position + 1 + length > end
+                    || name.length() + length + 1 > MAX_NAME_LENGTH) {
+                return null;
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            for (int i = position + 1; i <= position + length; i++) {
+                char c = (char) (data[i] & 0xFF);
+                name.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+            }
+            position += 1 + length;
+        }
+        return null;
+    }
+
+    /**
+     * 生成只有头部和问题、置了TC位的应答，告诉查询方改用TCP重新查询
+     * @param response 完整的应答
+     * @param start 应答的起始位置
+     * @param questionEnd 头部加问题的长度
+     */
+    static byte[] truncate(byte[] response, int start, int questionEnd) {
+        byte[] truncated = new byte[questionEnd];
+        System.arraycopy(response, start, truncated, 0, questionEnd);
+        writeShort(truncated, 2, readShort(truncated, 2) | FLAG_TRUNCATED);
+        writeShort(truncated, 6, 0);
+        writeShort(truncated, 8, 0);
+        writeShort(truncated, 10, 0);
+        return truncated;
+    }
+
+    static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private void addTtlOffset(int offset) {
+        if (ttlCount == ttlOffsets.length) {
+            int[] grown = new int[ttlCount * 2];
+            System.arraycopy(ttlOffsets, 0, grown, 0, ttlCount);
+            ttlOffsets = grown;
+        }
+        ttlOffsets[ttlCount++] = offset;
+    }
+
+    private void reset() {
+        id = 0;
+        flags = 0;
+        answerCount = 0;
+        name = null;
+        questionType = 0;
+        questionClass = 0;
+        questionEnd = 0;
+        udpPayloadSize = MAX_UDP_SIZE;
+        dnssecOk = false;
+        ttlCount = 0;
+        answerTtl = Long.MAX_VALUE;
+        negativeTtl = Long.MAX_VALUE;
+        addresses.clear();
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.packetcapture.tunnel;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * VPN内的DNS应答器
+ * 引擎把发往53端口的UDP查询交给这里：缓存能回答的直接封装成UDP数据包写回TUN；
+ * 未命中的查询经一个受保护的DatagramChannel转发给应用原本要查询的服务器，等待上游应答期间
+ * 同一问题的其他查询合并到这次上游查询上，应答到达后分别回复并存入缓存。
+ * 发往上游的查询换用随机ID，应答的来源、ID和问题都对得上才接受，伪造的应答不会进入缓存。
+ * 所有方法只在引擎线程上调用。
+ */
+final class DnsResolver {
+    private static final String TAG = "DnsResolver";
+
+    static final int DNS_PORT = 53;
+    // 超时的上游查询不再合并新的查询，客户端重试时重新发出
+    private static final long QUERY_TIMEOUT_MS = 5 * 1000L;
+    private static final int MAX_PENDING_QUERIES = 512;
+    private static final int MAX_WAITERS = 64;
+
+    /**
+     * 等待上游应答的一个客户端查询
+     */
+    private static final class Waiter {
+        final FlowKey client;
+        final int id;
+        final int flags;
+        // 查询的问题部分，回复时沿用其中域名的大小写
+        final byte[] question;
+        final int udpPayloadSize;
+
+        Waiter(FlowKey client, DnsMessage query, byte[] data, int offset) {
+            this.client = client;
+            this.id = query.getId();
+            this.flags = query.getFlags();
+            this.question = new byte[query.getQuestionEnd() - DnsMessage.HEADER_SIZE];
+            System.arraycopy(data, offset + DnsMessage.HEADER_SIZE, question, 0, question.length);
+            this.udpPayloadSize = query.getUdpPayloadSize();
+        }
+    }
+
+    /**
+     * 一次发往上游的查询
+     */
+    private static final class PendingQuery {
+        final String key;
+        final int upstreamId;
+        final InetSocketAddress server;
+        final String name;
+        final int type;
+        final long sentAt;
+        final List<Waiter> waiters = new ArrayList<>(1);
+
+        PendingQuery(String key, int upstreamId, InetSocketAddress server, String name, int type, long sentAt) {
+            this.key = key;
+            this.upstreamId = upstreamId;
+            this.server = server;
+            this.name = name;
+            this.type = type;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final ForwardingEngine engine;
+    private final DnsCache cache;
+    private final DnsMessage message = new DnsMessage();
+    private final Map<String, PendingQuery> pendingByKey = new HashMap<>();
+    private final Map<Integer, PendingQuery> pendingById = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private DatagramChannel channel;
+    private SelectionKey selectionKey;
+
+    DnsResolver(ForwardingEngine engine, DnsCache cache) {
+        this.engine = engine;
+        this.cache = cache;
+    }
+
+    /**
+     * 处理应用发出的一条DNS查询
+     * @param client 查询所在的UDP五元组，调用返回后可能被修改
+     * @param packet 数据包缓冲区
+     * @param offset UDP载荷在数据包中的位置
+     * @param length UDP载荷长度
+     * @return 不是能处理的标准查询，或者积压过多时返回false，由调用方按普通UDP转发
+     */
+    boolean handleQuery(FlowKey client, ByteBuffer packet, int offset, int length, long now) {
+        byte[] data = packet.array();
+        int start = packet.arrayOffset() + offset;
+        if (!message.parse(data, start, length) || message.isResponse() || !message.isStandardQuery()) {
+            return false;
+        }
+
+        String key = DnsCache.key(message.getName(), message.getQuestionType(), message.getQuestionClass(),
+                message.isDnssecOk());
+        byte[] reply = cache.answer(key, message, data, start, now);
+        if (reply != null) {
+            engine.sendUdp(client, reply, 0, reply.length);
+            return true;
+        }
+
+        PendingQuery pending = pendingByKey.get(key);
+        if (pending != null && now - pending.sentAt > QUERY_TIMEOUT_MS) {
+            remove(pending);
+            pending = null;
+        }
+        if (pending != null) {
+            if (pending.waiters.size() >= MAX_WAITERS) {
+                return false;
+            }
+            pending.waiters.add(new Waiter(client.copy(), message, data, start));
+            return true;
+        }
+        if (pendingById.size() >= MAX_PENDING_QUERIES) {
+            return false;
+        }
+
+        try {
+            ensureOpen();
+            InetSocketAddress server = new InetSocketAddress(client.destinationInetAddress(), client.destinationPort);
+            int upstreamId = nextId();
+            ByteBuffer query = ByteBuffer.allocate(length);
+            query.put(data, start, length);
+            query.putShort(0, (short) upstreamId);
+            query.flip();
+            if (channel.send(query, server) == 0) {
+                return false;
+            }
+            pending = new PendingQuery(key, upstreamId, server, message.getName(), message.getQuestionType(), now);
+        } catch (IOException e) {
+            Log.w(TAG, "转发DNS查询失败: " + message.getName() + " " + e.getMessage());
+            closeChannel();
+            return false;
+        }
+        pending.waiters.add(new Waiter(client.copy(), message, data, start));
+        pendingByKey.put(key, pending);
+        pendingById.put(pending.upstreamId, pending);
+        return true;
+    }
+
+    /**
+     * 上游有应答：校验后存入缓存并回复所有等待的查询
+     */
+    void onReadable(ByteBuffer readBuffer, long now) {
+        try {
+            while (true) {
+                readBuffer.clear();
+                SocketAddress from = channel.receive(readBuffer);
+                if (from == null) {
+                    return;
+                }
+                byte[] data = readBuffer.array();
+                int start = readBuffer.arrayOffset();
+                int length = readBuffer.position();
+                if (!message.parse(data, start, length) || !message.isResponse()) {
+                    continue;
+                }
+                PendingQuery pending = pendingById.get(message.getId());
+                if (pending == null || !pending.server.equals(from) || !pending.name.equals(message.getName())
+                        || pending.type != message.getQuestionType()) {
+                    continue;
+                }
+                remove(pending);
+                cache.store(pending.key, message, data, start, length, now);
+                for (Waiter waiter : pending.waiters) {
+                    reply(waiter, data, start, length);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "接收DNS应答失败: " + e.getMessage());
+            closeChannel();
+        }
+    }
+
+    /**
+     * 清理等待超时的上游查询，客户端会自行重试
+     */
+    void sweep(long now) {
+        Iterator<PendingQuery> iterator = pendingById.values().iterator();
+        while (iterator.hasNext()) {
+            PendingQuery pending = iterator.next();
+            if (now - pending.sentAt > QUERY_TIMEOUT_MS) {
+                iterator.remove();
+                pendingByKey.remove(pending.key);
+            }
+        }
+    }
+
+    void close() {
+        closeChannel();
+    }
+
+    private void reply(Waiter waiter, byte[] data, int start, int length) {
+        byte[] reply;
+        int questionEnd = message.getQuestionEnd();
+        if (length > waiter.udpPayloadSize) {
+            // 超出查询方能接收的长度
+            reply = DnsMessage.truncate(data, start, questionEnd);
+        } else {
+            reply = new byte[length];
+            System.arraycopy(data, start, reply, 0, length);
+        }
+        DnsMessage.writeShort(reply, 0, waiter.id);
+        int flags = DnsMessage.readShort(reply, 2) & ~DnsMessage.FLAG_RECURSION_DESIRED;
+        DnsMessage.writeShort(reply, 2, flags | (waiter.flags & DnsMessage.FLAG_RECURSION_DESIRED));
+        if (waiter.question.length == questionEnd - DnsMessage.HEADER_SIZE) {
+            System.arraycopy(waiter.question, 0, reply, DnsMessage.HEADER_SIZE, waiter.question.length);
+        }
+        engine.sendUdp(waiter.client, reply, 0, reply.length);
+    }
+
+    private void remove(PendingQuery pending) {
+        pendingByKey.remove(pending.key);
+        pendingById.remove(pending.upstreamId);
+    }
+
+    private int nextId() {
+        int id;
+        do {
+            id = random.nextInt(0x10000);
+        } while (pendingById.containsKey(id));
+        return id;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        DatagramChannel opened = DatagramChannel.open();
+        try {
+            opened.configureBlocking(false);
+            if (!engine.protect(opened.socket())) {
+                throw new IOException("无法保护DNS套接字");
+            }
+            selectionKey = engine.register(opened, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        channel = opened;
+    }
+
+    private void closeChannel() {
+        if (selectionKey != null) {
+            selectionKey.cancel();
+            selectionKey = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "关闭DNS套接字时出错");
+            }
+            channel = null;
+        }
+        // 旧套接字上的查询已无法收到应答
+        pendingByKey.clear();
+        pendingById.clear();
+    }
+}
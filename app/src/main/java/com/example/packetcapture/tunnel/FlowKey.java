@@ -0,0 +1,111 @@
+package com.example.packetcapture.tunnel;
+
+import com.example.packetcapture.capture.PacketDecoder;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * 连接五元组
+ * 源地址端口始终是TUN一侧的应用，目标地址端口是应用想要访问的远端。
+ * 引擎线程持有一个可变的探测实例用于查表，只有在创建新连接时才复制出新的键，
+ * 放入表中的键不允许再被修改。
+ */
+final class FlowKey {
+    int ipVersion;
+    int protocol;
+    long sourceAddressHigh;
+    long sourceAddressLow;
+    long destinationAddressHigh;
+    long destinationAddressLow;
+    int sourcePort;
+    int destinationPort;
+
+    FlowKey() {
+    }
+
+    /**
+     * 用解码器当前的结果填充键
+     */
+    FlowKey set(PacketDecoder decoder) {
+        ipVersion = decoder.getIpVersion();
+        protocol = decoder.getProtocol();
+        sourceAddressHigh = decoder.getSourceAddressHigh();
+        sourceAddressLow = decoder.getSourceAddressLow();
+        destinationAddressHigh = decoder.getDestinationAddressHigh();
+        destinationAddressLow = decoder.getDestinationAddressLow();
+        sourcePort = decoder.getSourcePort();
+        destinationPort = decoder.getDestinationPort();
+        return this;
+    }
+
+    FlowKey copy() {
+        FlowKey key = new FlowKey();
+        key.ipVersion = ipVersion;
+        key.protocol = protocol;
+        key.sourceAddressHigh = sourceAddressHigh;
+        key.sourceAddressLow = sourceAddressLow;
+        key.destinationAddressHigh = destinationAddressHigh;
+        key.destinationAddressLow = destinationAddressLow;
+        key.sourcePort = sourcePort;
+        key.destinationPort = destinationPort;
+        return key;
+    }
+
+    /**
+     * 远端地址，用于建立上游连接
+     */
+    InetAddress destinationInetAddress() throws UnknownHostException {
+        return toInetAddress(ipVersion, destinationAddressHigh, destinationAddressLow);
+    }
+
+    static InetAddress toInetAddress(int ipVersion, long high, long low) throws UnknownHostException {
+        byte[] bytes;
+        if (ipVersion == 6) {
+            bytes = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (high >>> (56 - i * 8));
+                bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+            }
+        } else {
+            bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                bytes[i] = (byte) (low >>> (24 - i * 8));
+            }
+        }
+        return InetAddress.getByAddress(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FlowKey)) return false;
+        FlowKey other = (FlowKey) o;
+        return sourcePort == other.sourcePort
+                && destinationPort == other.destinationPort
+                && destinationAddressLow == other.destinationAddressLow
+                && destinationAddressHigh == other.destinationAddressHigh
+                && sourceAddressLow == other.sourceAddressLow
+                && sourceAddressHigh == other.sourceAddressHigh
+                && protocol == other.protocol
+                && ipVersion == other.ipVersion;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = destinationAddressLow * 31 + destinationAddressHigh;
+        h = h * 31 + sourceAddressLow;
+        h = h * 31 + sourceAddressHigh;
+        h = h * 31 + (sourcePort << 16 | destinationPort);
+        h = h * 31 + protocol;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return PacketDecoder.formatProtocol(protocol) + " "
+                + PacketDecoder.formatAddress(ipVersion, sourceAddressHigh, sourceAddressLow) + ":" + sourcePort
+                + " -> "
+                + PacketDecoder.formatAddress(ipVersion, destinationAddressHigh, destinationAddressLow) + ":" + destinationPort;
+    }
+}
@@ -0,0 +1,568 @@
+package com.example.packetcapture.tunnel;
+
+import android.util.Log;
+
+import com.example.packetcapture.capture.FlowTracker;
+import com.example.packetcapture.capture.PcapngWriter;
+import com.example.packetcapture.capture.PacketDecoder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 用户态转发引擎
+ * TUN读取线程把数据包交给引擎，引擎在单独的线程上用一个Selector复用所有上游连接：
+ * TCP由TcpFlow终结后经受保护的SocketChannel转发，UDP由UdpSession经DatagramChannel转发，
+ * 远端的回复重新封装成IP数据包写回TUN。ICMP等其他协议无法在用户态转发，直接丢弃。
+ * 开启透明代理后，发往80/443端口的TCP连接改接到本地HTTP代理，原始目标记录在RedirectTable中。
+ * 设置了DNS缓存时，发往53端口的UDP查询由DnsResolver在引擎线程上应答或合并转发。
+ */
+public class ForwardingEngine implements Runnable {
+    private static final String TAG = "ForwardingEngine";
+
+    private static final int MTU = 1500;
+    private static final int MAX_PACKET_SIZE = 65535;
+    private static final int POOLED_BUFFER_SIZE = 2048;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int MAX_QUEUED_PACKETS = 4096;
+    private static final int DEFAULT_MSS = 536;
+
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final long SWEEP_INTERVAL_MS = 10 * 1000L;
+    // 检查TCP重传定时器的间隔，没有事件时由select超时兜底
+    private static final long RETRANSMIT_CHECK_INTERVAL_MS = 200;
+    private static final long TCP_CONNECT_TIMEOUT_MS = 30 * 1000L;
+    private static final long TCP_IDLE_TIMEOUT_MS = 10 * 60 * 1000L;
+    private static final long UDP_IDLE_TIMEOUT_MS = 60 * 1000L;
+
+    private static final int HTTP_PORT = 80;
+    private static final int HTTPS_PORT = 443;
+
+    private final android.net.VpnService vpnService;
+    private final FileOutputStream tunOutput;
+    private final Selector selector;
+
+    // TUN读取线程与引擎线程之间的交接队列
+    private final ConcurrentLinkedQueue<ByteBuffer> inbound = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedPackets = new AtomicInteger();
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    // 以下字段只在引擎线程上访问
+    private final PacketDecoder decoder = new PacketDecoder();
+    private final PacketBuilder builder = new PacketBuilder();
+    private final FlowKey probe = new FlowKey();
+    private final Map<FlowKey, TcpFlow> tcpFlows = new HashMap<>();
+    private final Map<FlowKey, UdpSession> udpSessions = new HashMap<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    private final ByteBuffer outPacket = ByteBuffer.allocate(MAX_PACKET_SIZE + PacketBuilder.IPV6_HEADER_SIZE);
+    // 写回TUN的数据包另用一个解码器统计，不影响正在处理的入站数据包的解码结果
+    private final PacketDecoder outDecoder = new PacketDecoder();
+    private final Random random = new Random();
+    private long lastSweep;
+    private long lastRetransmitCheck;
+
+    // 透明代理配置，需在引擎启动前设置
+    private RedirectTable redirectTable;
+    private int proxyPort;
+    // 为null时DNS查询和其他UDP一样转发
+    private DnsResolver dnsResolver;
+    // 为null时不统计写回TUN的数据包
+    private FlowTracker flowTracker;
+    // 为null时不记录写回TUN的数据包
+    private PcapngWriter pcapngWriter;
+
+    private volatile boolean running;
+    private volatile int tcpFlowCount;
+    private volatile int udpSessionCount;
+
+    public ForwardingEngine(android.net.VpnService vpnService, FileOutputStream tunOutput) throws IOException {
+        this.vpnService = vpnService;
+        this.tunOutput = tunOutput;
+        this.selector = Selector.open();
+        this.running = true;
+    }
+
+    /**
+     * 提交一个从TUN读到的数据包，由TUN读取线程调用
+     * 数据包会被复制到池化的缓冲区中，调用返回后原缓冲区可以立即复用
+     * @param packet 数据包缓冲区，从下标0开始
+     * @param length 数据包长度
+     * @return 引擎积压过多而丢弃时返回false
+     */
+    public boolean submit(ByteBuffer packet, int length) {
+        if (!running || queuedPackets.get() >= MAX_QUEUED_PACKETS) {
+            return false;
+        }
+
+        ByteBuffer copy = length <= POOLED_BUFFER_SIZE ? bufferPool.poll() : null;
+        if (copy == null) {
+            copy = ByteBuffer.allocate(Math.max(length, POOLED_BUFFER_SIZE));
+        } else {
+            pooledBuffers.decrementAndGet();
+        }
+        copy.clear();
+        copy.put(packet.array(), packet.arrayOffset(), length);
+        copy.flip();
+
+        inbound.offer(copy);
+        queuedPackets.incrementAndGet();
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        Log.i(TAG, "转发引擎已启动");
+        lastSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                wakeupPending.set(false);
+                long now = System.currentTimeMillis();
+
+                drainInbound(now);
+                processSelectedKeys(now);
+
+                if (now - lastRetransmitCheck >= RETRANSMIT_CHECK_INTERVAL_MS) {
+                    checkRetransmits(now);
+                    lastRetransmitCheck = now;
+                }
+                if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+                    sweepIdle(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "转发引擎出错", e);
+        } finally {
+            closeAll();
+            Log.i(TAG, "转发引擎已停止");
+        }
+    }
+
+    /**
+     * 开启透明代理：发往Web端口的连接改接到本地代理
+     * @param proxyPort 本地代理在回环地址上监听的端口
+     * @param table 与代理共享的重定向表
+     */
+    public void setTransparentProxy(int proxyPort, RedirectTable table) {
+        this.proxyPort = proxyPort;
+        this.redirectTable = table;
+    }
+
+    /**
+     * 开启VPN内的DNS应答，需在引擎启动前设置
+     * @param cache 与抓包和代理共享的DNS缓存
+     */
+    public void setDnsCache(DnsCache cache) {
+        this.dnsResolver = cache != null ? new DnsResolver(this, cache) : null;
+    }
+
+    /**
+     * 设置按连接聚合的统计表，写回TUN的数据包作为收到的方向计入，需在引擎启动前设置
+     */
+    public void setFlowTracker(FlowTracker flowTracker) {
+        this.flowTracker = flowTracker;
+    }
+
+    /**
+     * 设置完整数据包记录器，写回TUN的数据包标记为收到的方向，需在引擎启动前设置
+     */
+    public void setPcapngWriter(PcapngWriter pcapngWriter) {
+        this.pcapngWriter = pcapngWriter;
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public int getTcpFlowCount() {
+        return tcpFlowCount;
+    }
+
+    public int getUdpSessionCount() {
+        return udpSessionCount;
+    }
+
+    private void drainInbound(long now) {
+        ByteBuffer packet;
+        while ((packet = inbound.poll()) != null) {
+            queuedPackets.decrementAndGet();
+            try {
+                handlePacket(packet, now);
+            } catch (Exception e) {
+                Log.e(TAG, "处理数据包时出错", e);
+            }
+            recycle(packet);
+        }
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() == POOLED_BUFFER_SIZE && pooledBuffers.get() < MAX_POOLED_BUFFERS) {
+            pooledBuffers.incrementAndGet();
+            bufferPool.offer(buffer);
+        }
+    }
+
+    private void handlePacket(ByteBuffer packet, long now) throws IOException {
+        int length = packet.limit();
+        if (!decoder.decode(packet, length)) {
+            return;
+        }
+        int flags = decoder.getFlags();
+        if ((flags & (PacketDecoder.FLAG_FRAGMENT | PacketDecoder.FLAG_TRUNCATED)) != 0) {
+            return;
+        }
+
+        int protocol = decoder.getProtocol();
+        if (protocol == PacketDecoder.PROTOCOL_TCP) {
+            handleTcp(packet, length, now);
+        } else if (protocol == PacketDecoder.PROTOCOL_UDP) {
+            handleUdp(packet, length, now);
+        }
+    }
+
+    private void handleTcp(ByteBuffer packet, int length, long now) {
+        int tcp = decoder.getTransportOffset();
+        int seq = packet.getInt(tcp + 4);
+        int ack = packet.getInt(tcp + 8);
+        int window = packet.getShort(tcp + 14) & 0xFFFF;
+        int flags = decoder.getFlags() & PacketDecoder.TCP_FLAGS_MASK;
+        int payloadOffset = decoder.getPayloadOffset();
+        int payloadLength = Math.max(0, ipPacketEnd(packet, length) - payloadOffset);
+
+        probe.set(decoder);
+        TcpFlow flow = tcpFlows.get(probe);
+        if (flow != null) {
+            flow.onPacket(packet, seq, ack, flags, window, payloadOffset, payloadLength, now);
+            return;
+        }
+
+        if ((flags & PacketDecoder.TCP_RST) != 0) {
+            return;
+        }
+        if ((flags & PacketDecoder.TCP_SYN) == 0 || (flags & PacketDecoder.TCP_ACK) != 0) {
+            // 未知连接上的报文，回复RST让应用尽快放弃
+            resetUnknown(probe, seq, ack, flags, payloadLength);
+            return;
+        }
+
+        openTcpFlow(packet, tcp, payloadOffset, seq, window, now);
+    }
+
+    private void openTcpFlow(ByteBuffer packet, int tcp, int optionsEnd, int seq, int window, long now) {
+        FlowKey key = probe.copy();
+        int mss = Math.min(parseMss(packet, tcp + PacketBuilder.TCP_HEADER_SIZE, optionsEnd), getLocalMss(key));
+        TcpFlow flow = new TcpFlow(tcpHost, key, random.nextInt(), seq, window, mss, now);
+        tcpFlows.put(key, flow);
+        tcpFlowCount = tcpFlows.size();
+        try {
+            InetSocketAddress destination = new InetSocketAddress(key.destinationInetAddress(), key.destinationPort);
+            if (shouldRedirect(key)) {
+                flow.redirect(redirectTable, destination);
+                flow.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort));
+            } else {
+                flow.connect(destination);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "无法建立上游连接: " + key + " " + e.getMessage());
+            flow.abort();
+        }
+    }
+
+    private boolean shouldRedirect(FlowKey key) {
+        return redirectTable != null
+                && (key.destinationPort == HTTP_PORT || key.destinationPort == HTTPS_PORT);
+    }
+
+    private void handleUdp(ByteBuffer packet, int length, long now) {
+        int payloadOffset = decoder.getPayloadOffset();
+        int payloadLength = Math.max(0, ipPacketEnd(packet, length) - payloadOffset);
+
+        probe.set(decoder);
+        if (dnsResolver != null && probe.destinationPort == DnsResolver.DNS_PORT
+                && dnsResolver.handleQuery(probe, packet, payloadOffset, payloadLength, now)) {
+            return;
+        }
+        UdpSession session = udpSessions.get(probe);
+        if (session == null) {
+            FlowKey key = probe.copy();
+            session = new UdpSession(this, key, now);
+            try {
+                session.open(new InetSocketAddress(key.destinationInetAddress(), key.destinationPort));
+            } catch (IOException e) {
+                Log.w(TAG, "无法建立UDP会话: " + key + " " + e.getMessage());
+                return;
+            }
+            udpSessions.put(key, session);
+            udpSessionCount = udpSessions.size();
+        }
+        session.send(packet, payloadOffset, payloadLength, now);
+    }
+
+    private void processSelectedKeys(long now) {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+
+            Object attachment = key.attachment();
+            try {
+                if (attachment instanceof TcpFlow) {
+                    TcpFlow flow = (TcpFlow) attachment;
+                    if (key.isConnectable()) {
+                        flow.onConnectable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flow.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        flow.onReadable(readBuffer, now);
+                    }
+                } else if (attachment instanceof UdpSession) {
+                    if (key.isReadable()) {
+                        ((UdpSession) attachment).onReadable(readBuffer, now);
+                    }
+                } else if (attachment instanceof DnsResolver) {
+                    if (key.isReadable()) {
+                        ((DnsResolver) attachment).onReadable(readBuffer, now);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "处理上游事件时出错", e);
+            }
+        }
+    }
+
+    private void checkRetransmits(long now) {
+        if (tcpFlows.isEmpty()) {
+            return;
+        }
+        // 重传次数过多时连接会关闭并从表中移除
+        for (TcpFlow flow : new ArrayList<>(tcpFlows.values())) {
+            flow.onTimer(now);
+        }
+    }
+
+    private void sweepIdle(long now) {
+        List<TcpFlow> expiredFlows = new ArrayList<>();
+        for (TcpFlow flow : tcpFlows.values()) {
+            if (flow.getState() == TcpFlow.State.CONNECTING) {
+                if (now - flow.getCreatedAt() > TCP_CONNECT_TIMEOUT_MS) {
+                    expiredFlows.add(flow);
+                }
+            } else if (now - flow.lastActivity > TCP_IDLE_TIMEOUT_MS) {
+                expiredFlows.add(flow);
+            }
+        }
+        for (TcpFlow flow : expiredFlows) {
+            flow.abort();
+        }
+
+        List<UdpSession> expiredSessions = new ArrayList<>();
+        for (UdpSession session : udpSessions.values()) {
+            if (now - session.lastActivity > UDP_IDLE_TIMEOUT_MS) {
+                expiredSessions.add(session);
+            }
+        }
+        for (UdpSession session : expiredSessions) {
+            session.close();
+        }
+
+        if (dnsResolver != null) {
+            dnsResolver.sweep(now);
+        }
+    }
+
+    private void closeAll() {
+        for (TcpFlow flow : new ArrayList<>(tcpFlows.values())) {
+            flow.close();
+        }
+        for (UdpSession session : new ArrayList<>(udpSessions.values())) {
+            session.close();
+        }
+        if (dnsResolver != null) {
+            dnsResolver.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "关闭Selector时出错", e);
+        }
+        inbound.clear();
+        bufferPool.clear();
+    }
+
+    private void resetUnknown(FlowKey key, int seq, int ack, int flags, int payloadLength) {
+        if ((flags & PacketDecoder.TCP_ACK) != 0) {
+            sendTcp(key, ack, 0, PacketDecoder.TCP_RST, 0, 0);
+        } else {
+            int consumed = payloadLength
+                    + ((flags & PacketDecoder.TCP_SYN) != 0 ? 1 : 0)
+                    + ((flags & PacketDecoder.TCP_FIN) != 0 ? 1 : 0);
+            sendTcp(key, 0, seq + consumed, PacketDecoder.TCP_RST | PacketDecoder.TCP_ACK, 0, 0);
+        }
+    }
+
+    /**
+     * IP头部声明的数据包结束位置，用于排除链路层填充
+     */
+    private int ipPacketEnd(ByteBuffer packet, int length) {
+        int declared;
+        if (decoder.getIpVersion() == 6) {
+            declared = PacketBuilder.IPV6_HEADER_SIZE + (packet.getShort(4) & 0xFFFF);
+        } else {
+            declared = packet.getShort(2) & 0xFFFF;
+        }
+        return Math.min(declared, length);
+    }
+
+    private static int parseMss(ByteBuffer packet, int offset, int end) {
+        while (offset < end) {
+            int kind = packet.get(offset) & 0xFF;
+            if (kind == 0) {
+                break;
+            }
+            if (kind == 1) {
+                offset++;
+                continue;
+            }
+            if (offset + 1 >= end) {
+                break;
+            }
+            int length = packet.get(offset + 1) & 0xFF;
+            if (length < 2) {
+                break;
+            }
+            if (kind == 2 && length == 4 && offset + 4 <= end) {
+                return packet.getShort(offset + 2) & 0xFFFF;
+            }
+            offset += length;
+        }
+        return DEFAULT_MSS;
+    }
+
+    // ---- 供TcpFlow、UdpSession与DnsResolver回调的方法，只在引擎线程上调用 ----
+
+    private final TcpFlow.Host tcpHost = new TcpFlow.Host() {
+        @Override
+        public int getLocalMss(FlowKey key) {
+            return ForwardingEngine.this.getLocalMss(key);
+        }
+
+        @Override
+        public boolean protect(Socket socket) {
+            return ForwardingEngine.this.protect(socket);
+        }
+
+        @Override
+        public SelectionKey register(SelectableChannel channel, int ops, Object attachment)
+                throws ClosedChannelException {
+            return ForwardingEngine.this.register(channel, ops, attachment);
+        }
+
+        @Override
+        public void sendTcp(FlowKey key, int seq, int ack, int flags, int window, int mss) {
+            ForwardingEngine.this.sendTcp(key, seq, ack, flags, window, mss);
+        }
+
+        @Override
+        public void sendTcp(FlowKey key, int seq, int ack, int flags, int window, int mss,
+                            byte[] payload, int offset, int length) {
+            ForwardingEngine.this.sendTcp(key, seq, ack, flags, window, mss, payload, offset, length);
+        }
+
+        @Override
+        public void onTcpFlowClosed(TcpFlow flow) {
+            ForwardingEngine.this.onTcpFlowClosed(flow);
+        }
+    };
+
+    int getLocalMss(FlowKey key) {
+        return MTU - PacketBuilder.ipHeaderSize(key.ipVersion) - PacketBuilder.TCP_HEADER_SIZE;
+    }
+
+    boolean protect(Socket socket) {
+        return vpnService.protect(socket);
+    }
+
+    boolean protect(DatagramSocket socket) {
+        return vpnService.protect(socket);
+    }
+
+    SelectionKey register(SelectableChannel channel, int ops, Object attachment) throws ClosedChannelException {
+        return channel.register(selector, ops, attachment);
+    }
+
+    void sendTcp(FlowKey key, int seq, int ack, int flags, int window, int mss) {
+        sendTcp(key, seq, ack, flags, window, mss, null, 0, 0);
+    }
+
+    void sendTcp(FlowKey key, int seq, int ack, int flags, int window, int mss,
+                 byte[] payload, int offset, int length) {
+        int total = builder.buildTcp(outPacket, key, seq, ack, flags, window, mss, payload, offset, length);
+        writeToTun(total);
+    }
+
+    void sendUdp(FlowKey key, byte[] payload, int offset, int length) {
+        int total = builder.buildUdp(outPacket, key, payload, offset, length);
+        writeToTun(total);
+    }
+
+    private void writeToTun(int length) {
+        try {
+            tunOutput.write(outPacket.array(), outPacket.arrayOffset(), length);
+            long now = System.currentTimeMillis();
+            if (pcapngWriter != null) {
+                pcapngWriter.record(outPacket, length, now, false);
+            }
+            if (flowTracker != null && outDecoder.decode(outPacket, length)) {
+                flowTracker.onPacket(outDecoder, outPacket, false, now);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.e(TAG, "写入TUN失败", e);
+            }
+        }
+    }
+
+    void onTcpFlowClosed(TcpFlow flow) {
+        if (tcpFlows.get(flow.key) == flow) {
+            tcpFlows.remove(flow.key);
+            tcpFlowCount = tcpFlows.size();
+        }
+    }
+
+    void onUdpSessionClosed(UdpSession session) {
+        if (udpSessions.get(session.key) == session) {
+            udpSessions.remove(session.key);
+            udpSessionCount = udpSessions.size();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.packetcapture.tunnel;
+
+import com.example.packetcapture.capture.PacketDecoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 构造写回TUN的IP数据包
+ * 所有方法都以FlowKey描述的连接为准构造"远端 -> 应用"方向的数据包，
+ * 即源地址端口取键中的目标，目标地址端口取键中的源。
+ * 数据包写入调用方提供的堆缓冲区，从下标0开始，不产生对象分配。
+ */
+final class PacketBuilder {
+    static final int IPV4_HEADER_SIZE = 20;
+    static final int IPV6_HEADER_SIZE = 40;
+    static final int TCP_HEADER_SIZE = 20;
+    static final int TCP_MSS_OPTION_SIZE = 4;
+    static final int UDP_HEADER_SIZE = 8;
+
+    private static final int DEFAULT_TTL = 64;
+
+    private int identification;
+
+    static int ipHeaderSize(int ipVersion) {
+        return ipVersion == 6 ? IPV6_HEADER_SIZE : IPV4_HEADER_SIZE;
+    }
+
+    /**
+     * 构造TCP数据包
+     * @param out 输出缓冲区，必须有底层数组
+     * @param key 连接
+     * @param seq 序号
+     * @param ack 确认号
+     * @param flags TCP标志位
+     * @param window 通告窗口
+     * @param mss 大于0时在头部携带MSS选项
+     * @param payload 载荷数组，可以为null
+     * @param offset 载荷偏移
+     * @param length 载荷长度
+     * @return 数据包总长度
+     */
+    int buildTcp(ByteBuffer out, FlowKey key, int seq, int ack, int flags, int window, int mss,
+                 byte[] payload, int offset, int length) {
+        int ipHeaderSize = ipHeaderSize(key.ipVersion);
+        int tcpHeaderSize = TCP_HEADER_SIZE + (mss > 0 ? TCP_MSS_OPTION_SIZE : 0);
+        int segmentLength = tcpHeaderSize + length;
+        int totalLength = ipHeaderSize + segmentLength;
+
+        byte[] buf = out.array();
+        int base = out.arrayOffset();
+        out.clear();
+        writeIpHeader(out, key, PacketDecoder.PROTOCOL_TCP, segmentLength);
+
+        int tcp = ipHeaderSize;
+        out.putShort(tcp, (short) key.destinationPort);
+        out.putShort(tcp + 2, (short) key.sourcePort);
+        out.putInt(tcp + 4, seq);
+        out.putInt(tcp + 8, ack);
+        out.put(tcp + 12, (byte) ((tcpHeaderSize / 4) << 4));
+        out.put(tcp + 13, (byte) (flags & PacketDecoder.TCP_FLAGS_MASK));
+        out.putShort(tcp + 14, (short) Math.min(window, 0xFFFF));
+        out.putShort(tcp + 16, (short) 0);
+        out.putShort(tcp + 18, (short) 0);
+        if (mss > 0) {
+            out.put(tcp + 20, (byte) 2);
+            out.put(tcp + 21, (byte) 4);
+            out.putShort(tcp + 22, (short) mss);
+        }
+        if (length > 0) {
+            System.arraycopy(payload, offset, buf, base + tcp + tcpHeaderSize, length);
+        }
+
+        int checksum = transportChecksum(out, key, PacketDecoder.PROTOCOL_TCP, tcp, segmentLength);
+        out.putShort(tcp + 16, (short) checksum);
+        out.limit(totalLength);
+        return totalLength;
+    }
+
+    /**
+     * 构造UDP数据包
+     * @return 数据包总长度
+     */
+    int buildUdp(ByteBuffer out, FlowKey key, byte[] payload, int offset, int length) {
+        int ipHeaderSize = ipHeaderSize(key.ipVersion);
+        int datagramLength = UDP_HEADER_SIZE + length;
+        int totalLength = ipHeaderSize + datagramLength;
+
+        out.clear();
+        writeIpHeader(out, key, PacketDecoder.PROTOCOL_UDP, datagramLength);
+
+        int udp = ipHeaderSize;
+        out.putShort(udp, (short) key.destinationPort);
+        out.putShort(udp + 2, (short) key.sourcePort);
+        out.putShort(udp + 4, (short) datagramLength);
+        out.putShort(udp + 6, (short) 0);
+        System.arraycopy(payload, offset, out.array(), out.arrayOffset() + udp + UDP_HEADER_SIZE, length);
+
+        int checksum = transportChecksum(out, key, PacketDecoder.PROTOCOL_UDP, udp, datagramLength);
+        // UDP校验和为0表示未计算，按RFC 768改写为全1
+        out.putShort(udp + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+        out.limit(totalLength);
+        return totalLength;
+    }
+
+    private void writeIpHeader(ByteBuffer out, FlowKey key, int protocol, int payloadLength) {
+        if (key.ipVersion == 6) {
+            out.putInt(0, 0x60000000);
+            out.putShort(4, (short) payloadLength);
+            out.put(6, (byte) protocol);
+            out.put(7, (byte) DEFAULT_TTL);
+            out.putLong(8, key.destinationAddressHigh);
+            out.putLong(16, key.destinationAddressLow);
+            out.putLong(24, key.sourceAddressHigh);
+            out.putLong(32, key.sourceAddressLow);
+            return;
+        }
+
+        out.put(0, (byte) 0x45);
+        out.put(1, (byte) 0);
+        out.putShort(2, (short) (IPV4_HEADER_SIZE + payloadLength));
+        out.putShort(4, (short) identification++);
+        out.putShort(6, (short) 0x4000);
+        out.put(8, (byte) DEFAULT_TTL);
+        out.put(9, (byte) protocol);
+        out.putShort(10, (short) 0);
+        out.putInt(12, (int) key.destinationAddressLow);
+        out.putInt(16, (int) key.sourceAddressLow);
+        out.putShort(10, (short) checksum(out.array(), out.arrayOffset(), IPV4_HEADER_SIZE, 0));
+    }
+
+    private static int transportChecksum(ByteBuffer out, FlowKey key, int protocol, int offset, int length) {
+        byte[] buf = out.array();
+        int base = out.arrayOffset();
+        long sum;
+        if (key.ipVersion == 6) {
+            // 伪首部：源地址、目标地址、上层长度、下一头部
+            sum = sum(buf, base + 8, 32) + length + protocol;
+        } else {
+            sum = sum(buf, base + 12, 8) + length + protocol;
+        }
+        return checksum(buf, base + offset, length, sum);
+    }
+
+    /**
+     * 计算互联网校验和（反码和的反码）
+     */
+    static int checksum(byte[] buf, int offset, int length, long initial) {
+        long sum = initial + sum(buf, offset, length);
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) (~sum & 0xFFFF);
+    }
+
+    private static long sum(byte[] buf, int offset, int length) {
+        long sum = 0;
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            sum += ((buf[i] & 0xFF) << 8) | (buf[i + 1] & 0xFF);
+        }
+        if ((length & 1) != 0) {
+            sum += (buf[offset + length - 1] & 0xFF) << 8;
+        }
+        return sum;
+    }
+}
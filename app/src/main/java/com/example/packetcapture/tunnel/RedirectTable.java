@@ -0,0 +1,34 @@
+package com.example.packetcapture.tunnel;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 透明重定向表
+ * 转发引擎把发往Web端口的TCP连接改接到本地代理，并以引擎一侧回环套接字的本地端口为键
+ * 记录连接原本的目标地址。代理接受连接后用对端端口查表，无需CONNECT请求即可得知真实目标。
+ */
+public class RedirectTable {
+    private final ConcurrentHashMap<Integer, InetSocketAddress> destinations = new ConcurrentHashMap<>();
+
+    void put(int localPort, InetSocketAddress originalDestination) {
+        destinations.put(localPort, originalDestination);
+    }
+
+    void remove(int localPort) {
+        destinations.remove(localPort);
+    }
+
+    /**
+     * 查询被重定向连接的原始目标
+     * @param peerPort 代理看到的客户端端口
+     * @return 原始目标地址，不是重定向连接时返回null
+     */
+    public InetSocketAddress lookup(int peerPort) {
+        return destinations.get(peerPort);
+    }
+
+    public int size() {
+        return destinations.size();
+    }
+}
@@ -0,0 +1,549 @@
+package com.example.packetcapture.tunnel;
+
+import android.util.Log;
+
+import com.example.packetcapture.capture.PacketDecoder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 单个TCP连接的用户态状态机
+ * 应用一侧由引擎根据TUN中的报文驱动，远端一侧是一个受保护的非阻塞SocketChannel。
+ * 应用发来的数据按序写入上游，上游返回的数据按应用通告的窗口切分成报文写回TUN。
+ * 写回的数据在应用确认前保留在发送缓存中：收到三个重复确认时快速重传第一个未确认的报文，
+ * 超时未确认时重传并加倍超时时间，确认只前进了一部分时继续重传下一个报文，直到恢复点都被确认。
+ * TUN写满或应用的接收队列溢出时都会丢包，没有重传会让连接卡住直到空闲超时。
+ * 所有方法只在引擎线程上调用。
+ */
+final class TcpFlow {
+    private static final String TAG = "TcpFlow";
+
+    // 应用数据无法立即写入上游时的最大缓存，同时也是通告给应用的窗口
+    static final int MAX_PENDING_BYTES = 65535;
+    // 应用的窗口没有缩放，已发送未确认的数据不会超过这个大小
+    private static final int MAX_UNACKED_BYTES = 65535;
+    private static final int DUPLICATE_ACK_THRESHOLD = 3;
+    // 本机回环的往返时间可以忽略，超时时间从下限开始按次加倍
+    private static final long INITIAL_RTO_MS = 1000;
+    private static final long MAX_RTO_MS = 60 * 1000L;
+    // 连续超时这些次后放弃连接
+    private static final int MAX_RETRANSMITS = 8;
+
+    /**
+     * 连接所在的转发引擎提供的回调，只在引擎线程上调用
+     */
+    interface Host {
+        int getLocalMss(FlowKey key);
+
+        /**
+         * 让套接字绕过VPN
+         */
+        boolean protect(Socket socket);
+
+        SelectionKey register(SelectableChannel channel, int ops, Object attachment) throws ClosedChannelException;
+
+        /**
+         * 构造"远端 -> 应用"方向的TCP报文并写回TUN
+         */
+        void sendTcp(FlowKey key, int seq, int ack, int flags, int window, int mss);
+
+        void sendTcp(FlowKey key, int seq, int ack, int flags, int window, int mss,
+                     byte[] payload, int offset, int length);
+
+        void onTcpFlowClosed(TcpFlow flow);
+    }
+
+    enum State {
+        // 正在连接上游
+        CONNECTING,
+        // 已向应用发送SYN/ACK，等待应用确认
+        SYN_ACK_SENT,
+        ESTABLISHED,
+        CLOSED
+    }
+
+    final FlowKey key;
+    private final Host engine;
+
+    private State state = State.CONNECTING;
+    private SocketChannel channel;
+    private SelectionKey selectionKey;
+
+    // 下一个发给应用的序号
+    private int localSeq;
+    // 应用已确认的序号
+    private int localAcked;
+    // 期望应用发来的下一个序号，即我们的确认号
+    private int remoteNext;
+    private int remoteWindow;
+    private int mss;
+
+    // 尚未写入上游的应用数据，处于写入模式
+    private ByteBuffer pending;
+    // 已发给应用、尚未确认的数据，从localAcked开始，处于写入模式；没有未确认数据时为null
+    private ByteBuffer unacked;
+
+    // 重传状态
+    private int duplicateAcks;
+    private long rto = INITIAL_RTO_MS;
+    // 重传定时器的到期时间，为0时没有需要重传的报文
+    private long retransmitDeadline;
+    private int timeouts;
+    // 正在恢复时，确认到这个序号之前每次部分确认都重传下一个报文
+    private boolean recovering;
+    private int recoverSeq;
+
+    private boolean remoteFinReceived;
+    private boolean localFinSent;
+    private boolean upstreamOutputShutdown;
+
+    // 透明重定向到本地代理时使用
+    private RedirectTable redirectTable;
+    private InetSocketAddress originalDestination;
+    private int redirectPort;
+
+    long lastActivity;
+    private final long createdAt;
+
+    TcpFlow(Host engine, FlowKey key, int initialSeq, int remoteSeq, int remoteWindow, int mss, long now) {
+        this.engine = engine;
+        this.key = key;
+        this.localSeq = initialSeq;
+        this.localAcked = initialSeq;
+        this.remoteNext = remoteSeq + 1;
+        this.remoteWindow = remoteWindow;
+        this.mss = mss;
+        this.createdAt = now;
+        this.lastActivity = now;
+    }
+
+    /**
+     * 将连接改接到本地代理，必须在connect之前调用
+     * @param table 重定向表
+     * @param originalDestination 应用原本要访问的地址
+     */
+    void redirect(RedirectTable table, InetSocketAddress originalDestination) {
+        this.redirectTable = table;
+        this.originalDestination = originalDestination;
+    }
+
+    /**
+     * 打开上游连接，连接建立后再向应用回复SYN/ACK
+     */
+    void connect(InetSocketAddress target) throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        if (redirectTable != null) {
+            // 先绑定端口并登记原始目标，保证代理接受连接时一定能查到
+            channel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            redirectPort = channel.socket().getLocalPort();
+            redirectTable.put(redirectPort, originalDestination);
+        } else if (!engine.protect(channel.socket())) {
+            throw new IOException("无法保护套接字: " + key);
+        }
+        if (channel.connect(target)) {
+            selectionKey = engine.register(channel, 0, this);
+            onConnected();
+        } else {
+            selectionKey = engine.register(channel, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    State getState() {
+        return state;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * 处理应用发来的TCP报文
+     */
+    void onPacket(ByteBuffer packet, int seq, int ack, int flags, int window, int payloadOffset, int payloadLength, long now) {
+        lastActivity = now;
+
+        if ((flags & PacketDecoder.TCP_RST) != 0) {
+            close();
+            return;
+        }
+
+        if ((flags & PacketDecoder.TCP_SYN) != 0) {
+            // 重传的SYN：已经回复过SYN/ACK时重发一次
+            if (state == State.SYN_ACK_SENT) {
+                engine.sendTcp(key, localSeq - 1, remoteNext,
+                        PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK, receiveWindow(), engine.getLocalMss(key));
+            }
+            return;
+        }
+
+        if ((flags & PacketDecoder.TCP_ACK) != 0) {
+            onAck(ack, window, flags, payloadLength, now);
+            if (state == State.CLOSED) {
+                return;
+            }
+        }
+
+        if (state != State.ESTABLISHED) {
+            return;
+        }
+
+        boolean ackNeeded = false;
+        if (payloadLength > 0) {
+            if (seq == remoteNext && !remoteFinReceived) {
+                int accepted = writeUpstream(packet, payloadOffset, payloadLength);
+                if (state == State.CLOSED) {
+                    return;
+                }
+                remoteNext += accepted;
+            }
+            // 乱序、重复或超出窗口的数据都只回复当前的确认号
+            ackNeeded = true;
+        }
+
+        if ((flags & PacketDecoder.TCP_FIN) != 0 && seq + payloadLength == remoteNext && !remoteFinReceived) {
+            remoteFinReceived = true;
+            remoteNext += 1;
+            ackNeeded = true;
+            shutdownUpstreamOutputIfDrained();
+        }
+
+        if (ackNeeded) {
+            sendAck();
+        }
+
+        if (remoteFinReceived && localFinSent && localAcked == localSeq) {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void onAck(int ack, int window, int flags, int payloadLength, long now) {
+        if (state == State.SYN_ACK_SENT) {
+            if (ack != localSeq) {
+                return;
+            }
+            state = State.ESTABLISHED;
+            retransmitDeadline = 0;
+        }
+
+        // 只接受落在已发送范围内的确认
+        if (ack - localAcked > 0 && localSeq - ack >= 0) {
+            onNewAck(ack, now);
+        } else if (ack == localAcked && localSeq != localAcked && payloadLength == 0 && window == remoteWindow
+                && (flags & (PacketDecoder.TCP_SYN | PacketDecoder.TCP_FIN)) == 0) {
+            // 不带数据、窗口不变的重复确认说明后面的报文到了，第一个未确认的报文丢了
+            if (++duplicateAcks == DUPLICATE_ACK_THRESHOLD && !recovering) {
+                recovering = true;
+                recoverSeq = localSeq;
+                retransmitFirst();
+                retransmitDeadline = now + rto;
+            }
+        }
+        remoteWindow = window;
+
+        if (remoteFinReceived && localFinSent && localAcked == localSeq) {
+            close();
+        }
+    }
+
+    private void onNewAck(int ack, long now) {
+        int acked = ack - localAcked;
+        localAcked = ack;
+        duplicateAcks = 0;
+        timeouts = 0;
+        rto = INITIAL_RTO_MS;
+        if (unacked != null) {
+            // FIN占一个序号但不在缓存中
+            int dropped = Math.min(acked, unacked.position());
+            unacked.flip();
+            unacked.position(dropped);
+            unacked.compact();
+            if (unacked.position() == 0) {
+                unacked = null;
+            }
+        }
+        if (localSeq == localAcked) {
+            recovering = false;
+            retransmitDeadline = 0;
+            return;
+        }
+        if (recovering) {
+            if (ack - recoverSeq >= 0) {
+                recovering = false;
+            } else {
+                // 部分确认：恢复点之前还有报文丢失
+                retransmitFirst();
+            }
+        }
+        retransmitDeadline = now + rto;
+    }
+
+    /**
+     * 引擎定期调用，重传超时未确认的报文
+     */
+    void onTimer(long now) {
+        if (retransmitDeadline == 0 || now < retransmitDeadline) {
+            return;
+        }
+        if (++timeouts > MAX_RETRANSMITS) {
+            Log.w(TAG, "重传次数过多，放弃连接: " + key);
+            abort();
+            return;
+        }
+        if (state == State.SYN_ACK_SENT) {
+            engine.sendTcp(key, localSeq - 1, remoteNext,
+                    PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK, receiveWindow(), engine.getLocalMss(key));
+        } else {
+            duplicateAcks = 0;
+            recovering = true;
+            recoverSeq = localSeq;
+            retransmitFirst();
+        }
+        rto = Math.min(rto * 2, MAX_RTO_MS);
+        retransmitDeadline = now + rto;
+    }
+
+    /**
+     * 重传第一个未确认的报文；缓存的数据都已确认时只剩FIN
+     */
+    private void retransmitFirst() {
+        if (unacked != null) {
+            int length = Math.min(Math.max(1, mss), unacked.position());
+            engine.sendTcp(key, localAcked, remoteNext, PacketDecoder.TCP_ACK | PacketDecoder.TCP_PSH,
+                    receiveWindow(), 0, unacked.array(), unacked.arrayOffset(), length);
+        } else if (localFinSent) {
+            engine.sendTcp(key, localSeq - 1, remoteNext,
+                    PacketDecoder.TCP_FIN | PacketDecoder.TCP_ACK, receiveWindow(), 0);
+        }
+    }
+
+    /**
+     * 发出新的报文后启动重传定时器，已经在计时时不重置
+     */
+    private void startRetransmitTimer(long now) {
+        if (retransmitDeadline == 0) {
+            retransmitDeadline = now + rto;
+        }
+    }
+
+    /**
+     * 上游连接完成
+     */
+    void onConnectable() {
+        try {
+            if (!channel.finishConnect()) {
+                return;
+            }
+            onConnected();
+        } catch (IOException e) {
+            Log.w(TAG, "连接上游失败: " + key + " " + e.getMessage());
+            abort();
+        }
+    }
+
+    private void onConnected() {
+        engine.sendTcp(key, localSeq, remoteNext,
+                PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK, receiveWindow(), engine.getLocalMss(key));
+        localSeq += 1;
+        localAcked = localSeq;
+        state = State.SYN_ACK_SENT;
+        startRetransmitTimer(System.currentTimeMillis());
+        updateInterest();
+    }
+
+    /**
+     * 上游可读：在应用窗口允许的范围内读取并切分成报文
+     */
+    void onReadable(ByteBuffer readBuffer, long now) {
+        lastActivity = now;
+        int allowed = Math.min(sendWindow(), MAX_UNACKED_BYTES - (unacked != null ? unacked.position() : 0));
+        if (allowed <= 0) {
+            updateInterest();
+            return;
+        }
+
+        readBuffer.clear();
+        readBuffer.limit(Math.min(allowed, readBuffer.capacity()));
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            abort();
+            return;
+        }
+
+        if (read < 0) {
+            // 上游关闭，向应用发送FIN
+            engine.sendTcp(key, localSeq, remoteNext,
+                    PacketDecoder.TCP_FIN | PacketDecoder.TCP_ACK, receiveWindow(), 0);
+            localSeq += 1;
+            localFinSent = true;
+            startRetransmitTimer(now);
+            updateInterest();
+            return;
+        }
+
+        byte[] data = readBuffer.array();
+        int base = readBuffer.arrayOffset();
+        if (unacked == null) {
+            unacked = ByteBuffer.allocate(MAX_UNACKED_BYTES);
+        }
+        unacked.put(data, base, read);
+        int segmentSize = Math.max(1, mss);
+        for (int offset = 0; offset < read; offset += segmentSize) {
+            int length = Math.min(segmentSize, read - offset);
+            engine.sendTcp(key, localSeq, remoteNext, PacketDecoder.TCP_ACK | PacketDecoder.TCP_PSH,
+                    receiveWindow(), 0, data, base + offset, length);
+            localSeq += length;
+        }
+        startRetransmitTimer(now);
+        updateInterest();
+    }
+
+    /**
+     * 上游可写：继续写出缓存的应用数据
+     */
+    void onWritable() {
+        if (pending == null) {
+            updateInterest();
+            return;
+        }
+
+        int before = pending.position();
+        try {
+            pending.flip();
+            channel.write(pending);
+            pending.compact();
+        } catch (IOException e) {
+            abort();
+            return;
+        }
+
+        if (pending.position() == 0) {
+            pending = null;
+            shutdownUpstreamOutputIfDrained();
+        }
+        // 缓存从接近满到有空余时通知应用窗口已打开
+        if (before >= MAX_PENDING_BYTES - mss && receiveWindow() >= mss) {
+            sendAck();
+        }
+        updateInterest();
+    }
+
+    private int writeUpstream(ByteBuffer packet, int offset, int length) {
+        int accepted = 0;
+        if (pending == null) {
+            int oldPosition = packet.position();
+            int oldLimit = packet.limit();
+            try {
+                packet.limit(offset + length);
+                packet.position(offset);
+                accepted = channel.write(packet);
+            } catch (IOException e) {
+                abort();
+                return 0;
+            } finally {
+                packet.limit(oldLimit);
+                packet.position(oldPosition);
+            }
+            if (accepted == length) {
+                return accepted;
+            }
+            pending = ByteBuffer.allocate(MAX_PENDING_BYTES);
+        }
+
+        int copy = Math.min(length - accepted, pending.remaining());
+        pending.put(packet.array(), packet.arrayOffset() + offset + accepted, copy);
+        return accepted + copy;
+    }
+
+    private void shutdownUpstreamOutputIfDrained() {
+        if (!remoteFinReceived || pending != null || upstreamOutputShutdown) {
+            return;
+        }
+        upstreamOutputShutdown = true;
+        try {
+            channel.socket().shutdownOutput();
+        } catch (IOException e) {
+            Log.w(TAG, "关闭上游输出时出错: " + key);
+        }
+    }
+
+    private void sendAck() {
+        engine.sendTcp(key, localSeq, remoteNext, PacketDecoder.TCP_ACK, receiveWindow(), 0);
+    }
+
+    private int receiveWindow() {
+        return pending == null ? MAX_PENDING_BYTES : pending.remaining();
+    }
+
+    private int sendWindow() {
+        return remoteWindow - (localSeq - localAcked);
+    }
+
+    private void updateInterest() {
+        if (selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (state == State.CONNECTING) {
+            ops = SelectionKey.OP_CONNECT;
+        } else if (state == State.ESTABLISHED) {
+            if (!localFinSent && sendWindow() > 0) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (pending != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        if (selectionKey.interestOps() != ops) {
+            selectionKey.interestOps(ops);
+        }
+    }
+
+    /**
+     * 异常终止：向应用发送RST并关闭
+     */
+    void abort() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        engine.sendTcp(key, localSeq, remoteNext, PacketDecoder.TCP_RST | PacketDecoder.TCP_ACK, 0, 0);
+        close();
+    }
+
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        pending = null;
+        unacked = null;
+        retransmitDeadline = 0;
+        if (redirectTable != null && redirectPort != 0) {
+            redirectTable.remove(redirectPort);
+        }
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "关闭上游连接时出错: " + key);
+            }
+        }
+        engine.onTcpFlowClosed(this);
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.packetcapture.tunnel;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * 单个UDP会话
+ * 每个应用端口到远端地址端口的组合对应一个已连接的受保护DatagramChannel，
+ * 远端的回复被重新封装成UDP数据包写回TUN。会话在空闲超时后由引擎回收。
+ * 所有方法只在引擎线程上调用。
+ */
+final class UdpSession {
+    private static final String TAG = "UdpSession";
+
+    final FlowKey key;
+    private final ForwardingEngine engine;
+    private DatagramChannel channel;
+    private SelectionKey selectionKey;
+    private boolean closed;
+
+    long lastActivity;
+
+    UdpSession(ForwardingEngine engine, FlowKey key, long now) {
+        this.engine = engine;
+        this.key = key;
+        this.lastActivity = now;
+    }
+
+    void open(InetSocketAddress target) throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        if (!engine.protect(channel.socket())) {
+            channel.close();
+            throw new IOException("无法保护套接字: " + key);
+        }
+        channel.connect(target);
+        selectionKey = engine.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * 将应用发来的UDP载荷转发给远端
+     */
+    void send(ByteBuffer packet, int offset, int length, long now) {
+        lastActivity = now;
+        int oldPosition = packet.position();
+        int oldLimit = packet.limit();
+        try {
+            packet.limit(offset + length);
+            packet.position(offset);
+            channel.write(packet);
+        } catch (IOException e) {
+            Log.w(TAG, "发送UDP数据失败: " + key + " " + e.getMessage());
+            close();
+        } finally {
+            packet.limit(oldLimit);
+            packet.position(oldPosition);
+        }
+    }
+
+    /**
+     * 远端有回复：读取并写回TUN
+     */
+    void onReadable(ByteBuffer readBuffer, long now) {
+        lastActivity = now;
+        try {
+            while (true) {
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read <= 0) {
+                    return;
+                }
+                engine.sendUdp(key, readBuffer.array(), readBuffer.arrayOffset(), read);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "接收UDP数据失败: " + key + " " + e.getMessage());
+            close();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "关闭UDP会话时出错: " + key);
+            }
+        }
+        engine.onUdpSessionClosed(this);
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.packetcapture.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CaptureIndexTest {
+    private static final long T = 1_000_000L;
+    // 两个完整的块加上还没有摘要的半块
+    private static final int RECORDS = CaptureIndex.BLOCK_RECORDS * 2 + 100;
+
+    private File directory;
+    private CaptureIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("index").toFile();
+        index = CaptureIndex.create(directory, "capture");
+        PacketDecoder decoder = new PacketDecoder();
+        ByteBuffer packet = ByteBuffer.allocate(28);
+        packet.put(0, (byte) 0x45);
+        packet.putShort(2, (short) 28);
+        packet.put(8, (byte) 64);
+        packet.put(9, (byte) PacketDecoder.PROTOCOL_UDP);
+        packet.putInt(12, 0x0A000002);
+        packet.putInt(16, 0x01020304);
+        packet.putShort(24, (short) 8);
+        for (int i = 0; i < RECORDS; i++) {
+            packet.putShort(20, (short) (1000 + i % 50000));
+            decoder.decode(packet, 28);
+            // 每10条记录时间相同，按时间过滤无法精确定位到某条记录
+            index.append(decoder, T + i / 10, 28, false, 1, i * 64);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private List<Long> query(CaptureIndex.Query query) {
+        final List<Long> records = new ArrayList<>();
+        index.query(query, (row, inbound, segment, offset) -> {
+            records.add(row.getSequence());
+            return true;
+        });
+        return records;
+    }
+
+    @Test
+    public void recordRangeSelectsExactRecords() {
+        // 起点落在第一块中间、同一时间戳的记录之间
+        long from = CaptureIndex.BLOCK_RECORDS - 3;
+        List<Long> records = query(new CaptureIndex.Query().setRecordRange(from, Long.MAX_VALUE));
+        assertEquals(RECORDS - from, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(from + i, (long) records.get(i));
+        }
+
+        records = query(new CaptureIndex.Query().setRecordRange(5, 15));
+        assertEquals(10, records.size());
+        assertEquals(5L, (long) records.get(0));
+        assertEquals(14L, (long) records.get(9));
+    }
+
+    @Test
+    public void recordRangeCoversUnsummarizedTail() {
+        long from = CaptureIndex.BLOCK_RECORDS * 2 + 40;
+        List<Long> records = query(new CaptureIndex.Query().setRecordRange(from, Long.MAX_VALUE));
+        assertEquals(RECORDS - from, records.size());
+        assertEquals(from, (long) records.get(0));
+        assertEquals(0, query(new CaptureIndex.Query().setRecordRange(RECORDS, Long.MAX_VALUE)).size());
+    }
+
+    @Test
+    public void recordRangeCombinesWithOtherConditions() {
+        List<Long> records = query(new CaptureIndex.Query()
+                .setRecordRange(CaptureIndex.BLOCK_RECORDS, CaptureIndex.BLOCK_RECORDS * 2)
+                .setTimeRange(T + 500, T + 600)
+                .setPort(1000 + 5005));
+        assertEquals(1, records.size());
+        assertEquals(5005L, (long) records.get(0));
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.packetcapture.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FlowTrackerTest {
+    private static final long T = 1_000_000L;
+    private static final int LOCAL = 0x0A000002;
+    private static final int REMOTE = 0x01020304;
+
+    private final PacketDecoder decoder = new PacketDecoder();
+
+    /**
+     * 构造IPv4的TCP或UDP数据包，TCP头部20字节、UDP头部8字节，载荷全为0
+     */
+    private static ByteBuffer packet(int protocol, int source, int sourcePort, int destination, int destinationPort,
+                                     int flags, int seq, int payloadLength) {
+        int headerLength = protocol == PacketDecoder.PROTOCOL_TCP ? 20 : 8;
+        int length = 20 + headerLength + payloadLength;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(0, (byte) 0x45);
+        buffer.putShort(2, (short) length);
+        buffer.put(8, (byte) 64);
+        buffer.put(9, (byte) protocol);
+        buffer.putInt(12, source);
+        buffer.putInt(16, destination);
+        buffer.putShort(20, (short) sourcePort);
+        buffer.putShort(22, (short) destinationPort);
+        if (protocol == PacketDecoder.PROTOCOL_TCP) {
+            buffer.putInt(24, seq);
+            buffer.put(32, (byte) 0x50);
+            buffer.put(33, (byte) flags);
+        } else {
+            buffer.putShort(24, (short) (8 + payloadLength));
+        }
+        return buffer;
+    }
+
+    private void tcpOut(FlowTracker tracker, int localPort, int flags, int seq, int payloadLength, long timestamp) {
+        feed(tracker, packet(PacketDecoder.PROTOCOL_TCP, LOCAL, localPort, REMOTE, 443, flags, seq, payloadLength),
+                true, timestamp);
+    }
+
+    private void tcpIn(FlowTracker tracker, int localPort, int flags, int seq, int payloadLength, long timestamp) {
+        feed(tracker, packet(PacketDecoder.PROTOCOL_TCP, REMOTE, 443, LOCAL, localPort, flags, seq, payloadLength),
+                false, timestamp);
+    }
+
+    private void udpOut(FlowTracker tracker, int localPort, long timestamp) {
+        feed(tracker, packet(PacketDecoder.PROTOCOL_UDP, LOCAL, localPort, REMOTE, 53, 0, 0, 30), true, timestamp);
+    }
+
+    private void feed(FlowTracker tracker, ByteBuffer packet, boolean outbound, long timestamp) {
+        decoder.decode(packet, packet.capacity());
+        tracker.onPacket(decoder, packet, outbound, timestamp);
+    }
+
+    @Test
+    public void aggregatesBothDirectionsAndMeasuresHandshake() {
+        FlowTracker tracker = new FlowTracker(16, null);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_SYN, 100, 0, T);
+        tcpIn(tracker, 40000, PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK, 5000, 0, T + 25);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_ACK, 101, 0, T + 26);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_ACK | PacketDecoder.TCP_PSH, 101, 200, T + 27);
+
+        List<FlowSummary> flows = tracker.snapshot();
+        assertEquals(1, flows.size());
+        FlowSummary flow = flows.get(0);
+        assertEquals(PacketDecoder.PROTOCOL_TCP, flow.getProtocolNumber());
+        assertEquals("10.0.0.2", flow.getLocalAddress());
+        assertEquals("1.2.3.4", flow.getRemoteAddress());
+        assertEquals(40000, flow.getLocalPort());
+        assertEquals(443, flow.getRemotePort());
+        assertEquals(3, flow.getPacketsOut());
+        assertEquals(1, flow.getPacketsIn());
+        assertEquals(40 * 3 + 200, flow.getBytesOut());
+        assertEquals(40, flow.getBytesIn());
+        assertEquals(25, flow.getHandshakeRtt());
+        assertEquals(FlowTracker.STATE_ESTABLISHED, flow.getState());
+        assertEquals(T, flow.getFirstSeen());
+        assertEquals(T + 27, flow.getLastSeen());
+        assertEquals(0, flow.getRetransmissions());
+    }
+
+    @Test
+    public void retransmittedSynInvalidatesHandshakeTime() {
+        FlowTracker tracker = new FlowTracker(16, null);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_SYN, 100, 0, T);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_SYN, 100, 0, T + 1000);
+        tcpIn(tracker, 40000, PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK, 5000, 0, T + 1020);
+        FlowSummary flow = tracker.snapshot().get(0);
+        assertEquals(-1, flow.getHandshakeRtt());
+        assertEquals(FlowTracker.STATE_SYN_RECEIVED, flow.getState());
+        assertEquals(1, flow.getRetransmissions());
+    }
+
+    @Test
+    public void tracksCloseAndReset() {
+        FlowTracker tracker = new FlowTracker(16, null);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_ACK, 100, 10, T);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_FIN | PacketDecoder.TCP_ACK, 110, 0, T + 1);
+        assertEquals(FlowTracker.STATE_CLOSING, tracker.snapshot().get(0).getState());
+        tcpIn(tracker, 40000, PacketDecoder.TCP_FIN | PacketDecoder.TCP_ACK, 900, 0, T + 2);
+        assertEquals(FlowTracker.STATE_CLOSED, tracker.snapshot().get(0).getState());
+
+        tcpOut(tracker, 40001, PacketDecoder.TCP_ACK, 100, 10, T + 3);
+        tcpIn(tracker, 40001, PacketDecoder.TCP_RST, 900, 0, T + 4);
+        assertEquals(FlowTracker.STATE_RESET, tracker.snapshot().get(1).getState());
+    }
+
+    @Test
+    public void countsOutOfOrderAndRetransmittedSegments() {
+        FlowTracker tracker = new FlowTracker(16, null);
+        tcpIn(tracker, 40000, PacketDecoder.TCP_ACK, 1000, 100, T);
+        // 1100-1200缺失，1200先到
+        tcpIn(tracker, 40000, PacketDecoder.TCP_ACK, 1200, 100, T + 1);
+        tcpIn(tracker, 40000, PacketDecoder.TCP_ACK, 1100, 100, T + 2);
+        // 已经见过的段再次出现
+        tcpIn(tracker, 40000, PacketDecoder.TCP_ACK, 1000, 100, T + 3);
+        tcpIn(tracker, 40000, PacketDecoder.TCP_ACK, 1300, 100, T + 4);
+        FlowSummary flow = tracker.snapshot().get(0);
+        assertEquals(1, flow.getOutOfOrder());
+        assertEquals(1, flow.getRetransmissions());
+    }
+
+    @Test
+    public void sequenceComparisonWrapsAround() {
+        FlowTracker tracker = new FlowTracker(16, null);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_ACK, -50, 100, T);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_ACK, 50, 100, T + 1);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_ACK, -50, 100, T + 2);
+        FlowSummary flow = tracker.snapshot().get(0);
+        assertEquals(0, flow.getOutOfOrder());
+        assertEquals(1, flow.getRetransmissions());
+    }
+
+    @Test
+    public void snapshotIsOrderedByFirstSeen() {
+        FlowTracker tracker = new FlowTracker(64, null);
+        for (int i = 0; i < 40; i++) {
+            udpOut(tracker, 50000 + (i * 7919) % 40, T + i);
+        }
+        List<FlowSummary> flows = tracker.snapshot();
+        assertEquals(40, flows.size());
+        for (int i = 0; i < flows.size(); i++) {
+            assertEquals(T + i, flows.get(i).getFirstSeen());
+        }
+    }
+
+    @Test
+    public void evictsIdleFlowsByProtocolAndState() {
+        FlowTracker tracker = new FlowTracker(16, null);
+        udpOut(tracker, 50000, T);
+        tcpOut(tracker, 40000, PacketDecoder.TCP_ACK, 100, 10, T);
+        tcpOut(tracker, 40001, PacketDecoder.TCP_ACK, 100, 10, T);
+        tcpIn(tracker, 40001, PacketDecoder.TCP_RST, 900, 0, T);
+        assertEquals(3, tracker.size());
+
+        assertEquals(1, tracker.evictIdle(T + 10_001));
+        assertEquals(1, tracker.evictIdle(T + 60_001));
+        assertEquals(1, tracker.size());
+        assertEquals(40000, tracker.snapshot().get(0).getLocalPort());
+        assertEquals(1, tracker.evictIdle(T + 10 * 60_000 + 1));
+        assertEquals(3, tracker.getEvictedCount());
+    }
+
+    @Test
+    public void fullTableEvictsLeastRecentlyActiveFlow() {
+        FlowTracker tracker = new FlowTracker(2, null);
+        udpOut(tracker, 1, T);
+        udpOut(tracker, 2, T + 1);
+        udpOut(tracker, 1, T + 2);
+        udpOut(tracker, 3, T + 3);
+        List<FlowSummary> flows = tracker.snapshot();
+        assertEquals(2, flows.size());
+        assertEquals(1, flows.get(0).getLocalPort());
+        assertEquals(2, flows.get(0).getPacketsOut());
+        assertEquals(3, flows.get(1).getLocalPort());
+        assertEquals(1, tracker.getEvictedCount());
+    }
+
+    @Test
+    public void removalKeepsRemainingFlowsReachable() {
+        FlowTracker tracker = new FlowTracker(256, null);
+        for (int port = 1; port <= 200; port++) {
+            udpOut(tracker, port, T + (port % 2 == 0 ? 0 : 50_000));
+        }
+        // 偶数端口的流空闲超时，删除后探测链上的条目回移
+        assertEquals(100, tracker.evictIdle(T + 60_001));
+        for (int port = 1; port <= 200; port += 2) {
+            udpOut(tracker, port, T + 60_002);
+        }
+        assertEquals(100, tracker.size());
+        for (FlowSummary flow : tracker.snapshot()) {
+            assertEquals(1, flow.getLocalPort() % 2);
+            assertEquals(2, flow.getPacketsOut());
+        }
+    }
+
+    @Test
+    public void fillsHostnameAndIgnoresFragments() {
+        HostnameTable hostnames = new HostnameTable();
+        hostnames.put(new byte[]{1, 2, 3, 4}, "example.com");
+        FlowTracker tracker = new FlowTracker(16, hostnames);
+        ByteBuffer fragment = packet(PacketDecoder.PROTOCOL_UDP, LOCAL, 50000, REMOTE, 53, 0, 0, 30);
+        fragment.putShort(6, (short) 100);
+        feed(tracker, fragment, true, T);
+        assertEquals(0, tracker.size());
+
+        udpOut(tracker, 50000, T);
+        FlowSummary flow = tracker.snapshot().get(0);
+        assertEquals("example.com", flow.getHostname());
+        assertEquals(FlowTracker.STATE_NONE, flow.getState());
+        assertEquals(-1, flow.getHandshakeRtt());
+
+        tracker.clear();
+        assertEquals(0, tracker.size());
+        udpOut(tracker, 50001, T + 1);
+        assertEquals(1, tracker.size());
+        assertEquals(1, tracker.snapshot().get(0).getPacketsOut());
+    }
+}
@@ -0,0 +1,353 @@
+package com.example.packetcapture.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketDecoderTest {
+    private static final int SOURCE = 0x0A000002;
+    private static final int DESTINATION = 0xC0A80101;
+
+    private final PacketDecoder decoder = new PacketDecoder();
+
+    /**
+     * 构造IPv4数据包
+     * @param optionWords IP选项的长度，以4字节为单位
+     * @param fragmentOffset 以8字节为单位的分片偏移
+     * @param transport 传输层头部和载荷
+     */
+    private static ByteBuffer ipv4(int protocol, int optionWords, int fragmentOffset, byte[] transport) {
+        int headerLength = 20 + optionWords * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength + transport.length);
+        buffer.put(0, (byte) (0x40 | (headerLength / 4)));
+        buffer.putShort(2, (short) buffer.capacity());
+        buffer.putShort(6, (short) fragmentOffset);
+        buffer.put(8, (byte) 64);
+        buffer.put(9, (byte) protocol);
+        buffer.putInt(12, SOURCE);
+        buffer.putInt(16, DESTINATION);
+        for (int i = 0; i < transport.length; i++) {
+            buffer.put(headerLength + i, transport[i]);
+        }
+        return buffer;
+    }
+
+    /**
+     * 构造TCP头部
+     * @param optionWords TCP选项的长度，以4字节为单位
+     */
+    private static byte[] tcp(int sourcePort, int destinationPort, int flags, int optionWords, int payloadLength) {
+        int headerLength = 20 + optionWords * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength + payloadLength);
+        buffer.putShort(0, (short) sourcePort);
+        buffer.putShort(2, (short) destinationPort);
+        buffer.put(12, (byte) ((headerLength / 4) << 4));
+        buffer.put(13, (byte) flags);
+        return buffer.array();
+    }
+
+    /**
+     * 构造IPv6数据包，源地址2001:db8::1，目标地址ff02::1:ff00:1
+     * @param nextHeader 固定头部中的下一个头部
+     * @param rest 扩展头、传输层头部和载荷
+     */
+    private static ByteBuffer ipv6(int nextHeader, byte[]... rest) {
+        int length = 40;
+        for (byte[] part : rest) {
+            length += part.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(0, (byte) 0x60);
+        buffer.putShort(4, (short) (length - 40));
+        buffer.put(6, (byte) nextHeader);
+        buffer.put(7, (byte) 64);
+        buffer.putLong(8, 0x20010DB800000000L);
+        buffer.putLong(16, 1L);
+        buffer.putLong(24, 0xFF02000000000000L);
+        buffer.putLong(32, 0x00000001FF000001L);
+        buffer.position(40);
+        for (byte[] part : rest) {
+            buffer.put(part);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 以8字节为单位的扩展头（逐跳选项、路由、目的选项）
+     */
+    private static byte[] extension(int nextHeader, int units) {
+        byte[] header = new byte[(units + 1) * 8];
+        header[0] = (byte) nextHeader;
+        header[1] = (byte) units;
+        return header;
+    }
+
+    /**
+     * 分片头
+     * @param fragmentOffset 以8字节为单位的分片偏移
+     */
+    private static byte[] fragment(int nextHeader, int fragmentOffset, boolean more) {
+        byte[] header = new byte[8];
+        header[0] = (byte) nextHeader;
+        int field = fragmentOffset << 3 | (more ? 1 : 0);
+        header[2] = (byte) (field >>> 8);
+        header[3] = (byte) field;
+        return header;
+    }
+
+    private static byte[] udp(int sourcePort, int destinationPort, int payloadLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payloadLength);
+        buffer.putShort(0, (short) sourcePort);
+        buffer.putShort(2, (short) destinationPort);
+        buffer.putShort(4, (short) (8 + payloadLength));
+        return buffer.array();
+    }
+
+    private boolean decode(ByteBuffer packet) {
+        return decoder.decode(packet, packet.capacity());
+    }
+
+    @Test
+    public void decodesIPv4Tcp() {
+        ByteBuffer packet = ipv4(PacketDecoder.PROTOCOL_TCP, 0, 0,
+                tcp(40000, 443, PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK, 3, 5));
+        assertTrue(decode(packet));
+        assertEquals(4, decoder.getIpVersion());
+        assertEquals(PacketDecoder.PROTOCOL_TCP, decoder.getProtocol());
+        assertEquals(SOURCE, decoder.getSourceAddress());
+        assertEquals(DESTINATION, decoder.getDestinationAddress());
+        assertEquals(0, decoder.getSourceAddressHigh());
+        assertEquals(DESTINATION & 0xFFFFFFFFL, decoder.getDestinationAddressLow());
+        assertEquals(40000, decoder.getSourcePort());
+        assertEquals(443, decoder.getDestinationPort());
+        assertEquals(PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK | PacketDecoder.FLAG_HTTPS, decoder.getFlags());
+        assertEquals(20, decoder.getIpHeaderLength());
+        assertEquals(20, decoder.getTransportOffset());
+        assertEquals(20 + 32, decoder.getPayloadOffset());
+        assertEquals(packet.capacity(), decoder.getLength());
+        // 解码不改变缓冲区的position和limit
+        assertEquals(0, packet.position());
+        assertEquals(packet.capacity(), packet.limit());
+    }
+
+    @Test
+    public void ipOptionsMoveTransportHeader() {
+        assertTrue(decode(ipv4(PacketDecoder.PROTOCOL_TCP, 2, 0, tcp(1234, 80, PacketDecoder.TCP_PSH, 0, 10))));
+        assertEquals(28, decoder.getIpHeaderLength());
+        assertEquals(28, decoder.getTransportOffset());
+        assertEquals(48, decoder.getPayloadOffset());
+        assertEquals(1234, decoder.getSourcePort());
+        assertEquals(PacketDecoder.TCP_PSH | PacketDecoder.FLAG_HTTP, decoder.getFlags());
+    }
+
+    @Test
+    public void decodesIPv4UdpAndIcmp() {
+        assertTrue(decode(ipv4(PacketDecoder.PROTOCOL_UDP, 0, 0, udp(5353, 53, 12))));
+        assertEquals(53, decoder.getDestinationPort());
+        assertEquals(20, decoder.getInfo());
+        assertEquals(28, decoder.getPayloadOffset());
+        assertEquals(PacketDecoder.FLAG_DNS, decoder.getFlags());
+
+        assertTrue(decode(ipv4(PacketDecoder.PROTOCOL_ICMP, 0, 0, new byte[]{3, 1, 0, 0, 0, 0, 0, 0})));
+        assertEquals(3 << 8 | 1, decoder.getInfo());
+        assertEquals(0, decoder.getSourcePort());
+        assertEquals(24, decoder.getPayloadOffset());
+    }
+
+    @Test
+    public void truncatedIPv4HeaderIsRejected() {
+        ByteBuffer packet = ipv4(PacketDecoder.PROTOCOL_TCP, 0, 0, tcp(1, 2, 0, 0, 0));
+        assertFalse(decoder.decode(packet, 19));
+        assertEquals(19, decoder.getLength());
+        assertEquals(0, decoder.getProtocol());
+        assertFalse(decoder.decode(packet, 0));
+
+        // IHL超出数据包长度
+        ByteBuffer options = ipv4(PacketDecoder.PROTOCOL_UDP, 10, 0, new byte[0]);
+        assertFalse(decoder.decode(options, 40));
+        // IHL小于5
+        ByteBuffer shortIhl = ipv4(PacketDecoder.PROTOCOL_UDP, 0, 0, udp(1, 2, 0));
+        shortIhl.put(0, (byte) 0x44);
+        assertFalse(decode(shortIhl));
+        // 未知版本
+        shortIhl.put(0, (byte) 0x55);
+        assertFalse(decode(shortIhl));
+    }
+
+    @Test
+    public void truncatedTransportHeaderIsFlagged() {
+        ByteBuffer packet = ipv4(PacketDecoder.PROTOCOL_TCP, 0, 0, tcp(1234, 443, PacketDecoder.TCP_SYN, 0, 0));
+        assertTrue(decoder.decode(packet, 39));
+        assertEquals(PacketDecoder.FLAG_TRUNCATED, decoder.getFlags());
+        assertEquals(0, decoder.getSourcePort());
+        assertEquals(0, decoder.getPayloadOffset());
+
+        assertTrue(decoder.decode(ipv4(PacketDecoder.PROTOCOL_UDP, 0, 0, udp(1, 53, 0)), 27));
+        assertEquals(PacketDecoder.FLAG_TRUNCATED, decoder.getFlags());
+        assertEquals(0, decoder.getDestinationPort());
+    }
+
+    @Test
+    public void nonFirstIPv4FragmentHasNoTransportHeader() {
+        // 片偏移之外的位（MF）不影响判断
+        ByteBuffer first = ipv4(PacketDecoder.PROTOCOL_UDP, 0, 0x2000, udp(1, 53, 8));
+        assertTrue(decode(first));
+        assertEquals(53, decoder.getDestinationPort());
+        assertEquals(0, decoder.getFlags() & PacketDecoder.FLAG_FRAGMENT);
+
+        ByteBuffer rest = ipv4(PacketDecoder.PROTOCOL_UDP, 0, 0x2000 | 2, udp(1, 53, 8));
+        assertTrue(decode(rest));
+        assertEquals(PacketDecoder.FLAG_FRAGMENT, decoder.getFlags());
+        assertEquals(PacketDecoder.PROTOCOL_UDP, decoder.getProtocol());
+        assertEquals(0, decoder.getDestinationPort());
+        assertEquals(0, decoder.getInfo());
+        assertEquals(20, decoder.getPayloadOffset());
+    }
+
+    @Test
+    public void packsIPv6AddressesIntoTwoLongs() {
+        assertTrue(decode(ipv6(PacketDecoder.PROTOCOL_UDP, udp(546, 547, 4))));
+        assertEquals(6, decoder.getIpVersion());
+        assertEquals(0x20010DB800000000L, decoder.getSourceAddressHigh());
+        assertEquals(1L, decoder.getSourceAddressLow());
+        // 最高位为1的地址不能因符号扩展出错
+        assertEquals(0xFF02000000000000L, decoder.getDestinationAddressHigh());
+        assertEquals(0x00000001FF000001L, decoder.getDestinationAddressLow());
+        assertEquals("2001:db8::1", PacketDecoder.formatIPv6(decoder.getSourceAddressHigh(),
+                decoder.getSourceAddressLow()));
+        assertEquals("ff02::1:ff00:1", PacketDecoder.formatAddress(6, decoder.getDestinationAddressHigh(),
+                decoder.getDestinationAddressLow()));
+        assertEquals(40, decoder.getTransportOffset());
+        assertEquals(48, decoder.getPayloadOffset());
+        assertEquals(12, decoder.getInfo());
+    }
+
+    @Test
+    public void formatsIPv6PerRfc5952() {
+        assertEquals("::", PacketDecoder.formatIPv6(0, 0));
+        assertEquals("::1", PacketDecoder.formatIPv6(0, 1));
+        assertEquals("fe80::", PacketDecoder.formatIPv6(0xFE80000000000000L, 0));
+        // 只有一个零组时不压缩；长度相同时压缩第一段
+        assertEquals("2001:db8:0:1:1:1:1:1", PacketDecoder.formatIPv6(0x20010DB800000001L, 0x0001000100010001L));
+        assertEquals("2001:0:0:1::1", PacketDecoder.formatIPv6(0x2001000000000001L, 0x0000000000000001L));
+        assertEquals("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff", PacketDecoder.formatIPv6(-1L, -1L));
+    }
+
+    @Test
+    public void walksHopByHopRoutingAndDestinationOptions() {
+        ByteBuffer packet = ipv6(0,
+                extension(43, 0),
+                extension(60, 2),
+                extension(PacketDecoder.PROTOCOL_TCP, 0),
+                tcp(50000, 443, PacketDecoder.TCP_ACK, 0, 3));
+        assertTrue(decode(packet));
+        int transport = 40 + 8 + 24 + 8;
+        assertEquals(PacketDecoder.PROTOCOL_TCP, decoder.getProtocol());
+        assertEquals(transport, decoder.getIpHeaderLength());
+        assertEquals(transport, decoder.getTransportOffset());
+        assertEquals(transport + 20, decoder.getPayloadOffset());
+        assertEquals(50000, decoder.getSourcePort());
+        assertEquals(PacketDecoder.TCP_ACK | PacketDecoder.FLAG_HTTPS, decoder.getFlags());
+    }
+
+    @Test
+    public void authenticationHeaderLengthIsInFourByteUnits() {
+        byte[] authentication = new byte[24];
+        authentication[0] = (byte) PacketDecoder.PROTOCOL_UDP;
+        // (4 + 2) * 4 = 24字节
+        authentication[1] = 4;
+        assertTrue(decode(ipv6(51, authentication, udp(1, 53, 0))));
+        assertEquals(64, decoder.getTransportOffset());
+        assertEquals(PacketDecoder.FLAG_DNS, decoder.getFlags());
+    }
+
+    @Test
+    public void firstIPv6FragmentIsDecoded() {
+        assertTrue(decode(ipv6(44, fragment(PacketDecoder.PROTOCOL_UDP, 0, true), udp(1000, 53, 8))));
+        assertEquals(PacketDecoder.PROTOCOL_UDP, decoder.getProtocol());
+        assertEquals(48, decoder.getTransportOffset());
+        assertEquals(53, decoder.getDestinationPort());
+        assertEquals(PacketDecoder.FLAG_DNS, decoder.getFlags());
+    }
+
+    @Test
+    public void nonFirstIPv6FragmentHasNoTransportHeader() {
+        ByteBuffer packet = ipv6(0,
+                extension(44, 0),
+                fragment(PacketDecoder.PROTOCOL_TCP, 185, false),
+                tcp(50000, 443, PacketDecoder.TCP_SYN, 0, 0));
+        assertTrue(decode(packet));
+        assertEquals(PacketDecoder.PROTOCOL_TCP, decoder.getProtocol());
+        assertEquals(PacketDecoder.FLAG_FRAGMENT, decoder.getFlags());
+        assertEquals(56, decoder.getIpHeaderLength());
+        assertEquals(56, decoder.getPayloadOffset());
+        assertEquals(0, decoder.getSourcePort());
+    }
+
+    @Test
+    public void truncatedIPv6IsRejectedOrFlagged() {
+        ByteBuffer packet = ipv6(PacketDecoder.PROTOCOL_UDP, udp(1, 2, 0));
+        assertFalse(decoder.decode(packet, 39));
+        assertFalse(decoder.decodeIPv6(ipv4(PacketDecoder.PROTOCOL_UDP, 5, 0, udp(1, 2, 0)), 48));
+
+        // 扩展头不足8字节
+        ByteBuffer shortExtension = ipv6(0, extension(PacketDecoder.PROTOCOL_UDP, 0));
+        assertTrue(decoder.decode(shortExtension, 44));
+        assertEquals(PacketDecoder.FLAG_TRUNCATED, decoder.getFlags());
+        assertEquals(0, decoder.getProtocol());
+        assertEquals(40, decoder.getIpHeaderLength());
+        assertEquals(40, decoder.getPayloadOffset());
+
+        // 扩展头声明的长度超出数据包
+        ByteBuffer overlong = ipv6(0, extension(PacketDecoder.PROTOCOL_UDP, 3));
+        assertTrue(decoder.decode(overlong, 56));
+        assertEquals(PacketDecoder.FLAG_TRUNCATED, decoder.getFlags());
+        assertEquals(PacketDecoder.PROTOCOL_UDP, decoder.getProtocol());
+        assertEquals(56, decoder.getIpHeaderLength());
+
+        // 截断在分片头中
+        assertTrue(decoder.decode(ipv6(44, fragment(PacketDecoder.PROTOCOL_UDP, 1, false)), 46));
+        assertEquals(PacketDecoder.FLAG_TRUNCATED, decoder.getFlags());
+        assertEquals(44, decoder.getProtocol());
+
+        // 传输层头部不完整
+        assertTrue(decoder.decode(ipv6(PacketDecoder.PROTOCOL_TCP, tcp(1, 443, 0, 0, 0)), 50));
+        assertEquals(PacketDecoder.FLAG_TRUNCATED, decoder.getFlags());
+        assertEquals(0, decoder.getDestinationPort());
+    }
+
+    @Test
+    public void tooManyExtensionHeadersAreTreatedAsTruncated() {
+        byte[][] chain = new byte[18][];
+        for (int i = 0; i < 17; i++) {
+            chain[i] = extension(60, 0);
+        }
+        chain[17] = udp(1, 2, 0);
+        assertTrue(decode(ipv6(60, chain)));
+        assertEquals(PacketDecoder.FLAG_TRUNCATED, decoder.getFlags());
+        assertEquals(60, decoder.getProtocol());
+        assertEquals(40 + 16 * 8, decoder.getIpHeaderLength());
+    }
+
+    @Test
+    public void reusedDecoderClearsIPv6State() {
+        assertTrue(decode(ipv6(PacketDecoder.PROTOCOL_UDP, udp(1, 2, 0))));
+        assertTrue(decode(ipv4(PacketDecoder.PROTOCOL_ICMP, 0, 0, new byte[]{8, 0, 0, 0})));
+        assertEquals(4, decoder.getIpVersion());
+        assertEquals(0, decoder.getSourceAddressHigh());
+        assertEquals(0, decoder.getDestinationAddressHigh());
+        assertEquals(SOURCE & 0xFFFFFFFFL, decoder.getSourceAddressLow());
+    }
+
+    @Test
+    public void formatsIPv4() {
+        assertEquals("10.0.0.2", PacketDecoder.formatIPv4(SOURCE));
+        assertEquals("192.168.1.1", PacketDecoder.formatIPv4(DESTINATION));
+        assertEquals("255.255.255.255", PacketDecoder.formatIPv4(-1));
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.packetcapture.capture;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketStoreTest {
+    private static void append(PacketStore store, long i) {
+        store.append(4, PacketDecoder.PROTOCOL_TCP, 0, 0x0A000002L, 0, 0x01020304L,
+                (int) (40000 + i % 1000), 443, PacketDecoder.TCP_ACK, (int) i, 1000 + i, (int) (i % 1500), 0);
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(64, new PacketStore(50).getCapacity());
+        assertEquals(64, new PacketStore(64).getCapacity());
+        assertEquals(PacketStore.DEFAULT_CAPACITY, new PacketStore().getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityOutOfRangeIsRejected() {
+        new PacketStore(PacketStore.MAX_CAPACITY + 1);
+    }
+
+    @Test
+    public void appendedRowsReadBackUnchanged() {
+        PacketStore store = new PacketStore(64);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, store.append(6, PacketDecoder.PROTOCOL_UDP, 0x20010DB8L << 32, i, -1L, -2L,
+                    5353, 53, PacketDecoder.FLAG_DNS, i * 7, 5000 + i, 100 + i, i + 1));
+        }
+        assertEquals(10, store.size());
+        PacketStore.Row row = new PacketStore.Row();
+        assertTrue(store.read(3, row));
+        assertEquals(3, row.getSequence());
+        assertEquals(6, row.getIpVersion());
+        assertEquals(PacketDecoder.PROTOCOL_UDP, row.getProtocol());
+        assertEquals(0x20010DB8L << 32, row.getSourceAddressHigh());
+        assertEquals(3, row.getSourceAddressLow());
+        assertEquals(-1L, row.getDestinationAddressHigh());
+        assertEquals(-2L, row.getDestinationAddressLow());
+        assertEquals(5353, row.getSourcePort());
+        assertEquals(53, row.getDestinationPort());
+        assertEquals(PacketDecoder.FLAG_DNS, row.getFlags());
+        assertEquals(21, row.getInfo());
+        assertEquals(5003, row.getTimestamp());
+        assertEquals(103, row.getLength());
+        assertEquals(4, row.getNameId());
+        assertFalse(store.read(10, row));
+    }
+
+    @Test
+    public void wrapOverwritesOldestRows() {
+        PacketStore store = new PacketStore(64);
+        for (int i = 0; i < 200; i++) {
+            append(store, i);
+        }
+        // 写线程前方guard行不可读
+        long oldest = store.getOldestSequence();
+        assertEquals(200 - 64 + 1, oldest);
+        assertEquals(200, store.getWriteSequence());
+        assertEquals(200 - oldest, store.size());
+        PacketStore.Row row = new PacketStore.Row();
+        assertFalse(store.read(oldest - 1, row));
+        assertTrue(store.read(oldest, row));
+        assertEquals(oldest, row.getInfo());
+    }
+
+    @Test
+    public void cursorSkipsOverwrittenRows() {
+        PacketStore store = new PacketStore(64);
+        PacketStore.Cursor cursor = store.newCursor();
+        PacketStore.Row row = new PacketStore.Row();
+        for (int i = 0; i < 5; i++) {
+            append(store, i);
+        }
+        assertTrue(cursor.next(row));
+        assertEquals(0, row.getSequence());
+        for (int i = 5; i < 300; i++) {
+            append(store, i);
+        }
+        assertTrue(cursor.next(row));
+        assertEquals(store.getOldestSequence(), row.getSequence());
+        assertEquals(row.getSequence() - 1, cursor.getSkipped());
+        int remaining = 0;
+        while (cursor.next(row)) {
+            remaining++;
+        }
+        assertEquals(299 - store.getOldestSequence(), remaining);
+        assertEquals(300, cursor.getPosition());
+    }
+
+    @Test
+    public void clearHidesEarlierRows() {
+        PacketStore store = new PacketStore(64);
+        for (int i = 0; i < 10; i++) {
+            append(store, i);
+        }
+        store.clear();
+        assertEquals(0, store.size());
+        assertFalse(store.read(9, new PacketStore.Row()));
+        append(store, 10);
+        PacketStore.Cursor cursor = store.newCursor();
+        PacketStore.Row row = new PacketStore.Row();
+        assertTrue(cursor.next(row));
+        assertEquals(10, row.getSequence());
+        assertFalse(cursor.next(row));
+    }
+
+    @Test
+    public void concurrentReaderNeverSeesTornRows() throws Exception {
+        final PacketStore store = new PacketStore(1024);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean torn = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            PacketStore.Cursor cursor = store.newCursor();
+            PacketStore.Row row = new PacketStore.Row();
+            while (!done.get() || cursor.getPosition() < store.getWriteSequence()) {
+                while (cursor.next(row)) {
+                    // 各列都由序号推导，读到的行必须彼此一致
+                    if (row.getInfo() != (int) row.getSequence() || row.getTimestamp() != 1000 + row.getSequence()) {
+                        torn.set(true);
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 500_000; i++) {
+            append(store, i);
+        }
+        done.set(true);
+        reader.join(10_000);
+        assertFalse(reader.isAlive());
+        assertFalse(torn.get());
+    }
+}
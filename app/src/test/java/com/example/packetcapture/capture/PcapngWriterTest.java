@@ -0,0 +1,340 @@
+package com.example.packetcapture.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PcapngWriterTest {
+    private static final long T = 1_700_000_000_000L;
+    private static final int HEADER_LENGTH = 48;
+    // 与PcapngWriter中的暂存环大小相同
+    private static final int RING_SIZE = 8 << 20;
+
+    private File directory;
+    private PcapngWriter writer;
+
+    /**
+     * 从分段文件中解析出的Enhanced Packet Block
+     */
+    private static final class Block {
+        int offset;
+        long micros;
+        int captured;
+        int length;
+        byte[] data;
+        int flags;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("pcapng").toFile();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (writer != null) {
+            writer.close();
+            writer.awaitTermination(10000);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * 构造IPv4的UDP数据包，源端口为序号，其余字节由序号决定
+     */
+    private static ByteBuffer packet(int sequence, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (sequence * 31 + i);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (length >= 28) {
+            buffer.put(0, (byte) 0x45);
+            buffer.putShort(2, (short) length);
+            buffer.putShort(6, (short) 0);
+            buffer.put(8, (byte) 64);
+            buffer.put(9, (byte) PacketDecoder.PROTOCOL_UDP);
+            buffer.putInt(12, 0x0A000002);
+            buffer.putInt(16, 0x01020304);
+            buffer.putShort(20, (short) sequence);
+            buffer.putShort(22, (short) 53);
+            buffer.putShort(24, (short) (length - 20));
+        }
+        return buffer;
+    }
+
+    /**
+     * 暂存环已满时等刷写线程腾出空间再重试
+     */
+    private void record(int sequence, int length, boolean outbound) throws InterruptedException {
+        ByteBuffer data = packet(sequence, length);
+        while (!writer.record(data, length, T + sequence, outbound)) {
+            assertFalse(writer.isFailed());
+            Thread.sleep(1);
+        }
+    }
+
+    private void finish() throws InterruptedException {
+        writer.close();
+        assertTrue(writer.awaitTermination(10000));
+        assertFalse(writer.isFailed());
+    }
+
+    /**
+     * 按pcapng格式解析分段，检查节头部、接口描述和每个数据块的结构
+     */
+    private static List<Block> parse(File segment, int snapLength) throws IOException {
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        assertArrayEquals(PcapngWriter.fileHeader(snapLength), Arrays.copyOf(bytes, HEADER_LENGTH));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        List<Block> blocks = new ArrayList<>();
+        int offset = HEADER_LENGTH;
+        while (offset < bytes.length) {
+            assertEquals(6, buffer.getInt(offset));
+            int blockLength = buffer.getInt(offset + 4);
+            assertEquals(0, blockLength % 4);
+            assertTrue(offset + blockLength <= bytes.length);
+            assertEquals(blockLength, buffer.getInt(offset + blockLength - 4));
+            assertEquals(0, buffer.getInt(offset + 8));
+
+            Block block = new Block();
+            block.offset = offset;
+            block.micros = (long) buffer.getInt(offset + 12) << 32 | (buffer.getInt(offset + 16) & 0xFFFFFFFFL);
+            block.captured = buffer.getInt(offset + 20);
+            block.length = buffer.getInt(offset + 24);
+            block.data = Arrays.copyOfRange(bytes, offset + 28, offset + 28 + block.captured);
+            int padded = (block.captured + 3) & ~3;
+            for (int i = block.captured; i < padded; i++) {
+                assertEquals(0, bytes[offset + 28 + i]);
+            }
+            assertEquals(44 + padded, blockLength);
+            int options = offset + 28 + padded;
+            // epb_flags选项：代码2、长度4
+            assertEquals(2 | 4 << 16, buffer.getInt(options));
+            block.flags = buffer.getInt(options + 4);
+            assertEquals(0, buffer.getInt(options + 8));
+            blocks.add(block);
+            offset += blockLength;
+        }
+        assertEquals(bytes.length, offset);
+        return blocks;
+    }
+
+    private static void assertPacket(int sequence, int length, Block block) {
+        assertEquals(length, block.length);
+        assertArrayEquals(Arrays.copyOf(packet(sequence, length).array(), block.captured), block.data);
+        assertEquals((T + sequence) * 1000, block.micros);
+    }
+
+    @Test
+    public void fileHeaderLayout() {
+        ByteBuffer header = ByteBuffer.wrap(PcapngWriter.fileHeader(1500)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(HEADER_LENGTH, header.capacity());
+        // 节头部块
+        assertEquals(0x0A0D0D0A, header.getInt(0));
+        assertEquals(28, header.getInt(4));
+        assertEquals(0x1A2B3C4D, header.getInt(8));
+        assertEquals(1, header.getShort(12));
+        assertEquals(0, header.getShort(14));
+        assertEquals(-1L, header.getLong(16));
+        assertEquals(28, header.getInt(24));
+        // 接口描述块，LINKTYPE_RAW
+        assertEquals(1, header.getInt(28));
+        assertEquals(20, header.getInt(32));
+        assertEquals(101, header.getShort(36));
+        assertEquals(0, header.getShort(38));
+        assertEquals(1500, header.getInt(40));
+        assertEquals(20, header.getInt(44));
+        // 写入的字节序标记按小端存放
+        assertEquals(0x4D, PcapngWriter.fileHeader(0)[8]);
+    }
+
+    @Test
+    public void snapLengthTruncatesAndPads() throws Exception {
+        writer = new PcapngWriter(directory, PcapngWriter.MIN_SEGMENT_SIZE, 0, 101);
+        writer.start();
+        record(0, 200, true);
+        record(1, 101, false);
+        record(2, 5, false);
+        record(3, 104, true);
+        finish();
+
+        List<File> segments = writer.getSegments();
+        assertEquals(1, segments.size());
+        List<Block> blocks = parse(segments.get(0), 101);
+        assertEquals(4, blocks.size());
+        int[] captured = {101, 101, 5, 101};
+        int[] lengths = {200, 101, 5, 104};
+        int[] flags = {2, 1, 1, 2};
+        for (int i = 0; i < blocks.size(); i++) {
+            assertEquals(captured[i], blocks.get(i).captured);
+            assertEquals(flags[i], blocks.get(i).flags);
+            assertPacket(i, lengths[i], blocks.get(i));
+        }
+        assertEquals(4, writer.getRecordedCount());
+        assertEquals(0, writer.getDroppedCount());
+    }
+
+    @Test
+    public void rotatesBySize() throws Exception {
+        long segmentSize = PcapngWriter.MIN_SEGMENT_SIZE;
+        int length = 60000;
+        int count = 40;
+        writer = new PcapngWriter(directory, segmentSize, 0, PcapngWriter.DEFAULT_SNAP_LENGTH);
+        writer.start();
+        for (int i = 0; i < count; i++) {
+            record(i, length, i % 2 == 0);
+        }
+        finish();
+
+        List<File> segments = writer.getSegments();
+        int blockLength = 44 + length;
+        int perSegment = (int) ((segmentSize - HEADER_LENGTH) / blockLength);
+        assertEquals((count + perSegment - 1) / perSegment, segments.size());
+        int sequence = 0;
+        for (int s = 0; s < segments.size(); s++) {
+            File segment = segments.get(s);
+            assertTrue(segment.getName().endsWith(String.format("_%03d.pcapng", s + 1)));
+            // 关闭时截断到实际长度
+            assertTrue(segment.length() <= segmentSize);
+            List<Block> blocks = parse(segment, PcapngWriter.DEFAULT_SNAP_LENGTH);
+            if (s < segments.size() - 1) {
+                // 只有放不下下一个数据块时才换分段
+                assertEquals(perSegment, blocks.size());
+                assertTrue(segment.length() + blockLength > segmentSize);
+            }
+            for (Block block : blocks) {
+                assertEquals(sequence % 2 == 0 ? 2 : 1, block.flags);
+                assertPacket(sequence++, length, block);
+            }
+        }
+        assertEquals(count, sequence);
+    }
+
+    @Test
+    public void rotatesByTime() throws Exception {
+        writer = new PcapngWriter(directory, PcapngWriter.MIN_SEGMENT_SIZE, 50, PcapngWriter.DEFAULT_SNAP_LENGTH);
+        writer.start();
+        record(0, 100, true);
+        record(1, 100, true);
+        // 等第一批数据写入第一个分段后再超过分段时长
+        long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getSegments().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(200);
+        record(2, 100, false);
+        finish();
+
+        List<File> segments = writer.getSegments();
+        assertEquals(2, segments.size());
+        List<Block> first = parse(segments.get(0), PcapngWriter.DEFAULT_SNAP_LENGTH);
+        List<Block> second = parse(segments.get(1), PcapngWriter.DEFAULT_SNAP_LENGTH);
+        assertEquals(2, first.size());
+        assertPacket(0, 100, first.get(0));
+        assertPacket(1, 100, first.get(1));
+        assertEquals(1, second.size());
+        assertPacket(2, 100, second.get(0));
+    }
+
+    @Test
+    public void blocksWrappingTheRingAreWrittenAndIndexedIntact() throws Exception {
+        int length = 65000;
+        int blockLength = 44 + length;
+        // 前wrapAt个数据块之后插入一个较短的块，使下一个块从暂存环末尾前12字节开始，块头跨越末尾；
+        // 之后的数据块按固定长度继续，第二圈末尾的数据块在数据部分跨越
+        int wrapAt = RING_SIZE / blockLength;
+        int shortLength = RING_SIZE - 12 - wrapAt * blockLength - 44;
+        assertTrue(shortLength > 28 && shortLength % 4 == 0);
+        int count = 300;
+        writer = new PcapngWriter(directory, 4 * PcapngWriter.MIN_SEGMENT_SIZE, 0, PcapngWriter.DEFAULT_SNAP_LENGTH);
+        writer.start();
+        for (int i = 0; i < count; i++) {
+            record(i, i == wrapAt ? shortLength : length, i % 3 != 0);
+        }
+        finish();
+        assertEquals(count, writer.getRecordedCount());
+
+        List<List<Block>> parsed = new ArrayList<>();
+        int sequence = 0;
+        for (File segment : writer.getSegments()) {
+            List<Block> blocks = parse(segment, PcapngWriter.DEFAULT_SNAP_LENGTH);
+            parsed.add(blocks);
+            for (Block block : blocks) {
+                assertEquals(sequence % 3 != 0 ? 2 : 1, block.flags);
+                assertPacket(sequence, sequence == wrapAt ? shortLength : length, block);
+                sequence++;
+            }
+        }
+        assertEquals(count, sequence);
+
+        // 索引中的每条记录都指向对应的数据块，字段由跨越暂存环末尾的数据正确解码
+        File[] records = directory.listFiles((dir, name) -> name.endsWith(CaptureIndex.RECORDS_SUFFIX));
+        assertNotNull(records);
+        assertEquals(1, records.length);
+        CaptureIndex index = CaptureIndex.open(records[0]);
+        try {
+            assertEquals(count, index.size());
+            final List<int[]> visited = new ArrayList<>();
+            index.query(new CaptureIndex.Query(), (row, inbound, segment, offset) -> {
+                int i = (int) row.getSequence();
+                assertEquals(i, row.getSourcePort());
+                assertEquals(53, row.getDestinationPort());
+                assertEquals(T + i, row.getTimestamp());
+                assertEquals(i == wrapAt ? shortLength : length, row.getLength());
+                assertEquals(i % 3 == 0, inbound);
+                visited.add(new int[]{i, segment, offset});
+                return true;
+            });
+            assertEquals(count, visited.size());
+            for (int[] entry : visited) {
+                Block block = findBlock(parsed, entry[0]);
+                assertEquals(block.offset, entry[2]);
+                assertEquals(segmentOf(parsed, entry[0]) + 1, entry[1]);
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    private static Block findBlock(List<List<Block>> parsed, int sequence) {
+        for (List<Block> blocks : parsed) {
+            if (sequence < blocks.size()) {
+                return blocks.get(sequence);
+            }
+            sequence -= blocks.size();
+        }
+        throw new AssertionError("找不到数据块: " + sequence);
+    }
+
+    private static int segmentOf(List<List<Block>> parsed, int sequence) {
+        for (int s = 0; s < parsed.size(); s++) {
+            if (sequence < parsed.get(s).size()) {
+                return s;
+            }
+            sequence -= parsed.get(s).size();
+        }
+        throw new AssertionError("找不到数据块: " + sequence);
+    }
+}
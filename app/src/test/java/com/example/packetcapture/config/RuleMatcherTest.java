@@ -0,0 +1,185 @@
+package com.example.packetcapture.config;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RuleMatcherTest {
+    // 每种可识别的写法，以及几条必须留给正则的写法
+    private static final String[] RULES = {
+            // 首尾锚点
+            "^https://example\\.com/api/.*$",
+            "^http://example\\.com/login$",
+            "https://example\\.com/price\\$",
+            // 协议分组
+            "https?://example\\.com/.*",
+            "(http|https)://example\\.com/a",
+            "(https|http)://example\\.com/b",
+            "(?:http|https)://example\\.com(/.*)?",
+            "(?:https|http)://example\\.com(?:\\/.*)?",
+            // 确定主机：完整路径和路径前缀
+            "https://example\\.com/exact",
+            "https://example\\.com/static/.*",
+            "https://example\\.com\\/.*",
+            "http://example\\.com(\\/.*)?",
+            // 带端口的主机
+            "https://example\\.com:8443/.*",
+            "http://example\\.com:8080/health",
+            // 可选子域名：主机本身和子域名都匹配
+            "https?://([^/]+\\.)?example\\.com/.*",
+            "https?://(?:[^/]+\\.)?example\\.com(/.*)?",
+            "https://([^\\/]+\\.)?cdn\\.example\\.net/img/.*",
+            "https://(?:[^\\/]+\\.)?example\\.org/",
+            // 必须有子域名
+            "https://[^/]+\\.example\\.com/.*",
+            "http://[^\\/]+\\.example\\.com/v1",
+            // 只有字面前缀
+            "https?://example.*",
+            "http://api\\.example\\.com.*",
+            "https://exa.*",
+            "https://example\\.com:.*",
+            // 留给正则
+            "https://example.com/.*",
+            "https://examples?\\.com/.*",
+            "https://(www|api)\\.example\\.com/v[0-9]+/.*",
+            ".*\\.png",
+            "https?://[^/]+/favicon\\.ico",
+            "https://\\.example\\.com/.*",
+    };
+
+    private static final String[] URLS = {
+            "http://example.com",
+            "https://example.com",
+            "http://example.com/",
+            "https://example.com/",
+            "https://example.com/a",
+            "http://example.com/a",
+            "https://example.com/b",
+            "https://example.com/api/v1",
+            "https://example.com/api",
+            "http://example.com/login",
+            "http://example.com/login/",
+            "https://example.com/price$",
+            "https://example.com/exact",
+            "https://example.com/exactly",
+            "https://example.com/static/app.js",
+            "https://example.com/static",
+            "https://example.com:8443/x",
+            "https://example.com:8443",
+            "http://example.com:8080/health",
+            "http://example.com:8080/healthz",
+            "https://example.com?q=1",
+            "https://www.example.com/",
+            "https://a.b.example.com/x",
+            "http://api.example.com/v1",
+            "http://api.example.com:81/v1",
+            "https://api.example.com/v2/x.png",
+            "https://www.example.com/v10/list",
+            "https://.example.com/x",
+            "https://notexample.com/",
+            "https://example.com.evil.net/",
+            "https://examples.com/",
+            "https://exampleXcom/",
+            "https://exam/",
+            "https://cdn.example.net/img/a.png",
+            "https://eu.cdn.example.net/img/a",
+            "https://xcdn.example.net/img/a",
+            "https://example.org/",
+            "https://m.example.org/",
+            "https://m.example.org/x",
+            "https://host/favicon.ico",
+            "ftp://example.com/",
+            "HTTPS://example.com/",
+            "",
+    };
+
+    private static RewriteConfig.RewriteRule rule(String url) {
+        return new RewriteConfig.RewriteRule(url, true, url, "body");
+    }
+
+    private static List<RewriteConfig.RewriteRule> expected(List<RewriteConfig.RewriteRule> rules, String url) {
+        List<RewriteConfig.RewriteRule> result = new ArrayList<>();
+        for (RewriteConfig.RewriteRule rule : rules) {
+            if (Pattern.matches(rule.getUrl(), url)) {
+                result.add(rule);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void eachShapeAgreesWithPatternMatches() {
+        for (String regex : RULES) {
+            List<RewriteConfig.RewriteRule> rules = Collections.singletonList(rule(regex));
+            RuleMatcher matcher = RuleMatcher.compile(rules);
+            for (String url : URLS) {
+                assertEquals(regex + " / " + url, expected(rules, url), matcher.match(url));
+                assertEquals(regex + " / " + url, Pattern.matches(regex, url), matcher.matchesAny(url));
+            }
+        }
+    }
+
+    @Test
+    public void allRulesTogetherMatchInConfigOrder() {
+        List<RewriteConfig.RewriteRule> rules = new ArrayList<>();
+        for (String regex : RULES) {
+            rules.add(rule(regex));
+        }
+        RuleMatcher matcher = RuleMatcher.compile(rules);
+        assertEquals(RULES.length, matcher.size());
+        for (String url : URLS) {
+            assertEquals(url, expected(rules, url), matcher.match(url));
+        }
+    }
+
+    @Test
+    public void reversedConfigOrderReversesResult() {
+        List<RewriteConfig.RewriteRule> rules = new ArrayList<>();
+        for (String regex : RULES) {
+            rules.add(rule(regex));
+        }
+        Collections.reverse(rules);
+        RuleMatcher matcher = RuleMatcher.compile(rules);
+        for (String url : URLS) {
+            assertEquals(url, expected(rules, url), matcher.match(url));
+        }
+    }
+
+    @Test
+    public void sameShapeRulesKeepPriorityAcrossIndexes() {
+        RewriteConfig.RewriteRule fallback = rule(".*");
+        RewriteConfig.RewriteRule prefix = rule("https://example\\.com/.*");
+        RewriteConfig.RewriteRule exact = rule("https://example\\.com/a");
+        RewriteConfig.RewriteRule suffix = rule("https://([^/]+\\.)?example\\.com/.*");
+        RewriteConfig.RewriteRule literal = rule("https://exa.*");
+        RuleMatcher matcher = RuleMatcher.compile(Arrays.asList(fallback, prefix, exact, suffix, literal));
+        assertEquals(Arrays.asList(fallback, prefix, exact, suffix, literal), matcher.match("https://example.com/a"));
+        assertEquals(Arrays.asList(fallback, prefix, suffix, literal), matcher.match("https://example.com/b"));
+        assertEquals(Collections.singletonList(fallback), matcher.match("http://example.com/a"));
+    }
+
+    @Test
+    public void disabledAndInvalidRulesAreSkipped() {
+        RewriteConfig.RewriteRule disabled = new RewriteConfig.RewriteRule("off", false, "https://example\\.com/.*", "body");
+        RewriteConfig.RewriteRule invalid = rule("https://example\\.com/(");
+        RewriteConfig.RewriteRule valid = rule("https://example\\.com/.*");
+        RuleMatcher matcher = RuleMatcher.compile(Arrays.asList(disabled, invalid, valid));
+        assertEquals(1, matcher.size());
+        assertEquals(Collections.singletonList(valid), matcher.match("https://example.com/x"));
+    }
+
+    @Test
+    public void emptyMatcherMatchesNothing() {
+        RuleMatcher matcher = RuleMatcher.compile(Collections.<RewriteConfig.RewriteRule>emptyList());
+        assertTrue(matcher.match("https://example.com/").isEmpty());
+        assertFalse(matcher.matchesAny("https://example.com/"));
+    }
+}
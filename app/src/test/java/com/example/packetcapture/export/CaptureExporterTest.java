@@ -0,0 +1,135 @@
+package com.example.packetcapture.export;
+
+import com.example.packetcapture.capture.PacketDecoder;
+import com.example.packetcapture.capture.PacketStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureExporterTest {
+    private static final int RECORDS = CaptureExporter.CHUNK_SIZE * 20 + 7;
+
+    private File output;
+    private PacketStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        output = Files.createTempFile("export", ".csv").toFile();
+        store = new PacketStore(RECORDS * 2);
+        for (int i = 0; i < RECORDS; i++) {
+            store.append(4, PacketDecoder.PROTOCOL_TCP, 0, 0x0A000002L, 0, 0x01020304L,
+                    40000, 443, 0, 0, 1_000_000L + i, 60, 0);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        output.delete();
+    }
+
+    /**
+     * 记录最终回调的结果
+     */
+    private static class Result implements CaptureExporter.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> outcome = new AtomicReference<>();
+        volatile long exported;
+        volatile CaptureExporter cancelOnProgress;
+        volatile boolean badTotal;
+
+        @Override
+        public void onProgress(long exported, long total) {
+            if (total <= 0 || total < exported) {
+                badTotal = true;
+            }
+            if (cancelOnProgress != null) {
+                cancelOnProgress.cancel();
+            }
+        }
+
+        @Override
+        public void onFinished(File file, long exported) {
+            this.exported = exported;
+            finish("finished");
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            finish("failed: " + e);
+        }
+
+        @Override
+        public void onCancelled() {
+            finish("cancelled");
+        }
+
+        private void finish(String value) {
+            outcome.set(value);
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void exportsAllRecordsInOrder() throws Exception {
+        CaptureExporter exporter = new CaptureExporter(ExportSource.of(store, null), ExportFormat.CSV, output);
+        Result result = new Result();
+        exporter.setListener(result);
+        exporter.start();
+        assertTrue(result.done.await(30, TimeUnit.SECONDS));
+        assertEquals("finished", result.outcome.get());
+        assertEquals(RECORDS, result.exported);
+        assertTrue(exporter.awaitTermination(5000));
+        // 表头一行加每条记录一行
+        assertEquals(RECORDS + 1, Files.readAllLines(output.toPath()).size());
+    }
+
+    @Test
+    public void cancelReportsCancelledAndDeletesFile() throws Exception {
+        CaptureExporter exporter = new CaptureExporter(ExportSource.of(store, null), ExportFormat.CSV, output);
+        Result result = new Result();
+        result.cancelOnProgress = exporter;
+        exporter.setListener(result);
+        exporter.start();
+        assertTrue(result.done.await(30, TimeUnit.SECONDS));
+        assertEquals("cancelled", result.outcome.get());
+        assertTrue(exporter.isCancelled());
+        assertTrue(exporter.awaitTermination(5000));
+        assertFalse(output.exists());
+    }
+
+    @Test
+    public void progressTotalIsPositiveWhenSourceUnderestimates() throws Exception {
+        final ExportSource store = ExportSource.of(this.store, null);
+        ExportSource source = new ExportSource() {
+            @Override
+            public long estimateSize() {
+                return 0;
+            }
+
+            @Override
+            public void read(Sink sink) throws IOException {
+                store.read(sink);
+            }
+        };
+        CaptureExporter exporter = new CaptureExporter(source, ExportFormat.JSON_LINES, output);
+        Result result = new Result();
+        exporter.setListener(result);
+        exporter.start();
+        assertTrue(result.done.await(30, TimeUnit.SECONDS));
+        assertEquals("finished", result.outcome.get());
+        assertFalse(result.badTotal);
+        assertEquals(RECORDS, Files.readAllLines(output.toPath()).size());
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.packetcapture.proxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HpackTest {
+    private static byte[] hex(String text) {
+        String digits = text.replaceAll("\\s", "");
+        byte[] data = new byte[digits.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(digits.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+
+    private static HttpHead decode(Hpack.Decoder decoder, String block) throws Hpack.CompressionException {
+        byte[] data = hex(block);
+        return decoder.decode(data, 0, data.length);
+    }
+
+    private static void assertHeaders(HttpHead headers, String... expected) {
+        assertEquals(expected.length / 2, headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(expected[i * 2], headers.getName(i));
+            assertEquals(expected[i * 2 + 1], headers.getValue(i));
+        }
+    }
+
+    @Test
+    public void encodesIntegersAsInRfcExamples() {
+        // RFC 7541 C.1
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.writeInt(out, 0, 5, 10);
+        Hpack.writeInt(out, 0, 5, 1337);
+        Hpack.writeInt(out, 0, 8, 42);
+        assertArrayEquals(hex("0a 1f9a0a 2a"), out.toByteArray());
+    }
+
+    @Test
+    public void decodesRequestsWithoutHuffman() throws Hpack.CompressionException {
+        // RFC 7541 C.3
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertHeaders(decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertHeaders(decode(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+    }
+
+    @Test
+    public void decodesRequestsWithHuffman() throws Hpack.CompressionException {
+        // RFC 7541 C.4
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertHeaders(decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertHeaders(decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertHeaders(decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+    }
+
+    @Test
+    public void decodesResponsesWithHuffmanAndEviction() throws Hpack.CompressionException {
+        // RFC 7541 C.6，动态表大小为256，第二、三个响应都会淘汰旧表项
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertHeaders(decode(decoder, "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81"
+                        + "66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"),
+                ":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com");
+        assertHeaders(decode(decoder, "4883 640e ffc1 c0bf"),
+                ":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                "location", "https://www.example.com");
+        assertHeaders(decode(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a"
+                        + "839b d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1"
+                        + "ab27 0fb5 291f 9587 3160 65c0 03ed 4ee5 b106 3d50 07"),
+                ":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                "location", "https://www.example.com", "content-encoding", "gzip",
+                "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+    }
+
+    @Test
+    public void encoderOutputDecodes() throws Hpack.CompressionException {
+        HttpHead headers = new HttpHead(null, null, null);
+        headers.add(":method", "GET");
+        headers.add(":path", "/search?q=1");
+        headers.add("Accept-Encoding", "gzip, deflate");
+        headers.add("authorization", "Bearer token");
+        headers.add("x-custom", "value");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Hpack.Encoder().encode(headers, out);
+        byte[] block = out.toByteArray();
+        assertHeaders(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(block, 0, block.length),
+                ":method", "GET", ":path", "/search?q=1", "accept-encoding", "gzip, deflate",
+                "authorization", "Bearer token", "x-custom", "value");
+    }
+
+    @Test
+    public void tableSizeUpdateEvictsEntries() throws Hpack.CompressionException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65");
+        assertHeaders(decode(decoder, "be"), "custom-key", "custom-value");
+        // 表大小改为0会清空动态表，之后再引用62号表项就是越界
+        try {
+            decode(decoder, "20 be");
+        } catch (Hpack.CompressionException expected) {
+            return;
+        }
+        throw new AssertionError("动态表没有被清空");
+    }
+
+    @Test(expected = Hpack.CompressionException.class)
+    public void rejectsTableSizeAboveLimit() throws Hpack.CompressionException {
+        decode(new Hpack.Decoder(256), "3fe1 1f");
+    }
+
+    @Test(expected = Hpack.CompressionException.class)
+    public void rejectsTableSizeUpdateAfterHeader() throws Hpack.CompressionException {
+        decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "82 20");
+    }
+
+    @Test(expected = Hpack.CompressionException.class)
+    public void rejectsInvalidHuffmanPadding() throws Hpack.CompressionException {
+        // 值"a"的Huffman编码00011后面填充了0而不是EOS前缀
+        decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "0f 1f 81 18");
+    }
+
+    @Test(expected = Hpack.CompressionException.class)
+    public void rejectsIndexBeyondTables() throws Hpack.CompressionException {
+        decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "be");
+    }
+
+    @Test(expected = Hpack.CompressionException.class)
+    public void rejectsTruncatedString() throws Hpack.CompressionException {
+        decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "0f 1f 05 6162");
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.packetcapture.proxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpParserTest {
+    private static final String PIPELINED = "GET /a HTTP/1.1\r\nHost: example.com\r\n\r\n"
+            + "POST /b HTTP/1.1\r\nHost: example.com\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nX-Checksum: abc\r\n\r\n"
+            + "PUT /c HTTP/1.1\r\nContent-Length: 3\r\n\r\nxyz";
+
+    /**
+     * 解析过程中收集到的事件
+     */
+    private static final class Messages {
+        final List<HttpHead> heads = new ArrayList<>();
+        final List<String> bodies = new ArrayList<>();
+        final List<HttpHead> trailers = new ArrayList<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        void feed(HttpParser parser, ByteBuffer buffer) throws HttpParser.HttpParseException {
+            while (true) {
+                int event = parser.parse(buffer);
+                if (event == HttpParser.NEED_MORE) {
+                    assertFalse("NEED_MORE时应已消耗全部数据", buffer.hasRemaining());
+                    return;
+                }
+                if (event == HttpParser.HEAD) {
+                    heads.add(parser.getHead());
+                } else if (event == HttpParser.BODY) {
+                    body.write(buffer.array(), buffer.arrayOffset() + parser.getBodyOffset(), parser.getBodyLength());
+                } else if (event == HttpParser.COMPLETE) {
+                    bodies.add(new String(body.toByteArray(), StandardCharsets.ISO_8859_1));
+                    trailers.add(parser.getTrailers());
+                    body.reset();
+                }
+            }
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static Messages parse(HttpParser parser, byte[] data, int... splits) throws HttpParser.HttpParseException {
+        Messages messages = new Messages();
+        int from = 0;
+        for (int split : splits) {
+            messages.feed(parser, ByteBuffer.wrap(data, from, split - from).slice());
+            from = split;
+        }
+        messages.feed(parser, ByteBuffer.wrap(data, from, data.length - from).slice());
+        return messages;
+    }
+
+    private static void assertPipelined(Messages messages) {
+        assertEquals(3, messages.heads.size());
+        assertEquals("GET", messages.heads.get(0).getMethod());
+        assertEquals("/a", messages.heads.get(0).getTarget());
+        assertEquals("POST", messages.heads.get(1).getMethod());
+        assertEquals("PUT", messages.heads.get(2).getMethod());
+        assertEquals(3, messages.bodies.size());
+        assertEquals("", messages.bodies.get(0));
+        assertEquals("hello world", messages.bodies.get(1));
+        assertEquals("xyz", messages.bodies.get(2));
+        assertNull(messages.trailers.get(0));
+        assertEquals("abc", messages.trailers.get(1).get("X-Checksum"));
+    }
+
+    @Test
+    public void pipelinedRequestsInOneBuffer() throws Exception {
+        HttpParser parser = new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE);
+        assertPipelined(parse(parser, bytes(PIPELINED)));
+        assertTrue(parser.isIdle());
+    }
+
+    @Test
+    public void splitAtEveryByteBoundary() throws Exception {
+        byte[] data = bytes(PIPELINED);
+        for (int split = 0; split <= data.length; split++) {
+            assertPipelined(parse(new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE), data, split));
+        }
+    }
+
+    @Test
+    public void oneByteAtATime() throws Exception {
+        byte[] data = bytes(PIPELINED);
+        int[] splits = new int[data.length - 1];
+        for (int i = 0; i < splits.length; i++) {
+            splits[i] = i + 1;
+        }
+        assertPipelined(parse(new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE), data, splits));
+    }
+
+    @Test
+    public void chunkedBodyWithExtensionsAndTrailers() throws Exception {
+        HttpParser parser = new HttpParser(false, HttpHead.DEFAULT_MAX_HEAD_SIZE);
+        Messages messages = parse(parser, bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, chunked\r\n"
+                + "Content-Length: 99\r\n\r\n"
+                + "A ; ext=\"quoted;value\"\r\n0123456789\r\n1;a;b\r\n!\r\n0 ;last\r\n"
+                + "Expires: never\r\nX-Sum: 11\r\n\r\n"));
+        assertEquals(1, messages.bodies.size());
+        assertEquals("0123456789!", messages.bodies.get(0));
+        // 分块编码优先，Content-Length被去掉
+        assertNull(messages.heads.get(0).get("Content-Length"));
+        assertEquals("never", messages.trailers.get(0).get("Expires"));
+        assertEquals("11", messages.trailers.get(0).get("X-Sum"));
+    }
+
+    @Test(expected = HttpParser.HttpParseException.class)
+    public void invalidChunkSizeIsRejected() throws Exception {
+        parse(new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE),
+                bytes("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n"));
+    }
+
+    @Test(expected = HttpParser.HttpParseException.class)
+    public void conflictingContentLengthIsRejected() throws Exception {
+        parse(new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE),
+                bytes("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\nhello!"));
+    }
+
+    @Test
+    public void repeatedEqualContentLengthIsAccepted() throws Exception {
+        Messages messages = parse(new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE),
+                bytes("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello"));
+        assertEquals("hello", messages.bodies.get(0));
+    }
+
+    @Test(expected = HttpParser.HttpParseException.class)
+    public void nonNumericContentLengthIsRejected() throws Exception {
+        parse(new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE),
+                bytes("POST / HTTP/1.1\r\nContent-Length: +5\r\n\r\nhello"));
+    }
+
+    @Test
+    public void headerLargerThanLimitIsRejected() throws Exception {
+        StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (request.length() < 2000) {
+            request.append("X-Padding: 0123456789\r\n");
+        }
+        request.append("\r\n");
+        byte[] data = bytes(request.toString());
+
+        HttpParser small = new HttpParser(true, 1024);
+        try {
+            parse(small, data);
+            fail("应当超过头部上限");
+        } catch (HttpParser.HeadTooLargeException expected) {
+            // 超过上限
+        }
+        Messages messages = parse(new HttpParser(true, data.length), data);
+        assertEquals(1, messages.heads.size());
+    }
+
+    @Test(expected = HttpParser.HeadTooLargeException.class)
+    public void limitBelowInitialBufferIsEnforced() throws Exception {
+        parse(new HttpParser(true, 64),
+                bytes("GET / HTTP/1.1\r\nHost: example.com\r\nUser-Agent: a-rather-long-user-agent\r\n\r\n"));
+    }
+
+    @Test
+    public void bareLfLineEndings() throws Exception {
+        Messages messages = parse(new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE),
+                bytes("POST /lf HTTP/1.1\nHost: example.com\nTransfer-Encoding: chunked\n\n"
+                        + "3\nabc\n0\nX-End: 1\n\n"
+                        + "GET /next HTTP/1.1\nHost: example.com\n\n"));
+        assertEquals(2, messages.heads.size());
+        assertEquals("example.com", messages.heads.get(0).get("Host"));
+        assertEquals("abc", messages.bodies.get(0));
+        assertEquals("1", messages.trailers.get(0).get("X-End"));
+        assertEquals("/next", messages.heads.get(1).getTarget());
+    }
+
+    @Test
+    public void responseWithoutLengthEndsAtEof() throws Exception {
+        HttpParser parser = new HttpParser(false, HttpHead.DEFAULT_MAX_HEAD_SIZE);
+        Messages messages = parse(parser, bytes("HTTP/1.0 200 OK\r\n\r\nstreamed body"));
+        assertTrue(parser.isUntilEof());
+        assertEquals(HttpParser.COMPLETE, parser.finish());
+        assertEquals("streamed body", new String(messages.body.toByteArray(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void responseToHeadHasNoBody() throws Exception {
+        HttpParser parser = new HttpParser(false, HttpHead.DEFAULT_MAX_HEAD_SIZE);
+        parser.setRequestMethod("HEAD");
+        Messages messages = parse(parser, bytes("HTTP/1.1 200 OK\r\nContent-Length: 1000\r\n\r\n"));
+        assertEquals(1, messages.bodies.size());
+        assertEquals("", messages.bodies.get(0));
+    }
+
+    @Test(expected = HttpParser.HttpParseException.class)
+    public void truncatedBodyFailsAtEof() throws Exception {
+        HttpParser parser = new HttpParser(true, HttpHead.DEFAULT_MAX_HEAD_SIZE);
+        parse(parser, bytes("POST / HTTP/1.1\r\nContent-Length: 10\r\n\r\nabc"));
+        parser.finish();
+    }
+}
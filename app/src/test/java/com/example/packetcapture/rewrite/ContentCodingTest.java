@@ -0,0 +1,211 @@
+package com.example.packetcapture.rewrite;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ContentCodingTest {
+    private static final byte[] TEXT = sampleText();
+
+    private static byte[] sampleText() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append("第").append(i).append("行 hello gzip ").append(i * 7919 % 1000).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] run(BodyStage stage, byte[] data, int chunkSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            for (int i = 0; i < data.length; i += chunkSize) {
+                stage.write(data, i, Math.min(chunkSize, data.length - i), out);
+            }
+            stage.finish(out);
+        } finally {
+            stage.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream stream = new GZIPOutputStream(out);
+        stream.write(data);
+        stream.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] rawDeflate(byte[] data, boolean nowrap) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream stream = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+        stream.write(data);
+        stream.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * 带全部可选字段的gzip成员：FEXTRA（长度超过255）、FNAME、FCOMMENT、FHCRC
+     */
+    private static byte[] gzipWithOptionalFields(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{0x1f, (byte) 0x8b, 8, 2 | 4 | 8 | 16, 0, 0, 0, 0, 0, 3});
+        int extraLength = 300;
+        out.write(extraLength & 0xff);
+        out.write(extraLength >>> 8);
+        for (int i = 0; i < extraLength; i++) {
+            out.write(i == 0 ? 0 : i);
+        }
+        out.write("name.txt".getBytes(StandardCharsets.ISO_8859_1));
+        out.write(0);
+        out.write("comment".getBytes(StandardCharsets.ISO_8859_1));
+        out.write(0);
+        out.write(new byte[]{0x12, 0x34});
+        out.write(rawDeflate(data, true));
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, data.length);
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        for (int i = 0; i < 4; i++) {
+            out.write(value >>> (8 * i) & 0xff);
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    @Test
+    public void decodesGzipAtEveryChunkSize() throws IOException {
+        byte[] compressed = gzip(TEXT);
+        for (int chunk = 1; chunk <= compressed.length + 1; chunk += chunk < 32 ? 1 : 97) {
+            assertArrayEquals("chunk " + chunk, TEXT, run(ContentCoding.decoder(ContentCoding.GZIP), compressed, chunk));
+        }
+    }
+
+    @Test
+    public void decodesOptionalHeaderFieldsSplitAtEveryBoundary() throws IOException {
+        byte[] compressed = gzipWithOptionalFields(TEXT);
+        for (int chunk = 1; chunk <= 400; chunk++) {
+            assertArrayEquals("chunk " + chunk, TEXT, run(ContentCoding.decoder(ContentCoding.GZIP), compressed, chunk));
+        }
+    }
+
+    @Test
+    public void decodesConcatenatedMembers() throws IOException {
+        byte[] second = "second member".getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = concat(gzipWithOptionalFields(TEXT), gzip(second));
+        for (int chunk = 1; chunk <= 64; chunk++) {
+            assertArrayEquals("chunk " + chunk, concat(TEXT, second),
+                    run(ContentCoding.decoder(ContentCoding.GZIP), compressed, chunk));
+        }
+    }
+
+    @Test
+    public void decodesZlibAndRawDeflate() throws IOException {
+        for (boolean nowrap : new boolean[]{false, true}) {
+            byte[] compressed = rawDeflate(TEXT, nowrap);
+            for (int chunk = 1; chunk <= 8; chunk++) {
+                assertArrayEquals("nowrap " + nowrap + " chunk " + chunk, TEXT,
+                        run(ContentCoding.decoder(ContentCoding.DEFLATE), compressed, chunk));
+            }
+        }
+    }
+
+    @Test
+    public void encoderOutputIsStandardGzip() throws IOException {
+        byte[] compressed = run(ContentCoding.encoder(ContentCoding.GZIP), TEXT, 100);
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        assertArrayEquals(TEXT, out.toByteArray());
+    }
+
+    @Test
+    public void roundTripsThroughEncoderAndDecoder() throws IOException {
+        for (String coding : new String[]{ContentCoding.GZIP, ContentCoding.DEFLATE}) {
+            byte[] compressed = run(ContentCoding.encoder(coding), TEXT, 33);
+            assertArrayEquals(coding, TEXT, run(ContentCoding.decoder(coding), compressed, 7));
+        }
+    }
+
+    @Test
+    public void truncatedStreamFailsOnFinish() throws IOException {
+        byte[] compressed = gzipWithOptionalFields(TEXT);
+        for (int length : new int[]{1, 9, 12, 200, 330, compressed.length - 4}) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(compressed, 0, truncated, 0, length);
+            try {
+                run(ContentCoding.decoder(ContentCoding.GZIP), truncated, 5);
+                fail("length " + length);
+            } catch (IOException expected) {
+                // 数据不完整
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWrongMagic() throws IOException {
+        byte[] compressed = gzip(TEXT);
+        compressed[1] = 0;
+        run(ContentCoding.decoder(ContentCoding.GZIP), compressed, 16);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsChecksumMismatch() throws IOException {
+        byte[] compressed = gzip(TEXT);
+        compressed[compressed.length - 8] ^= 1;
+        run(ContentCoding.decoder(ContentCoding.GZIP), compressed, 16);
+    }
+
+    @Test
+    public void closeReleasesAbandonedStages() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BodyStage encoder = ContentCoding.encoder(ContentCoding.GZIP);
+        encoder.write(TEXT, 0, TEXT.length, out);
+        encoder.close();
+        encoder.close();
+
+        BodyStage decoder = ContentCoding.decoder(ContentCoding.GZIP);
+        byte[] compressed = gzip(TEXT);
+        decoder.write(compressed, 0, compressed.length / 2, out);
+        decoder.close();
+        decoder.close();
+    }
+
+    @Test
+    public void normalizesContentEncoding() {
+        assertEquals(ContentCoding.IDENTITY, ContentCoding.normalize(null));
+        assertEquals(ContentCoding.IDENTITY, ContentCoding.normalize(" "));
+        assertEquals(ContentCoding.GZIP, ContentCoding.normalize("X-GZIP"));
+        assertEquals(ContentCoding.DEFLATE, ContentCoding.normalize("Deflate"));
+        assertNull(ContentCoding.normalize("br"));
+        assertNull(ContentCoding.normalize("gzip, br"));
+        assertEquals("gzip;q=1.0, deflate", ContentCoding.filterAcceptEncoding("br, gzip;q=1.0, deflate, zstd"));
+        assertEquals(ContentCoding.IDENTITY, ContentCoding.filterAcceptEncoding("br"));
+    }
+}
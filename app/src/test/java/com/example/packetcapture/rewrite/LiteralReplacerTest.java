@@ -0,0 +1,60 @@
+package com.example.packetcapture.rewrite;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class LiteralReplacerTest {
+    private static String run(String find, String replacement, String input, int chunkSize) throws IOException {
+        LiteralReplacer replacer = new LiteralReplacer(find.getBytes(StandardCharsets.UTF_8),
+                replacement.getBytes(StandardCharsets.UTF_8));
+        byte[] data = input.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < data.length; i += chunkSize) {
+            replacer.write(data, i, Math.min(chunkSize, data.length - i), out);
+        }
+        replacer.finish(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void replacesAllOccurrences() throws IOException {
+        assertEquals("a-X-b-X-c", run("foo", "X", "a-foo-b-foo-c", 1000));
+    }
+
+    @Test
+    public void matchesAcrossEveryChunkBoundary() throws IOException {
+        String input = "<html>token token tok tokentoken 中文token</html>";
+        String expected = input.replace("token", "[值]");
+        for (int chunk = 1; chunk <= input.length() + 1; chunk++) {
+            assertEquals("chunk " + chunk, expected, run("token", "[值]", input, chunk));
+        }
+    }
+
+    @Test
+    public void overlappingCandidatesMatchLeftmostFirst() throws IOException {
+        for (int chunk = 1; chunk <= 6; chunk++) {
+            assertEquals("Xa", run("aa", "X", "aaa", chunk));
+            assertEquals("XX", run("aba", "X", "abaaba", chunk));
+        }
+    }
+
+    @Test
+    public void partialMatchAtEndIsFlushedOnFinish() throws IOException {
+        assertEquals("data tok", run("token", "X", "data tok", 3));
+    }
+
+    @Test
+    public void replacementMayContainFindString() throws IOException {
+        assertEquals("abab", run("a", "ab", "aa", 1));
+    }
+
+    @Test
+    public void emptyInputProducesEmptyOutput() throws IOException {
+        assertEquals("", run("token", "X", "", 1));
+    }
+}
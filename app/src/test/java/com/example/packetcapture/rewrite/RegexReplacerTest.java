@@ -0,0 +1,88 @@
+package com.example.packetcapture.rewrite;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegexReplacerTest {
+    /**
+     * 输出文本，以及每次write之后已送入但尚未写出的最大字节数
+     */
+    private static final class Result {
+        String text;
+        int maxHeldBack;
+    }
+
+    private static Result run(String regex, String replacement, int window, String input, int chunkSize)
+            throws IOException {
+        RegexReplacer replacer = new RegexReplacer(Pattern.compile(regex), replacement, window,
+                StandardCharsets.UTF_8);
+        byte[] data = input.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Result result = new Result();
+        for (int i = 0; i < data.length; i += chunkSize) {
+            int length = Math.min(chunkSize, data.length - i);
+            replacer.write(data, i, length, out);
+            result.maxHeldBack = Math.max(result.maxHeldBack, i + length - out.size());
+        }
+        replacer.finish(out);
+        result.text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        return result;
+    }
+
+    @Test
+    public void groupReferencesInReplacement() throws IOException {
+        assertEquals("id=[42] id=[7]", run("id=(\\d+)", "id=[$1]", 32, "id=42 id=7", 1000).text);
+    }
+
+    @Test
+    public void matchesAcrossEveryChunkBoundary() throws IOException {
+        String input = "xx foo=1 yy foo=22 zz 中文foo=333 end foo=4";
+        String expected = input.replaceAll("foo=(\\d+)", "bar[$1]");
+        for (int chunk = 1; chunk <= input.length() + 1; chunk++) {
+            assertEquals("chunk " + chunk, expected, run("foo=(\\d+)", "bar[$1]", 16, input, chunk).text);
+        }
+    }
+
+    @Test
+    public void multiByteCharactersSplitAcrossChunks() throws IOException {
+        String input = "前缀ÿ中文😀后缀";
+        for (int chunk = 1; chunk <= 8; chunk++) {
+            assertEquals("chunk " + chunk, "前缀ÿ中文!后缀", run("😀", "!", 8, input, chunk).text);
+        }
+    }
+
+    @Test
+    public void quotedReplacementIsLiteral() throws IOException {
+        assertEquals("price: $5", run("cost", Matcher.quoteReplacement("$5"), 8, "price: cost", 3).text);
+    }
+
+    @Test
+    public void heldBackTextStaysWithinWindow() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            input.append("abcdefgh");
+        }
+        // a.*总是碰到输入末尾，暂存的文本也不能超过窗口，超出窗口的部分原样写出
+        Result result = run("a.*", "X", 8, input.toString(), 8);
+        assertTrue("held back " + result.maxHeldBack, result.maxHeldBack <= 8);
+        assertTrue(result.text.startsWith("abcdefghabcdefgh"));
+        assertTrue(result.text.endsWith("X"));
+    }
+
+    @Test
+    public void lookaheadAtChunkEndIsDeferred() throws IOException {
+        String input = "foobar foobaz foo";
+        String expected = input.replaceAll("foo(?!bar)", "X");
+        for (int chunk = 1; chunk <= input.length(); chunk++) {
+            assertEquals("chunk " + chunk, expected, run("foo(?!bar)", "X", 8, input, chunk).text);
+        }
+    }
+}
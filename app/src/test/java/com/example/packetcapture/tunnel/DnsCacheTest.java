@@ -0,0 +1,156 @@
+package com.example.packetcapture.tunnel;
+
+import com.example.packetcapture.capture.HostnameTable;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsCacheTest {
+    private static final long NOW = 1_700_000_000_000L;
+
+    private final DnsMessage message = new DnsMessage();
+
+    private String store(DnsCache cache, byte[] response, long now) {
+        assertTrue(message.parse(response, 0, response.length));
+        String key = DnsCache.key(message.getName(), message.getQuestionType(), message.getQuestionClass(), false);
+        cache.store(key, message, response, 0, response.length, now);
+        return key;
+    }
+
+    private byte[] answer(DnsCache cache, byte[] query, long now) {
+        assertTrue(message.parse(query, 0, query.length));
+        String key = DnsCache.key(message.getName(), message.getQuestionType(), message.getQuestionClass(),
+                message.isDnssecOk());
+        return cache.answer(key, message, query, 0, now);
+    }
+
+    private static byte[] positive(String name, long ttl) {
+        return DnsTestMessages.response(99, DnsMessage.RCODE_NO_ERROR, name, DnsMessage.TYPE_A)
+                .answer(DnsMessage.TYPE_A, ttl, DnsTestMessages.ipv4(10, 0, 0, 1))
+                .build();
+    }
+
+    @Test
+    public void answersWithQueryIdAndDecrementedTtl() {
+        DnsCache cache = new DnsCache(16, null);
+        byte[] query = DnsTestMessages.query(0x4242, "example.com", DnsMessage.TYPE_A).build();
+        assertNull(answer(cache, query, NOW));
+        store(cache, positive("example.com", 300), NOW);
+
+        byte[] reply = answer(cache, query, NOW + 100_500);
+        assertNotNull(reply);
+        assertTrue(message.parse(reply, 0, reply.length));
+        assertEquals(0x4242, message.getId());
+        assertTrue(message.isResponse());
+        assertEquals(200, message.getAnswerTtl());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void keepsQueryNameCaseAndRecursionFlag() {
+        DnsCache cache = new DnsCache(16, null);
+        store(cache, positive("example.com", 300), NOW);
+        byte[] query = new DnsTestMessages(1, 0, "eXaMpLe.CoM", DnsMessage.TYPE_A).build();
+        byte[] reply = answer(cache, query, NOW);
+        assertNotNull(reply);
+        assertEquals(0, DnsMessage.readShort(reply, 2) & DnsMessage.FLAG_RECURSION_DESIRED);
+        for (int i = DnsMessage.HEADER_SIZE; i < query.length; i++) {
+            assertEquals(query[i], reply[i]);
+        }
+    }
+
+    @Test
+    public void entriesExpireAfterTtl() {
+        DnsCache cache = new DnsCache(16, null);
+        store(cache, positive("example.com", 60), NOW);
+        byte[] query = DnsTestMessages.query(1, "example.com", DnsMessage.TYPE_A).build();
+        assertNotNull(answer(cache, query, NOW + 59_999));
+        assertNull(answer(cache, query, NOW + 60_000));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void cachesNegativeAnswersBySoa() {
+        DnsCache cache = new DnsCache(16, null);
+        store(cache, DnsTestMessages.response(1, DnsMessage.RCODE_NAME_ERROR, "missing.example", DnsMessage.TYPE_A)
+                .soa(3600, 30).build(), NOW);
+        byte[] query = DnsTestMessages.query(2, "missing.example", DnsMessage.TYPE_A).build();
+        byte[] reply = answer(cache, query, NOW + 29_000);
+        assertNotNull(reply);
+        assertTrue(message.parse(reply, 0, reply.length));
+        assertEquals(DnsMessage.RCODE_NAME_ERROR, message.getResponseCode());
+        assertNull(answer(cache, query, NOW + 30_000));
+    }
+
+    @Test
+    public void skipsUncacheableResponses() {
+        DnsCache cache = new DnsCache(16, null);
+        store(cache, DnsTestMessages.response(1, 2, "servfail.example", DnsMessage.TYPE_A).build(), NOW);
+        store(cache, positive("zero.example", 0), NOW);
+        store(cache, DnsTestMessages.response(1, DnsMessage.RCODE_NAME_ERROR, "nosoa.example", DnsMessage.TYPE_A)
+                .build(), NOW);
+        byte[] truncated = positive("truncated.example", 300);
+        DnsMessage.writeShort(truncated, 2, DnsMessage.readShort(truncated, 2) | DnsMessage.FLAG_TRUNCATED);
+        store(cache, truncated, NOW);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void oversizedAnswerIsTruncatedForSmallPayloadSize() {
+        DnsCache cache = new DnsCache(16, null);
+        DnsTestMessages builder = DnsTestMessages.response(1, DnsMessage.RCODE_NO_ERROR, "big.example",
+                DnsMessage.TYPE_AAAA);
+        for (int i = 0; i < 20; i++) {
+            byte[] address = new byte[16];
+            address[15] = (byte) i;
+            builder.answer(DnsMessage.TYPE_AAAA, 300, address);
+        }
+        byte[] response = builder.build();
+        assertTrue(response.length > DnsMessage.MAX_UDP_SIZE);
+        store(cache, response, NOW);
+
+        byte[] reply = answer(cache, DnsTestMessages.query(5, "big.example", DnsMessage.TYPE_AAAA).build(), NOW);
+        assertTrue(message.parse(reply, 0, reply.length));
+        assertTrue(message.isTruncated());
+        assertEquals(0, message.getAnswerCount());
+        assertEquals(5, message.getId());
+
+        reply = answer(cache, DnsTestMessages.query(6, "big.example", DnsMessage.TYPE_AAAA).opt(1232, false).build(),
+                NOW);
+        assertEquals(response.length, reply.length);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        DnsCache cache = new DnsCache(2, null);
+        store(cache, positive("a.example", 300), NOW);
+        store(cache, positive("b.example", 300), NOW);
+        assertNotNull(answer(cache, DnsTestMessages.query(1, "a.example", DnsMessage.TYPE_A).build(), NOW));
+        store(cache, positive("c.example", 300), NOW);
+        assertEquals(2, cache.size());
+        assertNotNull(answer(cache, DnsTestMessages.query(1, "a.example", DnsMessage.TYPE_A).build(), NOW));
+        assertNull(answer(cache, DnsTestMessages.query(1, "b.example", DnsMessage.TYPE_A).build(), NOW));
+    }
+
+    @Test
+    public void registersHostnamesAndServesLookups() {
+        HostnameTable hostnames = new HostnameTable();
+        DnsCache cache = new DnsCache(16, hostnames);
+        store(cache, positive("cdn.example", 300), System.currentTimeMillis());
+        assertEquals("cdn.example", hostnames.lookup(4, 0, 0x0A000001L));
+
+        InetAddress address = cache.lookup("CDN.Example.");
+        assertNotNull(address);
+        assertArrayEquals(DnsTestMessages.ipv4(10, 0, 0, 1), address.getAddress());
+        assertNull(cache.lookup("10.0.0.1"));
+        assertNull(cache.lookup("other.example"));
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.packetcapture.tunnel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsMessageTest {
+    @Test
+    public void parsesQueryWithEdns() {
+        byte[] query = DnsTestMessages.query(0x1234, "WWW.Example.COM", DnsMessage.TYPE_AAAA).opt(4096, true).build();
+        DnsMessage message = new DnsMessage();
+        assertTrue(message.parse(query, 0, query.length));
+        assertEquals(0x1234, message.getId());
+        assertFalse(message.isResponse());
+        assertTrue(message.isStandardQuery());
+        assertEquals("www.example.com", message.getName());
+        assertEquals(DnsMessage.TYPE_AAAA, message.getQuestionType());
+        assertEquals(DnsMessage.CLASS_IN, message.getQuestionClass());
+        assertEquals(DnsMessage.HEADER_SIZE + 17 + 4, message.getQuestionEnd());
+        assertEquals(4096, message.getUdpPayloadSize());
+        assertTrue(message.isDnssecOk());
+        // OPT记录的TTL字段是扩展标志，不能当作TTL改写
+        assertEquals(0, message.getTtlCount());
+    }
+
+    @Test
+    public void smallEdnsPayloadSizeIsRaisedTo512() {
+        byte[] query = DnsTestMessages.query(1, "example.com", DnsMessage.TYPE_A).opt(100, false).build();
+        DnsMessage message = new DnsMessage();
+        assertTrue(message.parse(query, 0, query.length));
+        assertEquals(DnsMessage.MAX_UDP_SIZE, message.getUdpPayloadSize());
+        assertFalse(message.isDnssecOk());
+    }
+
+    @Test
+    public void collectsAnswerAddressesAndTtlOffsets() {
+        byte[] response = DnsTestMessages.response(7, DnsMessage.RCODE_NO_ERROR, "example.com", DnsMessage.TYPE_A)
+                .answer(DnsMessage.TYPE_A, 300, DnsTestMessages.ipv4(93, 184, 216, 34))
+                .answer(DnsMessage.TYPE_A, 120, DnsTestMessages.ipv4(93, 184, 216, 35))
+                .answer(5, 60, new byte[]{0})
+                .build();
+        // 放在更大数组的中间，偏移量仍然相对于报文起始位置
+        byte[] data = new byte[response.length + 10];
+        System.arraycopy(response, 0, data, 7, response.length);
+        DnsMessage message = new DnsMessage();
+        assertTrue(message.parse(data, 7, response.length));
+        assertTrue(message.isResponse());
+        assertEquals(3, message.getAnswerCount());
+        assertEquals(60, message.getAnswerTtl());
+        assertEquals(2, message.getAddresses().size());
+        assertArrayEquals(DnsTestMessages.ipv4(93, 184, 216, 35), message.getAddresses().get(1));
+        assertEquals(3, message.getTtlCount());
+        long[] expected = {300, 120, 60};
+        for (int i = 0; i < 3; i++) {
+            assertEquals(expected[i], DnsMessage.readInt(response, message.getTtlOffsets()[i]));
+        }
+        assertEquals(-1, message.getNegativeTtl());
+    }
+
+    @Test
+    public void negativeTtlIsMinimumOfSoaTtlAndMinimumField() {
+        byte[] response = DnsTestMessages.response(7, DnsMessage.RCODE_NAME_ERROR, "missing.example", DnsMessage.TYPE_A)
+                .soa(900, 60)
+                .build();
+        DnsMessage message = new DnsMessage();
+        assertTrue(message.parse(response, 0, response.length));
+        assertEquals(DnsMessage.RCODE_NAME_ERROR, message.getResponseCode());
+        assertEquals(-1, message.getAnswerTtl());
+        assertEquals(60, message.getNegativeTtl());
+
+        response = DnsTestMessages.response(7, DnsMessage.RCODE_NO_ERROR, "example.com", DnsMessage.TYPE_AAAA)
+                .soa(30, 3600)
+                .build();
+        assertTrue(message.parse(response, 0, response.length));
+        assertEquals(30, message.getNegativeTtl());
+    }
+
+    @Test
+    public void rejectsMalformedMessages() {
+        DnsMessage message = new DnsMessage();
+        byte[] response = DnsTestMessages.response(7, DnsMessage.RCODE_NO_ERROR, "example.com", DnsMessage.TYPE_A)
+                .answer(DnsMessage.TYPE_A, 300, DnsTestMessages.ipv4(1, 2, 3, 4))
+                .build();
+        for (int length = 0; length < response.length; length++) {
+            assertFalse("length " + length, message.parse(response, 0, length));
+        }
+        assertTrue(message.parse(response, 0, response.length));
+
+        byte[] twoQuestions = response.clone();
+        DnsMessage.writeShort(twoQuestions, 4, 2);
+        assertFalse(message.parse(twoQuestions, 0, twoQuestions.length));
+    }
+
+    @Test
+    public void readsQuestionNameForDisplay() {
+        byte[] query = DnsTestMessages.query(1, "Mail.Example.org", DnsMessage.TYPE_A).build();
+        assertEquals("mail.example.org", DnsMessage.readQuestionName(query, 0, query.length));
+        assertNull(DnsMessage.readQuestionName(query, 0, 11));
+        assertEquals("", DnsMessage.readQuestionName(DnsTestMessages.query(1, "", 2).build(), 0, 17));
+    }
+
+    @Test
+    public void pointerLoopsAreRejected() {
+        byte[] data = new byte[DnsMessage.HEADER_SIZE + 2];
+        data[DnsMessage.HEADER_SIZE] = (byte) 0xC0;
+        data[DnsMessage.HEADER_SIZE + 1] = DnsMessage.HEADER_SIZE;
+        assertNull(DnsMessage.readName(data, 0, DnsMessage.HEADER_SIZE, data.length));
+    }
+
+    @Test
+    public void truncateKeepsOnlyHeaderAndQuestion() {
+        byte[] response = DnsTestMessages.response(7, DnsMessage.RCODE_NO_ERROR, "example.com", DnsMessage.TYPE_A)
+                .answer(DnsMessage.TYPE_A, 300, DnsTestMessages.ipv4(1, 2, 3, 4))
+                .build();
+        DnsMessage message = new DnsMessage();
+        assertTrue(message.parse(response, 0, response.length));
+        byte[] truncated = DnsMessage.truncate(response, 0, message.getQuestionEnd());
+        assertTrue(message.parse(truncated, 0, truncated.length));
+        assertTrue(message.isTruncated());
+        assertEquals(0, message.getAnswerCount());
+        assertEquals("example.com", message.getName());
+    }
+}
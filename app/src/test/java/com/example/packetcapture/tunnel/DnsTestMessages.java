@@ -0,0 +1,104 @@
+package com.example.packetcapture.tunnel;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 测试用的DNS报文构造器，只有一个问题，记录名都用指向问题的压缩指针
+ */
+final class DnsTestMessages {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final int id;
+    private final int flags;
+    private int answerCount;
+    private int authorityCount;
+    private int additionalCount;
+
+    DnsTestMessages(int id, int flags, String name, int type) {
+        this.id = id;
+        this.flags = flags;
+        out.write(new byte[DnsMessage.HEADER_SIZE], 0, DnsMessage.HEADER_SIZE);
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.")) {
+                byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                out.write(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+        out.write(0);
+        writeShort(type);
+        writeShort(DnsMessage.CLASS_IN);
+    }
+
+    static DnsTestMessages query(int id, String name, int type) {
+        return new DnsTestMessages(id, DnsMessage.FLAG_RECURSION_DESIRED, name, type);
+    }
+
+    static DnsTestMessages response(int id, int responseCode, String name, int type) {
+        return new DnsTestMessages(id, DnsMessage.FLAG_RESPONSE | DnsMessage.FLAG_RECURSION_DESIRED | 0x0080
+                | responseCode, name, type);
+    }
+
+    DnsTestMessages answer(int type, long ttl, byte[] data) {
+        record(type, ttl, data);
+        answerCount++;
+        return this;
+    }
+
+    /**
+     * 授权部分的SOA记录，MNAME和RNAME都用根域
+     */
+    DnsTestMessages soa(long ttl, long minimum) {
+        byte[] data = new byte[22];
+        DnsMessage.writeInt(data, 2, 2024010101);
+        DnsMessage.writeInt(data, 18, (int) minimum);
+        record(DnsMessage.TYPE_SOA, ttl, data);
+        authorityCount++;
+        return this;
+    }
+
+    DnsTestMessages opt(int udpPayloadSize, boolean dnssecOk) {
+        out.write(0);
+        writeShort(DnsMessage.TYPE_OPT);
+        writeShort(udpPayloadSize);
+        writeInt(dnssecOk ? 0x8000 : 0);
+        writeShort(0);
+        additionalCount++;
+        return this;
+    }
+
+    byte[] build() {
+        byte[] data = out.toByteArray();
+        DnsMessage.writeShort(data, 0, id);
+        DnsMessage.writeShort(data, 2, flags);
+        DnsMessage.writeShort(data, 4, 1);
+        DnsMessage.writeShort(data, 6, answerCount);
+        DnsMessage.writeShort(data, 8, authorityCount);
+        DnsMessage.writeShort(data, 10, additionalCount);
+        return data;
+    }
+
+    static byte[] ipv4(int a, int b, int c, int d) {
+        return new byte[]{(byte) a, (byte) b, (byte) c, (byte) d};
+    }
+
+    private void record(int type, long ttl, byte[] data) {
+        // 指向问题中域名的压缩指针
+        writeShort(0xC000 | DnsMessage.HEADER_SIZE);
+        writeShort(type);
+        writeShort(DnsMessage.CLASS_IN);
+        writeInt((int) ttl);
+        writeShort(data.length);
+        out.write(data, 0, data.length);
+    }
+
+    private void writeShort(int value) {
+        out.write(value >>> 8 & 0xFF);
+        out.write(value & 0xFF);
+    }
+
+    private void writeInt(int value) {
+        writeShort(value >>> 16);
+        writeShort(value & 0xFFFF);
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.packetcapture.tunnel;
+
+import com.example.packetcapture.capture.PacketDecoder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PacketBuilderTest {
+    private final PacketBuilder builder = new PacketBuilder();
+    private final PacketDecoder decoder = new PacketDecoder();
+    private final ByteBuffer out = ByteBuffer.allocate(2048);
+
+    /**
+     * 应用10.0.0.2:40000访问1.2.3.4:443
+     */
+    private static FlowKey ipv4Key(int protocol) {
+        FlowKey key = new FlowKey();
+        key.ipVersion = 4;
+        key.protocol = protocol;
+        key.sourceAddressLow = 0x0A000002L;
+        key.destinationAddressLow = 0x01020304L;
+        key.sourcePort = 40000;
+        key.destinationPort = 443;
+        return key;
+    }
+
+    /**
+     * 应用fd00::2:40000访问2001:db8::1:53
+     */
+    private static FlowKey ipv6Key(int protocol) {
+        FlowKey key = new FlowKey();
+        key.ipVersion = 6;
+        key.protocol = protocol;
+        key.sourceAddressHigh = 0xFD00000000000000L;
+        key.sourceAddressLow = 2;
+        key.destinationAddressHigh = 0x20010DB800000000L;
+        key.destinationAddressLow = 1;
+        key.sourcePort = 40000;
+        key.destinationPort = 53;
+        return key;
+    }
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7 + 1);
+        }
+        return data;
+    }
+
+    /**
+     * 按16位累加的反码和，不取反
+     */
+    private static int onesComplementSum(ByteBuffer buffer, int offset, int length, long initial) {
+        long sum = initial;
+        for (int i = 0; i < length; i += 2) {
+            int high = buffer.get(offset + i) & 0xFF;
+            int low = i + 1 < length ? buffer.get(offset + i + 1) & 0xFF : 0;
+            sum += high << 8 | low;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    /**
+     * 校验和正确时，连同伪首部在内的反码和为全1
+     */
+    private static void assertTransportChecksum(ByteBuffer packet, int ipVersion, int protocol, int offset,
+                                                int length) {
+        long pseudo = length + protocol;
+        if (ipVersion == 6) {
+            pseudo += onesComplementSum(packet, 8, 32, 0);
+        } else {
+            pseudo += onesComplementSum(packet, 12, 8, 0);
+        }
+        assertEquals(0xFFFF, onesComplementSum(packet, offset, length, pseudo));
+    }
+
+    @Test
+    public void buildsIPv4TcpWithValidChecksums() {
+        FlowKey key = ipv4Key(PacketDecoder.PROTOCOL_TCP);
+        byte[] data = payload(13);
+        int total = builder.buildTcp(out, key, 0x89ABCDEF, 0x12345678,
+                PacketDecoder.TCP_ACK | PacketDecoder.TCP_PSH, 100000, 1460, data, 0, data.length);
+        assertEquals(20 + 24 + 13, total);
+        assertEquals(total, out.limit());
+
+        assertTrue(decoder.decode(out, total));
+        // 方向为远端 -> 应用
+        assertEquals(0x01020304, decoder.getSourceAddress());
+        assertEquals(0x0A000002, decoder.getDestinationAddress());
+        assertEquals(443, decoder.getSourcePort());
+        assertEquals(40000, decoder.getDestinationPort());
+        assertEquals(PacketDecoder.TCP_ACK | PacketDecoder.TCP_PSH, decoder.getFlags() & PacketDecoder.TCP_FLAGS_MASK);
+        assertEquals(44, decoder.getPayloadOffset());
+        assertEquals(0x89ABCDEF, out.getInt(24));
+        assertEquals(0x12345678, out.getInt(28));
+        // 窗口没有缩放，超过16位时截断为最大值
+        assertEquals(0xFFFF, out.getShort(34) & 0xFFFF);
+        // MSS选项
+        assertEquals(0x0204, out.getShort(40));
+        assertEquals(1460, out.getShort(42));
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], out.get(44 + i));
+        }
+
+        assertEquals(total, out.getShort(2));
+        assertEquals(0xFFFF, onesComplementSum(out, 0, 20, 0));
+        assertTransportChecksum(out, 4, PacketDecoder.PROTOCOL_TCP, 20, total - 20);
+    }
+
+    @Test
+    public void ipv4IdentificationAdvances() {
+        FlowKey key = ipv4Key(PacketDecoder.PROTOCOL_TCP);
+        builder.buildTcp(out, key, 1, 1, PacketDecoder.TCP_ACK, 1000, 0, null, 0, 0);
+        int first = out.getShort(4) & 0xFFFF;
+        int total = builder.buildTcp(out, key, 1, 1, PacketDecoder.TCP_ACK, 1000, 0, null, 0, 0);
+        assertEquals(first + 1, out.getShort(4) & 0xFFFF);
+        assertEquals(40, total);
+        assertEquals(0x50, out.get(32) & 0xFF);
+        assertEquals(0xFFFF, onesComplementSum(out, 0, 20, 0));
+        assertTransportChecksum(out, 4, PacketDecoder.PROTOCOL_TCP, 20, 20);
+    }
+
+    @Test
+    public void buildsIPv6TcpAndUdpWithValidChecksums() {
+        FlowKey tcpKey = ipv6Key(PacketDecoder.PROTOCOL_TCP);
+        byte[] data = payload(101);
+        int total = builder.buildTcp(out, tcpKey, 7, 9, PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK, 65535,
+                1220, data, 0, data.length);
+        assertEquals(40 + 24 + 101, total);
+        assertTrue(decoder.decode(out, total));
+        assertEquals(6, decoder.getIpVersion());
+        assertEquals(0x20010DB800000000L, decoder.getSourceAddressHigh());
+        assertEquals(1, decoder.getSourceAddressLow());
+        assertEquals(0xFD00000000000000L, decoder.getDestinationAddressHigh());
+        assertEquals(2, decoder.getDestinationAddressLow());
+        assertEquals(24 + 101, out.getShort(4));
+        assertTransportChecksum(out, 6, PacketDecoder.PROTOCOL_TCP, 40, total - 40);
+
+        FlowKey udpKey = ipv6Key(PacketDecoder.PROTOCOL_UDP);
+        total = builder.buildUdp(out, udpKey, data, 1, 37);
+        assertEquals(40 + 8 + 37, total);
+        assertTrue(decoder.decode(out, total));
+        assertEquals(53, decoder.getSourcePort());
+        assertEquals(40000, decoder.getDestinationPort());
+        assertEquals(8 + 37, decoder.getInfo());
+        assertEquals(data[1], out.get(48));
+        assertTransportChecksum(out, 6, PacketDecoder.PROTOCOL_UDP, 40, total - 40);
+    }
+
+    @Test
+    public void buildsIPv4UdpWithValidChecksums() {
+        FlowKey key = ipv4Key(PacketDecoder.PROTOCOL_UDP);
+        byte[] data = payload(8);
+        int total = builder.buildUdp(out, key, data, 0, data.length);
+        assertEquals(36, total);
+        assertEquals(0xFFFF, onesComplementSum(out, 0, 20, 0));
+        assertTransportChecksum(out, 4, PacketDecoder.PROTOCOL_UDP, 20, 16);
+    }
+
+    @Test
+    public void zeroUdpChecksumIsSentAsAllOnes() {
+        FlowKey key = ipv4Key(PacketDecoder.PROTOCOL_UDP);
+        byte[] data = new byte[2];
+        builder.buildUdp(out, key, data, 0, 2);
+        // 载荷加上原来的校验和后，反码和变为全1，计算出的校验和为0
+        int checksum = out.getShort(26) & 0xFFFF;
+        data[0] = (byte) (checksum >>> 8);
+        data[1] = (byte) checksum;
+        builder.buildUdp(out, key, data, 0, 2);
+        assertEquals(0xFFFF, out.getShort(26) & 0xFFFF);
+        assertTransportChecksum(out, 4, PacketDecoder.PROTOCOL_UDP, 20, 10);
+    }
+
+    @Test
+    public void checksumHandlesOddLengthAndCarry() {
+        // RFC 1071中的例子
+        byte[] data = {0x00, 0x01, (byte) 0xF2, 0x03, (byte) 0xF4, (byte) 0xF5, (byte) 0xF6, (byte) 0xF7};
+        assertEquals(~0xDDF2 & 0xFFFF, PacketBuilder.checksum(data, 0, data.length, 0));
+        // 奇数长度时最后一个字节作为高8位
+        assertEquals(~0xAB00 & 0xFFFF, PacketBuilder.checksum(new byte[]{(byte) 0xAB}, 0, 1, 0));
+        assertEquals(0, PacketBuilder.checksum(new byte[]{(byte) 0xFF, (byte) 0xFF}, 0, 2, 0));
+    }
+}
@@ -0,0 +1,434 @@
+package com.example.packetcapture.tunnel;
+
+import com.example.packetcapture.capture.PacketDecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TcpFlowTest {
+    // 发给应用的初始序号靠近回绕点，序号比较必须按32位回绕处理
+    private static final int ISN = -20;
+    private static final int REMOTE_ISN = 5000;
+    private static final int WINDOW = 65535;
+    private static final int MSS = 100;
+    private static final int ACK = PacketDecoder.TCP_ACK;
+
+    /**
+     * 写回TUN的一个报文
+     */
+    private static final class Segment {
+        final int seq;
+        final int ack;
+        final int flags;
+        final int mss;
+        final byte[] payload;
+
+        Segment(int seq, int ack, int flags, int mss, byte[] payload) {
+            this.seq = seq;
+            this.ack = ack;
+            this.flags = flags;
+            this.mss = mss;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * 记录发出的报文，上游通道注册到测试自己的选择器
+     */
+    private final class RecordingHost implements TcpFlow.Host {
+        final List<Segment> sent = new ArrayList<>();
+        boolean closed;
+
+        @Override
+        public int getLocalMss(FlowKey key) {
+            return 1460;
+        }
+
+        @Override
+        public boolean protect(Socket socket) {
+            return true;
+        }
+
+        @Override
+        public SelectionKey register(SelectableChannel channel, int ops, Object attachment)
+                throws ClosedChannelException {
+            return channel.register(selector, ops, attachment);
+        }
+
+        @Override
+        public void sendTcp(FlowKey key, int seq, int ack, int flags, int window, int mss) {
+            sendTcp(key, seq, ack, flags, window, mss, null, 0, 0);
+        }
+
+        @Override
+        public void sendTcp(FlowKey key, int seq, int ack, int flags, int window, int mss,
+                            byte[] payload, int offset, int length) {
+            byte[] copy = payload == null ? new byte[0] : Arrays.copyOfRange(payload, offset, offset + length);
+            sent.add(new Segment(seq, ack, flags, mss, copy));
+        }
+
+        @Override
+        public void onTcpFlowClosed(TcpFlow flow) {
+            closed = true;
+        }
+    }
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private SocketChannel upstream;
+    private final RecordingHost host = new RecordingHost();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(65536);
+    private TcpFlow flow;
+    private long now;
+
+    @Before
+    public void setUp() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        FlowKey key = new FlowKey();
+        key.ipVersion = 4;
+        key.protocol = PacketDecoder.PROTOCOL_TCP;
+        flow = new TcpFlow(host, key, ISN, REMOTE_ISN, WINDOW, MSS, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        flow.close();
+        if (upstream != null) {
+            upstream.close();
+        }
+        server.close();
+        selector.close();
+    }
+
+    /**
+     * 连接上游并回复SYN/ACK
+     */
+    private void connect() throws Exception {
+        flow.connect((InetSocketAddress) server.getLocalAddress());
+        upstream = server.accept();
+        upstream.socket().setSoTimeout(5000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flow.getState() == TcpFlow.State.CONNECTING && System.currentTimeMillis() < deadline) {
+            flow.onConnectable();
+            Thread.sleep(1);
+        }
+        assertEquals(TcpFlow.State.SYN_ACK_SENT, flow.getState());
+        now = System.currentTimeMillis();
+    }
+
+    /**
+     * 完成三次握手
+     */
+    private void establish() throws Exception {
+        connect();
+        host.sent.clear();
+        fromApp(REMOTE_ISN + 1, ISN + 1, ACK, null);
+        assertEquals(TcpFlow.State.ESTABLISHED, flow.getState());
+        assertTrue(host.sent.isEmpty());
+    }
+
+    private void fromApp(int seq, int ack, int flags, String payload) {
+        byte[] data = payload == null ? new byte[0] : payload.getBytes(StandardCharsets.US_ASCII);
+        flow.onPacket(ByteBuffer.wrap(data), seq, ack, flags, WINDOW, 0, data.length, now);
+    }
+
+    private String readUpstream(int length) throws IOException {
+        byte[] data = new byte[length];
+        InputStream in = upstream.socket().getInputStream();
+        int read = 0;
+        while (read < length) {
+            int n = in.read(data, read, length - read);
+            assertTrue(n > 0);
+            read += n;
+        }
+        return new String(data, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 上游写入数据后让连接读取，直到全部转成发给应用的报文
+     */
+    private void fromUpstream(byte[] data) throws Exception {
+        upstream.socket().getOutputStream().write(data);
+        int expected = sentPayload() + data.length;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sentPayload() < expected && System.currentTimeMillis() < deadline) {
+            flow.onReadable(readBuffer, now);
+            Thread.sleep(1);
+        }
+        assertEquals(expected, sentPayload());
+    }
+
+    private int sentPayload() {
+        int total = 0;
+        for (Segment segment : host.sent) {
+            total += segment.payload.length;
+        }
+        return total;
+    }
+
+    private Segment last() {
+        return host.sent.get(host.sent.size() - 1);
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    @Test
+    public void handshakeRepliesSynAckOnlyAfterUpstreamConnects() throws Exception {
+        assertEquals(TcpFlow.State.CONNECTING, flow.getState());
+        assertTrue(host.sent.isEmpty());
+        connect();
+
+        assertEquals(1, host.sent.size());
+        Segment synAck = host.sent.get(0);
+        assertEquals(PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK, synAck.flags);
+        assertEquals(ISN, synAck.seq);
+        assertEquals(REMOTE_ISN + 1, synAck.ack);
+        assertEquals(1460, synAck.mss);
+
+        // 应用重传SYN时原样重发SYN/ACK
+        fromApp(REMOTE_ISN, 0, PacketDecoder.TCP_SYN, null);
+        assertEquals(2, host.sent.size());
+        assertEquals(ISN, last().seq);
+        assertEquals(PacketDecoder.TCP_SYN | PacketDecoder.TCP_ACK, last().flags);
+
+        // 确认号不对的ACK不完成握手
+        fromApp(REMOTE_ISN + 1, ISN + 5, ACK, null);
+        assertEquals(TcpFlow.State.SYN_ACK_SENT, flow.getState());
+
+        // SYN/ACK超时重传
+        flow.onTimer(now + 5000);
+        assertEquals(3, host.sent.size());
+        assertEquals(ISN, last().seq);
+
+        fromApp(REMOTE_ISN + 1, ISN + 1, ACK, null);
+        assertEquals(TcpFlow.State.ESTABLISHED, flow.getState());
+        // 握手完成后不再重传SYN/ACK
+        flow.onTimer(now + 600000);
+        assertEquals(3, host.sent.size());
+    }
+
+    @Test
+    public void appDataIsWrittenInOrderAndOutOfOrderDataOnlyAcked() throws Exception {
+        establish();
+        int next = REMOTE_ISN + 1;
+
+        fromApp(next, ISN + 1, ACK | PacketDecoder.TCP_PSH, "hello");
+        assertEquals("hello", readUpstream(5));
+        assertEquals(ACK, last().flags);
+        assertEquals(next + 5, last().ack);
+        assertEquals(ISN + 1, last().seq);
+        next += 5;
+
+        // 乱序到达的数据不写入上游，只回复当前的确认号
+        fromApp(next + 3, ISN + 1, ACK, "lo!");
+        assertEquals(next, last().ack);
+        // 重复的旧数据同样只回复确认
+        fromApp(next - 5, ISN + 1, ACK, "hello");
+        assertEquals(next, last().ack);
+
+        fromApp(next, ISN + 1, ACK, "wor");
+        assertEquals("wor", readUpstream(3));
+        assertEquals(next + 3, last().ack);
+    }
+
+    @Test
+    public void upstreamDataIsSegmentedByMss() throws Exception {
+        establish();
+        byte[] data = bytes(250);
+        fromUpstream(data);
+
+        assertEquals(3, host.sent.size());
+        int seq = ISN + 1;
+        int offset = 0;
+        for (Segment segment : host.sent) {
+            assertEquals(ACK | PacketDecoder.TCP_PSH, segment.flags);
+            assertEquals(seq, segment.seq);
+            assertEquals(REMOTE_ISN + 1, segment.ack);
+            assertArrayEquals(Arrays.copyOfRange(data, offset, offset + segment.payload.length), segment.payload);
+            assertTrue(segment.payload.length <= MSS);
+            seq += segment.payload.length;
+            offset += segment.payload.length;
+        }
+    }
+
+    @Test
+    public void threeDuplicateAcksTriggerFastRetransmitAndPartialAckRetransmitsNext() throws Exception {
+        establish();
+        byte[] data = bytes(300);
+        fromUpstream(data);
+        int segments = host.sent.size();
+
+        // 窗口变化的确认不算重复确认
+        flow.onPacket(ByteBuffer.allocate(0), REMOTE_ISN + 1, ISN + 1, ACK, WINDOW - 1, 0, 0, now);
+        flow.onPacket(ByteBuffer.allocate(0), REMOTE_ISN + 1, ISN + 1, ACK, WINDOW, 0, 0, now);
+        // 带数据的确认也不算
+        fromApp(REMOTE_ISN + 1, ISN + 1, ACK, "x");
+        assertEquals("x", readUpstream(1));
+        int next = REMOTE_ISN + 2;
+        segments = host.sent.size();
+        // 前两个重复确认不触发重传
+        fromApp(next, ISN + 1, ACK, null);
+        fromApp(next, ISN + 1, ACK, null);
+        assertEquals(segments, host.sent.size());
+        fromApp(next, ISN + 1, ACK, null);
+        assertEquals(segments + 1, host.sent.size());
+        assertEquals(ISN + 1, last().seq);
+        assertArrayEquals(Arrays.copyOfRange(data, 0, MSS), last().payload);
+
+        // 更多的重复确认不再重传
+        fromApp(next, ISN + 1, ACK, null);
+        assertEquals(segments + 1, host.sent.size());
+
+        // 部分确认：恢复点之前的下一个报文也丢了
+        fromApp(next, ISN + 1 + MSS, ACK, null);
+        assertEquals(segments + 2, host.sent.size());
+        assertEquals(ISN + 1 + MSS, last().seq);
+        assertArrayEquals(Arrays.copyOfRange(data, MSS, 2 * MSS), last().payload);
+
+        // 全部确认后恢复结束，定时器不再重传
+        fromApp(next, ISN + 1 + data.length, ACK, null);
+        assertEquals(segments + 2, host.sent.size());
+        flow.onTimer(now + 600000);
+        assertEquals(segments + 2, host.sent.size());
+    }
+
+    @Test
+    public void timeoutRetransmitsWithBackoffAndFinallyAborts() throws Exception {
+        establish();
+        fromUpstream(bytes(50));
+        int segments = host.sent.size();
+
+        flow.onTimer(now + 999);
+        assertEquals(segments, host.sent.size());
+        flow.onTimer(now + 1000);
+        assertEquals(segments + 1, host.sent.size());
+        assertEquals(ISN + 1, last().seq);
+        assertEquals(50, last().payload.length);
+
+        // 超时时间加倍
+        long fired = now + 1000;
+        flow.onTimer(fired + 1999);
+        assertEquals(segments + 1, host.sent.size());
+        flow.onTimer(fired + 2000);
+        assertEquals(segments + 2, host.sent.size());
+
+        // 新的确认重置超时时间
+        fromUpstream(bytes(10));
+        fromApp(REMOTE_ISN + 1, ISN + 1 + 50, ACK, null);
+        segments = host.sent.size();
+        flow.onTimer(now + 1000);
+        assertEquals(segments + 1, host.sent.size());
+        assertEquals(ISN + 1 + 50, last().seq);
+
+        // 连续超时过多时发送RST并关闭
+        long time = now + 1000;
+        while (flow.getState() != TcpFlow.State.CLOSED) {
+            time += 120000;
+            flow.onTimer(time);
+        }
+        assertEquals(PacketDecoder.TCP_RST | ACK, last().flags);
+        assertTrue(host.closed);
+    }
+
+    @Test
+    public void appFinThenUpstreamCloseFinishesAfterFinIsAcked() throws Exception {
+        establish();
+        int next = REMOTE_ISN + 1;
+
+        // 序号不连续的FIN被忽略
+        fromApp(next + 10, ISN + 1, ACK | PacketDecoder.TCP_FIN, null);
+        assertTrue(host.sent.isEmpty());
+
+        fromApp(next, ISN + 1, ACK | PacketDecoder.TCP_FIN, "bye");
+        assertEquals("bye", readUpstream(3));
+        // FIN占一个序号
+        assertEquals(next + 4, last().ack);
+        // 上游输出已关闭
+        assertEquals(-1, upstream.socket().getInputStream().read());
+
+        upstream.close();
+        upstream = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((last().flags & PacketDecoder.TCP_FIN) == 0 && System.currentTimeMillis() < deadline) {
+            flow.onReadable(readBuffer, now);
+            Thread.sleep(1);
+        }
+        assertEquals(PacketDecoder.TCP_FIN | ACK, last().flags);
+        assertEquals(ISN + 1, last().seq);
+        assertEquals(next + 4, last().ack);
+        assertFalse(host.closed);
+
+        // 应用确认FIN后连接结束
+        fromApp(next + 4, ISN + 2, ACK, null);
+        assertEquals(TcpFlow.State.CLOSED, flow.getState());
+        assertTrue(host.closed);
+    }
+
+    @Test
+    public void upstreamCloseThenAppFinFinishesAfterLastAck() throws Exception {
+        establish();
+        upstream.close();
+        upstream = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (host.sent.isEmpty() && System.currentTimeMillis() < deadline) {
+            flow.onReadable(readBuffer, now);
+            Thread.sleep(1);
+        }
+        assertEquals(PacketDecoder.TCP_FIN | ACK, last().flags);
+        assertEquals(ISN + 1, last().seq);
+
+        // FIN丢失时超时重传，序号不变
+        flow.onTimer(now + 1000);
+        assertEquals(2, host.sent.size());
+        assertEquals(PacketDecoder.TCP_FIN | ACK, last().flags);
+        assertEquals(ISN + 1, last().seq);
+
+        // 应用的FIN同时确认了我们的FIN：回复ACK后结束
+        fromApp(REMOTE_ISN + 1, ISN + 2, ACK | PacketDecoder.TCP_FIN, null);
+        assertEquals(ACK, last().flags);
+        assertEquals(REMOTE_ISN + 2, last().ack);
+        assertEquals(ISN + 2, last().seq);
+        assertEquals(TcpFlow.State.CLOSED, flow.getState());
+        assertTrue(host.closed);
+    }
+
+    @Test
+    public void resetFromAppClosesWithoutReply() throws Exception {
+        establish();
+        fromApp(REMOTE_ISN + 1, 0, PacketDecoder.TCP_RST, null);
+        assertEquals(TcpFlow.State.CLOSED, flow.getState());
+        assertTrue(host.sent.isEmpty());
+        assertTrue(host.closed);
+    }
+}